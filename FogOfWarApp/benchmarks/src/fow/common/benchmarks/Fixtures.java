@@ -0,0 +1,213 @@
+package fow.common.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import fow.common.GeometryEntity;
+import fow.common.IntMap;
+import fow.common.NetworkEvent;
+import fow.common.PlayerState;
+import fow.common.PositionTuple;
+import fow.common.SceneNode;
+import fow.common.TraceContext;
+import fow.common.TraceSummary;
+import fow.common.VisibilityDelta;
+import fow.common.VisibilityDelta.PlayerPatch;
+import fow.common.VisibilityLayer;
+import fow.common.WallSegment;
+
+/**
+ * Builds synthetic game data for the benchmarks. Everything is seeded so runs are comparable.
+ */
+public class Fixtures {
+
+    public static final int LEVEL_WIDTH = 2400;
+    public static final int LEVEL_HEIGHT = 2000;
+
+    /** Longest single step a player takes in the random walk */
+    private static final int STEP = 40;
+
+    private Fixtures() {}
+
+    /**
+     * @param players number of players in the game
+     * @param pathLength number of positions in each player's path history
+     * @return the players, each having done a random walk of the given length
+     */
+    public static PlayerState[] players(int players, int pathLength) {
+        Random random = new Random(players * 31 + pathLength);
+        PlayerState[] ps = new PlayerState[players];
+        for (int i = 0; i < players; i++) {
+            PlayerState p = new PlayerState(i, random.nextInt(LEVEL_WIDTH),
+                    random.nextInt(LEVEL_HEIGHT));
+            for (int j = 1; j < pathLength; j++) {
+                PositionTuple cur = p.getCurrentPosition();
+                p.changePosition(new PositionTuple(cur.x + random.nextInt(2 * STEP) - STEP, cur.y
+                        + random.nextInt(2 * STEP) - STEP));
+            }
+            ps[i] = p;
+        }
+        return ps;
+    }
+
+    /**
+     * @param walls number of walls
+     * @return short walls scattered over a square level with room for twice as many, with IDs
+     *         from 0
+     */
+    public static List<WallSegment> walls(int walls) {
+        Random random = new Random(walls);
+        int size = (int) Math.ceil(Math.sqrt(walls * 2.0)) * 100;
+        List<WallSegment> result = new ArrayList<WallSegment>(walls);
+        for (int i = 0; i < walls; i++) {
+            int x = random.nextInt(size);
+            int y = random.nextInt(size);
+            result.add(new WallSegment(i, x, y, x + random.nextInt(50), y + random.nextInt(50)));
+        }
+        return result;
+    }
+
+    public static VisibilityLayer visibilityLayer(int players, int pathLength) {
+        return visibilityLayer(players, pathLength, 0);
+    }
+
+    /**
+     * @return a player's layer, seeing every one of the walls
+     */
+    public static VisibilityLayer visibilityLayer(int players, int pathLength, int walls) {
+        return new VisibilityLayer(LEVEL_WIDTH, LEVEL_HEIGHT, sceneGraph(walls), players(players,
+                pathLength));
+    }
+
+    public static IntMap<VisibilityLayer> dmVisibilities(int players, int pathLength) {
+        return dmVisibilities(players, pathLength, 0);
+    }
+
+    /**
+     * @return what the DM receives on UPDATE_VISIBILITY: every player's layer keyed by ID, all
+     *         sharing one players array and scene graph like GameState does
+     */
+    public static IntMap<VisibilityLayer> dmVisibilities(int players, int pathLength, int walls) {
+        PlayerState[] ps = players(players, pathLength);
+        SceneNode sceneGraph = sceneGraph(walls);
+        IntMap<VisibilityLayer> layers = new IntMap<VisibilityLayer>();
+        for (PlayerState p : ps) {
+            layers.put(p.id, new VisibilityLayer(LEVEL_WIDTH, LEVEL_HEIGHT, sceneGraph, ps));
+        }
+        return layers;
+    }
+
+    /**
+     * @return an empty root holding the given number of walls
+     */
+    public static SceneNode sceneGraph(int walls) {
+        SceneNode root = new SceneNode(null);
+        root.addChildren(walls(walls).toArray(new WallSegment[walls]));
+        return root;
+    }
+
+    /**
+     * @return a delta like the one sent after a move: every player one step further along a path
+     *         of the given length, and a tenth of the walls coming into view
+     */
+    public static VisibilityDelta visibilityDelta(int players, int pathLength, int walls) {
+        Random random = new Random(players * 31 + walls);
+        PlayerPatch[] patches = new PlayerPatch[players];
+        for (int i = 0; i < players; i++) {
+            patches[i] = new PlayerPatch(i, pathLength - 1, new int[] {random.nextInt(LEVEL_WIDTH),
+                    random.nextInt(LEVEL_HEIGHT)});
+        }
+        List<WallSegment> seen = walls(walls).subList(0, walls / 10);
+        return new VisibilityDelta(0, 1, LEVEL_WIDTH, LEVEL_HEIGHT, patches, new int[0],
+                seen.toArray(new GeometryEntity[seen.size()]), new int[0]);
+    }
+
+    /**
+     * @return what the DM receives after a move: a delta for every player's layer, keyed by ID
+     */
+    public static IntMap<VisibilityDelta> dmDeltas(int players, int pathLength, int walls) {
+        IntMap<VisibilityDelta> deltas = new IntMap<VisibilityDelta>();
+        for (int i = 0; i < players; i++) {
+            deltas.put(i, visibilityDelta(players, pathLength, walls));
+        }
+        return deltas;
+    }
+
+    /**
+     * @return a copy of the delta that hasn't been encoded yet. The codec keeps each delta's
+     *         encoding, so encoding the same one again would only measure a copy.
+     */
+    public static VisibilityDelta unencoded(VisibilityDelta delta) {
+        return new VisibilityDelta(delta.getBaseVersion(), delta.getVersion(),
+                delta.getLevelWidth(), delta.getLevelHeight(), delta.getPlayers(),
+                delta.getRemovedPlayers(), delta.getAddedGeometry(), delta.getRemovedGeometry());
+    }
+
+    /**
+     * @return a request from every player, keyed by ID, as the DM is sent them
+     */
+    public static IntMap<PositionTuple> pendingRequests(int players) {
+        Random random = new Random(players);
+        IntMap<PositionTuple> requests = new IntMap<PositionTuple>();
+        for (int i = 0; i < players; i++) {
+            requests.put(i, new PositionTuple(random.nextInt(LEVEL_WIDTH),
+                    random.nextInt(LEVEL_HEIGHT)));
+        }
+        return requests;
+    }
+
+    /**
+     * @return a summary with every stage timed over a thousand moves
+     */
+    public static TraceSummary traceSummary() {
+        int n = TraceContext.Stage.values().length;
+        long[] counts = new long[n];
+        long[] p50 = new long[n];
+        long[] p99 = new long[n];
+        long[] max = new long[n];
+        for (int i = 0; i < n; i++) {
+            counts[i] = 1000;
+            p50[i] = (1L << 20) * (i + 1) - 1;
+            p99[i] = (1L << 24) * (i + 1) - 1;
+            max[i] = 123456789L * (i + 1);
+        }
+        return new TraceSummary(counts, p50, p99, max);
+    }
+
+    /**
+     * Serialize an event the way the old ObjectOutputStream path did: reset, write, flush.
+     *
+     * @return the bytes written for this event, without the stream header
+     */
+    public static byte[] serialize(ObjectOutputStream out, ByteArrayOutputStream bytes,
+            NetworkEvent event) throws IOException {
+        out.flush();
+        bytes.reset();
+        out.reset();
+        out.writeObject(event);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @return a complete object stream, header included, holding the single event
+     */
+    public static byte[] serializeStream(NetworkEvent event) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(event);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    public static NetworkEvent deserializeStream(byte[] stream) throws IOException,
+            ClassNotFoundException {
+        return (NetworkEvent) new ObjectInputStream(new ByteArrayInputStream(stream)).readObject();
+    }
+}
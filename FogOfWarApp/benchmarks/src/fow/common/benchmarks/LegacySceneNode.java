@@ -0,0 +1,45 @@
+package fow.common.benchmarks;
+
+import java.io.Serializable;
+import java.util.LinkedList;
+import java.util.List;
+
+import fow.common.GeometryEntity;
+
+/**
+ * The scene graph node as it was before nodes were kept in flat tables: an object per node with a
+ * list of its children and a list of every node below it, which each new node is added to for all
+ * of its ancestors. Kept only to compare sizes against.
+ */
+class LegacySceneNode implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public GeometryEntity data;
+    public LegacySceneNode parent;
+    public List<LegacySceneNode> children;
+
+    private List<LegacySceneNode> elementsIndex;
+
+    public LegacySceneNode(GeometryEntity data) {
+        this.data = data;
+        this.children = new LinkedList<LegacySceneNode>();
+        this.elementsIndex = new LinkedList<LegacySceneNode>();
+        this.elementsIndex.add(this);
+    }
+
+    public LegacySceneNode addChild(GeometryEntity child) {
+        LegacySceneNode childNode = new LegacySceneNode(child);
+        childNode.parent = this;
+        this.children.add(childNode);
+        this.registerChildForSearch(childNode);
+        return childNode;
+    }
+
+    private void registerChildForSearch(LegacySceneNode node) {
+        elementsIndex.add(node);
+        if (parent != null) {
+            parent.registerChildForSearch(node);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package fow.common.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fow.common.NetworkEvent;
+import fow.common.NetworkEvent.Type;
+import fow.common.NetworkEventCodec;
+import fow.common.WireWriter;
+
+/**
+ * Compares encoding and decoding an UPDATE_VISIBILITY event with Java serialization, as
+ * ClientConnection did before, against NetworkEventCodec. Both a single player's layer and the
+ * DM's map of every layer are measured.
+ *
+ * The serialization decode includes creating an ObjectInputStream, since every frame has to be
+ * read with a fresh class descriptor table after out.reset() anyway.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NetworkEventCodecBenchmark {
+
+    @Param({"4", "50"})
+    public int players;
+
+    @Param({"10", "1000"})
+    public int pathLength;
+
+    @Param({"false", "true"})
+    public boolean dm;
+
+    private NetworkEvent event;
+
+    private ByteArrayOutputStream serializedBytes;
+    private ObjectOutputStream serializedOut;
+    private byte[] serializedStream;
+
+    private WireWriter writer;
+    private byte[] frame;
+
+    @Setup
+    public void setup() throws IOException {
+        Object data =
+                dm ? Fixtures.dmVisibilities(players, pathLength) : Fixtures.visibilityLayer(
+                        players, pathLength);
+        event = new NetworkEvent(Type.UPDATE_VISIBILITY, data);
+
+        serializedBytes = new ByteArrayOutputStream();
+        serializedOut = new ObjectOutputStream(serializedBytes);
+        serializedStream = Fixtures.serializeStream(event);
+
+        writer = new WireWriter();
+        frame = NetworkEventCodec.encode(event);
+    }
+
+    @Benchmark
+    public int serializationEncode() throws IOException {
+        serializedBytes.reset();
+        serializedOut.reset();
+        serializedOut.writeObject(event);
+        serializedOut.flush();
+        return serializedBytes.size();
+    }
+
+    @Benchmark
+    public int codecEncode() throws IOException {
+        writer.reset();
+        NetworkEventCodec.encode(event, writer);
+        return writer.size();
+    }
+
+    @Benchmark
+    public NetworkEvent serializationDecode() throws Exception {
+        return Fixtures.deserializeStream(serializedStream);
+    }
+
+    @Benchmark
+    public NetworkEvent codecDecode() throws IOException {
+        ByteBuffer body = ByteBuffer.wrap(frame);
+        body.position(NetworkEventCodec.LENGTH_PREFIX);
+        return NetworkEventCodec.decode(body);
+    }
+}
@@ -0,0 +1,78 @@
+package fow.common.benchmarks;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fow.common.NetworkEvent;
+import fow.common.NetworkEventCodec;
+import fow.common.WireWriter;
+
+/**
+ * Encoding and decoding every payload NetworkEventCodec knows, in games of a few sizes given as
+ * players x path length x walls. PayloadSizeReport prints the bytes each payload takes on the wire
+ * and allocates, for the same games.
+ *
+ * Deltas are copied before each encode, since the codec keeps a delta's encoding and would
+ * otherwise only copy it. The copy is part of the score, as it is small next to the encoding.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NetworkPayloadBenchmark {
+
+    @Param({"PING", "IDENTIFY_REQUEST", "IDENTIFY_REPLY", "CONFIRMED", "DISCONNECT", "IDLE",
+            "DUPLICATE_ACCOUNT", "SERVER_FULL", "FAILED_CONNECTION", "MOVE_REQUEST",
+            "PENDING_REQUESTS", "LAYER", "DM_LAYERS", "DELTA", "DM_DELTAS", "ACK_VISIBILITY",
+            "PATH_HISTORY_REQUEST", "PATH_HISTORY"})
+    public Payload payload;
+
+    @Param({"4x10x100", "10x100x1000", "50x1000x10000"})
+    public String game;
+
+    private NetworkEvent event;
+    private boolean hasDeltas;
+
+    private WireWriter writer;
+    private byte[] frame;
+
+    @Setup
+    public void setup() throws IOException {
+        String[] size = game.split("x");
+        event = payload.event(Integer.parseInt(size[0]), Integer.parseInt(size[1]),
+                Integer.parseInt(size[2]));
+        hasDeltas = Payload.unencoded(event) != event;
+
+        writer = new WireWriter();
+        frame = NetworkEventCodec.encode(Payload.unencoded(event));
+    }
+
+    @Benchmark
+    public int encode() throws IOException {
+        writer.reset();
+        NetworkEventCodec.encode(hasDeltas ? Payload.unencoded(event) : event, writer);
+        return writer.size();
+    }
+
+    @Benchmark
+    public NetworkEvent decode() throws IOException {
+        ByteBuffer body = ByteBuffer.wrap(frame);
+        body.position(NetworkEventCodec.LENGTH_PREFIX);
+        return NetworkEventCodec.decode(body);
+    }
+}
@@ -0,0 +1,194 @@
+package fow.common.benchmarks;
+
+import fow.common.IntMap;
+import fow.common.MoveRequest;
+import fow.common.NetworkEvent;
+import fow.common.NetworkEvent.Type;
+import fow.common.PositionTuple;
+import fow.common.TraceContext;
+import fow.common.TraceContext.Hop;
+import fow.common.VisibilityDelta;
+
+/**
+ * Every form of data an event has on the wire, as documented on NetworkEvent.Type. Each builds its
+ * event for a game of the given size; the small ones ignore it.
+ */
+public enum Payload {
+
+    PING(Type.PING) {
+        @Override
+        Object data(int players, int pathLength, int walls) {
+            return null;
+        }
+    },
+    IDENTIFY_REQUEST(Type.IDENTIFY) {
+        @Override
+        Object data(int players, int pathLength, int walls) {
+            return 1048577;
+        }
+    },
+    IDENTIFY_REPLY(Type.IDENTIFY) {
+        @Override
+        Object data(int players, int pathLength, int walls) {
+            return new Object[] {1048577, 123456};
+        }
+    },
+    CONFIRMED(Type.CONFIRMED) {
+        @Override
+        Object data(int players, int pathLength, int walls) {
+            return Boolean.TRUE;
+        }
+    },
+    DISCONNECT(Type.DISCONNECT) {
+        @Override
+        Object data(int players, int pathLength, int walls) {
+            return new Object[] {Boolean.TRUE, 123456};
+        }
+    },
+    IDLE(Type.IDLE) {
+        @Override
+        Object data(int players, int pathLength, int walls) {
+            return new Object[] {Boolean.TRUE, 123456};
+        }
+    },
+    DUPLICATE_ACCOUNT(Type.DUPLICATE_ACCOUNT) {
+        @Override
+        Object data(int players, int pathLength, int walls) {
+            return null;
+        }
+    },
+    SERVER_FULL(Type.SERVER_FULL) {
+        @Override
+        Object data(int players, int pathLength, int walls) {
+            return null;
+        }
+    },
+    FAILED_CONNECTION(Type.FAILED_CONNECTION) {
+        @Override
+        Object data(int players, int pathLength, int walls) {
+            return null;
+        }
+    },
+    MOVE_REQUEST(Type.REQUEST_MOVE) {
+        @Override
+        Object data(int players, int pathLength, int walls) {
+            return new MoveRequest(3, new PositionTuple(1250, 980));
+        }
+    },
+    TRACED_MOVE_REQUEST(Type.REQUEST_MOVE) {
+        @Override
+        Object data(int players, int pathLength, int walls) {
+            return new MoveRequest(3, new PositionTuple(1250, 980));
+        }
+
+        /** Stamped at every hop, as it is when the PC app sends it back */
+        @Override
+        public NetworkEvent event(int players, int pathLength, int walls) {
+            NetworkEvent event = super.event(players, pathLength, walls);
+            TraceContext trace = new TraceContext(4711);
+            for (Hop hop : Hop.values()) {
+                trace.stamp(hop);
+            }
+            event.setTrace(trace);
+            return event;
+        }
+    },
+    PENDING_REQUESTS(Type.REQUEST_MOVE) {
+        @Override
+        Object data(int players, int pathLength, int walls) {
+            return Fixtures.pendingRequests(players);
+        }
+    },
+    LAYER(Type.UPDATE_VISIBILITY) {
+        @Override
+        Object data(int players, int pathLength, int walls) {
+            return Fixtures.visibilityLayer(players, pathLength, walls);
+        }
+    },
+    DM_LAYERS(Type.UPDATE_VISIBILITY) {
+        @Override
+        Object data(int players, int pathLength, int walls) {
+            return Fixtures.dmVisibilities(players, pathLength, walls);
+        }
+    },
+    DELTA(Type.UPDATE_VISIBILITY) {
+        @Override
+        Object data(int players, int pathLength, int walls) {
+            return Fixtures.visibilityDelta(players, pathLength, walls);
+        }
+    },
+    DM_DELTAS(Type.UPDATE_VISIBILITY) {
+        @Override
+        Object data(int players, int pathLength, int walls) {
+            return Fixtures.dmDeltas(players, pathLength, walls);
+        }
+    },
+    ACK_VISIBILITY(Type.ACK_VISIBILITY) {
+        @Override
+        Object data(int players, int pathLength, int walls) {
+            return 4711;
+        }
+    },
+    PATH_HISTORY_REQUEST(Type.PATH_HISTORY) {
+        @Override
+        Object data(int players, int pathLength, int walls) {
+            return 3;
+        }
+    },
+    PATH_HISTORY(Type.PATH_HISTORY) {
+        @Override
+        Object data(int players, int pathLength, int walls) {
+            return Fixtures.players(1, pathLength)[0];
+        }
+    },
+    TRACE_STATS_REQUEST(Type.TRACE_STATS) {
+        @Override
+        Object data(int players, int pathLength, int walls) {
+            return null;
+        }
+    },
+    TRACE_STATS(Type.TRACE_STATS) {
+        @Override
+        Object data(int players, int pathLength, int walls) {
+            return Fixtures.traceSummary();
+        }
+    };
+
+    private final Type type;
+
+    private Payload(Type type) {
+        this.type = type;
+    }
+
+    abstract Object data(int players, int pathLength, int walls);
+
+    public Type getType() {
+        return type;
+    }
+
+    public NetworkEvent event(int players, int pathLength, int walls) {
+        return new NetworkEvent(type, data(players, pathLength, walls));
+    }
+
+    /**
+     * @return the event with any deltas in it replaced by ones that haven't been encoded, or the
+     *         event itself if it has none
+     */
+    @SuppressWarnings("unchecked")
+    public static NetworkEvent unencoded(NetworkEvent event) {
+        Object data = event.getData();
+        if (data instanceof VisibilityDelta) {
+            return new NetworkEvent(event.getType(), Fixtures.unencoded((VisibilityDelta) data));
+        }
+        if (data instanceof IntMap && !((IntMap<?>) data).isEmpty()
+                && ((IntMap<?>) data).values().iterator().next() instanceof VisibilityDelta) {
+            IntMap<VisibilityDelta> deltas = (IntMap<VisibilityDelta>) data;
+            IntMap<VisibilityDelta> copy = new IntMap<VisibilityDelta>(deltas.size());
+            for (int i = deltas.nextSlot(-1); i >= 0; i = deltas.nextSlot(i)) {
+                copy.put(deltas.keyAt(i), Fixtures.unencoded(deltas.valueAt(i)));
+            }
+            return new NetworkEvent(event.getType(), copy);
+        }
+        return event;
+    }
+}
@@ -0,0 +1,120 @@
+package fow.common.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+
+import fow.common.NetworkEvent;
+import fow.common.NetworkEvent.Type;
+import fow.common.NetworkEventCodec;
+import fow.common.WireWriter;
+
+/**
+ * Prints the number of bytes each UPDATE_VISIBILITY costs on the wire with Java serialization
+ * (reset before every write, as the connections used to do) and with NetworkEventCodec, then the
+ * codec's bytes for every payload in games of the sizes NetworkPayloadBenchmark uses, with the
+ * bytes allocated to encode and decode each. JMH's gc profiler only counts collections, so the
+ * allocation is read from the thread's allocation counter.
+ */
+public class PayloadSizeReport {
+
+    private static final int[] PLAYERS = {4, 10, 50};
+    private static final int[] PATH_LENGTHS = {1, 10, 100, 1000};
+
+    /** Players, path length and walls of each game */
+    private static final int[][] GAMES = { {4, 10, 100}, {10, 100, 1000}, {50, 1000, 10000}};
+
+    /* Allocation is measured over the last of a few rounds, so the JIT has compiled the codec */
+    private static final int ALLOCATION_ROUNDS = 5;
+    private static final int ALLOCATION_OPS = 100;
+
+    public static void main(String[] args) throws IOException {
+        System.out.println(String.format("%-6s %8s %6s %14s %10s %7s", "layer", "players",
+                "path", "serialization", "codec", "ratio"));
+        for (int players : PLAYERS) {
+            for (int pathLength : PATH_LENGTHS) {
+                report("player", players, pathLength, new NetworkEvent(Type.UPDATE_VISIBILITY,
+                        Fixtures.visibilityLayer(players, pathLength)));
+                report("dm", players, pathLength, new NetworkEvent(Type.UPDATE_VISIBILITY,
+                        Fixtures.dmVisibilities(players, pathLength)));
+            }
+        }
+
+        System.out.println();
+        System.out.println(String.format("%-22s %14s %10s %14s %14s", "payload", "game", "wire",
+                "encode alloc", "decode alloc"));
+        for (Payload payload : Payload.values()) {
+            for (int[] game : GAMES) {
+                NetworkEvent event = payload.event(game[0], game[1], game[2]);
+                byte[] frame = NetworkEventCodec.encode(Payload.unencoded(event));
+                System.out.println(String.format("%-22s %14s %10d %14d %14d", payload, game[0]
+                        + "x" + game[1] + "x" + game[2], frame.length, encodeAllocation(event),
+                        decodeAllocation(frame)));
+            }
+        }
+    }
+
+    /**
+     * @return bytes allocated by one encode into a reused writer, once warmed up. Deltas are
+     *         copied outside the measurement, as the codec keeps their encoding.
+     */
+    private static long encodeAllocation(NetworkEvent event) throws IOException {
+        WireWriter writer = new WireWriter();
+        NetworkEvent[] events = new NetworkEvent[ALLOCATION_OPS];
+        long total = 0;
+        for (int round = 0; round < ALLOCATION_ROUNDS; round++) {
+            for (int i = 0; i < events.length; i++) {
+                events[i] = Payload.unencoded(event);
+            }
+            long before = allocatedBytes();
+            for (NetworkEvent e : events) {
+                writer.reset();
+                NetworkEventCodec.encode(e, writer);
+            }
+            total = allocatedBytes() - before;
+        }
+        return total / ALLOCATION_OPS;
+    }
+
+    /**
+     * @return bytes allocated by one decode of the frame, once warmed up
+     */
+    private static long decodeAllocation(byte[] frame) throws IOException {
+        ByteBuffer body = ByteBuffer.wrap(frame);
+        long total = 0;
+        for (int round = 0; round < ALLOCATION_ROUNDS; round++) {
+            long before = allocatedBytes();
+            for (int i = 0; i < ALLOCATION_OPS; i++) {
+                body.position(NetworkEventCodec.LENGTH_PREFIX);
+                NetworkEventCodec.decode(body);
+            }
+            total = allocatedBytes() - before;
+        }
+        return total / ALLOCATION_OPS;
+    }
+
+    /*
+     * HotSpot counts the bytes each thread allocates. Other JVMs report -1 for every payload.
+     */
+    private static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            return -ALLOCATION_OPS;
+        }
+        return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread
+                .currentThread().getId());
+    }
+
+    private static void report(String layer, int players, int pathLength, NetworkEvent event)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        int serialized = Fixtures.serialize(out, bytes, event).length;
+        int codec = NetworkEventCodec.encode(event).length;
+        System.out.println(String.format("%-6s %8d %6d %14d %10d %6.1fx", layer, players,
+                pathLength, serialized, codec, serialized / (double) codec));
+    }
+}
@@ -0,0 +1,62 @@
+package fow.common.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fow.common.PlayerState;
+
+/**
+ * Time per move of a player making 10k moves, starting from paths of different lengths. Moves only
+ * append to the path, so the time should be the same whatever the path's length.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PlayerStateBenchmark {
+
+    private static final int MOVES = 10000;
+
+    @Param({"1", "10000", "100000"})
+    public int pathLength;
+
+    private PlayerState template;
+    private PlayerState player;
+
+    @Setup
+    public void setup() {
+        template = Fixtures.players(1, pathLength)[0];
+    }
+
+    @Setup(Level.Invocation)
+    public void copy() {
+        player = new PlayerState(template);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MOVES)
+    public PlayerState move() {
+        PlayerState p = player;
+        int x = p.getCurrentX();
+        int y = p.getCurrentY();
+        for (int i = 0; i < MOVES; i++) {
+            p.changePosition(x + (i & 15), y + (i >> 4 & 15));
+        }
+        return p;
+    }
+}
@@ -0,0 +1,105 @@
+package fow.common.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.List;
+
+import fow.common.NetworkEvent;
+import fow.common.NetworkEvent.Type;
+import fow.common.NetworkEventCodec;
+import fow.common.PlayerState;
+import fow.common.SceneNode;
+import fow.common.VisibilityLayer;
+import fow.common.WallSegment;
+
+/**
+ * Prints the heap and serialized size of a 50k wall scene graph, as flat tables and as the object
+ * per node tree it used to be. The walls themselves are left out of the heap sizes, they are the
+ * same either way. Each shape is the walls straight under the root, or grouped under rooms and
+ * then floors, since the old tree paid for every node once per ancestor.
+ *
+ * Heap sizes are the change in used memory after collecting garbage, so they are approximate.
+ */
+public class SceneGraphSizeReport {
+
+    private static final int WALLS = 50000;
+
+    /** Walls per room and rooms per floor in the deeper shapes */
+    private static final int GROUP = 100;
+
+    public static void main(String[] args) throws IOException {
+        List<WallSegment> walls = Fixtures.walls(WALLS);
+        System.out.println(String.format("%-6s %-7s %12s %14s %10s", "depth", "graph", "heap",
+                "serialization", "codec"));
+        for (int depth = 1; depth <= 3; depth++) {
+            long before = usedMemory();
+            SceneNode flat = flat(walls, depth);
+            long flatHeap = usedMemory() - before;
+            report(depth, "flat", flatHeap, serializedSize(flat), codecSize(flat));
+
+            before = usedMemory();
+            LegacySceneNode legacy = legacy(walls, depth);
+            long legacyHeap = usedMemory() - before;
+            report(depth, "legacy", legacyHeap, serializedSize(legacy), -1);
+        }
+    }
+
+    private static SceneNode flat(List<WallSegment> walls, int depth) {
+        SceneNode root = new SceneNode(null);
+        SceneNode floor = root;
+        SceneNode room = root;
+        for (int i = 0; i < walls.size(); i++) {
+            if (depth >= 3 && i % (GROUP * GROUP) == 0) {
+                floor = root.addChild(null);
+            }
+            if (depth >= 2 && i % GROUP == 0) {
+                room = (depth >= 3 ? floor : root).addChild(null);
+            }
+            room.addChild(walls.get(i));
+        }
+        return root;
+    }
+
+    private static LegacySceneNode legacy(List<WallSegment> walls, int depth) {
+        LegacySceneNode root = new LegacySceneNode(null);
+        LegacySceneNode floor = root;
+        LegacySceneNode room = root;
+        for (int i = 0; i < walls.size(); i++) {
+            if (depth >= 3 && i % (GROUP * GROUP) == 0) {
+                floor = root.addChild(null);
+            }
+            if (depth >= 2 && i % GROUP == 0) {
+                room = (depth >= 3 ? floor : root).addChild(null);
+            }
+            room.addChild(walls.get(i));
+        }
+        return root;
+    }
+
+    private static void report(int depth, String graph, long heap, int serialized, int codec) {
+        System.out.println(String.format("%-6d %-7s %12d %14d %10s", depth, graph, heap,
+                serialized, codec < 0 ? "-" : Integer.toString(codec)));
+    }
+
+    private static int serializedSize(Object graph) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(graph);
+        out.close();
+        return bytes.size();
+    }
+
+    private static int codecSize(SceneNode graph) throws IOException {
+        return NetworkEventCodec.encode(new NetworkEvent(Type.UPDATE_VISIBILITY,
+                new VisibilityLayer(0, 0, graph, new PlayerState[0]))).length;
+    }
+
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
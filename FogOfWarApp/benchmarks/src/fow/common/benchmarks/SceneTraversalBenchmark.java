@@ -0,0 +1,107 @@
+package fow.common.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fow.common.GeometryEntity;
+import fow.common.SceneCursor;
+import fow.common.SceneNode;
+import fow.common.WallSegment;
+
+/**
+ * Time to walk a whole scene graph with its iterator and with a reused cursor, and to find the
+ * walls in a quarter of the level with a filtered cursor. The walls are either straight under the
+ * root or grouped in rooms of 100. Run with -prof gc to see the iterator's allocation per node.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SceneTraversalBenchmark {
+
+    @Param({"1000", "50000"})
+    public int walls;
+
+    @Param({"1", "2"})
+    public int depth;
+
+    private SceneNode graph;
+    private SceneCursor cursor;
+    private int quarter;
+
+    @Setup
+    public void setup() {
+        List<WallSegment> ws = Fixtures.walls(walls);
+        graph = new SceneNode(null);
+        SceneNode room = graph;
+        for (int i = 0; i < ws.size(); i++) {
+            if (depth > 1 && i % 100 == 0) {
+                room = graph.addChild(null);
+            }
+            room.addChild(ws.get(i));
+        }
+        cursor = new SceneCursor();
+        quarter = (int) Math.ceil(Math.sqrt(walls * 2.0)) * 100 / 2;
+    }
+
+    @Benchmark
+    public int iterator() {
+        int sum = 0;
+        for (SceneNode node : graph) {
+            if (node.getData() != null) {
+                sum += node.getData().id;
+            }
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public int cursor() {
+        int sum = 0;
+        SceneCursor c = cursor.clearFilters().reset(graph);
+        while (c.next()) {
+            GeometryEntity entity = c.getData();
+            if (entity != null) {
+                sum += entity.id;
+            }
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public int iteratorWithin() {
+        int sum = 0;
+        for (SceneNode node : graph) {
+            GeometryEntity entity = node.getData();
+            if (entity instanceof WallSegment && entity.x <= quarter && entity.y <= quarter) {
+                sum += entity.id;
+            }
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public int cursorWithin() {
+        int sum = 0;
+        SceneCursor c = cursor.reset(graph).ofType(WallSegment.class).within(0, 0, quarter,
+                quarter);
+        while (c.next()) {
+            sum += c.getData().id;
+        }
+        return sum;
+    }
+}
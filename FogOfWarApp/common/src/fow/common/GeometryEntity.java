@@ -14,6 +14,13 @@ public abstract class GeometryEntity implements Serializable {
 
 	private static final long serialVersionUID = 4084155550251316650L;
 
+	/*
+	 * Identifies this entity within its level, so visibility updates can refer
+	 * to geometry a client already has. Must be unique among the level's
+	 * entities, and is assigned by whoever builds the level.
+	 */
+	public int id;
+
 	/*
 	 * Position of the entity in the world. Should not exceed GameGeometry's
 	 * levelWidth or levelHeight
@@ -29,6 +36,14 @@ public abstract class GeometryEntity implements Serializable {
 	public int width;
 	public int height;
 
+	public int getId() {
+		return id;
+	}
+
+	public void setId(int id) {
+		this.id = id;
+	}
+
 	public int getX() {
 		return x;
 	}
@@ -0,0 +1,340 @@
+package fow.common;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.AbstractCollection;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A map from ints to objects that doesn't box its keys. Keys and values are
+ * kept in two arrays with open addressing and linear probing, so a lookup
+ * allocates nothing. Values can't be null, an empty slot is one with no value.
+ *
+ * Entries are walked by slot, also without allocating:
+ *
+ * <pre>
+ * for (int i = map.nextSlot(-1); i >= 0; i = map.nextSlot(i))
+ * 	use(map.keyAt(i), map.valueAt(i));
+ * </pre>
+ *
+ * The map must not be changed while it is walked. Not thread safe.
+ *
+ * @param <V> the type of the values
+ */
+public final class IntMap<V> implements Serializable {
+
+	private static final long serialVersionUID = -2473416934584717523L;
+
+	private static final int MIN_CAPACITY = 8;
+
+	/* Multiplier that spreads consecutive keys over the table */
+	private static final int PHI = 0x9E3779B9;
+
+	private transient int[] keys;
+	private transient Object[] values;
+	private transient int size;
+	/* Number of bits to shift a key's hash by, 32 - log2(capacity) */
+	private transient int shift;
+
+	public IntMap() {
+		this(MIN_CAPACITY / 2);
+	}
+
+	/**
+	 * @param expected how many entries the map should hold without growing
+	 */
+	public IntMap(int expected) {
+		if (expected < 0)
+			throw new IllegalArgumentException("Negative size " + expected);
+		allocate(capacityFor(expected));
+	}
+
+	/**
+	 * @param other a map whose entries to copy
+	 */
+	public IntMap(IntMap<? extends V> other) {
+		keys = other.keys.clone();
+		values = other.values.clone();
+		size = other.size;
+		shift = other.shift;
+	}
+
+	private static int capacityFor(int expected) {
+		int capacity = MIN_CAPACITY;
+		// At most three quarters full
+		while (capacity - capacity / 4 < expected)
+			capacity *= 2;
+		return capacity;
+	}
+
+	private void allocate(int capacity) {
+		keys = new int[capacity];
+		values = new Object[capacity];
+		shift = Integer.numberOfLeadingZeros(capacity) + 1;
+	}
+
+	private int slotOf(int key) {
+		return (key * PHI) >>> shift;
+	}
+
+	/**
+	 * @return the slot holding the key, or -1 if it isn't in the map
+	 */
+	private int find(int key) {
+		int mask = keys.length - 1;
+		for (int i = slotOf(key);; i = (i + 1) & mask) {
+			if (values[i] == null)
+				return -1;
+			if (keys[i] == key)
+				return i;
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	public V get(int key) {
+		int i = find(key);
+		return i < 0 ? null : (V) values[i];
+	}
+
+	public boolean containsKey(int key) {
+		return find(key) >= 0;
+	}
+
+	/**
+	 * @return the value the key had, or null if it wasn't in the map
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(int key, V value) {
+		if (value == null)
+			throw new IllegalArgumentException("IntMap values can't be null");
+		int mask = keys.length - 1;
+		int i = slotOf(key);
+		for (; values[i] != null; i = (i + 1) & mask) {
+			if (keys[i] == key) {
+				V old = (V) values[i];
+				values[i] = value;
+				return old;
+			}
+		}
+		keys[i] = key;
+		values[i] = value;
+		if (++size > keys.length - keys.length / 4)
+			resize(keys.length * 2);
+		return null;
+	}
+
+	/**
+	 * Put every entry of another map in this one.
+	 */
+	@SuppressWarnings("unchecked")
+	public void putAll(IntMap<? extends V> other) {
+		for (int i = other.nextSlot(-1); i >= 0; i = other.nextSlot(i))
+			put(other.keys[i], (V) other.values[i]);
+	}
+
+	/**
+	 * @return the value the key had, or null if it wasn't in the map
+	 */
+	@SuppressWarnings("unchecked")
+	public V remove(int key) {
+		int i = find(key);
+		if (i < 0)
+			return null;
+		V old = (V) values[i];
+		values[i] = null;
+		size--;
+
+		// Move later entries of the run back, so none is left behind a gap
+		int mask = keys.length - 1;
+		int gap = i;
+		for (int j = (i + 1) & mask; values[j] != null; j = (j + 1) & mask) {
+			int home = slotOf(keys[j]);
+			// Entries whose home is cyclically after the gap can't move before it
+			if (((j - home) & mask) >= ((j - gap) & mask)) {
+				keys[gap] = keys[j];
+				values[gap] = values[j];
+				values[j] = null;
+				gap = j;
+			}
+		}
+		return old;
+	}
+
+	private void resize(int capacity) {
+		int[] oldKeys = keys;
+		Object[] oldValues = values;
+		allocate(capacity);
+		int mask = capacity - 1;
+		for (int j = 0; j < oldKeys.length; j++) {
+			if (oldValues[j] == null)
+				continue;
+			int i = slotOf(oldKeys[j]);
+			while (values[i] != null)
+				i = (i + 1) & mask;
+			keys[i] = oldKeys[j];
+			values[i] = oldValues[j];
+		}
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public void clear() {
+		if (size > 0) {
+			Arrays.fill(values, null);
+			size = 0;
+		}
+	}
+
+	/**
+	 * @param slot a slot returned by this method, or -1 to start
+	 * @return the next slot holding an entry, or -1 once there are no more
+	 */
+	public int nextSlot(int slot) {
+		for (int i = slot + 1; i < values.length; i++) {
+			if (values[i] != null)
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the key in a slot returned by nextSlot()
+	 */
+	public int keyAt(int slot) {
+		return keys[slot];
+	}
+
+	/**
+	 * @return the value in a slot returned by nextSlot()
+	 */
+	@SuppressWarnings("unchecked")
+	public V valueAt(int slot) {
+		return (V) values[slot];
+	}
+
+	/**
+	 * @return a new array of the keys, in slot order
+	 */
+	public int[] keys() {
+		int[] result = new int[size];
+		int n = 0;
+		for (int i = nextSlot(-1); i >= 0; i = nextSlot(i))
+			result[n++] = keys[i];
+		return result;
+	}
+
+	/**
+	 * @return a view of the values, in slot order. Iterating allocates one
+	 *         iterator; it can't remove.
+	 */
+	public Collection<V> values() {
+		return new AbstractCollection<V>() {
+			@Override
+			public Iterator<V> iterator() {
+				return new Iterator<V>() {
+					private int slot = nextSlot(-1);
+
+					@Override
+					public boolean hasNext() {
+						return slot >= 0;
+					}
+
+					@Override
+					public V next() {
+						if (slot < 0)
+							throw new NoSuchElementException();
+						V value = valueAt(slot);
+						slot = nextSlot(slot);
+						return value;
+					}
+
+					@Override
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return size;
+			}
+		};
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (o == this)
+			return true;
+		if (!(o instanceof IntMap))
+			return false;
+		IntMap<?> other = (IntMap<?>) o;
+		if (other.size != size)
+			return false;
+		for (int i = nextSlot(-1); i >= 0; i = nextSlot(i)) {
+			if (!values[i].equals(other.get(keys[i])))
+				return false;
+		}
+		return true;
+	}
+
+	@Override
+	public int hashCode() {
+		int hash = 0;
+		for (int i = nextSlot(-1); i >= 0; i = nextSlot(i))
+			hash += keys[i] ^ values[i].hashCode();
+		return hash;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("{");
+		for (int i = nextSlot(-1); i >= 0; i = nextSlot(i)) {
+			if (sb.length() > 1)
+				sb.append(", ");
+			sb.append(keys[i]).append('=').append(values[i]);
+		}
+		return sb.append('}').toString();
+	}
+
+	/*
+	 * Written as the number of entries and then each key and value, not the
+	 * table with its empty slots.
+	 */
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+		out.writeInt(size);
+		for (int i = nextSlot(-1); i >= 0; i = nextSlot(i)) {
+			out.writeInt(keys[i]);
+			out.writeObject(values[i]);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private void readObject(ObjectInputStream in) throws IOException,
+			ClassNotFoundException {
+		in.defaultReadObject();
+		int n = in.readInt();
+		if (n < 0)
+			throw new IOException("Bad IntMap size " + n);
+		allocate(capacityFor(n));
+		for (int i = 0; i < n; i++) {
+			int key = in.readInt();
+			Object value = in.readObject();
+			if (value == null)
+				throw new IOException("Null value in IntMap");
+			put(key, (V) value);
+		}
+	}
+}
@@ -32,9 +32,9 @@ public class NetworkEvent implements Serializable {
      * the server that it client has been idle, gives it identifying information to handle pinging
      * that client
      * 
-     * NEW_CONNETION - server->server - Socket clientSocket - The server's ServerSocket informs the
-     * server it has received a new connection and gives it the socket so it can initiate the
-     * handshake
+     * NEW_CONNETION - server->server - SocketChannel clientChannel - The server's SelectorLoop
+     * informs the server it has accepted a new connection and gives it the channel so it can
+     * initiate the handshake
      * 
      * DUPLICATE_ACCOUNT - server->client - null - Tell client someone with same account is already
      * part of this game
@@ -47,15 +47,40 @@ public class NetworkEvent implements Serializable {
      * REQUEST_MOVE - PCapp->server->DMapp - MoveRequest - Request the DM to move a particular
      * character to a given position
      * 
+     * REQUEST_MOVE - server->DMapp - IntMap<PositionTuple> - Every pending request, keyed by player
+     * ID
+     * 
+     * REQUEST_MOVE - server->PCapp - MoveRequest - The PC's request was denied, e.g. because it
+     * was through a wall. The PC is still at the given position
+     * 
      * REQUEST_MOVE - DMapp->server - MoveRequest - Notify the server of a DM-approved move that
      * needs to be carried out. Not necessarily in response to a previous REQUEST_MOVE
      * 
-     * UPDATE_VISIBILITY - server->DM/PCapp - VisibilityLater - Notify the DM or PC app of a
-     * change in visibility and provide the necessary data to redraw the view.
+     * UPDATE_VISIBILITY - server->PCapp - VisibilityDelta - Notify the PC app of a change in
+     * visibility, relative to the last version it acknowledged
+     * 
+     * UPDATE_VISIBILITY - server->DMapp - IntMap<VisibilityDelta> - Notify the DM of
+     * changes to each player's visibility, keyed by player ID. Unchanged layers are left out
+     * 
+     * ACK_VISIBILITY - DM/PCapp->server - Integer version - Tell the server which version of the
+     * visibility the app now has, or VisibilityDelta.NO_VERSION if an update couldn't be applied
+     * and the app needs the whole layer again
+     * 
+     * PATH_HISTORY - DM/PCapp->server - Integer playerId - Ask for a player's whole path, including
+     * the old positions the server has simplified or dropped. PCs may only ask for their own
+     * 
+     * PATH_HISTORY - server->DM/PCapp - PlayerState - The player with every position it has been,
+     * oldest first
+     * 
+     * TRACE_STATS - DMapp->server - null - Ask for how long traced moves spend in each stage
+     * 
+     * TRACE_STATS - server->DMapp - TraceSummary - The time spent in each stage by every traced
+     * move so far
      */
 	public enum Type {
 		PING, IDENTIFY, CONFIRMED, DISCONNECT, IDLE, NEW_CONNECTION, DUPLICATE_ACCOUNT,
-		SERVER_FULL, FAILED_CONNECTION, REQUEST_MOVE, UPDATE_VISIBILITY
+		SERVER_FULL, FAILED_CONNECTION, REQUEST_MOVE, UPDATE_VISIBILITY, ACK_VISIBILITY,
+		PATH_HISTORY, TRACE_STATS
 	}
 
     private Type type;
@@ -64,6 +89,13 @@ public class NetworkEvent implements Serializable {
     /** id associated with ClientConnection */
     private int id;
 
+    /**
+     * Timestamps of the move this event is part of, or null if it isn't traced. PC apps trace
+     * their move requests, the server its updates that carry them out, and the apps their
+     * acknowledgments of those updates.
+     */
+    private TraceContext trace;
+
     /**
      * Data can be an Object[], but numbers will be converted to doubles over the network.
      * 
@@ -91,6 +123,14 @@ public class NetworkEvent implements Serializable {
         this.id = id;
     }
 
+    public TraceContext getTrace() {
+        return trace;
+    }
+
+    public void setTrace(TraceContext trace) {
+        this.trace = trace;
+    }
+
     @Override
     public String toString() {
         return new StringBuilder("[").append("type:")
@@ -0,0 +1,866 @@
+package fow.common;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import fow.common.NetworkEvent.Type;
+import fow.common.TraceContext.Hop;
+import fow.common.TraceContext.Stage;
+import fow.common.VisibilityDelta.PlayerPatch;
+
+/**
+ * Binary wire format for NetworkEvents, used by both the server and the apps instead of Java
+ * object serialization.
+ *
+ * Every event is sent as one length-prefixed frame:
+ *
+ * <pre>
+ * int     length of everything after this field
+ * byte    NetworkEvent.Type ordinal, with the top bit set if the event is traced
+ * varint  account id (zig-zag)
+ * ...     the TraceContext, if the event is traced
+ * ...     payload, written by the PayloadCodec registered for the type
+ * </pre>
+ *
+ * A TraceContext is its ID, a varint with a bit set for each hop that has been stamped, and each
+ * of those stamps as a fixed width long, in hop order.
+ *
+ * Payload codecs are hand-written for each data class documented on NetworkEvent.Type. Types that
+ * carry more than one kind of data (e.g. REQUEST_MOVE, which is a MoveRequest from the apps and a
+ * map of pending requests to the DM) start their payload with a tag byte. Server-internal types
+ * such as NEW_CONNECTION have no wire form and fail with NotSerializableException.
+ */
+public class NetworkEventCodec {
+
+    /** Number of bytes in the length prefix of each frame */
+    public static final int LENGTH_PREFIX = 4;
+
+    /** Frames claiming to be larger than this are treated as corrupt */
+    public static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+
+    /** Tags for payloads that can take more than one form */
+    private static final int TAG_SINGLE = 0;
+    private static final int TAG_MAP = 1;
+    private static final int TAG_DELTA = 2;
+    private static final int TAG_DELTA_MAP = 3;
+    private static final int TAG_PLAYER = 4;
+
+    /** Kinds of GeometryEntity that can appear in a scene graph on the wire */
+    private static final int GEOMETRY_NONE = 0;
+    private static final int GEOMETRY_WALL = 1;
+
+    /** Set in the type byte of traced events */
+    private static final int TRACED = 0x80;
+
+    private static final Hop[] HOPS = Hop.values();
+
+    private static final Type[] TYPES = Type.values();
+
+    private static final PayloadCodec[] CODECS = new PayloadCodec[TYPES.length];
+
+    static {
+        register(Type.PING, new EmptyCodec());
+        register(Type.DUPLICATE_ACCOUNT, new EmptyCodec());
+        register(Type.SERVER_FULL, new EmptyCodec());
+        register(Type.FAILED_CONNECTION, new EmptyCodec());
+        register(Type.IDENTIFY, new IdentifyCodec());
+        register(Type.CONFIRMED, new ConfirmedCodec());
+        register(Type.DISCONNECT, new IdentityCodec());
+        register(Type.IDLE, new IdentityCodec());
+        register(Type.REQUEST_MOVE, new RequestMoveCodec());
+        register(Type.UPDATE_VISIBILITY, new UpdateVisibilityCodec());
+        register(Type.ACK_VISIBILITY, new IntegerCodec());
+        register(Type.PATH_HISTORY, new PathHistoryCodec());
+        register(Type.TRACE_STATS, new TraceStatsCodec());
+    }
+
+    private NetworkEventCodec() {}
+
+    private static void register(Type type, PayloadCodec codec) {
+        CODECS[type.ordinal()] = codec;
+    }
+
+    /**
+     * Append one complete frame, including its length prefix, to the given writer.
+     *
+     * @param event the event to encode
+     * @param out the writer to append to
+     * @throws NotSerializableException if the event's type or data has no wire form
+     */
+    public static void encode(NetworkEvent event, WireWriter out) throws IOException {
+        PayloadCodec codec = CODECS[event.getType().ordinal()];
+        if (codec == null) {
+            throw new NotSerializableException("No wire form for " + event.getType());
+        }
+        int start = out.size();
+        out.writeInt(0);
+        TraceContext trace = event.getTrace();
+        out.writeByte(event.getType().ordinal() | (trace != null ? TRACED : 0));
+        out.writeSignedVarInt(event.getAccountId());
+        if (trace != null) {
+            writeTrace(trace, out);
+        }
+        codec.write(event.getData(), out);
+        out.setInt(start, out.size() - start - LENGTH_PREFIX);
+    }
+
+    /**
+     * @return one complete frame, including its length prefix
+     */
+    public static byte[] encode(NetworkEvent event) throws IOException {
+        WireWriter out = new WireWriter();
+        encode(event, out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Encode an event that is sent to several connections. Every recipient should write from its
+     * own duplicate() of the buffer, which shares the bytes but not the position.
+     *
+     * @return one complete frame, including its length prefix, in a read-only buffer
+     */
+    public static ByteBuffer encodeShared(NetworkEvent event) throws IOException {
+        return ByteBuffer.wrap(encode(event)).asReadOnlyBuffer();
+    }
+
+    /**
+     * Decode the body of a frame, i.e. everything after the length prefix. The buffer's remaining
+     * bytes must be exactly one frame body.
+     *
+     * @param body the frame body
+     * @return the decoded event
+     * @throws StreamCorruptedException if the frame is malformed. No other exception is thrown
+     *         for bad input, however it is malformed.
+     */
+    public static NetworkEvent decode(ByteBuffer body) throws IOException {
+        try {
+            WireReader in = new WireReader(body);
+            int header = in.readByte() & 0xFF;
+            int ordinal = header & ~TRACED;
+            if (ordinal >= TYPES.length || CODECS[ordinal] == null) {
+                throw new StreamCorruptedException("Unknown event type " + ordinal);
+            }
+            int accountId = in.readSignedVarInt();
+            TraceContext trace = (header & TRACED) != 0 ? readTrace(in) : null;
+            NetworkEvent event = new NetworkEvent(TYPES[ordinal], CODECS[ordinal].read(in));
+            event.setAccountId(accountId);
+            event.setTrace(trace);
+            if (in.remaining() != 0) {
+                throw new StreamCorruptedException(in.remaining() + " trailing bytes in frame");
+            }
+            return event;
+        } catch (BufferUnderflowException e) {
+            throw new StreamCorruptedException("Truncated frame");
+        } catch (RuntimeException e) {
+            // Whatever else bad data makes a payload codec or constructor throw
+            StreamCorruptedException corrupt =
+                    new StreamCorruptedException("Bad data in frame: " + e);
+            corrupt.initCause(e);
+            throw corrupt;
+        }
+    }
+
+    /**
+     * Read the type of a frame without decoding it, e.g. to refuse types before their payload is
+     * looked at.
+     *
+     * @param body a buffer holding a frame body
+     * @param offset where the body starts in the buffer
+     * @return the frame's type
+     * @throws StreamCorruptedException if it isn't a type with a wire form
+     */
+    public static Type peekType(ByteBuffer body, int offset) throws StreamCorruptedException {
+        int ordinal = body.get(offset) & 0xFF & ~TRACED;
+        if (ordinal >= TYPES.length || CODECS[ordinal] == null) {
+            throw new StreamCorruptedException("Unknown event type " + ordinal);
+        }
+        return TYPES[ordinal];
+    }
+
+    /**
+     * Check a frame length read from the wire.
+     *
+     * @return the length, if it is sane
+     */
+    public static int checkFrameLength(int length) throws StreamCorruptedException {
+        if (length <= 0 || length > MAX_FRAME_LENGTH) {
+            throw new StreamCorruptedException("Bad frame length " + length);
+        }
+        return length;
+    }
+
+    /**
+     * Write a single event to a blocking stream. The caller is responsible for flushing.
+     */
+    public static void writeEvent(NetworkEvent event, OutputStream out) throws IOException {
+        WireWriter writer = new WireWriter();
+        encode(event, writer);
+        writer.writeTo(out);
+    }
+
+    /**
+     * Read a single event from a blocking stream, waiting until the whole frame has arrived.
+     */
+    public static NetworkEvent readEvent(DataInputStream in) throws IOException {
+        byte[] body = new byte[checkFrameLength(in.readInt())];
+        in.readFully(body);
+        return decode(ByteBuffer.wrap(body));
+    }
+
+    /*
+     * Payload codecs
+     */
+
+    /**
+     * Writes and reads the data object of one NetworkEvent.Type.
+     */
+    private interface PayloadCodec {
+        void write(Object data, WireWriter out) throws IOException;
+
+        Object read(WireReader in) throws IOException;
+    }
+
+    /** For types that never carry data */
+    private static class EmptyCodec implements PayloadCodec {
+        @Override
+        public void write(Object data, WireWriter out) {}
+
+        @Override
+        public Object read(WireReader in) {
+            return null;
+        }
+    }
+
+    /** Integer tempId from the server, Object[] {Integer tempId, Integer accountId} back */
+    private static class IdentifyCodec implements PayloadCodec {
+        @Override
+        public void write(Object data, WireWriter out) {
+            if (data instanceof Object[]) {
+                Object[] ids = (Object[]) data;
+                out.writeByte(2);
+                out.writeSignedVarInt((Integer) ids[0]);
+                out.writeSignedVarInt((Integer) ids[1]);
+            } else {
+                out.writeByte(1);
+                out.writeSignedVarInt((Integer) data);
+            }
+        }
+
+        @Override
+        public Object read(WireReader in) throws IOException {
+            int count = in.readByte();
+            if (count == 2) {
+                Integer tempId = in.readSignedVarInt();
+                Integer accountId = in.readSignedVarInt();
+                return new Object[] {tempId, accountId};
+            }
+            return Integer.valueOf(in.readSignedVarInt());
+        }
+    }
+
+    /** Boolean isDm */
+    private static class ConfirmedCodec implements PayloadCodec {
+        @Override
+        public void write(Object data, WireWriter out) {
+            out.writeBoolean((Boolean) data);
+        }
+
+        @Override
+        public Object read(WireReader in) {
+            return Boolean.valueOf(in.readBoolean());
+        }
+    }
+
+    /** A single Integer */
+    private static class IntegerCodec implements PayloadCodec {
+        @Override
+        public void write(Object data, WireWriter out) {
+            out.writeSignedVarInt((Integer) data);
+        }
+
+        @Override
+        public Object read(WireReader in) throws IOException {
+            return Integer.valueOf(in.readSignedVarInt());
+        }
+    }
+
+    /** Integer playerId from an app, PlayerState back */
+    private static class PathHistoryCodec implements PayloadCodec {
+        @Override
+        public void write(Object data, WireWriter out) throws IOException {
+            if (data instanceof Integer) {
+                out.writeByte(TAG_SINGLE);
+                out.writeSignedVarInt((Integer) data);
+            } else if (data instanceof PlayerState) {
+                out.writeByte(TAG_PLAYER);
+                writePlayerState((PlayerState) data, out);
+            } else {
+                throw new NotSerializableException("PATH_HISTORY with " + data);
+            }
+        }
+
+        @Override
+        public Object read(WireReader in) throws IOException {
+            int tag = in.readByte();
+            if (tag == TAG_SINGLE) {
+                return Integer.valueOf(in.readSignedVarInt());
+            } else if (tag == TAG_PLAYER) {
+                return readPlayerState(in);
+            }
+            throw new StreamCorruptedException("Bad PATH_HISTORY tag " + tag);
+        }
+    }
+
+    /** null from the DM, TraceSummary back */
+    private static class TraceStatsCodec implements PayloadCodec {
+        @Override
+        public void write(Object data, WireWriter out) throws IOException {
+            if (data == null) {
+                out.writeBoolean(false);
+            } else if (data instanceof TraceSummary) {
+                TraceSummary summary = (TraceSummary) data;
+                Stage[] stages = Stage.values();
+                out.writeBoolean(true);
+                out.writeVarInt(stages.length);
+                for (Stage stage : stages) {
+                    out.writeVarLong(summary.getCount(stage));
+                    out.writeVarLong(summary.getP50Nanos(stage));
+                    out.writeVarLong(summary.getP99Nanos(stage));
+                    out.writeVarLong(summary.getMaxNanos(stage));
+                }
+            } else {
+                throw new NotSerializableException("TRACE_STATS with " + data);
+            }
+        }
+
+        @Override
+        public Object read(WireReader in) throws IOException {
+            if (!in.readBoolean()) {
+                return null;
+            }
+            int n = in.readLength();
+            if (n != Stage.values().length) {
+                throw new StreamCorruptedException("TRACE_STATS with " + n + " stages");
+            }
+            long[] counts = new long[n];
+            long[] p50 = new long[n];
+            long[] p99 = new long[n];
+            long[] max = new long[n];
+            for (int i = 0; i < n; i++) {
+                counts[i] = in.readVarLong();
+                p50[i] = in.readVarLong();
+                p99[i] = in.readVarLong();
+                max[i] = in.readVarLong();
+            }
+            return new TraceSummary(counts, p50, p99, max);
+        }
+    }
+
+    /** null, or Object[] {Boolean confirmed, Integer id} */
+    private static class IdentityCodec implements PayloadCodec {
+        @Override
+        public void write(Object data, WireWriter out) {
+            if (data == null) {
+                out.writeBoolean(false);
+            } else {
+                Object[] identity = (Object[]) data;
+                out.writeBoolean(true);
+                out.writeBoolean((Boolean) identity[0]);
+                out.writeSignedVarInt((Integer) identity[1]);
+            }
+        }
+
+        @Override
+        public Object read(WireReader in) throws IOException {
+            if (!in.readBoolean()) {
+                return null;
+            }
+            Boolean confirmed = in.readBoolean();
+            Integer id = in.readSignedVarInt();
+            return new Object[] {confirmed, id};
+        }
+    }
+
+    /** MoveRequest from an app, or the map of pending requests sent to the DM */
+    private static class RequestMoveCodec implements PayloadCodec {
+        @Override
+        @SuppressWarnings("unchecked")
+        public void write(Object data, WireWriter out) throws IOException {
+            if (data instanceof MoveRequest) {
+                MoveRequest move = (MoveRequest) data;
+                out.writeByte(TAG_SINGLE);
+                out.writeSignedVarInt(move.getId());
+                writePosition(move.getMoveLocation(), out);
+            } else if (data instanceof IntMap) {
+                IntMap<PositionTuple> pending = (IntMap<PositionTuple>) data;
+                out.writeByte(TAG_MAP);
+                out.writeVarInt(pending.size());
+                for (int i = pending.nextSlot(-1); i >= 0; i = pending.nextSlot(i)) {
+                    out.writeSignedVarInt(pending.keyAt(i));
+                    writePosition(pending.valueAt(i), out);
+                }
+            } else {
+                throw new NotSerializableException("REQUEST_MOVE with " + data);
+            }
+        }
+
+        @Override
+        public Object read(WireReader in) throws IOException {
+            int tag = in.readByte();
+            if (tag == TAG_SINGLE) {
+                int id = in.readSignedVarInt();
+                return new MoveRequest(id, readPosition(in));
+            } else if (tag == TAG_MAP) {
+                int n = in.readLength();
+                IntMap<PositionTuple> pending = new IntMap<PositionTuple>(n);
+                for (int i = 0; i < n; i++) {
+                    int id = in.readSignedVarInt();
+                    pending.put(id, readPosition(in));
+                }
+                return pending;
+            }
+            throw new StreamCorruptedException("Bad REQUEST_MOVE tag " + tag);
+        }
+    }
+
+    /**
+     * A player's VisibilityDelta, or every changed layer's delta keyed by player ID for the DM.
+     *
+     * Whole layers can be sent too. GameState shares the same players array and scene graph
+     * between layers, so the DM's map of layers writes each distinct PlayerState, players array
+     * and scene graph once and has the layers refer to them by index. The decoded layers share
+     * objects the same way.
+     */
+    private static class UpdateVisibilityCodec implements PayloadCodec {
+        @Override
+        @SuppressWarnings("unchecked")
+        public void write(Object data, WireWriter out) throws IOException {
+            if (data instanceof VisibilityDelta) {
+                out.writeByte(TAG_DELTA);
+                writeVisibilityDelta((VisibilityDelta) data, out);
+            } else if (data instanceof VisibilityLayer) {
+                out.writeByte(TAG_SINGLE);
+                writeVisibilityLayer((VisibilityLayer) data, out);
+            } else if (data instanceof IntMap && isDeltaMap((IntMap<?>) data)) {
+                IntMap<VisibilityDelta> deltas = (IntMap<VisibilityDelta>) data;
+                out.writeByte(TAG_DELTA_MAP);
+                out.writeVarInt(deltas.size());
+                for (int i = deltas.nextSlot(-1); i >= 0; i = deltas.nextSlot(i)) {
+                    out.writeSignedVarInt(deltas.keyAt(i));
+                    writeVisibilityDelta(deltas.valueAt(i), out);
+                }
+            } else if (data instanceof IntMap) {
+                out.writeByte(TAG_MAP);
+                writeVisibilityLayers((IntMap<VisibilityLayer>) data, out);
+            } else {
+                throw new NotSerializableException("UPDATE_VISIBILITY with " + data);
+            }
+        }
+
+        @Override
+        public Object read(WireReader in) throws IOException {
+            int tag = in.readByte();
+            if (tag == TAG_DELTA) {
+                return readVisibilityDelta(in);
+            } else if (tag == TAG_SINGLE) {
+                return readVisibilityLayer(in);
+            } else if (tag == TAG_DELTA_MAP) {
+                int n = in.readLength();
+                IntMap<VisibilityDelta> deltas = new IntMap<VisibilityDelta>(n);
+                for (int i = 0; i < n; i++) {
+                    int id = in.readSignedVarInt();
+                    deltas.put(id, readVisibilityDelta(in));
+                }
+                return deltas;
+            } else if (tag == TAG_MAP) {
+                return readVisibilityLayers(in);
+            }
+            throw new StreamCorruptedException("Bad UPDATE_VISIBILITY tag " + tag);
+        }
+
+        /**
+         * An empty map is written as a map of deltas, it decodes the same either way.
+         */
+        private static boolean isDeltaMap(IntMap<?> map) {
+            return map.isEmpty() || map.valueAt(map.nextSlot(-1)) instanceof VisibilityDelta;
+        }
+
+        private void writeVisibilityLayers(IntMap<VisibilityLayer> layers, WireWriter out)
+                throws IOException {
+            IdentityHashMap<PlayerState, Integer> players =
+                    new IdentityHashMap<PlayerState, Integer>();
+            IdentityHashMap<PlayerState[], Integer> arrays =
+                    new IdentityHashMap<PlayerState[], Integer>();
+            IdentityHashMap<SceneNode, Integer> scenes = new IdentityHashMap<SceneNode, Integer>();
+            for (VisibilityLayer vl : layers.values()) {
+                index(scenes, vl.getSceneGraph());
+                if (index(arrays, vl.getPlayers())) {
+                    for (PlayerState player : vl.getPlayers()) {
+                        index(players, player);
+                    }
+                }
+            }
+
+            PlayerState[] playerTable = table(players, new PlayerState[players.size()]);
+            out.writeVarInt(playerTable.length);
+            for (PlayerState player : playerTable) {
+                writePlayerState(player, out);
+            }
+
+            PlayerState[][] arrayTable = table(arrays, new PlayerState[arrays.size()][]);
+            out.writeVarInt(arrayTable.length);
+            for (PlayerState[] ps : arrayTable) {
+                out.writeVarInt(ps.length);
+                for (PlayerState player : ps) {
+                    out.writeVarInt(players.get(player));
+                }
+            }
+
+            SceneNode[] sceneTable = table(scenes, new SceneNode[scenes.size()]);
+            out.writeVarInt(sceneTable.length);
+            for (SceneNode scene : sceneTable) {
+                writeSceneNode(scene, out);
+            }
+
+            out.writeVarInt(layers.size());
+            for (int i = layers.nextSlot(-1); i >= 0; i = layers.nextSlot(i)) {
+                VisibilityLayer vl = layers.valueAt(i);
+                out.writeSignedVarInt(layers.keyAt(i));
+                out.writeVarInt(vl.getLevelWidth());
+                out.writeVarInt(vl.getLevelHeight());
+                out.writeVarInt(scenes.get(vl.getSceneGraph()));
+                out.writeVarInt(arrays.get(vl.getPlayers()));
+            }
+        }
+
+        private IntMap<VisibilityLayer> readVisibilityLayers(WireReader in)
+                throws IOException {
+            PlayerState[] playerTable = new PlayerState[in.readLength()];
+            for (int i = 0; i < playerTable.length; i++) {
+                playerTable[i] = readPlayerState(in);
+            }
+            PlayerState[][] arrayTable = new PlayerState[in.readLength()][];
+            for (int i = 0; i < arrayTable.length; i++) {
+                PlayerState[] ps = new PlayerState[in.readLength()];
+                for (int j = 0; j < ps.length; j++) {
+                    ps[j] = playerTable[in.readIndex(playerTable.length)];
+                }
+                arrayTable[i] = ps;
+            }
+            SceneNode[] sceneTable = new SceneNode[in.readLength()];
+            for (int i = 0; i < sceneTable.length; i++) {
+                sceneTable[i] = readSceneNode(in);
+            }
+
+            int n = in.readLength();
+            IntMap<VisibilityLayer> layers = new IntMap<VisibilityLayer>(n);
+            for (int i = 0; i < n; i++) {
+                int id = in.readSignedVarInt();
+                int width = in.readVarInt();
+                int height = in.readVarInt();
+                SceneNode scene = sceneTable[in.readIndex(sceneTable.length)];
+                PlayerState[] ps = arrayTable[in.readIndex(arrayTable.length)];
+                layers.put(id, new VisibilityLayer(width, height, scene, ps));
+            }
+            return layers;
+        }
+
+        /**
+         * Give an object the next index if it hasn't been seen yet.
+         *
+         * @return true if the object was new
+         */
+        private static <T> boolean index(IdentityHashMap<T, Integer> indices, T o) {
+            if (indices.containsKey(o)) {
+                return false;
+            }
+            indices.put(o, indices.size());
+            return true;
+        }
+
+        /**
+         * @return the indexed objects, ordered by index
+         */
+        private static <T> T[] table(IdentityHashMap<T, Integer> indices, T[] table) {
+            for (Map.Entry<T, Integer> entry : indices.entrySet()) {
+                table[entry.getValue()] = entry.getKey();
+            }
+            return table;
+        }
+    }
+
+    /*
+     * Encoders for the shared fow.common classes
+     */
+
+    static void writeTrace(TraceContext trace, WireWriter out) {
+        out.writeVarInt(trace.getId());
+        int stamped = 0;
+        for (Hop hop : HOPS) {
+            if (trace.get(hop) != 0) {
+                stamped |= 1 << hop.ordinal();
+            }
+        }
+        out.writeVarInt(stamped);
+        for (Hop hop : HOPS) {
+            if (trace.get(hop) != 0) {
+                out.writeLong(trace.get(hop));
+            }
+        }
+    }
+
+    static TraceContext readTrace(WireReader in) throws IOException {
+        TraceContext trace = new TraceContext(in.readVarInt());
+        int stamped = in.readVarInt();
+        if (stamped >>> HOPS.length != 0) {
+            throw new StreamCorruptedException("Unknown hops in trace " + trace.getId());
+        }
+        for (Hop hop : HOPS) {
+            if ((stamped & 1 << hop.ordinal()) != 0) {
+                trace.set(hop, in.readLong());
+            }
+        }
+        return trace;
+    }
+
+    static void writePosition(PositionTuple pos, WireWriter out) {
+        out.writeSignedVarInt(pos.x);
+        out.writeSignedVarInt(pos.y);
+    }
+
+    static PositionTuple readPosition(WireReader in) throws IOException {
+        int x = in.readSignedVarInt();
+        return new PositionTuple(x, in.readSignedVarInt());
+    }
+
+    static void writeVisibilityLayer(VisibilityLayer vl, WireWriter out) throws IOException {
+        out.writeSignedVarInt(vl.getVersion());
+        out.writeVarInt(vl.getLevelWidth());
+        out.writeVarInt(vl.getLevelHeight());
+        writeSceneNode(vl.getSceneGraph(), out);
+        PlayerState[] players = vl.getPlayers();
+        out.writeVarInt(players.length);
+        for (PlayerState player : players) {
+            writePlayerState(player, out);
+        }
+    }
+
+    static VisibilityLayer readVisibilityLayer(WireReader in) throws IOException {
+        int version = in.readSignedVarInt();
+        int width = in.readVarInt();
+        int height = in.readVarInt();
+        SceneNode sceneGraph = readSceneNode(in);
+        PlayerState[] players = new PlayerState[in.readLength()];
+        for (int i = 0; i < players.length; i++) {
+            players[i] = readPlayerState(in);
+        }
+        VisibilityLayer vl = new VisibilityLayer(width, height, sceneGraph, players);
+        vl.setVersion(version);
+        return vl;
+    }
+
+    /**
+     * Deltas are immutable and the server shares one between every client that needs the same
+     * change, so the first write keeps the bytes and later writes copy them.
+     */
+    static void writeVisibilityDelta(VisibilityDelta delta, WireWriter out) throws IOException {
+        byte[] encoded = delta.encoded;
+        if (encoded == null) {
+            WireWriter writer = new WireWriter();
+            writeVisibilityDeltaFields(delta, writer);
+            encoded = writer.toByteArray();
+            delta.encoded = encoded;
+        }
+        out.writeBytes(encoded, 0, encoded.length);
+    }
+
+    private static void writeVisibilityDeltaFields(VisibilityDelta delta, WireWriter out)
+            throws IOException {
+        out.writeSignedVarInt(delta.getBaseVersion());
+        out.writeSignedVarInt(delta.getVersion());
+        out.writeVarInt(delta.getLevelWidth());
+        out.writeVarInt(delta.getLevelHeight());
+        PlayerPatch[] players = delta.getPlayers();
+        out.writeVarInt(players.length);
+        for (PlayerPatch patch : players) {
+            out.writeSignedVarInt(patch.id);
+            out.writeVarInt(patch.keep);
+            writePath(patch.newest, patch.newest.length / 2, out);
+        }
+        writeIds(delta.getRemovedPlayers(), out);
+        GeometryEntity[] geometry = delta.getAddedGeometry();
+        out.writeVarInt(geometry.length);
+        for (GeometryEntity entity : geometry) {
+            writeGeometryEntity(entity, out);
+        }
+        writeIds(delta.getRemovedGeometry(), out);
+    }
+
+    static VisibilityDelta readVisibilityDelta(WireReader in) throws IOException {
+        int baseVersion = in.readSignedVarInt();
+        int version = in.readSignedVarInt();
+        int width = in.readVarInt();
+        int height = in.readVarInt();
+        PlayerPatch[] players = new PlayerPatch[in.readLength()];
+        for (int i = 0; i < players.length; i++) {
+            int id = in.readSignedVarInt();
+            int keep = in.readVarInt();
+            if (keep < 0) {
+                throw new StreamCorruptedException("Bad path length " + keep + " to keep");
+            }
+            players[i] = new PlayerPatch(id, keep, readPath(in));
+        }
+        int[] removedPlayers = readIds(in);
+        GeometryEntity[] geometry = new GeometryEntity[in.readLength()];
+        for (int i = 0; i < geometry.length; i++) {
+            geometry[i] = readGeometryEntity(in);
+        }
+        return new VisibilityDelta(baseVersion, version, width, height, players, removedPlayers,
+                geometry, readIds(in));
+    }
+
+    private static void writeIds(int[] ids, WireWriter out) {
+        out.writeVarInt(ids.length);
+        for (int id : ids) {
+            out.writeSignedVarInt(id);
+        }
+    }
+
+    private static int[] readIds(WireReader in) throws IOException {
+        int[] ids = new int[in.readLength()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = in.readSignedVarInt();
+        }
+        return ids;
+    }
+
+    static void writePlayerState(PlayerState player, WireWriter out) {
+        out.writeSignedVarInt(player.id);
+        writePath(player.internalPath(), player.getPathLength(), out);
+    }
+
+    static PlayerState readPlayerState(WireReader in) throws IOException {
+        int id = in.readSignedVarInt();
+        int[] path = readPath(in);
+        return new PlayerState(id, path, path.length / 2);
+    }
+
+    /**
+     * Paths are written oldest first, like PlayerState stores them. Every point after the first
+     * is written relative to the one before it, since consecutive moves are usually short.
+     *
+     * @param path the positions as x, y pairs
+     * @param length the number of positions to write
+     */
+    static void writePath(int[] path, int length, WireWriter out) {
+        out.writeVarInt(length);
+        int lastX = 0;
+        int lastY = 0;
+        for (int i = 0; i < length * 2; i += 2) {
+            out.writeSignedVarInt(path[i] - lastX);
+            out.writeSignedVarInt(path[i + 1] - lastY);
+            lastX = path[i];
+            lastY = path[i + 1];
+        }
+    }
+
+    /**
+     * @return the positions as x, y pairs
+     */
+    static int[] readPath(WireReader in) throws IOException {
+        int[] path = new int[in.readLength() * 2];
+        int x = 0;
+        int y = 0;
+        for (int i = 0; i < path.length; i += 2) {
+            x += in.readSignedVarInt();
+            y += in.readSignedVarInt();
+            path[i] = x;
+            path[i + 1] = y;
+        }
+        return path;
+    }
+
+    /**
+     * Scene graphs are written depth first: the node's entity, its number of children, then each
+     * child.
+     */
+    static void writeSceneNode(SceneNode node, WireWriter out) throws IOException {
+        SceneCursor cursor = node.cursor();
+        while (cursor.next()) {
+            writeGeometryEntity(cursor.getData(), out);
+            out.writeVarInt(cursor.getNumChildren());
+        }
+    }
+
+    static SceneNode readSceneNode(WireReader in) throws IOException {
+        SceneNode root = new SceneNode(readGeometryEntity(in));
+        // The nodes still owed children, deepest last, so deep graphs can't overflow the stack
+        SceneNode[] parents = new SceneNode[16];
+        int[] owed = new int[16];
+        parents[0] = root;
+        owed[0] = in.readLength();
+        int top = 1;
+        while (top > 0) {
+            if (owed[top - 1] == 0) {
+                top--;
+                continue;
+            }
+            owed[top - 1]--;
+            SceneNode child = parents[top - 1].addChild(readGeometryEntity(in));
+            int n = in.readLength();
+            if (n > 0) {
+                if (top == parents.length) {
+                    parents = Arrays.copyOf(parents, top * 2);
+                    owed = Arrays.copyOf(owed, top * 2);
+                }
+                parents[top] = child;
+                owed[top] = n;
+                top++;
+            }
+        }
+        return root;
+    }
+
+    /**
+     * Each entity starts with a kind byte, empty nodes have nothing else. New entity classes get
+     * their own kind here. A wall's bounding box is derived from its end points, so it isn't sent.
+     */
+    static void writeGeometryEntity(GeometryEntity entity, WireWriter out) throws IOException {
+        if (entity == null) {
+            out.writeByte(GEOMETRY_NONE);
+        } else if (entity instanceof WallSegment) {
+            WallSegment wall = (WallSegment) entity;
+            out.writeByte(GEOMETRY_WALL);
+            out.writeSignedVarInt(wall.id);
+            out.writeSignedVarInt(wall.x1);
+            out.writeSignedVarInt(wall.y1);
+            out.writeSignedVarInt(wall.x2);
+            out.writeSignedVarInt(wall.y2);
+        } else {
+            throw new NotSerializableException(entity.getClass().getName());
+        }
+    }
+
+    static GeometryEntity readGeometryEntity(WireReader in) throws IOException {
+        int kind = in.readByte();
+        if (kind == GEOMETRY_NONE) {
+            return null;
+        } else if (kind == GEOMETRY_WALL) {
+            int id = in.readSignedVarInt();
+            int x1 = in.readSignedVarInt();
+            int y1 = in.readSignedVarInt();
+            int x2 = in.readSignedVarInt();
+            int y2 = in.readSignedVarInt();
+            return new WallSegment(id, x1, y1, x2, y2);
+        }
+        throw new StreamCorruptedException("Unknown geometry kind " + kind);
+    }
+}
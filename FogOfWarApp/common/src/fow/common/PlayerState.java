@@ -1,6 +1,11 @@
 package fow.common;
 
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.util.Arrays;
 
 /**
  * Object to represent anything about a player's persistent state in the game. It is sent over the
@@ -21,19 +26,51 @@ public class PlayerState implements Serializable {
     public int id;
 
     /*
-     * The list of positions that this player has been, starting from oldest (index 0) to newest.
+     * The positions this player has been, oldest first, as x, y pairs. Only the first pathLength
+     * pairs are used; the rest is room to grow, so a move doesn't copy the path. Written out by
+     * writeObject as just the used pairs.
      */
-    public PositionTuple[] path;
+    private transient int[] path;
+    private transient int pathLength;
+
+    /*
+     * Counts the changes to the path other than moves, which rewrite positions a client may already
+     * have. Only meaningful where the path is changed, so it isn't sent.
+     */
+    private transient int pathRevision;
 
     /**
      * Creates an object to represent a single player's state.
      * 
      * @param id the player's unique ID
-     * @param path the list of positions this player has been
+     * @param path the list of positions this player has been, newest first
      */
     public PlayerState(int id, PositionTuple[] path) {
         this.id = id;
-        this.path = path;
+        this.path = new int[Math.max(2, path.length * 2)];
+        for (int i = 0; i < path.length; i++) {
+            PositionTuple position = path[path.length - 1 - i];
+            this.path[i * 2] = position.x;
+            this.path[i * 2 + 1] = position.y;
+        }
+        this.pathLength = path.length;
+    }
+
+    /**
+     * Creates an object to represent a single player's state from a packed path.
+     * 
+     * @param id the player's unique ID
+     * @param path the positions this player has been, oldest first, as x, y pairs. The player
+     *        takes ownership of the array.
+     * @param pathLength the number of pairs in path that are used
+     */
+    public PlayerState(int id, int[] path, int pathLength) {
+        if (pathLength * 2 > path.length) {
+            throw new IllegalArgumentException("Path holds fewer than " + pathLength + " positions");
+        }
+        this.id = id;
+        this.path = path.length > 0 ? path : new int[2];
+        this.pathLength = pathLength;
     }
 
     /**
@@ -44,7 +81,7 @@ public class PlayerState implements Serializable {
      * @param y initial y-coordinate in the game world
      */
     public PlayerState(int id, int x, int y) {
-        this(id, new PositionTuple[] {new PositionTuple(x, y)});
+        this(id, new int[] {x, y}, 1);
     }
 
     /**
@@ -53,37 +90,188 @@ public class PlayerState implements Serializable {
      * @param player the PlayerState to duplicate
      */
     public PlayerState(PlayerState player) {
-        this(player.id, new PositionTuple[player.path.length]);
-        for (int i = 0; i < player.path.length; i++) {
-            this.path[i] = new PositionTuple(player.path[i]);
-        }
+        this(player.id, player.path.clone(), player.pathLength);
+        this.pathRevision = player.pathRevision;
     }
 
     /**
-     * Change this player's current position, adding the new position it to the path history
+     * Change this player's current position, adding the new position to the path history. Takes
+     * amortized constant time, however long the path is.
      * 
      * @param newPosition
      */
     public void changePosition(PositionTuple newPosition) {
-        // Create a new array to hold the old one, plus another element
-        PositionTuple[] newPath = new PositionTuple[path.length + 1];
+        changePosition(newPosition.x, newPosition.y);
+    }
 
-        // Add new element at front
-        newPath[0] = newPosition;
+    /**
+     * Change this player's current position, adding the new position to the path history.
+     * 
+     * @param x the new x-coordinate
+     * @param y the new y-coordinate
+     */
+    public void changePosition(int x, int y) {
+        if (pathLength * 2 == path.length) {
+            path = Arrays.copyOf(path, path.length * 2);
+        }
+        path[pathLength * 2] = x;
+        path[pathLength * 2 + 1] = y;
+        pathLength++;
+    }
 
-        // Fill in the old path
-        for (int j = 0; j < path.length; j++) {
-            newPath[j + 1] = new PositionTuple(path[j]);
+    /**
+     * Replace part of the path with other positions, as when old positions are simplified or
+     * dropped. Counts as a new revision of the path.
+     * 
+     * @param from index of the first position to replace, 0 for the oldest
+     * @param to index after the last position to replace
+     * @param replacement the positions to put there, oldest first, as x, y pairs
+     * @param count the number of pairs in replacement to use
+     */
+    public void replacePath(int from, int to, int[] replacement, int count) {
+        if (from < 0 || to > pathLength || from > to || count * 2 > replacement.length) {
+            throw new IndexOutOfBoundsException("Can't replace positions " + from + " to " + to
+                    + " of " + pathLength);
         }
+        int newLength = pathLength - (to - from) + count;
+        int[] target = path;
+        if (newLength * 2 > path.length || newLength * 8 < path.length) {
+            // Grow, or give back the room a path that was cut down no longer needs
+            target = new int[Math.max(2, newLength * 2)];
+            System.arraycopy(path, 0, target, 0, from * 2);
+        }
+        System.arraycopy(path, to * 2, target, (from + count) * 2, (pathLength - to) * 2);
+        System.arraycopy(replacement, 0, target, from * 2, count * 2);
+        path = target;
+        pathLength = newLength;
+        pathRevision++;
+    }
 
-        this.path = newPath;
+    /**
+     * @return how many times positions already in the path have been replaced. Moves only add
+     *         positions, so they don't change it.
+     */
+    public int getPathRevision() {
+        return pathRevision;
     }
 
     /**
      * @return this player's current position
      */
     public PositionTuple getCurrentPosition() {
-        return path[0];
+        return getPosition(0);
+    }
+
+    public int getCurrentX() {
+        return getX(0);
+    }
+
+    public int getCurrentY() {
+        return getY(0);
+    }
+
+    /**
+     * @return the number of positions this player has been, the current one included
+     */
+    public int getPathLength() {
+        return pathLength;
+    }
+
+    /**
+     * @param age how many moves ago, 0 for the current position
+     * @return where this player was that many moves ago
+     */
+    public PositionTuple getPosition(int age) {
+        return new PositionTuple(getX(age), getY(age));
+    }
+
+    /**
+     * @param age how many moves ago, 0 for the current position
+     * @return the x-coordinate this player had that many moves ago
+     */
+    public int getX(int age) {
+        return path[index(age)];
+    }
+
+    /**
+     * @param age how many moves ago, 0 for the current position
+     * @return the y-coordinate this player had that many moves ago
+     */
+    public int getY(int age) {
+        return path[index(age) + 1];
+    }
+
+    private int index(int age) {
+        if (age < 0 || age >= pathLength) {
+            throw new IndexOutOfBoundsException("No position " + age + " moves ago, path has "
+                    + pathLength);
+        }
+        return (pathLength - 1 - age) * 2;
+    }
+
+    /**
+     * @return a copy of the path as x, y pairs, oldest first. Its length is twice getPathLength().
+     */
+    public int[] getPackedPath() {
+        return Arrays.copyOf(path, pathLength * 2);
+    }
+
+    /**
+     * @return the array holding the path, without copying it, for writing it out. Only the first
+     *         getPathLength() pairs are used.
+     */
+    int[] internalPath() {
+        return path;
+    }
+
+    /**
+     * Copy part of the path, counting positions from the oldest.
+     * 
+     * @param from index of the first position to copy, 0 for the oldest
+     * @param to index after the last position to copy
+     * @param capacity how many positions the returned array should have room for, at least to -
+     *        from
+     * @return the positions as x, y pairs, oldest first
+     */
+    public int[] copyPath(int from, int to, int capacity) {
+        if (from < 0 || to > pathLength || from > to || capacity < to - from) {
+            throw new IndexOutOfBoundsException("Can't copy positions " + from + " to " + to
+                    + " of " + pathLength);
+        }
+        int[] copy = new int[capacity * 2];
+        System.arraycopy(path, from * 2, copy, 0, (to - from) * 2);
+        return copy;
+    }
+
+    /**
+     * @return the path as positions, newest first
+     */
+    public PositionTuple[] getPath() {
+        PositionTuple[] positions = new PositionTuple[pathLength];
+        for (int i = 0; i < pathLength; i++) {
+            positions[i] = getPosition(i);
+        }
+        return positions;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeInt(pathLength);
+        for (int i = 0; i < pathLength * 2; i++) {
+            out.writeInt(path[i]);
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        pathLength = in.readInt();
+        if (pathLength < 0) {
+            throw new InvalidObjectException("Negative path length");
+        }
+        path = new int[Math.max(2, pathLength * 2)];
+        for (int i = 0; i < pathLength * 2; i++) {
+            path[i] = in.readInt();
+        }
     }
 
 }
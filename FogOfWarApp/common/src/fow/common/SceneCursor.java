@@ -0,0 +1,167 @@
+package fow.common;
+
+/**
+ * Walks a subtree of a scene graph depth first, parents before their
+ * children, without allocating anything per node. Unlike iterating over a
+ * {@link SceneNode}, the cursor is positioned on each node in turn rather
+ * than handing out a node object for it, and it can be reset onto another
+ * tree and used again.
+ *
+ * The walk can be limited to entities of a type or overlapping a rectangle.
+ * Nodes without an entity never pass a filter.
+ *
+ * <pre>
+ * SceneCursor cursor = graph.cursor().ofType(WallSegment.class);
+ * while (cursor.next()) {
+ * 	WallSegment wall = (WallSegment) cursor.getData();
+ * }
+ * </pre>
+ */
+public class SceneCursor {
+
+	private SceneTable table;
+	private int root;
+	private int row;
+	private int next;
+
+	private Class<? extends GeometryEntity> type;
+	private boolean bounded;
+	private int minX;
+	private int minY;
+	private int maxX;
+	private int maxY;
+
+	/**
+	 * Create a cursor over nothing, to be {@link #reset(SceneNode)} before
+	 * use.
+	 */
+	public SceneCursor() {
+		this.row = SceneTable.NONE;
+		this.next = SceneTable.NONE;
+	}
+
+	/**
+	 * @param root
+	 *            the node to start from, visited first
+	 */
+	public SceneCursor(SceneNode root) {
+		reset(root);
+	}
+
+	/**
+	 * Start a new walk from a node. Filters are kept.
+	 *
+	 * @param root
+	 *            the node to start from, visited first
+	 * @return this cursor
+	 */
+	public SceneCursor reset(SceneNode root) {
+		this.table = root.getTable();
+		this.root = root.getRow();
+		this.row = SceneTable.NONE;
+		this.next = this.root;
+		return this;
+	}
+
+	/**
+	 * Only visit entities of a type.
+	 *
+	 * @param type
+	 *            the entity class, subclasses included, or null for any
+	 * @return this cursor
+	 */
+	public SceneCursor ofType(Class<? extends GeometryEntity> type) {
+		this.type = type;
+		return this;
+	}
+
+	/**
+	 * Only visit entities whose bounding box overlaps a rectangle, edges
+	 * included.
+	 *
+	 * @return this cursor
+	 */
+	public SceneCursor within(int x, int y, int width, int height) {
+		if (width < 0 || height < 0)
+			throw new IllegalArgumentException();
+		this.bounded = true;
+		this.minX = x;
+		this.minY = y;
+		this.maxX = x + width;
+		this.maxY = y + height;
+		return this;
+	}
+
+	/**
+	 * Drop the type and rectangle filters.
+	 *
+	 * @return this cursor
+	 */
+	public SceneCursor clearFilters() {
+		this.type = null;
+		this.bounded = false;
+		return this;
+	}
+
+	/**
+	 * Move to the next node that passes the filters.
+	 *
+	 * @return false once there are no more, after which the cursor is on
+	 *         nothing
+	 */
+	public boolean next() {
+		boolean filtered = type != null || bounded;
+		while (next != SceneTable.NONE) {
+			row = next;
+			next = table.nextInSubtree(row, root);
+			if (!filtered || accepts(table.getEntity(row)))
+				return true;
+		}
+		row = SceneTable.NONE;
+		return false;
+	}
+
+	private boolean accepts(GeometryEntity entity) {
+		if (entity == null)
+			return false;
+		if (type != null && !type.isInstance(entity))
+			return false;
+		return !bounded
+				|| (entity.x <= maxX && entity.x + entity.width >= minX
+						&& entity.y <= maxY && entity.y + entity.height >= minY);
+	}
+
+	/**
+	 * @return the entity of the node the cursor is on, may be null
+	 */
+	public GeometryEntity getData() {
+		checkPositioned();
+		return table.getEntity(row);
+	}
+
+	/**
+	 * @return how many children the node the cursor is on has, whether or not
+	 *         they pass the filters
+	 */
+	public int getNumChildren() {
+		checkPositioned();
+		int n = 0;
+		for (int c = table.getFirstChild(row); c != SceneTable.NONE; c = table.getNextSibling(c))
+			n++;
+		return n;
+	}
+
+	/**
+	 * @return a node for the one the cursor is on. Allocates, unlike the rest
+	 *         of the cursor.
+	 */
+	public SceneNode getNode() {
+		checkPositioned();
+		return new SceneNode(table, row);
+	}
+
+	private void checkPositioned() {
+		if (row == SceneTable.NONE)
+			throw new IllegalStateException("Cursor is not on a node");
+	}
+}
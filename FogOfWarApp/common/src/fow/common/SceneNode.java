@@ -1,79 +1,235 @@
 package fow.common;
 
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamException;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 
 /**
  * Original code courtesy of
  * https://code.google.com/p/yet-another-tree-structure/
+ *
+ * The nodes of a tree all share one {@link SceneTable}, a node is just its
+ * row in that table. Handles for the same row are equal but not always the
+ * same object.
  */
 public class SceneNode implements Iterable<SceneNode>, Serializable {
 
 	private static final long serialVersionUID = -8970813132810776520L;
-	
-	public GeometryEntity data;
-	public SceneNode parent;
-	public List<SceneNode> children;
 
-	public boolean isRoot() {
-		return parent == null;
+	/*
+	 * The fields nodes were serialized with when each one was an object with
+	 * its own lists. A node is now written as a SerializedForm instead; these
+	 * are only read, to convert trees written by older versions.
+	 */
+	private static final ObjectStreamField[] serialPersistentFields = {
+			new ObjectStreamField("data", GeometryEntity.class),
+			new ObjectStreamField("parent", SceneNode.class),
+			new ObjectStreamField("children", List.class),
+			new ObjectStreamField("elementsIndex", List.class) };
+
+	private transient SceneTable table;
+	private transient int row;
+
+	public SceneNode(GeometryEntity data) {
+		this.table = new SceneTable();
+		this.row = table.add(data, SceneTable.NONE);
 	}
 
-	public boolean isLeaf() {
-		return children.size() == 0;
+	SceneNode(SceneTable table, int row) {
+		this.table = table;
+		this.row = row;
 	}
 
-	private List<SceneNode> elementsIndex;
+	public GeometryEntity getData() {
+		return table.getEntity(row);
+	}
 
-	public SceneNode(GeometryEntity data) {
-		this.data = data;
-		this.children = new LinkedList<SceneNode>();
-		this.elementsIndex = new LinkedList<SceneNode>();
-		this.elementsIndex.add(this);
+	public void setData(GeometryEntity data) {
+		table.setEntity(row, data);
+	}
+
+	/**
+	 * @return this node's parent, or null if it is the root
+	 */
+	public SceneNode getParent() {
+		int parent = table.getParent(row);
+		return parent == SceneTable.NONE ? null : new SceneNode(table, parent);
+	}
+
+	/**
+	 * @return a new list of this node's children, in the order they were
+	 *         added
+	 */
+	public List<SceneNode> getChildren() {
+		ArrayList<SceneNode> children = new ArrayList<SceneNode>();
+		for (int c = table.getFirstChild(row); c != SceneTable.NONE; c = table.getNextSibling(c))
+			children.add(new SceneNode(table, c));
+		return children;
+	}
+
+	public int getNumChildren() {
+		int n = 0;
+		for (int c = table.getFirstChild(row); c != SceneTable.NONE; c = table.getNextSibling(c))
+			n++;
+		return n;
+	}
+
+	public boolean isRoot() {
+		return table.getParent(row) == SceneTable.NONE;
+	}
+
+	public boolean isLeaf() {
+		return table.getFirstChild(row) == SceneTable.NONE;
 	}
 
 	public SceneNode addChild(GeometryEntity child) {
-		SceneNode childNode = new SceneNode(child);
-		childNode.parent = this;
-		this.children.add(childNode);
-		this.registerChildForSearch(childNode);
-		return childNode;
+		return new SceneNode(table, table.add(child, row));
 	}
 
-	public int getLevel() {
-		if (this.isRoot())
-			return 0;
-		else
-			return parent.getLevel() + 1;
+	/**
+	 * Add children for many entities at once, in order.
+	 *
+	 * @param children
+	 *            the children's entities
+	 */
+	public void addChildren(GeometryEntity[] children) {
+		table.ensureCapacity(table.size() + children.length);
+		for (GeometryEntity child : children)
+			table.add(child, row);
 	}
 
-	private void registerChildForSearch(SceneNode node) {
-		elementsIndex.add(node);
-		if (parent != null)
-			parent.registerChildForSearch(node);
+	public int getLevel() {
+		int level = 0;
+		for (int p = table.getParent(row); p != SceneTable.NONE; p = table.getParent(p))
+			level++;
+		return level;
 	}
 
 	public SceneNode findTreeNode(Comparable<Serializable> cmp) {
-		for (SceneNode element : this.elementsIndex) {
-			Serializable elData = element.data;
-			if (cmp.compareTo(elData) == 0)
-				return element;
-		}
+		int found = table.find(row, cmp);
+		return found == SceneTable.NONE ? null : new SceneNode(table, found);
+	}
+
+	/**
+	 * @return a spatial index over the geometry in this node and everything
+	 *         below it
+	 */
+	public SpatialIndex getSpatialIndex() {
+		return table.getSpatialIndex(row);
+	}
+
+	/**
+	 * Use an index that was built elsewhere, such as from a compiled map, for
+	 * this node's subtree. It is kept up to date from then on like one built
+	 * here.
+	 *
+	 * @param spatialIndex
+	 *            an index holding exactly the geometry in this node and
+	 *            everything below it
+	 */
+	public void setSpatialIndex(SpatialIndex spatialIndex) {
+		table.setSpatialIndex(row, spatialIndex);
+	}
+
+	SceneTable getTable() {
+		return table;
+	}
 
-		return null;
+	int getRow() {
+		return row;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof SceneNode))
+			return false;
+		SceneNode other = (SceneNode) obj;
+		return table == other.table && row == other.row;
+	}
+
+	@Override
+	public int hashCode() {
+		return System.identityHashCode(table) * 31 + row;
 	}
 
 	@Override
 	public String toString() {
+		GeometryEntity data = getData();
 		return data != null ? data.toString() : "[data null]";
 	}
 
+	/**
+	 * @return a cursor over this node and everything below it, which unlike
+	 *         iterating doesn't allocate for each node
+	 */
+	public SceneCursor cursor() {
+		return new SceneCursor(this);
+	}
+
 	@Override
 	public Iterator<SceneNode> iterator() {
 		SceneNodeIter iter = new SceneNodeIter(this);
 		return iter;
 	}
 
-}
\ No newline at end of file
+	private Object writeReplace() throws ObjectStreamException {
+		return new SerializedForm(table, row);
+	}
+
+	/*
+	 * Converts a node written by an older version. Its children have already
+	 * been read, each as a tree of its own, and are copied in under it. The
+	 * parent and elementsIndex fields are left alone, they are back
+	 * references and a copy of what the children hold.
+	 */
+	@SuppressWarnings("unchecked")
+	private void readObject(ObjectInputStream in) throws IOException,
+			ClassNotFoundException {
+		ObjectInputStream.GetField fields = in.readFields();
+		table = new SceneTable();
+		row = table.add((GeometryEntity) fields.get("data", null), SceneTable.NONE);
+		List<SceneNode> children = (List<SceneNode>) fields.get("children", null);
+		if (children != null) {
+			for (SceneNode child : children)
+				copy(child, row);
+		}
+	}
+
+	private void copy(SceneNode from, int parent) {
+		int copied = table.add(from.getData(), parent);
+		SceneTable fromTable = from.table;
+		for (int c = fromTable.getFirstChild(from.row); c != SceneTable.NONE; c = fromTable
+				.getNextSibling(c))
+			copy(new SceneNode(fromTable, c), copied);
+	}
+
+	/**
+	 * What a node is written as: its whole tree, once per stream however many
+	 * of its nodes are written, and its row.
+	 */
+	private static class SerializedForm implements Serializable {
+
+		private static final long serialVersionUID = -2245806375618043337L;
+
+		private final SceneTable table;
+		private final int row;
+
+		SerializedForm(SceneTable table, int row) {
+			this.table = table;
+			this.row = row;
+		}
+
+		private Object readResolve() throws ObjectStreamException {
+			if (row < 0 || row >= table.size())
+				throw new InvalidObjectException("Bad scene graph node " + row);
+			return new SceneNode(table, row);
+		}
+	}
+
+}
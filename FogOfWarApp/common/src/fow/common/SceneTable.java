@@ -0,0 +1,216 @@
+package fow.common;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * The storage behind a scene graph. Every node of one tree is a row in a
+ * handful of parallel arrays: its entity, its parent and the links to its
+ * first and last child and its next sibling. Nodes are only ever appended, so
+ * a child always comes after its parent and a node's children are in the
+ * order they were added.
+ *
+ * {@link SceneNode}s are just a row number in one of these.
+ */
+final class SceneTable implements Serializable {
+
+	private static final long serialVersionUID = 4213379623893437710L;
+
+	/** Marks a missing parent, child or sibling */
+	static final int NONE = -1;
+
+	private static final int INITIAL_CAPACITY = 8;
+
+	private transient GeometryEntity[] entities;
+	private transient int[] parents;
+	private transient int[] firstChildren;
+	private transient int[] lastChildren;
+	private transient int[] nextSiblings;
+	private transient int size;
+
+	/*
+	 * Spatial indexes asked for so far, by the row of the node they cover.
+	 * Usually only the root's. Not serialized, a received tree builds its own.
+	 */
+	private transient HashMap<Integer, SpatialIndex> spatialIndexes;
+
+	SceneTable() {
+		allocate(INITIAL_CAPACITY);
+	}
+
+	private void allocate(int capacity) {
+		entities = new GeometryEntity[capacity];
+		parents = new int[capacity];
+		firstChildren = new int[capacity];
+		lastChildren = new int[capacity];
+		nextSiblings = new int[capacity];
+	}
+
+	/**
+	 * Add a node as the last child of another.
+	 *
+	 * @param entity the node's entity, may be null
+	 * @param parent the parent's row, or {@link #NONE} for a root
+	 * @return the new node's row
+	 */
+	int add(GeometryEntity entity, int parent) {
+		if (size == entities.length)
+			ensureCapacity(size * 2);
+		int row = size++;
+		entities[row] = entity;
+		link(row, parent);
+
+		if (spatialIndexes != null && entity != null) {
+			for (int ancestor = row; ancestor != NONE; ancestor = parents[ancestor]) {
+				SpatialIndex index = spatialIndexes.get(ancestor);
+				if (index != null)
+					index.add(entity);
+			}
+		}
+		return row;
+	}
+
+	/**
+	 * Make room for at least capacity nodes in all, so adding many at once
+	 * grows the arrays only once.
+	 */
+	void ensureCapacity(int capacity) {
+		if (capacity <= entities.length)
+			return;
+		entities = Arrays.copyOf(entities, capacity);
+		parents = Arrays.copyOf(parents, capacity);
+		firstChildren = Arrays.copyOf(firstChildren, capacity);
+		lastChildren = Arrays.copyOf(lastChildren, capacity);
+		nextSiblings = Arrays.copyOf(nextSiblings, capacity);
+	}
+
+	private void link(int row, int parent) {
+		parents[row] = parent;
+		firstChildren[row] = NONE;
+		lastChildren[row] = NONE;
+		nextSiblings[row] = NONE;
+		if (parent != NONE) {
+			if (firstChildren[parent] == NONE)
+				firstChildren[parent] = row;
+			else
+				nextSiblings[lastChildren[parent]] = row;
+			lastChildren[parent] = row;
+		}
+	}
+
+	int size() {
+		return size;
+	}
+
+	GeometryEntity getEntity(int row) {
+		return entities[row];
+	}
+
+	void setEntity(int row, GeometryEntity entity) {
+		entities[row] = entity;
+	}
+
+	int getParent(int row) {
+		return parents[row];
+	}
+
+	int getFirstChild(int row) {
+		return firstChildren[row];
+	}
+
+	int getNextSibling(int row) {
+		return nextSiblings[row];
+	}
+
+	/**
+	 * @return the row after the given one in a depth first walk of the subtree
+	 *         under root, or {@link #NONE} once the walk is done
+	 */
+	int nextInSubtree(int row, int root) {
+		int child = firstChildren[row];
+		if (child != NONE)
+			return child;
+		while (row != root) {
+			int sibling = nextSiblings[row];
+			if (sibling != NONE)
+				return sibling;
+			row = parents[row];
+		}
+		return NONE;
+	}
+
+	/**
+	 * @return the first row in the subtree under root whose entity compares
+	 *         equal, or {@link #NONE}
+	 */
+	int find(int root, Comparable<Serializable> cmp) {
+		if (parents[root] == NONE && root == 0) {
+			// The whole table, no need to follow the links
+			for (int row = 0; row < size; row++) {
+				if (cmp.compareTo(entities[row]) == 0)
+					return row;
+			}
+			return NONE;
+		}
+		for (int row = root; row != NONE; row = nextInSubtree(row, root)) {
+			if (cmp.compareTo(entities[row]) == 0)
+				return row;
+		}
+		return NONE;
+	}
+
+	SpatialIndex getSpatialIndex(int root) {
+		if (spatialIndexes == null)
+			spatialIndexes = new HashMap<Integer, SpatialIndex>(4);
+		SpatialIndex index = spatialIndexes.get(root);
+		if (index == null) {
+			index = new SpatialIndex(SpatialIndex.DEFAULT_CELL_SIZE);
+			for (int row = root; row != NONE; row = nextInSubtree(row, root)) {
+				if (entities[row] != null)
+					index.add(entities[row]);
+			}
+			spatialIndexes.put(root, index);
+		}
+		return index;
+	}
+
+	void setSpatialIndex(int root, SpatialIndex index) {
+		if (spatialIndexes == null)
+			spatialIndexes = new HashMap<Integer, SpatialIndex>(4);
+		spatialIndexes.put(root, index);
+	}
+
+	/*
+	 * Only the entities and parents are written, the child and sibling links
+	 * are rebuilt from them.
+	 */
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+		out.writeInt(size);
+		for (int row = 0; row < size; row++) {
+			out.writeObject(entities[row]);
+			out.writeInt(parents[row]);
+		}
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException,
+			ClassNotFoundException {
+		in.defaultReadObject();
+		int n = in.readInt();
+		if (n < 0)
+			throw new IOException("Bad scene graph size " + n);
+		allocate(Math.max(n, INITIAL_CAPACITY));
+		for (int row = 0; row < n; row++) {
+			entities[row] = (GeometryEntity) in.readObject();
+			int parent = in.readInt();
+			if (parent < NONE || parent >= row)
+				throw new IOException("Bad parent " + parent + " for node " + row);
+			link(row, parent);
+		}
+		size = n;
+	}
+}
@@ -0,0 +1,521 @@
+package fow.common;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * A uniform grid of buckets over the geometry of a level, so questions about
+ * one area only look at the entities near it. Each entity is kept in the one
+ * bucket that holds the corner of its bounding box nearest the origin, and
+ * queries look far enough back to catch the largest entity reaching in from a
+ * neighbouring bucket. That is why GeometryEntity's bounding boxes should stay
+ * small compared to the buckets.
+ *
+ * The grid grows to cover entities added outside it. Entities must not be
+ * moved or resized while they are in the index.
+ */
+public class SpatialIndex {
+
+	/** Side of the buckets used by the scene graph */
+	public static final int DEFAULT_CELL_SIZE = 128;
+
+	private static final GeometryEntity[] EMPTY = new GeometryEntity[0];
+
+	private final int cellSize;
+
+	/*
+	 * The grid covers the buckets from (minColumn, minRow), columns wide and
+	 * rows high. Buckets are stored row by row, each with its entity count.
+	 */
+	private int minColumn;
+	private int minRow;
+	private int columns;
+	private int rows;
+	private GeometryEntity[][] cells;
+	private int[] counts;
+
+	/*
+	 * The widest and tallest entity, which bounds how far an entity can reach
+	 * out of its bucket
+	 */
+	private int maxWidth;
+	private int maxHeight;
+
+	private int size;
+
+	/**
+	 * Create an empty index.
+	 *
+	 * @param cellSize
+	 *            width and height of each bucket
+	 */
+	public SpatialIndex(int cellSize) {
+		if (cellSize <= 0) {
+			throw new IllegalArgumentException("Cell size must be positive");
+		}
+		this.cellSize = cellSize;
+		this.cells = new GeometryEntity[0][];
+		this.counts = new int[0];
+	}
+
+	/**
+	 * @param entities
+	 *            the entities to index
+	 * @return an index holding the entities, with the default bucket size
+	 */
+	public static SpatialIndex of(Collection<? extends GeometryEntity> entities) {
+		SpatialIndex index = new SpatialIndex(DEFAULT_CELL_SIZE);
+		for (GeometryEntity entity : entities) {
+			index.add(entity);
+		}
+		return index;
+	}
+
+	/**
+	 * Create an index from entities that are already sorted into buckets,
+	 * such as a compiled map's, without sorting them again.
+	 *
+	 * @param cellSize
+	 *            width and height of each bucket
+	 * @param minColumn
+	 *            column of the first bucket
+	 * @param minRow
+	 *            row of the first bucket
+	 * @param columns
+	 *            how many buckets across the grid is
+	 * @param rows
+	 *            how many buckets down the grid is
+	 * @param starts
+	 *            where each bucket's entities start, row by row, followed by
+	 *            where the last bucket's end
+	 * @param entities
+	 *            the entities, bucket by bucket
+	 * @return an index holding the entities
+	 * @throws IllegalArgumentException
+	 *             if the buckets don't match the grid or an entity is not in
+	 *             the bucket its bounding box starts in
+	 */
+	public static SpatialIndex ofBuckets(int cellSize, int minColumn,
+			int minRow, int columns, int rows, int[] starts,
+			GeometryEntity[] entities) {
+		SpatialIndex index = new SpatialIndex(cellSize);
+		if (entities.length == 0) {
+			return index;
+		}
+		if (columns <= 0 || rows <= 0
+				|| starts.length != (long) columns * rows + 1
+				|| starts[0] != 0 || starts[starts.length - 1] != entities.length) {
+			throw new IllegalArgumentException("Buckets don't match the grid");
+		}
+		index.minColumn = minColumn;
+		index.minRow = minRow;
+		index.columns = columns;
+		index.rows = rows;
+		index.cells = new GeometryEntity[columns * rows][];
+		index.counts = new int[columns * rows];
+		for (int i = 0; i < columns * rows; i++) {
+			int start = starts[i];
+			int end = starts[i + 1];
+			if (end < start) {
+				throw new IllegalArgumentException("Bucket " + i + " ends before it starts");
+			}
+			if (end == start) {
+				continue;
+			}
+			int column = minColumn + i % columns;
+			int row = minRow + i / columns;
+			for (int j = start; j < end; j++) {
+				GeometryEntity entity = entities[j];
+				if (index.cell(entity.x) != column || index.cell(entity.y) != row) {
+					throw new IllegalArgumentException(entity + " is not in bucket " + i);
+				}
+				index.maxWidth = Math.max(index.maxWidth, entity.width);
+				index.maxHeight = Math.max(index.maxHeight, entity.height);
+			}
+			index.cells[i] = Arrays.copyOfRange(entities, start, end,
+					GeometryEntity[].class);
+			index.counts[i] = end - start;
+		}
+		index.size = entities.length;
+		return index;
+	}
+
+	/**
+	 * Add an entity to the bucket its bounding box starts in.
+	 *
+	 * @param entity
+	 *            the entity to add
+	 */
+	public void add(GeometryEntity entity) {
+		int column = cell(entity.x);
+		int row = cell(entity.y);
+		if (size == 0 || column < minColumn || column >= minColumn + columns
+				|| row < minRow || row >= minRow + rows) {
+			grow(column, row);
+		}
+		int i = (row - minRow) * columns + column - minColumn;
+		GeometryEntity[] bucket = cells[i];
+		if (bucket == null) {
+			bucket = new GeometryEntity[4];
+			cells[i] = bucket;
+		} else if (counts[i] == bucket.length) {
+			bucket = Arrays.copyOf(bucket, bucket.length * 2);
+			cells[i] = bucket;
+		}
+		bucket[counts[i]++] = entity;
+		maxWidth = Math.max(maxWidth, entity.width);
+		maxHeight = Math.max(maxHeight, entity.height);
+		size++;
+	}
+
+	/**
+	 * Resize the grid to take in a bucket outside it, at least doubling its
+	 * width or height so adding entities one by one stays cheap.
+	 */
+	private void grow(int column, int row) {
+		int newMinColumn, newMinRow, newColumns, newRows;
+		if (size == 0) {
+			newMinColumn = column;
+			newMinRow = row;
+			newColumns = Math.max(columns, 1);
+			newRows = Math.max(rows, 1);
+		} else {
+			newMinColumn = Math.min(minColumn, column);
+			newMinRow = Math.min(minRow, row);
+			int maxColumn = Math.max(minColumn + columns, column + 1);
+			int maxRow = Math.max(minRow + rows, row + 1);
+			newColumns = maxColumn - newMinColumn;
+			newRows = maxRow - newMinRow;
+			if (newColumns > columns) {
+				int extra = Math.max(newColumns, columns * 2) - newColumns;
+				newColumns += extra;
+				if (column < minColumn) {
+					newMinColumn -= extra;
+				}
+			}
+			if (newRows > rows) {
+				int extra = Math.max(newRows, rows * 2) - newRows;
+				newRows += extra;
+				if (row < minRow) {
+					newMinRow -= extra;
+				}
+			}
+		}
+
+		GeometryEntity[][] newCells = new GeometryEntity[newColumns * newRows][];
+		int[] newCounts = new int[newColumns * newRows];
+		for (int r = 0; r < rows; r++) {
+			for (int c = 0; c < columns; c++) {
+				int i = r * columns + c;
+				if (counts[i] > 0) {
+					int j = (r + minRow - newMinRow) * newColumns + c + minColumn
+							- newMinColumn;
+					newCells[j] = cells[i];
+					newCounts[j] = counts[i];
+				}
+			}
+		}
+		minColumn = newMinColumn;
+		minRow = newMinRow;
+		columns = newColumns;
+		rows = newRows;
+		cells = newCells;
+		counts = newCounts;
+	}
+
+	/**
+	 * Find every entity whose bounding box overlaps a rectangle, edges
+	 * included.
+	 *
+	 * @param x
+	 *            left of the rectangle
+	 * @param y
+	 *            bottom of the rectangle
+	 * @param width
+	 *            width of the rectangle
+	 * @param height
+	 *            height of the rectangle
+	 * @param result
+	 *            the list to add the entities to
+	 */
+	public void query(int x, int y, int width, int height,
+			List<? super GeometryEntity> result) {
+		if (size == 0) {
+			return;
+		}
+		int right = x + width;
+		int top = y + height;
+		int fromColumn = Math.max(minColumn, cell(x - maxWidth));
+		int toColumn = Math.min(minColumn + columns - 1, cell(right));
+		int fromRow = Math.max(minRow, cell(y - maxHeight));
+		int toRow = Math.min(minRow + rows - 1, cell(top));
+		for (int row = fromRow; row <= toRow; row++) {
+			for (int column = fromColumn; column <= toColumn; column++) {
+				int i = (row - minRow) * columns + column - minColumn;
+				GeometryEntity[] bucket = cells[i];
+				for (int k = 0; k < counts[i]; k++) {
+					GeometryEntity e = bucket[k];
+					if (e.x <= right && e.x + e.width >= x && e.y <= top
+							&& e.y + e.height >= y) {
+						result.add(e);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Find the first entity a straight line runs into. Walls are tested
+	 * against their segment, other entities against their bounding box.
+	 *
+	 * @param x1
+	 *            x-coordinate the line starts at
+	 * @param y1
+	 *            y-coordinate the line starts at
+	 * @param x2
+	 *            x-coordinate the line ends at
+	 * @param y2
+	 *            y-coordinate the line ends at
+	 * @return the entity hit nearest the start, or null if the line is clear
+	 */
+	public GeometryEntity castRay(double x1, double y1, double x2, double y2) {
+		if (size == 0) {
+			return null;
+		}
+		double dx = x2 - x1;
+		double dy = y2 - y1;
+		int column = cell(x1);
+		int row = cell(y1);
+		int endColumn = cell(x2);
+		int endRow = cell(y2);
+
+		// Walk the buckets along the line, tracking the fraction of the line at
+		// which it leaves the current bucket in x and in y
+		int stepX = dx > 0 ? 1 : dx < 0 ? -1 : 0;
+		int stepY = dy > 0 ? 1 : dy < 0 ? -1 : 0;
+		double deltaX = stepX != 0 ? cellSize / Math.abs(dx)
+				: Double.POSITIVE_INFINITY;
+		double deltaY = stepY != 0 ? cellSize / Math.abs(dy)
+				: Double.POSITIVE_INFINITY;
+		double exitX = stepX > 0 ? ((column + 1.0) * cellSize - x1) / dx
+				: stepX < 0 ? ((double) column * cellSize - x1) / dx
+						: Double.POSITIVE_INFINITY;
+		double exitY = stepY > 0 ? ((row + 1.0) * cellSize - y1) / dy
+				: stepY < 0 ? ((double) row * cellSize - y1) / dy
+						: Double.POSITIVE_INFINITY;
+
+		int reachColumns = (maxWidth + cellSize - 1) / cellSize;
+		int reachRows = (maxHeight + cellSize - 1) / cellSize;
+		GeometryEntity nearest = null;
+		double nearestT = Double.POSITIVE_INFINITY;
+		while (true) {
+			// Entities reaching into this bucket can start a few buckets back
+			int fromColumn = Math.max(minColumn, column - reachColumns);
+			int toColumn = Math.min(minColumn + columns - 1, column);
+			int fromRow = Math.max(minRow, row - reachRows);
+			int toRow = Math.min(minRow + rows - 1, row);
+			for (int r = fromRow; r <= toRow; r++) {
+				for (int c = fromColumn; c <= toColumn; c++) {
+					int i = (r - minRow) * columns + c - minColumn;
+					GeometryEntity[] bucket = cells[i];
+					for (int k = 0; k < counts[i]; k++) {
+						double t = intersect(bucket[k], x1, y1, dx, dy);
+						if (t < nearestT) {
+							nearestT = t;
+							nearest = bucket[k];
+						}
+					}
+				}
+			}
+
+			// Anything in later buckets is hit later along the line
+			double exit = Math.min(exitX, exitY);
+			if (nearestT <= exit || exit > 1
+					|| (column == endColumn && row == endRow)) {
+				return nearest;
+			}
+			if (exitX < exitY) {
+				column += stepX;
+				exitX += deltaX;
+			} else {
+				row += stepY;
+				exitY += deltaY;
+			}
+		}
+	}
+
+	/**
+	 * Find the entity nearest a point. Walls are measured to their segment,
+	 * other entities to their bounding box.
+	 *
+	 * @param x
+	 *            x-coordinate of the point
+	 * @param y
+	 *            y-coordinate of the point
+	 * @param maxDistance
+	 *            how far away to look
+	 * @return the nearest entity, or null if none is within maxDistance
+	 */
+	public GeometryEntity nearest(double x, double y, double maxDistance) {
+		if (size == 0) {
+			return null;
+		}
+		int column = cell(x);
+		int row = cell(y);
+		int reach = Math.max(maxWidth, maxHeight);
+		GeometryEntity nearest = null;
+		double nearestDistance = maxDistance;
+
+		// Look at rings of buckets further and further out. Before ring r,
+		// anything left starts at least r - 1 buckets away, less however far
+		// it can reach back out of its bucket.
+		for (int r = 0;; r++) {
+			double bound = (r - 1.0) * cellSize - reach;
+			if (bound > nearestDistance) {
+				return nearest;
+			}
+			if (column - r < minColumn && column + r >= minColumn + columns
+					&& row - r < minRow && row + r >= minRow + rows) {
+				return nearest;
+			}
+			for (int rr = row - r; rr <= row + r; rr++) {
+				if (rr < minRow || rr >= minRow + rows) {
+					continue;
+				}
+				// Only the ring's edges in the first and last row
+				int step = rr == row - r || rr == row + r ? 1 : Math.max(1, 2 * r);
+				for (int c = column - r; c <= column + r; c += step) {
+					if (c < minColumn || c >= minColumn + columns) {
+						continue;
+					}
+					int i = (rr - minRow) * columns + c - minColumn;
+					GeometryEntity[] bucket = cells[i];
+					for (int k = 0; k < counts[i]; k++) {
+						double d = distance(bucket[k], x, y);
+						if (d <= nearestDistance) {
+							nearestDistance = d;
+							nearest = bucket[k];
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return every entity in the index, in no particular order
+	 */
+	public GeometryEntity[] getAll() {
+		if (size == 0) {
+			return EMPTY;
+		}
+		GeometryEntity[] all = new GeometryEntity[size];
+		int n = 0;
+		for (int i = 0; i < cells.length; i++) {
+			if (counts[i] > 0) {
+				System.arraycopy(cells[i], 0, all, n, counts[i]);
+				n += counts[i];
+			}
+		}
+		return all;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int getCellSize() {
+		return cellSize;
+	}
+
+	/**
+	 * @return the bucket a coordinate falls in, rounding toward negative
+	 *         infinity
+	 */
+	private int cell(double coordinate) {
+		return (int) Math.floor(coordinate / cellSize);
+	}
+
+	/**
+	 * @return the fraction of the line (x, y) + t (dx, dy) at which it first
+	 *         meets the entity, or infinity if it misses for 0 <= t <= 1
+	 */
+	private static double intersect(GeometryEntity entity, double x, double y,
+			double dx, double dy) {
+		if (entity instanceof WallSegment) {
+			WallSegment wall = (WallSegment) entity;
+			double ex = wall.x2 - wall.x1;
+			double ey = wall.y2 - wall.y1;
+			double qx = wall.x1 - x;
+			double qy = wall.y1 - y;
+			double denominator = dx * ey - dy * ex;
+			if (denominator == 0) {
+				// Parallel, only a hit if the line runs along the wall
+				if (qx * dy - qy * dx != 0) {
+					return Double.POSITIVE_INFINITY;
+				}
+				double length = dx * dx + dy * dy;
+				if (length == 0) {
+					return Double.POSITIVE_INFINITY;
+				}
+				double t1 = (qx * dx + qy * dy) / length;
+				double t2 = ((wall.x2 - x) * dx + (wall.y2 - y) * dy) / length;
+				double t = Math.max(0, Math.min(t1, t2));
+				return t <= Math.max(t1, t2) && t <= 1 ? t
+						: Double.POSITIVE_INFINITY;
+			}
+			double t = (qx * ey - qy * ex) / denominator;
+			double u = (qx * dy - qy * dx) / denominator;
+			return t >= 0 && t <= 1 && u >= 0 && u <= 1 ? t
+					: Double.POSITIVE_INFINITY;
+		}
+
+		// Clip the line against the bounding box one axis at a time
+		double[] range = { 0, 1 };
+		if (!clip(entity.x - x, entity.x + entity.width - x, dx, range)
+				|| !clip(entity.y - y, entity.y + entity.height - y, dy, range)) {
+			return Double.POSITIVE_INFINITY;
+		}
+		return range[0];
+	}
+
+	/**
+	 * Narrow range to the fractions of a line at which it lies between from
+	 * and to along one axis.
+	 *
+	 * @return whether any of the range is left
+	 */
+	private static boolean clip(double from, double to, double d, double[] range) {
+		if (d == 0) {
+			return from <= 0 && to >= 0;
+		}
+		double t1 = from / d;
+		double t2 = to / d;
+		range[0] = Math.max(range[0], Math.min(t1, t2));
+		range[1] = Math.min(range[1], Math.max(t1, t2));
+		return range[0] <= range[1];
+	}
+
+	/**
+	 * @return the distance from a point to the entity
+	 */
+	private static double distance(GeometryEntity entity, double x, double y) {
+		if (entity instanceof WallSegment) {
+			WallSegment wall = (WallSegment) entity;
+			double ex = wall.x2 - wall.x1;
+			double ey = wall.y2 - wall.y1;
+			double px = x - wall.x1;
+			double py = y - wall.y1;
+			double length = ex * ex + ey * ey;
+			double t = length == 0 ? 0 : Math.max(0,
+					Math.min(1, (px * ex + py * ey) / length));
+			px -= t * ex;
+			py -= t * ey;
+			return Math.sqrt(px * px + py * py);
+		}
+		double px = Math.max(0, Math.max(entity.x - x, x - entity.x - entity.width));
+		double py = Math.max(0, Math.max(entity.y - y, y - entity.y - entity.height));
+		return Math.sqrt(px * px + py * py);
+	}
+}
@@ -0,0 +1,198 @@
+package fow.common;
+
+import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The timestamps of one move on its way from a PC app, through the server and the DM's approval,
+ * back to the PC's screen. A traced NetworkEvent carries its TraceContext, and each hop along the
+ * way stamps it the first time it passes, so a context that comes back keeps the stamps it had.
+ *
+ * Stamps are System.nanoTime() of whichever process made them, which can only be compared with
+ * others from the same process. Each Stage is therefore worked out from the stamps of one side,
+ * except NETWORK_AND_APPLY, which is what's left of the PC's total once everything timed elsewhere
+ * is taken out.
+ */
+public class TraceContext implements Serializable {
+
+    private static final long serialVersionUID = -4517302618412283379L;
+
+    /**
+     * The points a move passes, in the order it passes them
+     */
+    public enum Hop {
+        /** The PC app queued the request to be sent */
+        CLIENT_ENQUEUE,
+        /** The PC app started writing the request to its socket */
+        SOCKET_WRITE,
+        /** The server took the request off its event queue */
+        SERVER_DEQUEUE,
+        /** The server finished handling the request */
+        HANDLER_DONE,
+        /** The server handled the DM's approval */
+        DM_APPROVED,
+        /** The server finished writing the PC's visibility update to its socket */
+        BROADCAST_WRITTEN,
+        /** The PC app applied the update */
+        CLIENT_APPLIED
+    }
+
+    /**
+     * Where a move spends its time, worked out from the stamps of a complete trace
+     */
+    public enum Stage {
+        /** Waiting in the PC app to be sent */
+        CLIENT_QUEUE {
+            @Override
+            long nanos(final TraceContext t) {
+                return t.between(Hop.CLIENT_ENQUEUE, Hop.SOCKET_WRITE);
+            }
+        },
+        /** The server handling the request */
+        SERVER_HANDLING {
+            @Override
+            long nanos(final TraceContext t) {
+                return t.between(Hop.SERVER_DEQUEUE, Hop.HANDLER_DONE);
+            }
+        },
+        /** Waiting for the DM to decide */
+        DM_DECISION {
+            @Override
+            long nanos(final TraceContext t) {
+                return t.between(Hop.HANDLER_DONE, Hop.DM_APPROVED);
+            }
+        },
+        /** Waiting for the tick, recomputing visibilities and writing the update */
+        RECOMPUTE_AND_BROADCAST {
+            @Override
+            long nanos(final TraceContext t) {
+                return t.between(Hop.DM_APPROVED, Hop.BROADCAST_WRITTEN);
+            }
+        },
+        /** Both ways over the network, and receiving and applying the update */
+        NETWORK_AND_APPLY {
+            @Override
+            long nanos(final TraceContext t) {
+                final long total = TOTAL.nanos(t);
+                final long client = CLIENT_QUEUE.nanos(t);
+                final long server = t.between(Hop.SERVER_DEQUEUE, Hop.BROADCAST_WRITTEN);
+                if (total < 0 || client < 0 || server < 0) {
+                    return -1;
+                }
+                // Clock drift between the two can make this a little negative for a fast network
+                return Math.max(0, total - client - server);
+            }
+        },
+        /** From the PC asking to move to the PC seeing it */
+        TOTAL {
+            @Override
+            long nanos(final TraceContext t) {
+                return t.between(Hop.CLIENT_ENQUEUE, Hop.CLIENT_APPLIED);
+            }
+        };
+
+        /**
+         * @return the nanoseconds spent in this stage, or -1 if the trace is missing a stamp
+         */
+        abstract long nanos(TraceContext t);
+    }
+
+    private static final Hop[] HOPS = Hop.values();
+
+    private static final AtomicInteger NEXT_ID = new AtomicInteger();
+
+    private final int id;
+
+    /* Stamps by hop ordinal, 0 for hops not passed yet */
+    private final long[] stamps = new long[HOPS.length];
+
+    /**
+     * Start a new trace, with an ID unique to this process
+     */
+    public TraceContext() {
+        this(NEXT_ID.incrementAndGet() & Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param id the ID of a trace made elsewhere
+     */
+    public TraceContext(final int id) {
+        this.id = id;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Stamp a hop with the current time, unless it already has been.
+     *
+     * @return whether the hop was stamped now
+     */
+    public boolean stamp(final Hop hop) {
+        if (stamps[hop.ordinal()] != 0) {
+            return false;
+        }
+        stamps[hop.ordinal()] = System.nanoTime();
+        return true;
+    }
+
+    /**
+     * @return the stamp, or 0 if the hop hasn't been passed
+     */
+    public long get(final Hop hop) {
+        return stamps[hop.ordinal()];
+    }
+
+    /**
+     * Set a stamp read from the wire
+     */
+    void set(final Hop hop, final long nanos) {
+        stamps[hop.ordinal()] = nanos;
+    }
+
+    /**
+     * Take the stamps another copy of this trace has that this one doesn't, e.g. the PC app's
+     * CLIENT_APPLIED from the copy it sent back.
+     *
+     * @param other a copy of the same trace
+     * @throws IllegalArgumentException if the other is of a different trace
+     */
+    public void merge(final TraceContext other) {
+        if (other.id != id) {
+            throw new IllegalArgumentException("Trace " + other.id + " isn't trace " + id);
+        }
+        for (int i = 0; i < stamps.length; i++) {
+            if (stamps[i] == 0) {
+                stamps[i] = other.stamps[i];
+            }
+        }
+    }
+
+    /**
+     * @return nanoseconds from one hop to the other, or -1 if either hasn't been passed
+     */
+    public long between(final Hop from, final Hop to) {
+        final long start = stamps[from.ordinal()];
+        final long end = stamps[to.ordinal()];
+        return start == 0 || end == 0 ? -1 : end - start;
+    }
+
+    /**
+     * @return the nanoseconds spent in the stage, or -1 if the trace is missing a stamp for it
+     */
+    public long getNanos(final Stage stage) {
+        return stage.nanos(this);
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder s = new StringBuilder("trace ").append(id);
+        for (final Hop hop : HOPS) {
+            if (stamps[hop.ordinal()] != 0) {
+                s.append(' ').append(hop).append('=').append(stamps[hop.ordinal()]);
+            }
+        }
+        return s.toString();
+    }
+}
@@ -0,0 +1,71 @@
+package fow.common;
+
+import java.io.Serializable;
+
+import fow.common.TraceContext.Stage;
+
+/**
+ * How long traced moves spent in each TraceContext.Stage, as the server sends it to the DM: the
+ * number of moves and the median, 99th percentile and longest time of each stage.
+ */
+public class TraceSummary implements Serializable {
+
+    private static final long serialVersionUID = 7906218035733318064L;
+
+    private static final Stage[] STAGES = Stage.values();
+
+    /* By stage ordinal */
+    private final long[] counts;
+    private final long[] p50Nanos;
+    private final long[] p99Nanos;
+    private final long[] maxNanos;
+
+    /**
+     * @param counts the number of moves timed in each stage, by stage ordinal
+     * @param p50Nanos the median of each stage
+     * @param p99Nanos the 99th percentile of each stage
+     * @param maxNanos the longest time of each stage
+     * @throws IllegalArgumentException if an array doesn't have one value per stage
+     */
+    public TraceSummary(long[] counts, long[] p50Nanos, long[] p99Nanos, long[] maxNanos) {
+        if (counts.length != STAGES.length || p50Nanos.length != STAGES.length
+                || p99Nanos.length != STAGES.length || maxNanos.length != STAGES.length) {
+            throw new IllegalArgumentException("Need one value for each of " + STAGES.length
+                    + " stages");
+        }
+        this.counts = counts;
+        this.p50Nanos = p50Nanos;
+        this.p99Nanos = p99Nanos;
+        this.maxNanos = maxNanos;
+    }
+
+    public long getCount(Stage stage) {
+        return counts[stage.ordinal()];
+    }
+
+    public long getP50Nanos(Stage stage) {
+        return p50Nanos[stage.ordinal()];
+    }
+
+    public long getP99Nanos(Stage stage) {
+        return p99Nanos[stage.ordinal()];
+    }
+
+    public long getMaxNanos(Stage stage) {
+        return maxNanos[stage.ordinal()];
+    }
+
+    /**
+     * @return one line per stage, in milliseconds
+     */
+    @Override
+    public String toString() {
+        StringBuilder s = new StringBuilder();
+        for (Stage stage : STAGES) {
+            int i = stage.ordinal();
+            s.append(String.format("%s: %d moves, p50 %.1f ms, p99 %.1f ms, max %.1f ms%n", stage,
+                    counts[i], p50Nanos[i] / 1e6, p99Nanos[i] / 1e6, maxNanos[i] / 1e6));
+        }
+        return s.toString();
+    }
+}
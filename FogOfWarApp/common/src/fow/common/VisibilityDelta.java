@@ -0,0 +1,234 @@
+package fow.common;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * The changes to a single VisibilityLayer between the version a client has acknowledged and the
+ * server's current version. Instead of the whole layer, only moved or new players, their new path
+ * points, and geometry that became visible or hidden are sent.
+ *
+ * Every part of a delta describes the resulting state rather than a step, and the server removes
+ * whatever any version it sent the client since the base version had, so a delta can be applied
+ * to its base version or to any of those. That lets the server keep sending deltas against the
+ * last acknowledged version without waiting for each acknowledgment.
+ */
+public class VisibilityDelta implements Serializable {
+
+    private static final long serialVersionUID = -3183521417340281934L;
+
+    /** Base version of a delta that builds a layer from nothing */
+    public static final int NO_VERSION = -1;
+
+    /*
+     * The version of the layer this delta applies to, or NO_VERSION if it holds the whole layer.
+     */
+    private final int baseVersion;
+
+    /*
+     * The version of the layer after applying this delta.
+     */
+    private final int version;
+
+    private final int levelWidth;
+    private final int levelHeight;
+
+    /*
+     * Players that are new to the layer or have moved since the base version, or a version sent
+     * since
+     */
+    private final PlayerPatch[] players;
+
+    /*
+     * IDs of players that were in the layer at the base version, or a version sent since, but
+     * aren't anymore
+     */
+    private final int[] removedPlayers;
+
+    /*
+     * Geometry that has become visible since the base version, or a version sent since, and the
+     * IDs of geometry that has been hidden
+     */
+    private final GeometryEntity[] addedGeometry;
+    private final int[] removedGeometry;
+
+    /*
+     * The delta's wire form, filled in by NetworkEventCodec the first time it is written, so a delta
+     * sent to several clients is only encoded once
+     */
+    transient byte[] encoded;
+
+    public VisibilityDelta(int baseVersion, int version, int levelWidth, int levelHeight,
+            PlayerPatch[] players, int[] removedPlayers, GeometryEntity[] addedGeometry,
+            int[] removedGeometry) {
+        this.baseVersion = baseVersion;
+        this.version = version;
+        this.levelWidth = levelWidth;
+        this.levelHeight = levelHeight;
+        this.players = players;
+        this.removedPlayers = removedPlayers;
+        this.addedGeometry = addedGeometry;
+        this.removedGeometry = removedGeometry;
+    }
+
+    public int getBaseVersion() {
+        return baseVersion;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public int getLevelWidth() {
+        return levelWidth;
+    }
+
+    public int getLevelHeight() {
+        return levelHeight;
+    }
+
+    public PlayerPatch[] getPlayers() {
+        return players;
+    }
+
+    public int[] getRemovedPlayers() {
+        return removedPlayers;
+    }
+
+    public GeometryEntity[] getAddedGeometry() {
+        return addedGeometry;
+    }
+
+    public int[] getRemovedGeometry() {
+        return removedGeometry;
+    }
+
+    /**
+     * @return whether applying this delta to its base would change nothing but the version
+     */
+    public boolean isEmpty() {
+        return players.length == 0 && removedPlayers.length == 0 && addedGeometry.length == 0
+                && removedGeometry.length == 0;
+    }
+
+    /**
+     * Apply this delta to a layer, without modifying it.
+     *
+     * @param layer the client's current layer, may be null if the client has none yet
+     * @return the updated layer, or null if the layer is older than this delta's base or doesn't
+     *         hold the state the delta builds on. The client should then ask for the whole layer.
+     */
+    public VisibilityLayer applyTo(VisibilityLayer layer) {
+        if (baseVersion == NO_VERSION) {
+            layer = new VisibilityLayer(levelWidth, levelHeight);
+        } else if (layer == null || layer.getVersion() < baseVersion) {
+            return null;
+        }
+
+        // Players, keeping the order of the ones we already have
+        HashMap<Integer, PlayerPatch> patches = new HashMap<Integer, PlayerPatch>();
+        for (PlayerPatch patch : players) {
+            patches.put(patch.id, patch);
+        }
+        HashSet<Integer> removed = new HashSet<Integer>();
+        for (int id : removedPlayers) {
+            removed.add(id);
+        }
+        List<PlayerState> ps = new ArrayList<PlayerState>(layer.getNumPlayers() + players.length);
+        for (PlayerState player : layer.getPlayers()) {
+            if (removed.contains(player.id)) {
+                continue;
+            }
+            PlayerPatch patch = patches.remove(player.id);
+            if (patch == null) {
+                ps.add(player);
+            } else if (patch.keep > player.getPathLength()) {
+                return null;
+            } else {
+                ps.add(patch.applyTo(player));
+            }
+        }
+        for (PlayerPatch patch : players) {
+            if (patches.containsKey(patch.id)) {
+                if (patch.keep > 0) {
+                    return null;
+                }
+                ps.add(patch.applyTo(null));
+            }
+        }
+
+        // Geometry, the client's scene graph is a flat list of whatever is visible
+        HashSet<Integer> hidden = new HashSet<Integer>();
+        for (int id : removedGeometry) {
+            hidden.add(id);
+        }
+        SceneNode sceneGraph = new SceneNode(null);
+        HashSet<Integer> present = new HashSet<Integer>();
+        SceneCursor cursor = layer.getSceneGraph().cursor();
+        while (cursor.next()) {
+            GeometryEntity entity = cursor.getData();
+            if (entity != null && !hidden.contains(entity.id) && present.add(entity.id)) {
+                sceneGraph.addChild(entity);
+            }
+        }
+        for (GeometryEntity entity : addedGeometry) {
+            if (present.add(entity.id)) {
+                sceneGraph.addChild(entity);
+            }
+        }
+
+        VisibilityLayer updated =
+                new VisibilityLayer(levelWidth, levelHeight, sceneGraph,
+                        ps.toArray(new PlayerState[ps.size()]));
+        updated.setVersion(version);
+        return updated;
+    }
+
+    @Override
+    public String toString() {
+        return "{delta " + baseVersion + "->" + version + ", players: " + players.length
+                + ", removed players: " + removedPlayers.length + ", geometry: +"
+                + addedGeometry.length + " -" + removedGeometry.length + "}";
+    }
+
+    /**
+     * The new state of one player's path: the oldest positions the client already has are kept and
+     * the newer ones are replaced.
+     */
+    public static class PlayerPatch implements Serializable {
+
+        private static final long serialVersionUID = 6035941787069519458L;
+
+        /* The player's ID */
+        public final int id;
+
+        /* The number of oldest positions of the client's path to keep */
+        public final int keep;
+
+        /* The positions that come after those, oldest first as x, y pairs like PlayerState's path */
+        public final int[] newest;
+
+        public PlayerPatch(int id, int keep, int[] newest) {
+            this.id = id;
+            this.keep = keep;
+            this.newest = newest;
+        }
+
+        /**
+         * @param player the client's state of this player, with a path at least keep long. May be
+         *        null if keep is 0.
+         * @return the player with the patched path
+         */
+        PlayerState applyTo(PlayerState player) {
+            int length = keep + newest.length / 2;
+            int[] newPath =
+                    player == null ? new int[Math.max(2, length * 2)] : player.copyPath(0, keep,
+                            length);
+            System.arraycopy(newest, 0, newPath, keep * 2, newest.length);
+            return new PlayerState(id, newPath, length);
+        }
+    }
+}
@@ -36,6 +36,13 @@ public class VisibilityLayer implements Serializable {
 	 */
 	private PlayerState[] players;
 
+	/*
+	 * The server's version of this layer, increases every time it changes.
+	 * Clients acknowledge versions so the server knows what to send a
+	 * VisibilityDelta against.
+	 */
+	private int version = VisibilityDelta.NO_VERSION;
+
 	/**
 	 * Base constructor with all necessary information for a valid level.
 	 * 
@@ -99,4 +106,12 @@ public class VisibilityLayer implements Serializable {
 	public int getNumPlayers() {
 	    return players.length;
 	}
+
+	public int getVersion() {
+		return version;
+	}
+
+	public void setVersion(int version) {
+		this.version = version;
+	}
 }
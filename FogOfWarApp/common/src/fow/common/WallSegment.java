@@ -0,0 +1,67 @@
+package fow.common;
+
+/**
+ * A straight wall between two points. Walls block line of sight, so they
+ * decide what each player can see. The inherited position and size are the
+ * wall's axis-aligned bounding box.
+ */
+public class WallSegment extends GeometryEntity {
+
+	private static final long serialVersionUID = -2547120795871352207L;
+
+	/*
+	 * The wall's end points
+	 */
+	public final int x1;
+	public final int y1;
+	public final int x2;
+	public final int y2;
+
+	/**
+	 * Create a wall between two points.
+	 *
+	 * @param id
+	 *            unique ID of the wall within its level
+	 * @param x1
+	 *            x-coordinate of the first end point
+	 * @param y1
+	 *            y-coordinate of the first end point
+	 * @param x2
+	 *            x-coordinate of the second end point
+	 * @param y2
+	 *            y-coordinate of the second end point
+	 */
+	public WallSegment(int id, int x1, int y1, int x2, int y2) {
+		this.id = id;
+		this.x1 = x1;
+		this.y1 = y1;
+		this.x2 = x2;
+		this.y2 = y2;
+		this.x = Math.min(x1, x2);
+		this.y = Math.min(y1, y2);
+		this.width = Math.abs(x2 - x1);
+		this.height = Math.abs(y2 - y1);
+	}
+
+	public int getX1() {
+		return x1;
+	}
+
+	public int getY1() {
+		return y1;
+	}
+
+	public int getX2() {
+		return x2;
+	}
+
+	public int getY2() {
+		return y2;
+	}
+
+	@Override
+	public String toString() {
+		return "{wall " + id + ": " + x1 + "," + y1 + " - " + x2 + "," + y2
+				+ "}";
+	}
+}
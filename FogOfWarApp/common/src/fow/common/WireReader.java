@@ -0,0 +1,94 @@
+package fow.common;
+
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads values written by a WireWriter from a ByteBuffer. Running past the end of the buffer
+ * throws a BufferUnderflowException, which NetworkEventCodec reports as a corrupt frame.
+ */
+public class WireReader {
+
+    private final ByteBuffer buf;
+
+    /**
+     * @param buf the buffer to read from, starting at its current position
+     */
+    public WireReader(ByteBuffer buf) {
+        this.buf = buf;
+    }
+
+    public int readByte() {
+        return buf.get();
+    }
+
+    public boolean readBoolean() {
+        return buf.get() != 0;
+    }
+
+    public int readInt() {
+        return buf.getInt();
+    }
+
+    public int readVarInt() throws StreamCorruptedException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = buf.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new StreamCorruptedException("malformed varint");
+    }
+
+    public long readLong() {
+        return buf.getLong();
+    }
+
+    public long readVarLong() throws StreamCorruptedException {
+        long value = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            int b = buf.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new StreamCorruptedException("malformed varlong");
+    }
+
+    public int readSignedVarInt() throws StreamCorruptedException {
+        int v = readVarInt();
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    /**
+     * Read a count that is about to be used to size an array. Each element takes at least one
+     * byte, so a count larger than what is left in the frame means the frame is corrupt.
+     */
+    public int readLength() throws StreamCorruptedException {
+        int n = readVarInt();
+        if (n < 0 || n > buf.remaining()) {
+            throw new StreamCorruptedException("bad length " + n);
+        }
+        return n;
+    }
+
+    /**
+     * Read an index into a table that was read earlier in the frame.
+     *
+     * @param size the size of the table
+     */
+    public int readIndex(int size) throws StreamCorruptedException {
+        int i = readVarInt();
+        if (i < 0 || i >= size) {
+            throw new StreamCorruptedException("bad index " + i + " into a table of " + size);
+        }
+        return i;
+    }
+
+    public int remaining() {
+        return buf.remaining();
+    }
+}
@@ -0,0 +1,147 @@
+package fow.common;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Growable byte buffer used by NetworkEventCodec to build frames without going through
+ * ObjectOutputStream. Integers are written either as fixed 4-byte big-endian values or as
+ * variable-length (LEB128) values, which keeps small ids and coordinate deltas to one or two bytes.
+ *
+ * A WireWriter can be reset and reused, so a connection only needs to allocate its buffer once.
+ */
+public class WireWriter {
+
+    private byte[] buf;
+    private int size;
+
+    public WireWriter() {
+        this(256);
+    }
+
+    /**
+     * @param capacity the initial size of the backing array, grown as needed
+     */
+    public WireWriter(int capacity) {
+        buf = new byte[Math.max(capacity, 16)];
+    }
+
+    private void ensureCapacity(int extra) {
+        if (size + extra > buf.length) {
+            byte[] newBuf = new byte[Math.max(buf.length << 1, size + extra)];
+            System.arraycopy(buf, 0, newBuf, 0, size);
+            buf = newBuf;
+        }
+    }
+
+    public void writeByte(int b) {
+        ensureCapacity(1);
+        buf[size++] = (byte) b;
+    }
+
+    public void writeBoolean(boolean b) {
+        writeByte(b ? 1 : 0);
+    }
+
+    /**
+     * Write a fixed width, big-endian int. Used for the frame length prefix so it can be patched
+     * after the payload is written.
+     */
+    public void writeInt(int v) {
+        ensureCapacity(4);
+        buf[size++] = (byte) (v >>> 24);
+        buf[size++] = (byte) (v >>> 16);
+        buf[size++] = (byte) (v >>> 8);
+        buf[size++] = (byte) v;
+    }
+
+    /**
+     * Write a non-negative int in 1 to 5 bytes, 7 bits at a time.
+     */
+    public void writeVarInt(int v) {
+        ensureCapacity(5);
+        while ((v & ~0x7F) != 0) {
+            buf[size++] = (byte) ((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        buf[size++] = (byte) v;
+    }
+
+    /**
+     * Write an int that may be negative, zig-zag encoded so small magnitudes stay small.
+     */
+    public void writeSignedVarInt(int v) {
+        writeVarInt((v << 1) ^ (v >> 31));
+    }
+
+    /**
+     * Write a fixed width, big-endian long, e.g. a System.nanoTime() that may be anything.
+     */
+    public void writeLong(long v) {
+        writeInt((int) (v >>> 32));
+        writeInt((int) v);
+    }
+
+    /**
+     * Write a non-negative long in 1 to 10 bytes, 7 bits at a time.
+     */
+    public void writeVarLong(long v) {
+        ensureCapacity(10);
+        while ((v & ~0x7FL) != 0) {
+            buf[size++] = (byte) ((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        buf[size++] = (byte) v;
+    }
+
+    public void writeBytes(byte[] b, int off, int len) {
+        ensureCapacity(len);
+        System.arraycopy(b, off, buf, size, len);
+        size += len;
+    }
+
+    /**
+     * Overwrite a previously written fixed width int.
+     *
+     * @param pos the offset the int was written at
+     * @param v the new value
+     */
+    public void setInt(int pos, int v) {
+        buf[pos] = (byte) (v >>> 24);
+        buf[pos + 1] = (byte) (v >>> 16);
+        buf[pos + 2] = (byte) (v >>> 8);
+        buf[pos + 3] = (byte) v;
+    }
+
+    /**
+     * @return number of bytes written since creation or the last reset()
+     */
+    public int size() {
+        return size;
+    }
+
+    public void reset() {
+        size = 0;
+    }
+
+    /**
+     * @return a copy of the written bytes
+     */
+    public byte[] toByteArray() {
+        byte[] copy = new byte[size];
+        System.arraycopy(buf, 0, copy, 0, size);
+        return copy;
+    }
+
+    /**
+     * @return a buffer over a copy of the written bytes, ready to be read
+     */
+    public ByteBuffer toByteBuffer() {
+        return ByteBuffer.wrap(toByteArray());
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(buf, 0, size);
+    }
+}
@@ -1,18 +1,25 @@
 package fow.app;
 
+import java.util.ArrayList;
+
 import com.badlogic.gdx.Gdx;
 import com.badlogic.gdx.Input;
 import com.badlogic.gdx.graphics.Color;
 import com.badlogic.gdx.graphics.OrthographicCamera;
 import com.badlogic.gdx.graphics.Texture;
 import com.badlogic.gdx.graphics.g2d.Batch;
+import com.badlogic.gdx.graphics.glutils.ShapeRenderer;
+import com.badlogic.gdx.graphics.glutils.ShapeRenderer.ShapeType;
 import com.badlogic.gdx.math.Vector2;
 import com.badlogic.gdx.scenes.scene2d.Stage;
 import com.badlogic.gdx.utils.viewport.Viewport;
 
+import fow.common.GeometryEntity;
 import fow.common.PlayerState;
 import fow.common.PositionTuple;
+import fow.common.VisibilityDelta;
 import fow.common.VisibilityLayer;
+import fow.common.WallSegment;
 
 public class MapView extends Stage {
 
@@ -27,6 +34,12 @@ public class MapView extends Stage {
     // expand this to different textures for different characters
     private final Texture texture;
 
+    // Draws the walls this player has seen
+    private final ShapeRenderer shapeRenderer;
+
+    // The geometry on screen, reused every frame
+    private final ArrayList<GeometryEntity> onScreen = new ArrayList<GeometryEntity>();
+
     // This is essentially the state, as provided by the server
     protected VisibilityLayer visibility;
 
@@ -60,6 +73,7 @@ public class MapView extends Stage {
         camera = (OrthographicCamera) getCamera();
 
         texture = new Texture(Gdx.files.internal("gnome.gif"));
+        shapeRenderer = new ShapeRenderer();
 
         // So it will throw out of bounds exception if used improperly
         myIndex = -1;
@@ -99,6 +113,38 @@ public class MapView extends Stage {
         camera.position.set(pos.x, pos.y, 0);
     }
 
+    /**
+     * Apply a delta from the server to this player's view.
+     * 
+     * @param accId the ID of the player who this view belongs to
+     * @param delta the changes since a version the server knows we have
+     * @return false if the delta doesn't apply to the current view, in which case the view is left
+     *         as is and the whole VisibilityLayer should be asked for
+     */
+    public boolean updateVisibility(int accId, VisibilityDelta delta) {
+        VisibilityLayer updated = delta.applyTo(visibility);
+        if (updated == null) {
+            return false;
+        }
+        updateVisibility(accId, updated);
+        return true;
+    }
+
+    /**
+     * Put this player back where the server says it is, e.g. after a move was denied.
+     * 
+     * @param position the player's position on the server
+     */
+    public void resetCurrentPlayerPosition(PositionTuple position) {
+        if (visibility == null) {
+            return;
+        }
+        PositionTuple pos = getCurrentPlayerPosition();
+        if (pos.x != position.x || pos.y != position.y) {
+            getCurrentPlayer().changePosition(position);
+        }
+    }
+
     public void setPreviewLocation(PositionTuple previewLocation) {
         this.previewLocation = previewLocation;
     }
@@ -129,14 +175,16 @@ public class MapView extends Stage {
 
         // Only attempt to draw the world if we have a visibility layer to work from
         if (visibility != null) {
+            drawWalls();
+
             Batch batch = getSpriteBatch();
             batch.begin();
 
             for (int i = 0; i < visibility.getNumPlayers(); i++) {
-                PositionTuple currentPos = visibility.getPlayers()[i].getCurrentPosition();
+                PlayerState player = visibility.getPlayers()[i];
 
-                int dx = currentPos.x - texture.getWidth() / 2;
-                int dy = currentPos.y - texture.getHeight() / 2;
+                int dx = player.getCurrentX() - texture.getWidth() / 2;
+                int dy = player.getCurrentY() - texture.getHeight() / 2;
 
                 if (i == myIndex && dragging) {
                     dx += dragEndPoint.x - dragStartPoint.x;
@@ -165,6 +213,37 @@ public class MapView extends Stage {
         }
     }
 
+    @Override
+    public void dispose() {
+        super.dispose();
+        shapeRenderer.dispose();
+    }
+
+    /**
+     * Draw every wall in the visibility layer as a line
+     */
+    private void drawWalls() {
+        shapeRenderer.setProjectionMatrix(camera.combined);
+        shapeRenderer.begin(ShapeType.Line);
+        shapeRenderer.setColor(Color.WHITE);
+
+        // Only look at the walls the camera can see
+        float halfWidth = camera.viewportWidth * camera.zoom / 2;
+        float halfHeight = camera.viewportHeight * camera.zoom / 2;
+        onScreen.clear();
+        visibility.getSceneGraph().getSpatialIndex().query(
+                (int) Math.floor(camera.position.x - halfWidth),
+                (int) Math.floor(camera.position.y - halfHeight),
+                (int) Math.ceil(halfWidth * 2) + 1, (int) Math.ceil(halfHeight * 2) + 1, onScreen);
+        for (GeometryEntity entity : onScreen) {
+            if (entity instanceof WallSegment) {
+                WallSegment wall = (WallSegment) entity;
+                shapeRenderer.line(wall.x1, wall.y1, wall.x2, wall.y2);
+            }
+        }
+        shapeRenderer.end();
+    }
+
     @Override
     public boolean touchDown(int screenX, int screenY, int pointer, int button) {
         if (visibility == null) {
@@ -1,6 +1,5 @@
 package fow.app;
 
-import java.util.HashMap;
 
 import com.badlogic.gdx.Gdx;
 import com.badlogic.gdx.scenes.scene2d.Actor;
@@ -12,6 +11,9 @@ import com.badlogic.gdx.scenes.scene2d.ui.Table;
 import com.badlogic.gdx.scenes.scene2d.ui.TextButton;
 import com.badlogic.gdx.scenes.scene2d.utils.ChangeListener;
 
+import fow.common.IntMap;
+import fow.common.TraceContext.Stage;
+import fow.common.TraceSummary;
 import fow.common.VisibilityLayer;
 
 public class MasterMenu extends Table {
@@ -21,10 +23,12 @@ public class MasterMenu extends Table {
 
     private final Button approveButton;
     private final Button denyButton;
+    private final Button latencyButton;
 
     private final Label numPlayers;
     private final Label pendingRequests;
     private final SelectBox<Integer> selectPlayer;
+    private final Label latencies;
 
     public MasterMenu(final MasterScreen controller) {
         this.controller = controller;
@@ -54,11 +58,22 @@ public class MasterMenu extends Table {
             }
         });
 
-        this.add(new Label("Welcome, Dungeon Master!", skin)).colspan(3);
+        latencyButton = new TextButton("Move latency", skin);
+        latencyButton.addListener(new ChangeListener() {
+            @Override
+            public void changed(ChangeEvent event, Actor actor) {
+                MasterMenu.this.controller.requestTraceSummary();
+            }
+        });
+        latencies = new Label("", skin);
+
+        this.add(new Label("Welcome, Dungeon Master!", skin));
+        this.add(latencies).colspan(2);
         this.row();
 
         this.add(numPlayers);
         this.add(pendingRequests);
+        this.add(latencyButton);
         this.row();
 
         this.add(selectPlayer);
@@ -70,9 +85,13 @@ public class MasterMenu extends Table {
         skin.dispose();
     }
 
-    public void updateVisibilities(HashMap<Integer, VisibilityLayer> visibilities) {
+    public void updateVisibilities(IntMap<VisibilityLayer> visibilities) {
         int n = visibilities.size();
-        Integer[] ids = visibilities.keySet().toArray(new Integer[n]);
+        int[] keys = visibilities.keys();
+        Integer[] ids = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            ids[i] = keys[i];
+        }
         selectPlayer.setItems(ids);
 
         if (n == 0) {
@@ -99,6 +118,30 @@ public class MasterMenu extends Table {
         denyButton.setVisible(visible);
     }
 
+    /**
+     * Show how long moves take in all and the stage that takes the longest, leaving out the DM's
+     * own decision. The whole summary is printed.
+     */
+    public void showTraceSummary(TraceSummary summary) {
+        System.out.print(summary);
+        if (summary.getCount(Stage.TOTAL) == 0) {
+            latencies.setText("No moves timed yet");
+            return;
+        }
+        Stage slowest = null;
+        for (Stage stage : Stage.values()) {
+            if (stage != Stage.TOTAL && stage != Stage.DM_DECISION
+                    && (slowest == null
+                            || summary.getP99Nanos(stage) > summary.getP99Nanos(slowest))) {
+                slowest = stage;
+            }
+        }
+        latencies.setText(String.format(
+                "Moves: p50 %.0f ms, p99 %.0f ms. Slowest: %s, p99 %.0f ms",
+                summary.getP50Nanos(Stage.TOTAL) / 1e6, summary.getP99Nanos(Stage.TOTAL) / 1e6,
+                slowest, summary.getP99Nanos(slowest) / 1e6));
+    }
+
     public void selectFirstPlayer() {
         selectPlayer.setSelectedIndex(0);
         selectPlayer.fire(new ChangeListener.ChangeEvent());
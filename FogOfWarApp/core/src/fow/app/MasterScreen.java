@@ -1,16 +1,17 @@
 package fow.app;
 
-import java.util.HashMap;
-
 import com.badlogic.gdx.Gdx;
 import com.badlogic.gdx.graphics.GL20;
 
 import fow.app.network.HandshakeListener;
 import fow.app.network.ServerConnection;
+import fow.common.IntMap;
 import fow.common.MoveRequest;
 import fow.common.NetworkEvent;
 import fow.common.NetworkEvent.Type;
 import fow.common.PositionTuple;
+import fow.common.TraceSummary;
+import fow.common.VisibilityDelta;
 import fow.common.VisibilityLayer;
 
 public class MasterScreen extends AbstractScreen {
@@ -20,8 +21,8 @@ public class MasterScreen extends AbstractScreen {
 
     private static final int MENU_HEIGHT = 80;
     
-    private HashMap<Integer, VisibilityLayer> visibilities;
-    private HashMap<Integer, PositionTuple> pendingRequests;
+    private IntMap<VisibilityLayer> visibilities;
+    private IntMap<PositionTuple> pendingRequests;
     
     // The id of the player whose visibility we want to show
     private Integer selectedPlayer;
@@ -44,8 +45,8 @@ public class MasterScreen extends AbstractScreen {
         // Add the second stage to the multiplexer (first one is added in superclass)
         multiplexer.addProcessor(mapView);
 
-        visibilities = new HashMap<Integer, VisibilityLayer>();
-        pendingRequests = new HashMap<Integer, PositionTuple>();
+        visibilities = new IntMap<VisibilityLayer>();
+        pendingRequests = new IntMap<PositionTuple>();
     }
 
     @Override
@@ -82,7 +83,7 @@ public class MasterScreen extends AbstractScreen {
         stage.draw();
         
         // Only draw the map view if there is a visibility for the currently selected player
-        if (visibilities.containsKey(selectedPlayer)) {
+        if (selectedPlayer != null && visibilities.containsKey(selectedPlayer)) {
             mapView.updateVisibility(selectedPlayer.intValue(), visibilities.get(selectedPlayer));
             
             // This works properly whether pendingRequests.get(selectedPlayer) returns null or not
@@ -111,12 +112,38 @@ public class MasterScreen extends AbstractScreen {
                 final NetworkEvent event) {
             super.onReceiveNetworkEvent(serverConnection, event);
             if (event.getType().equals(Type.REQUEST_MOVE)) {
-                pendingRequests = (HashMap<Integer, PositionTuple>) event.getData();
+                pendingRequests = (IntMap<PositionTuple>) event.getData();
                 menuView.updateNumPendingRequests(pendingRequests.size());
-                menuView.setButtonsVisible(pendingRequests.containsKey(selectedPlayer));
+                menuView.setButtonsVisible(hasPendingRequest(selectedPlayer));
+            }
+            if (event.getType().equals(Type.TRACE_STATS)) {
+                menuView.showTraceSummary((TraceSummary) event.getData());
             }
             if (event.getType().equals(Type.UPDATE_VISIBILITY)) {
-                visibilities = (HashMap<Integer, VisibilityLayer>) event.getData();
+                // Apply the deltas to a copy, render() may be reading the current map
+                IntMap<VisibilityDelta> deltas = (IntMap<VisibilityDelta>) event.getData();
+                IntMap<VisibilityLayer> updated = new IntMap<VisibilityLayer>(visibilities);
+                int version = VisibilityDelta.NO_VERSION;
+                boolean applied = true;
+                for (int i = deltas.nextSlot(-1); i >= 0; i = deltas.nextSlot(i)) {
+                    VisibilityDelta delta = deltas.valueAt(i);
+                    VisibilityLayer layer = delta.applyTo(updated.get(deltas.keyAt(i)));
+                    if (layer == null) {
+                        applied = false;
+                        break;
+                    }
+                    updated.put(deltas.keyAt(i), layer);
+                    version = Math.max(version, delta.getVersion());
+                }
+
+                // Let the server know what we have now, or that we need everything again
+                serverConnection.sendEvent(new NetworkEvent(Type.ACK_VISIBILITY,
+                        applied ? version : VisibilityDelta.NO_VERSION));
+                if (!applied) {
+                    return;
+                }
+
+                visibilities = updated;
                 menuView.updateVisibilities(visibilities);
                 if (selectedPlayer == null && !visibilities.isEmpty()) {
                     menuView.selectFirstPlayer();
@@ -135,8 +162,20 @@ public class MasterScreen extends AbstractScreen {
 	    }
 	}
 
+	/**
+	 * Ask the server how long moves spend in each stage on their way to the players. The answer
+	 * is shown in the menu when it comes.
+	 */
+	public void requestTraceSummary() {
+	    game.serverConnection.sendEvent(new NetworkEvent(Type.TRACE_STATS, null));
+	}
+
 	public void setSelectedPlayer(Integer id) {
 	    selectedPlayer = id;
-	    menuView.setButtonsVisible(pendingRequests.containsKey(id));
+	    menuView.setButtonsVisible(hasPendingRequest(id));
+	}
+
+	private boolean hasPendingRequest(Integer id) {
+	    return id != null && pendingRequests.containsKey(id);
 	}
 }
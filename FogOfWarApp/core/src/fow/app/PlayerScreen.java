@@ -8,7 +8,9 @@ import fow.app.network.ServerConnection;
 import fow.common.MoveRequest;
 import fow.common.NetworkEvent;
 import fow.common.NetworkEvent.Type;
-import fow.common.VisibilityLayer;
+import fow.common.TraceContext;
+import fow.common.TraceContext.Hop;
+import fow.common.VisibilityDelta;
 
 public class PlayerScreen extends AbstractScreen {
 
@@ -87,11 +89,14 @@ public class PlayerScreen extends AbstractScreen {
 
     /**
      * Send a request to the server for this player to move. The desired location is pulled from the
-     * map view (which is specified by user input).
+     * map view (which is specified by user input). The request is traced until the update that
+     * carries it out has been applied.
      */
     public void sendMoveRequest() {
         MoveRequest move = new MoveRequest(game.serverConnection.getAccountId(), mapView.getCurrentPlayerPosition());
-        game.serverConnection.sendEvent(new NetworkEvent(Type.REQUEST_MOVE, move));
+        NetworkEvent request = new NetworkEvent(Type.REQUEST_MOVE, move);
+        request.setTrace(new TraceContext());
+        game.serverConnection.sendEvent(request);
     }
 
     private class NetworkEventListener extends HandshakeListener {
@@ -99,10 +104,25 @@ public class PlayerScreen extends AbstractScreen {
         public void onReceiveNetworkEvent(final ServerConnection serverConnection,
                 final NetworkEvent event) {
             super.onReceiveNetworkEvent(serverConnection, event);
-            // Client should only ever receive this type of event
+            // Client should only ever receive these types of event
             if (event.getType().equals(Type.UPDATE_VISIBILITY)) {
-                mapView.updateVisibility(serverConnection.getAccountId(),
-                        (VisibilityLayer) event.getData());
+                VisibilityDelta delta = (VisibilityDelta) event.getData();
+                // Let the server know what we have now, or that we need the whole layer
+                int version =
+                        mapView.updateVisibility(serverConnection.getAccountId(), delta) ? delta
+                                .getVersion() : VisibilityDelta.NO_VERSION;
+                NetworkEvent ack = new NetworkEvent(Type.ACK_VISIBILITY, version);
+                // An update carrying out our move goes back with when we applied it
+                TraceContext trace = event.getTrace();
+                if (trace != null) {
+                    trace.stamp(Hop.CLIENT_APPLIED);
+                    ack.setTrace(trace);
+                }
+                serverConnection.sendEvent(ack);
+            } else if (event.getType().equals(Type.REQUEST_MOVE)) {
+                // Our move was denied, so we're still where the server says
+                MoveRequest denied = (MoveRequest) event.getData();
+                mapView.resetCurrentPlayerPosition(denied.getMoveLocation());
             }
         }
     }
@@ -1,19 +1,25 @@
 package fow.app.network;
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 import com.badlogic.gdx.Gdx;
 import com.badlogic.gdx.Net.Protocol;
+import com.badlogic.gdx.net.NetJavaSocketImpl;
 import com.badlogic.gdx.net.Socket;
 import com.badlogic.gdx.utils.GdxRuntimeException;
 
 import fow.common.NetworkEvent;
 import fow.common.NetworkEvent.Type;
+import fow.common.NetworkEventCodec;
+import fow.common.TraceContext;
+import fow.common.TraceContext.Hop;
+import fow.common.WireWriter;
 
 /**
  * Class to manage a client-side connection to the server. Original code by Jeran and Ben
@@ -32,8 +38,8 @@ public class ServerConnection {
 
     private Socket socket;
 
-    private ObjectInputStream in;
-    private ObjectOutputStream out;
+    private DataInputStream in;
+    private OutputStream out;
 
     private int accountId;
 
@@ -118,13 +124,12 @@ public class ServerConnection {
      */
     private boolean openSocket() {
         try {
-            Socket socket = Gdx.net.newClientSocket(Protocol.TCP, ip, port, null);
-            out = new ObjectOutputStream(socket.getOutputStream());
-            out.flush();
-            in = new ObjectInputStream(socket.getInputStream());
-        } catch (final IOException e) {
-            e.printStackTrace();
-            return false;
+            // Without a libGDX backend, as in a command-line tool, the socket is plain java.net
+            socket = Gdx.net != null
+                    ? Gdx.net.newClientSocket(Protocol.TCP, ip, port, null)
+                    : new NetJavaSocketImpl(Protocol.TCP, ip, port, null);
+            out = socket.getOutputStream();
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
         } catch (final GdxRuntimeException e) {
             e.printStackTrace();
             return false;
@@ -142,12 +147,9 @@ public class ServerConnection {
             public void run() {
                 while (alive) {
                     try {
-                        final NetworkEvent event = (NetworkEvent) in.readObject();
+                        final NetworkEvent event = NetworkEventCodec.readEvent(in);
                         inEventQueue.add(event);
                         if (debug) System.out.println("client enqueued event: " + event);
-                    } catch (ClassNotFoundException e) {
-                        e.printStackTrace();
-                        connectionFailed();
                     } catch (IOException e) {
                         e.printStackTrace();
                         connectionFailed();
@@ -174,13 +176,16 @@ public class ServerConnection {
         new Thread() {
             @Override
             public void run() {
+                final WireWriter writer = new WireWriter();
                 while (alive) {
                     try {
                         final NetworkEvent event = outEventQueue.take();
-                        // Reset or else new versions of the same object get read from cache and are
-                        // out of date
-                        out.reset();
-                        out.writeObject(event);
+                        if (event.getTrace() != null) {
+                            event.getTrace().stamp(Hop.SOCKET_WRITE);
+                        }
+                        writer.reset();
+                        NetworkEventCodec.encode(event, writer);
+                        writer.writeTo(out);
                         out.flush();
                         if (debug) System.out.println("client sent event: " + event);
                     } catch (final IOException e) {
@@ -289,12 +294,17 @@ public class ServerConnection {
     }
 
     /**
-     * Put an event to send on the outQueue.
+     * Put an event to send on the outQueue. A traced event is stamped when it's queued and again
+     * when it's written.
      * 
      * @param event The event to send
      */
     public void sendEvent(final NetworkEvent event) {
         event.setAccountId(accountId);
+        final TraceContext trace = event.getTrace();
+        if (trace != null) {
+            trace.stamp(Hop.CLIENT_ENQUEUE);
+        }
         outEventQueue.add(event);
     }
 
@@ -0,0 +1,155 @@
+package fow.app.loadtest;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import fow.app.network.HandshakeListener;
+import fow.app.network.HandshakeListener.OnHandshakeResultListener;
+import fow.app.network.ServerConnection;
+import fow.common.NetworkEvent;
+import fow.common.NetworkEvent.Type;
+import fow.common.TraceContext.Hop;
+import fow.common.VisibilityDelta;
+
+/**
+ * A simulated client. It joins through the apps' own ServerConnection and HandshakeListener and
+ * times how long it takes to be confirmed and to get its first visibility update. Subclasses
+ * handle everything after the handshake.
+ */
+public abstract class Bot implements OnHandshakeResultListener {
+
+    protected final ServerConnection connection;
+
+    /* Does the handshake and answers pings, then hands each event on to the bot */
+    private final HandshakeListener handshake = new HandshakeListener(this) {
+        @Override
+        public void onReceiveNetworkEvent(final ServerConnection connection,
+                final NetworkEvent event) {
+            super.onReceiveNetworkEvent(connection, event);
+            handle(event);
+        }
+    };
+
+    private final CountDownLatch confirmed = new CountDownLatch(1);
+    private final CountDownLatch joined = new CountDownLatch(1);
+    private volatile boolean rejected;
+
+    private long connectedAt;
+    private volatile long confirmedAt;
+    private volatile long firstUpdateAt;
+
+    private volatile long updates;
+
+    public Bot(final String host, final int port, final int accountId) {
+        connection = new ServerConnection(host, port, accountId);
+    }
+
+    /**
+     * Open the connection and start the handshake.
+     *
+     * @return false if the socket couldn't be opened
+     */
+    public boolean connect() {
+        connectedAt = System.nanoTime();
+        return connection.connect(handshake);
+    }
+
+    private void handle(final NetworkEvent event) {
+        if (event.getType().equals(Type.UPDATE_VISIBILITY)) {
+            updates++;
+            if (firstUpdateAt == 0) {
+                firstUpdateAt = System.nanoTime();
+                joined.countDown();
+            }
+            final int version = onUpdate(event.getData());
+            // Bots don't apply updates, so they never need whole layers again
+            if (version != VisibilityDelta.NO_VERSION) {
+                final NetworkEvent ack = new NetworkEvent(Type.ACK_VISIBILITY, version);
+                // Like the PC app, send a traced move back with when it was seen
+                if (event.getTrace() != null) {
+                    event.getTrace().stamp(Hop.CLIENT_APPLIED);
+                    ack.setTrace(event.getTrace());
+                }
+                connection.sendEvent(ack);
+            }
+        } else if (event.getType().equals(Type.REQUEST_MOVE)) {
+            onRequests(event.getData());
+        } else if (event.getType().equals(Type.TRACE_STATS)) {
+            onTraceStats(event.getData());
+        }
+    }
+
+    @Override
+    public void onHandshakeResult(final ServerConnection connection, final boolean success) {
+        if (success) {
+            confirmedAt = System.nanoTime();
+        } else {
+            rejected = true;
+            joined.countDown();
+            connection.kill();
+        }
+        confirmed.countDown();
+    }
+
+    /**
+     * @param data what came with an UPDATE_VISIBILITY
+     * @return the version to acknowledge, or NO_VERSION if there is nothing to acknowledge
+     */
+    protected abstract int onUpdate(Object data);
+
+    /**
+     * @param data what came with a REQUEST_MOVE
+     */
+    protected void onRequests(final Object data) {}
+
+    /**
+     * @param data what came with a TRACE_STATS
+     */
+    protected void onTraceStats(final Object data) {}
+
+    /**
+     * Wait until the bot has been confirmed or turned away.
+     *
+     * @return false if it wasn't confirmed in time or was turned away
+     */
+    public boolean awaitConfirmed(final long timeout, final TimeUnit unit)
+            throws InterruptedException {
+        return confirmed.await(timeout, unit) && !rejected;
+    }
+
+    /**
+     * Wait until the bot has joined and has its first update, or was turned away.
+     *
+     * @return false if it didn't join in time or was turned away
+     */
+    public boolean awaitJoined(final long timeout, final TimeUnit unit)
+            throws InterruptedException {
+        return joined.await(timeout, unit) && !rejected;
+    }
+
+    /**
+     * @return nanoseconds from connecting to being confirmed, or -1 if it hasn't been
+     */
+    public long getConfirmNanos() {
+        return confirmedAt == 0 ? -1 : confirmedAt - connectedAt;
+    }
+
+    /**
+     * @return nanoseconds from connecting to the first visibility update, or -1 if it hasn't come
+     */
+    public long getJoinNanos() {
+        return firstUpdateAt == 0 ? -1 : firstUpdateAt - connectedAt;
+    }
+
+    public long getUpdates() {
+        return updates;
+    }
+
+    public ServerConnection getConnection() {
+        return connection;
+    }
+
+    public void kill() {
+        connection.kill();
+    }
+}
@@ -0,0 +1,81 @@
+package fow.app.loadtest;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import fow.common.IntMap;
+import fow.common.MoveRequest;
+import fow.common.NetworkEvent;
+import fow.common.NetworkEvent.Type;
+import fow.common.PositionTuple;
+import fow.common.TraceSummary;
+import fow.common.VisibilityDelta;
+
+/**
+ * A simulated DM that approves every request as soon as it hears of it.
+ */
+public class DmBot extends Bot {
+
+    /*
+     * The last request approved for each player. The DM is sent the pending requests again before
+     * the server has handled an approval, and those aren't approved twice.
+     */
+    private final IntMap<PositionTuple> approved = new IntMap<PositionTuple>();
+
+    private volatile long approvals;
+
+    private final LinkedBlockingQueue<TraceSummary> summaries =
+            new LinkedBlockingQueue<TraceSummary>();
+
+    public DmBot(final String host, final int port, final int accountId) {
+        super(host, port, accountId);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    protected void onRequests(final Object data) {
+        final IntMap<PositionTuple> pending = (IntMap<PositionTuple>) data;
+        for (int i = pending.nextSlot(-1); i >= 0; i = pending.nextSlot(i)) {
+            final int id = pending.keyAt(i);
+            final PositionTuple to = pending.valueAt(i);
+            final PositionTuple last = approved.get(id);
+            if (last == null || last.x != to.x || last.y != to.y) {
+                approved.put(id, to);
+                approvals++;
+                connection.sendEvent(new NetworkEvent(Type.REQUEST_MOVE, new MoveRequest(id, to)));
+            }
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    protected int onUpdate(final Object data) {
+        final IntMap<VisibilityDelta> deltas = (IntMap<VisibilityDelta>) data;
+        int version = VisibilityDelta.NO_VERSION;
+        for (final VisibilityDelta delta : deltas.values()) {
+            version = Math.max(version, delta.getVersion());
+        }
+        return version;
+    }
+
+    @Override
+    protected void onTraceStats(final Object data) {
+        summaries.add((TraceSummary) data);
+    }
+
+    /**
+     * Ask the server how long traced moves have spent in each stage since it started.
+     *
+     * @return the answer, or null if it didn't come in time
+     */
+    public TraceSummary fetchTraceSummary(final long timeout, final TimeUnit unit)
+            throws InterruptedException {
+        summaries.clear();
+        connection.sendEvent(new NetworkEvent(Type.TRACE_STATS, null));
+        return summaries.poll(timeout, unit);
+    }
+
+    public long getApprovals() {
+        return approvals;
+    }
+}
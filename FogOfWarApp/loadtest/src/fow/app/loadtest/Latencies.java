@@ -0,0 +1,62 @@
+package fow.app.loadtest;
+
+import java.util.Arrays;
+
+/**
+ * Latencies recorded by the bots, kept whole so the percentiles are exact. Safe to record from
+ * any thread.
+ */
+public class Latencies {
+
+    private long[] nanos = new long[1024];
+    private int size;
+
+    public synchronized void record(final long latency) {
+        if (size == nanos.length) {
+            nanos = Arrays.copyOf(nanos, size * 2);
+        }
+        nanos[size++] = latency;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Forget everything recorded so far, e.g. once the warmup is over.
+     */
+    public synchronized void clear() {
+        size = 0;
+    }
+
+    /**
+     * @return the recorded latencies in nanoseconds, shortest first
+     */
+    public synchronized long[] sorted() {
+        final long[] copy = Arrays.copyOf(nanos, size);
+        Arrays.sort(copy);
+        return copy;
+    }
+
+    /**
+     * @param sorted latencies from sorted()
+     * @param fraction between 0 and 1, 0.999 for the 99.9th percentile
+     * @return the latency at that percentile, or 0 if there are none
+     */
+    public static long percentile(final long[] sorted, final double fraction) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        final int rank = (int) Math.ceil(fraction * sorted.length);
+        return sorted[Math.max(0, Math.min(sorted.length, rank) - 1)];
+    }
+
+    /**
+     * @return p50, p99, p999 and max in milliseconds, on one line
+     */
+    public static String summary(final long[] sorted) {
+        return String.format("p50 %.2f ms, p99 %.2f ms, p999 %.2f ms, max %.2f ms",
+                percentile(sorted, 0.5) / 1e6, percentile(sorted, 0.99) / 1e6,
+                percentile(sorted, 0.999) / 1e6, percentile(sorted, 1) / 1e6);
+    }
+}
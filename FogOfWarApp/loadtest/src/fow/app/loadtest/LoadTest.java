@@ -0,0 +1,174 @@
+package fow.app.loadtest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import fow.common.TraceSummary;
+
+/**
+ * Loads a running server with simulated clients: one DM that approves every request and any
+ * number of PCs that keep asking to move. Reports how long joining took, the latency from a PC
+ * asking to move to it seeing itself there, and the rate the server kept up.
+ *
+ * The DM joins first, so the server must not have a DM already, unless it is the tool's own DM
+ * account from an earlier run. The server lets in 50 clients unless started with
+ * -Dfow.maxPlayers.
+ *
+ * Usage: LoadTest [--host localhost] [--port 54321] [--bots 10] [--rate 1] [--seconds 30]
+ * [--warmup 5] [--account 100000]
+ *
+ * --rate is moves per second per PC, --account the DM's account ID. The PCs take the IDs after
+ * it.
+ */
+public class LoadTest {
+
+    private static final long JOIN_TIMEOUT = 30;
+
+    private String host = "localhost";
+    private int port = 54321;
+    private int bots = 10;
+    private double rate = 1;
+    private int seconds = 30;
+    private int warmup = 5;
+    private int account = 100000;
+
+    private LoadTest() {}
+
+    public static void main(String[] args) throws InterruptedException {
+        final LoadTest test = new LoadTest();
+        try {
+            for (int i = 0; i < args.length; i += 2) {
+                final String value = i + 1 < args.length ? args[i + 1] : "";
+                if (args[i].equals("--host")) {
+                    test.host = value;
+                } else if (args[i].equals("--port")) {
+                    test.port = Integer.parseInt(value);
+                } else if (args[i].equals("--bots")) {
+                    test.bots = Integer.parseInt(value);
+                } else if (args[i].equals("--rate")) {
+                    test.rate = Double.parseDouble(value);
+                } else if (args[i].equals("--seconds")) {
+                    test.seconds = Integer.parseInt(value);
+                } else if (args[i].equals("--warmup")) {
+                    test.warmup = Integer.parseInt(value);
+                } else if (args[i].equals("--account")) {
+                    test.account = Integer.parseInt(value);
+                } else {
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+            if (test.bots < 0 || test.rate <= 0 || test.seconds <= 0 || test.warmup < 0) {
+                throw new IllegalArgumentException("Counts and times can't be negative");
+            }
+        } catch (final IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: LoadTest [--host localhost] [--port 54321] [--bots 10] "
+                    + "[--rate 1] [--seconds 30] [--warmup 5] [--account 100000]");
+            System.exit(2);
+        }
+        System.exit(test.run() ? 0 : 1);
+    }
+
+    /**
+     * @return false if the DM couldn't join
+     */
+    private boolean run() throws InterruptedException {
+        final DmBot dm = new DmBot(host, port, account);
+        if (!dm.connect() || !dm.awaitConfirmed(JOIN_TIMEOUT, TimeUnit.SECONDS)) {
+            System.err.println("DM couldn't join " + host + ":" + port);
+            return false;
+        }
+        if (!dm.getConnection().isDm()) {
+            System.err.println("Account " + account + " joined as a PC, the server has a DM");
+            dm.kill();
+            return false;
+        }
+
+        // Everyone joins at once
+        final Latencies latencies = new Latencies();
+        final List<PlayerBot> players = new ArrayList<PlayerBot>(bots);
+        for (int i = 1; i <= bots; i++) {
+            final PlayerBot bot = new PlayerBot(host, port, account + i, latencies);
+            bot.connect();
+            players.add(bot);
+        }
+        final List<PlayerBot> joined = new ArrayList<PlayerBot>(bots);
+        final Latencies confirmTimes = new Latencies();
+        final Latencies joinTimes = new Latencies();
+        for (final PlayerBot bot : players) {
+            if (bot.awaitJoined(JOIN_TIMEOUT, TimeUnit.SECONDS)) {
+                joined.add(bot);
+                confirmTimes.record(bot.getConfirmNanos());
+                joinTimes.record(bot.getJoinNanos());
+            }
+        }
+        System.out.println(joined.size() + " of " + bots + " PCs joined");
+        System.out.println("  confirmed: " + Latencies.summary(confirmTimes.sorted()));
+        System.out.println("  first update: " + Latencies.summary(joinTimes.sorted()));
+
+        // Every PC moves at the rate, spread evenly over the period
+        final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        final long period = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+        for (int i = 0; i < joined.size(); i++) {
+            final PlayerBot bot = joined.get(i);
+            scheduler.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    bot.move();
+                }
+            }, period * i / Math.max(1, joined.size()), period, TimeUnit.NANOSECONDS);
+        }
+
+        Thread.sleep(TimeUnit.SECONDS.toMillis(warmup));
+        latencies.clear();
+        for (final PlayerBot bot : joined) {
+            bot.resetCounts();
+        }
+        final long approvalsBefore = dm.getApprovals();
+        final long updatesBefore = countUpdates(dm, joined);
+        final long start = System.nanoTime();
+        Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+        final double elapsed = (System.nanoTime() - start) / 1e9;
+        scheduler.shutdownNow();
+
+        long moves = 0;
+        long completed = 0;
+        long skipped = 0;
+        long lost = 0;
+        for (final PlayerBot bot : joined) {
+            moves += bot.getMoves();
+            completed += bot.getCompleted();
+            skipped += bot.getSkipped();
+            lost += bot.getLost();
+        }
+        System.out.println(String.format("%d moves asked for, %d seen through, %d skipped while "
+                + "waiting, %d lost", moves, completed, skipped, lost));
+        System.out.println("  move to update: " + Latencies.summary(latencies.sorted()));
+        System.out.println(String.format("  %.1f moves/s approved, %.1f moves/s seen, "
+                + "%.1f updates/s received", (dm.getApprovals() - approvalsBefore) / elapsed,
+                completed / elapsed, (countUpdates(dm, joined) - updatesBefore) / elapsed));
+
+        final TraceSummary stages = dm.fetchTraceSummary(JOIN_TIMEOUT, TimeUnit.SECONDS);
+        if (stages != null) {
+            System.out.println("Stages of traced moves on the server, warmup included:");
+            System.out.print(stages);
+        }
+
+        dm.kill();
+        for (final PlayerBot bot : players) {
+            bot.kill();
+        }
+        return true;
+    }
+
+    private static long countUpdates(final DmBot dm, final List<PlayerBot> players) {
+        long updates = dm.getUpdates();
+        for (final PlayerBot bot : players) {
+            updates += bot.getUpdates();
+        }
+        return updates;
+    }
+}
@@ -0,0 +1,150 @@
+package fow.app.loadtest;
+
+import java.util.Random;
+
+import fow.common.MoveRequest;
+import fow.common.NetworkEvent;
+import fow.common.NetworkEvent.Type;
+import fow.common.PositionTuple;
+import fow.common.TraceContext;
+import fow.common.VisibilityDelta;
+import fow.common.VisibilityDelta.PlayerPatch;
+
+/**
+ * A simulated PC. Each time it is told to move it asks to take a short step, and it times how long
+ * the DM's approval takes to come back to it as a visibility update with it at the new position.
+ * It asks again only once that has happened, so a server that can't keep up shows as skipped
+ * moves as well as long latencies. Its moves are traced, as the PC app's are.
+ */
+public class PlayerBot extends Bot {
+
+    /** Longest single step the bot takes */
+    private static final int STEP = 40;
+
+    /** How long a move can be outstanding before it is taken as lost */
+    private static final long MOVE_TIMEOUT = 10000000000L;
+
+    private final int accountId;
+    private final Latencies latencies;
+    private final Random random;
+
+    /* Where the bot is and the size of the level, once it has had its first update */
+    private int x = -1;
+    private int y = -1;
+    private int levelWidth;
+    private int levelHeight;
+
+    /* The move the bot is waiting on, and when it asked for it. 0 if there is none. */
+    private long movedAt;
+    private int toX;
+    private int toY;
+    /* Whether the move was asked for before the counts were reset, and isn't to be counted */
+    private boolean uncounted;
+
+    private long moves;
+    private long completed;
+    private long skipped;
+    private long lost;
+
+    public PlayerBot(final String host, final int port, final int accountId,
+            final Latencies latencies) {
+        super(host, port, accountId);
+        this.accountId = accountId;
+        this.latencies = latencies;
+        this.random = new Random(accountId);
+    }
+
+    /**
+     * Ask to move, unless the last move hasn't been seen yet.
+     */
+    public synchronized void move() {
+        if (x < 0) {
+            return;
+        }
+        if (movedAt != 0) {
+            if (System.nanoTime() - movedAt < MOVE_TIMEOUT) {
+                skipped++;
+                return;
+            }
+            lost++;
+        }
+        toX = Math.max(0, Math.min(levelWidth - 1, x + random.nextInt(2 * STEP + 1) - STEP));
+        toY = Math.max(0, Math.min(levelHeight - 1, y + random.nextInt(2 * STEP + 1) - STEP));
+        if (toX == x && toY == y) {
+            toX = x == 0 ? 1 : x - 1;
+        }
+        moves++;
+        uncounted = false;
+        movedAt = System.nanoTime();
+        final NetworkEvent request = new NetworkEvent(Type.REQUEST_MOVE, new MoveRequest(accountId,
+                new PositionTuple(toX, toY)));
+        request.setTrace(new TraceContext());
+        connection.sendEvent(request);
+    }
+
+    @Override
+    protected synchronized int onUpdate(final Object data) {
+        final VisibilityDelta delta = (VisibilityDelta) data;
+        levelWidth = delta.getLevelWidth();
+        levelHeight = delta.getLevelHeight();
+        for (final PlayerPatch patch : delta.getPlayers()) {
+            if (patch.id == accountId && patch.newest.length >= 2) {
+                x = patch.newest[patch.newest.length - 2];
+                y = patch.newest[patch.newest.length - 1];
+            }
+        }
+        if (movedAt != 0 && x == toX && y == toY) {
+            if (!uncounted) {
+                latencies.record(System.nanoTime() - movedAt);
+                completed++;
+            }
+            movedAt = 0;
+        }
+        return delta.getVersion();
+    }
+
+    /**
+     * The move was denied, so the bot is free to try another rather than wait for it to time out.
+     */
+    @Override
+    protected synchronized void onRequests(final Object data) {
+        movedAt = 0;
+    }
+
+    public synchronized long getMoves() {
+        return moves;
+    }
+
+    /**
+     * @return the number of moves seen through to a visibility update
+     */
+    public synchronized long getCompleted() {
+        return completed;
+    }
+
+    /**
+     * @return the number of times the bot was told to move while still waiting on its last move
+     */
+    public synchronized long getSkipped() {
+        return skipped;
+    }
+
+    /**
+     * @return the number of moves that never came back
+     */
+    public synchronized long getLost() {
+        return lost;
+    }
+
+    /**
+     * Start counting afresh, e.g. once the warmup is over. A move still outstanding isn't counted
+     * when it comes back.
+     */
+    public synchronized void resetCounts() {
+        uncounted = movedAt != 0;
+        moves = 0;
+        completed = 0;
+        skipped = 0;
+        lost = 0;
+    }
+}
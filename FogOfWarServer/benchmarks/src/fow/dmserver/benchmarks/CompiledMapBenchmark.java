@@ -0,0 +1,76 @@
+package fow.dmserver.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fow.common.SceneNode;
+import fow.common.WallSegment;
+import fow.dmserver.CompiledMap;
+import fow.dmserver.MapCompiler;
+
+/**
+ * Time to get a game's scene graph, spatial index included, ready for a level: mapping a compiled
+ * map for the first time, taking one already mapped by another game, and adding the walls one at
+ * a time as a game would without a compiled map.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompiledMapBenchmark {
+
+    @Param({"10000", "100000"})
+    public int walls;
+
+    private List<WallSegment> level;
+    private File file;
+
+    @Setup
+    public void setup() throws IOException {
+        level = Levels.randomWalls(walls, 1);
+        file = File.createTempFile("level", ".fowmap");
+        MapCompiler.write(Levels.size(walls), Levels.size(walls), level, file);
+    }
+
+    @TearDown
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Benchmark
+    public SceneNode mapFirstTime() throws IOException {
+        return new CompiledMap(file).newSceneGraph();
+    }
+
+    @Benchmark
+    public SceneNode mapShared() throws IOException {
+        return CompiledMap.open(file).newSceneGraph();
+    }
+
+    @Benchmark
+    public SceneNode addWalls() {
+        SceneNode graph = new SceneNode(null);
+        for (WallSegment wall : level) {
+            graph.addChild(wall);
+        }
+        graph.getSpatialIndex();
+        return graph;
+    }
+}
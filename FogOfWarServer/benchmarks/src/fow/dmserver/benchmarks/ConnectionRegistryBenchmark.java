@@ -0,0 +1,50 @@
+package fow.dmserver.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fow.dmserver.ConnectionRegistry;
+
+/**
+ * Time to hand out a temporary ID to a new connection and free it again, with many other
+ * connections in the middle of their handshake.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConnectionRegistryBenchmark {
+
+    @Param({"10", "10000"})
+    public int connections;
+
+    private ConnectionRegistry registry;
+
+    @Setup
+    public void setup() {
+        registry = new ConnectionRegistry();
+        for (int i = 0; i < connections; i++) {
+            registry.allocateId();
+        }
+    }
+
+    @Benchmark
+    public int allocateAndFree() {
+        int id = registry.allocateId();
+        registry.removeUnconfirmed(id);
+        return id;
+    }
+}
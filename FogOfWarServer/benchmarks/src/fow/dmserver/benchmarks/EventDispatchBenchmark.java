@@ -0,0 +1,61 @@
+package fow.dmserver.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import fow.common.NetworkEvent;
+import fow.common.NetworkEvent.Type;
+import fow.dmserver.EventDispatcher;
+
+/**
+ * What dispatching an event costs on top of its handler, including timing it for the stats. The
+ * handler does nothing but consume the event.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EventDispatchBenchmark {
+
+    private EventDispatcher dispatcher;
+    private NetworkEvent[] events;
+    private int next;
+
+    @Setup
+    public void setup(final Blackhole blackhole) {
+        dispatcher = new EventDispatcher();
+        EventDispatcher.Handler handler = new EventDispatcher.Handler() {
+            @Override
+            public void handle(final NetworkEvent e) {
+                blackhole.consume(e);
+            }
+        };
+        Type[] types = {Type.NEW_CONNECTION, Type.IDENTIFY, Type.IDLE, Type.DISCONNECT,
+                Type.REQUEST_MOVE, Type.ACK_VISIBILITY, Type.PATH_HISTORY};
+        events = new NetworkEvent[types.length];
+        for (int i = 0; i < types.length; i++) {
+            dispatcher.register(types[i], handler);
+            events[i] = new NetworkEvent(types[i], i);
+        }
+    }
+
+    @Benchmark
+    public boolean dispatch() {
+        NetworkEvent e = events[next];
+        next = next + 1 == events.length ? 0 : next + 1;
+        return dispatcher.dispatch(e);
+    }
+}
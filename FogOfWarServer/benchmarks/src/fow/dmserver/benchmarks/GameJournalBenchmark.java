@@ -0,0 +1,84 @@
+package fow.dmserver.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fow.common.PositionTuple;
+import fow.dmserver.GameJournal;
+import fow.dmserver.GameState;
+
+/**
+ * Time for the DM to move a player and handle its request, the work handleRequestMove does on the
+ * game, with and without the game being journaled to a temporary directory.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GameJournalBenchmark {
+
+    private static final int PLAYERS = 50;
+
+    @Param({"false", "true"})
+    public boolean journaled;
+
+    private File directory;
+    private GameState state;
+    private GameJournal journal;
+    private int next;
+
+    @Setup(Level.Iteration)
+    public void setup() throws IOException {
+        state = new GameState(Levels.size(1000), Levels.size(1000));
+        if (journaled) {
+            directory = File.createTempFile("journal", "");
+            directory.delete();
+            journal = new GameJournal(directory);
+            journal.open(state);
+        }
+        for (int id = 0; id < PLAYERS; id++) {
+            state.addNewPlayer(id);
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        if (journal != null) {
+            journal.close();
+            for (File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+
+    @Benchmark
+    public int move() {
+        int id = next++ % PLAYERS;
+        PositionTuple to = new PositionTuple(next & 1023, id * 10);
+        state.addPendingRequest(id, to);
+        state.movePlayer(id, to);
+        state.removePendingRequest(id);
+        if (journaled && journal.isSnapshotDue()) {
+            journal.snapshot(state);
+        }
+        return next;
+    }
+}
@@ -0,0 +1,102 @@
+package fow.dmserver.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fow.dmserver.GameState;
+
+/**
+ * Games of a few sizes, timed on what the server does most: a whole DM-approved move, recomputing
+ * every visibility, and a player joining. Scores are ops/s; MoveAllocationReport prints the bytes
+ * each move allocates in the same games.
+ *
+ * A join can't be repeated in the same game, so each one is timed once in a game built for the
+ * iteration.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GameStateBenchmark {
+
+    @Param({"4", "50"})
+    public int players;
+
+    @Param({"1000", "10000"})
+    public int walls;
+
+    @Param({"10", "1000"})
+    public int pathLength;
+
+    private MoveCycle cycle;
+    private GameState state;
+
+    @Setup
+    public void setup() {
+        cycle = new MoveCycle(players, walls, pathLength);
+        state = cycle.getState();
+    }
+
+    @TearDown
+    public void tearDown() {
+        state.shutdown();
+    }
+
+    @Benchmark
+    public int moveCycle() throws IOException {
+        return cycle.run();
+    }
+
+    @Benchmark
+    public int recomputeAll() {
+        state.recomputeAllVisibilities();
+        return state.getVersion();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Warmup(iterations = 10)
+    @Measurement(iterations = 20)
+    public int addNewPlayer(Join join) {
+        join.state.addNewPlayer(join.players);
+        return join.state.recomputeDirtyVisibilities();
+    }
+
+    /**
+     * A game for a player to join, built again before each time it is joined
+     */
+    @State(Scope.Thread)
+    public static class Join {
+
+        private GameState state;
+        private int players;
+
+        @Setup(Level.Iteration)
+        public void setup(GameStateBenchmark benchmark) {
+            players = benchmark.players;
+            state = new MoveCycle(players, benchmark.walls, benchmark.pathLength).getState();
+        }
+
+        @TearDown(Level.Iteration)
+        public void tearDown() {
+            state.shutdown();
+        }
+    }
+}
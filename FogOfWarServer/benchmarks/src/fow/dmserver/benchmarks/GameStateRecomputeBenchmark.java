@@ -0,0 +1,67 @@
+package fow.dmserver.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fow.common.WallSegment;
+import fow.dmserver.GameState;
+
+/**
+ * Time to recompute every player's visibility at once, as after a map change, on one thread and on
+ * a pool. Players see the whole level so each polygon takes a full sweep.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GameStateRecomputeBenchmark {
+
+    private static final int PLAYERS = 50;
+
+    @Param({"1000", "10000"})
+    public int walls;
+
+    @Param({"1", "8"})
+    public int threads;
+
+    private GameState state;
+
+    @Setup
+    public void setup() {
+        int size = Levels.size(walls);
+        state = new GameState(size, size);
+        state.setViewRadius(0);
+        state.setRecomputeThreads(threads);
+        for (WallSegment wall : Levels.randomWalls(walls, 1)) {
+            state.addWall(wall);
+        }
+        for (int id = 0; id < PLAYERS; id++) {
+            state.addNewPlayer(id);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        state.shutdown();
+    }
+
+    @Benchmark
+    public int recomputeAll() {
+        state.recomputeAllVisibilities();
+        return state.getVersion();
+    }
+}
@@ -0,0 +1,89 @@
+package fow.dmserver.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fow.common.IntMap;
+import fow.common.NetworkEvent;
+import fow.common.NetworkEvent.Type;
+import fow.common.NetworkEventCodec;
+import fow.common.VisibilityDelta;
+import fow.common.VisibilityLayer;
+import fow.common.WallSegment;
+import fow.dmserver.GameState;
+import fow.dmserver.VisibilitySession;
+import fow.dmserver.VisibilitySession.JoinSnapshot;
+import fow.dmserver.VisibilitySession.SharedDeltas;
+
+/**
+ * Work done for a DM joining a game that hasn't changed since the last client joined: diffing and
+ * encoding every layer for its new session, against taking the frame from the join snapshot.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JoinSnapshotBenchmark {
+
+    private static final int PLAYERS = 50;
+
+    @Param({"1000", "10000"})
+    public int walls;
+
+    private GameState state;
+    private IntMap<VisibilityLayer> layers;
+    private JoinSnapshot snapshot;
+
+    @Setup
+    public void setup() {
+        int size = Levels.size(walls);
+        state = new GameState(size, size);
+        state.setViewRadius(0);
+        for (WallSegment wall : Levels.randomWalls(walls, 1)) {
+            state.addWall(wall);
+        }
+        for (int id = 0; id < PLAYERS; id++) {
+            state.addNewPlayer(id);
+        }
+        state.recomputeAllVisibilities();
+        layers = state.getPlayerVisibilities();
+        snapshot = new JoinSnapshot(state.getVersion());
+    }
+
+    @TearDown
+    public void tearDown() {
+        state.shutdown();
+    }
+
+    @Benchmark
+    public int diffAndEncode() throws IOException {
+        VisibilitySession session = new VisibilitySession();
+        IntMap<VisibilityDelta> deltas =
+                session.update(layers, new SharedDeltas(state.getVersion()));
+        return NetworkEventCodec.encodeShared(new NetworkEvent(Type.UPDATE_VISIBILITY, deltas))
+                .remaining();
+    }
+
+    @Benchmark
+    public int joinSnapshot() throws IOException {
+        VisibilitySession session = new VisibilitySession();
+        int length = snapshot.getDmFrame(layers).remaining();
+        session.joined(layers, snapshot);
+        return length;
+    }
+}
@@ -0,0 +1,59 @@
+package fow.dmserver.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import fow.common.WallSegment;
+
+/**
+ * Random levels for the server benchmarks. Levels are seeded so every run measures the same one.
+ */
+public class Levels {
+
+    /** Side of the square grid cells walls are placed in. Walls stay inside their cell. */
+    public static final int CELL = 100;
+
+    private Levels() {}
+
+    /**
+     * @param walls the number of walls
+     * @return the width and height of a square level with twice as many cells as walls
+     */
+    public static int size(int walls) {
+        return (int) Math.ceil(Math.sqrt(walls * 2.0)) * CELL;
+    }
+
+    /**
+     * Scatter short walls over a level of size(walls), at most one group per grid cell so they
+     * never cross. About half of them get a second wall attached to one end, making a corner.
+     *
+     * @param walls the number of walls
+     * @param seed the random seed
+     * @return the walls, with IDs from 0
+     */
+    public static List<WallSegment> randomWalls(int walls, long seed) {
+        Random random = new Random(seed);
+        int cells = size(walls) / CELL;
+        List<Integer> order = new ArrayList<Integer>(cells * cells);
+        for (int i = 0; i < cells * cells; i++) {
+            order.add(i);
+        }
+        Collections.shuffle(order, random);
+
+        List<WallSegment> result = new ArrayList<WallSegment>(walls);
+        for (int i = 0; result.size() < walls; i++) {
+            int cell = order.get(i);
+            int x = cell % cells * CELL + 10 + random.nextInt(30);
+            int y = cell / cells * CELL + 10 + random.nextInt(30);
+            int x2 = x + 10 + random.nextInt(40);
+            int y2 = y + random.nextInt(30);
+            result.add(new WallSegment(result.size(), x, y, x2, y2));
+            if (random.nextBoolean() && result.size() < walls) {
+                result.add(new WallSegment(result.size(), x2, y2, x2 - random.nextInt(20), y2 + 25));
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,62 @@
+package fow.dmserver.benchmarks;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Prints the bytes one DM-approved move allocates, from the request to every client's encoded
+ * update, in the games GameStateBenchmark times. JMH's gc profiler only counts collections, so the
+ * allocation is read from the thread's allocation counter.
+ */
+public class MoveAllocationReport {
+
+    private static final int[] PLAYERS = {4, 50};
+    private static final int[] WALLS = {1000, 10000};
+    private static final int[] PATH_LENGTHS = {10, 1000};
+
+    /* Allocation is measured over the last of a few rounds, so the JIT has compiled the cycle */
+    private static final int ROUNDS = 5;
+    private static final int MOVES = 200;
+
+    public static void main(String[] args) throws IOException {
+        System.out.println(String.format("%8s %8s %6s %14s %12s", "players", "walls", "path",
+                "bytes/move", "wire/move"));
+        for (int players : PLAYERS) {
+            for (int walls : WALLS) {
+                for (int pathLength : PATH_LENGTHS) {
+                    report(players, walls, pathLength);
+                }
+            }
+        }
+    }
+
+    private static void report(int players, int walls, int pathLength) throws IOException {
+        MoveCycle cycle = new MoveCycle(players, walls, pathLength);
+        long allocated = 0;
+        long wire = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            wire = 0;
+            long before = allocatedBytes();
+            for (int i = 0; i < MOVES; i++) {
+                wire += cycle.run();
+            }
+            allocated = allocatedBytes() - before;
+        }
+        cycle.getState().shutdown();
+        System.out.println(String.format("%8d %8d %6d %14d %12d", players, walls, pathLength,
+                allocated / MOVES, wire / MOVES));
+    }
+
+    /*
+     * HotSpot counts the bytes each thread allocates. Other JVMs report -1 for every game.
+     */
+    private static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            return -MOVES;
+        }
+        return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread
+                .currentThread().getId());
+    }
+}
@@ -0,0 +1,143 @@
+package fow.dmserver.benchmarks;
+
+import java.io.IOException;
+import java.util.Random;
+
+import fow.common.IntMap;
+import fow.common.NetworkEvent;
+import fow.common.NetworkEvent.Type;
+import fow.common.NetworkEventCodec;
+import fow.common.PositionTuple;
+import fow.common.VisibilityDelta;
+import fow.common.WallSegment;
+import fow.common.WireWriter;
+import fow.dmserver.GameState;
+import fow.dmserver.VisibilitySession;
+import fow.dmserver.VisibilitySession.SharedDeltas;
+
+/**
+ * A synthetic game and the work the server does for one DM-approved move in it: the player's
+ * request checked and passed on to the DM, the DM's approval carried out as handleRequestMove does,
+ * then the visibilities recomputed and every client's update diffed, encoded and acknowledged as a
+ * tick does. Nothing goes through a socket.
+ */
+public class MoveCycle {
+
+    /** Longest single step a player takes */
+    private static final int STEP = 40;
+
+    private final GameState state;
+    private final int players;
+    private final int dmId;
+    private final int size;
+
+    private final IntMap<VisibilitySession> sessions = new IntMap<VisibilitySession>();
+    private SharedDeltas shared = new SharedDeltas(VisibilityDelta.NO_VERSION);
+    private final WireWriter writer = new WireWriter();
+    private final Random random;
+    private int next;
+
+    /**
+     * @param players the number of players, not counting the DM
+     * @param walls the number of walls in the level
+     * @param pathLength how many positions each player's path has to begin with
+     */
+    public MoveCycle(int players, int walls, int pathLength) {
+        this.players = players;
+        this.dmId = players;
+        this.size = Levels.size(walls);
+        random = new Random(players * 31 + walls);
+
+        state = new GameState(size, size);
+        for (WallSegment wall : Levels.randomWalls(walls, 1)) {
+            state.addWall(wall);
+        }
+        state.setDmId(dmId);
+        for (int id = 0; id < players; id++) {
+            state.addNewPlayer(id);
+            state.movePlayer(id, new PositionTuple(random.nextInt(size), random.nextInt(size)));
+            for (int i = 2; i < pathLength; i++) {
+                state.movePlayer(id, step(id));
+            }
+            sessions.put(id, new VisibilitySession());
+        }
+        sessions.put(dmId, new VisibilitySession());
+        state.recomputeDirtyVisibilities();
+        try {
+            sendUpdates();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public GameState getState() {
+        return state;
+    }
+
+    /**
+     * Move the next player one step.
+     *
+     * @return the number of bytes encoded for every client
+     * @throws IOException if an event couldn't be encoded
+     */
+    public int run() throws IOException {
+        int id = next;
+        next = next + 1 == players ? 0 : next + 1;
+        PositionTuple to = step(id);
+        int bytes = 0;
+
+        // The player asks, and the DM is sent the pending requests
+        if (state.canMove(id, to)) {
+            state.addPendingRequest(id, to);
+            bytes += encode(Type.REQUEST_MOVE, state.getPendingRequests());
+        }
+
+        // The DM approves, even through a wall
+        state.movePlayer(id, to);
+        state.removePendingRequest(id);
+        bytes += encode(Type.REQUEST_MOVE, state.getPendingRequests());
+
+        // The next tick
+        state.recomputeDirtyVisibilities();
+        return bytes + sendUpdates();
+    }
+
+    private int sendUpdates() throws IOException {
+        int bytes = 0;
+        shared = new SharedDeltas(state.getVersion(), shared);
+        for (int i = sessions.nextSlot(-1); i >= 0; i = sessions.nextSlot(i)) {
+            int id = sessions.keyAt(i);
+            VisibilitySession session = sessions.valueAt(i);
+            if (id == dmId) {
+                IntMap<VisibilityDelta> deltas =
+                        session.update(state.getPlayerVisibilities(), shared);
+                if (!deltas.isEmpty()) {
+                    bytes += encode(Type.UPDATE_VISIBILITY, deltas);
+                }
+            } else {
+                VisibilityDelta delta = session.update(id, state.getPlayerVisibility(id), shared);
+                if (delta != null) {
+                    bytes += encode(Type.UPDATE_VISIBILITY, delta);
+                }
+            }
+            session.acknowledge(state.getVersion());
+        }
+        return bytes;
+    }
+
+    private int encode(Type type, Object data) throws IOException {
+        writer.reset();
+        NetworkEventCodec.encode(new NetworkEvent(type, data), writer);
+        return writer.size();
+    }
+
+    /**
+     * @return a position up to STEP away from the player's, inside the level
+     */
+    private PositionTuple step(int id) {
+        PositionTuple at = state.getPlayer(id).getCurrentPosition();
+        int x = Math.max(0, Math.min(size - 1, at.x + random.nextInt(2 * STEP + 1) - STEP));
+        int y = Math.max(0, Math.min(size - 1, at.y + random.nextInt(2 * STEP + 1) - STEP));
+        return new PositionTuple(x, y);
+    }
+}
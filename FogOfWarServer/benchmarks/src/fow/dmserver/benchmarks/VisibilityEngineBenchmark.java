@@ -0,0 +1,64 @@
+package fow.dmserver.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fow.dmserver.VisibilityEngine;
+import fow.dmserver.VisibilityPolygon;
+
+/**
+ * Time to compute one player's visibility polygon, for levels of increasing size, seeing the whole
+ * level or only the walls within a view radius. Viewers stand at random spots, cycling through a
+ * fixed set so every iteration does the same work.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VisibilityEngineBenchmark {
+
+    private static final int VIEWERS = 64;
+
+    @Param({"1000", "10000", "50000"})
+    public int walls;
+
+    @Param({"0", "1200"})
+    public int viewRadius;
+
+    private VisibilityEngine engine;
+    private int[] viewers;
+    private int next;
+
+    @Setup
+    public void setup() {
+        int size = Levels.size(walls);
+        engine = new VisibilityEngine(size, size, Levels.randomWalls(walls, 1),
+                viewRadius);
+        Random random = new Random(2);
+        viewers = new int[VIEWERS * 2];
+        for (int i = 0; i < viewers.length; i++) {
+            viewers[i] = random.nextInt(size);
+        }
+    }
+
+    @Benchmark
+    public VisibilityPolygon compute() {
+        int i = next;
+        next = (next + 2) % viewers.length;
+        return engine.compute(viewers[i], viewers[i + 1]);
+    }
+}
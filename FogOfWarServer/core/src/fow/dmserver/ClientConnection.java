@@ -1,29 +1,103 @@
 package fow.dmserver;
 
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.SocketTimeoutException;
-
-import com.badlogic.gdx.net.Socket;
-import com.badlogic.gdx.utils.GdxRuntimeException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import fow.common.NetworkEvent;
 import fow.common.NetworkEvent.Type;
+import fow.common.NetworkEventCodec;
+import fow.common.TraceContext;
+import fow.common.TraceContext.Hop;
 
 /**
  * ClientConnection handles the socket connection with a remote client by relaying messages to the
  * associated server and allowing the server to send messages as needed.
+ *
+ * A ClientConnection has no thread of its own. The server's SelectorLoop calls onReadable() and
+ * onWritable() when the socket is ready, and sendEvent() only queues an encoded frame for the loop
+ * to write.
+ *
+ * The outbound queue is bounded so a client that stops reading can't make the server hold on to
+ * frames forever. What happens when it fills up is decided by the server's OverflowPolicy.
  */
 public class ClientConnection {
 
-    private Server server;
-    private Socket socket;
-    private ObjectInputStream in;
-    private ObjectOutputStream out;
+    /**
+     * What to do with a frame that doesn't fit in a full outbound queue.
+     */
+    public enum OverflowPolicy {
+        /**
+         * Drop queued frames the new one makes obsolete: visibility updates, the DM's pending
+         * requests and pings. Only frames that haven't started being written are dropped. If
+         * nothing can be dropped the client is disconnected.
+         */
+        DROP_SUPERSEDED,
+
+        /** Disconnect the client */
+        DISCONNECT
+    }
+
+    /** Initial size of the read buffer, it grows if a bigger frame comes in */
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    /** The types of event a client may send, by ordinal. Anything else is refused undecoded. */
+    private static final boolean[] ACCEPTED = new boolean[Type.values().length];
+
+    static {
+        for (final Type type : new Type[] {Type.PING, Type.IDENTIFY, Type.REQUEST_MOVE,
+                Type.ACK_VISIBILITY, Type.PATH_HISTORY, Type.TRACE_STATS}) {
+            ACCEPTED[type.ordinal()] = true;
+        }
+    }
+
+    private final Server server;
+    private final ServerMetrics metrics;
+    private final SelectorLoop loop;
+    private final SocketChannel channel;
+
+    /** Only touched by the loop thread */
+    private SelectionKey key;
+    private ByteBuffer readBuffer;
+    private long lastActivity;
+
+    /** Encoded frames waiting to be written by the loop */
+    private final ConcurrentLinkedQueue<Frame> outbound = new ConcurrentLinkedQueue<Frame>();
+
+    /** The number of frames in outbound, which is expensive to count */
+    private final AtomicInteger queueDepth = new AtomicInteger();
+    private final int maxQueueDepth;
+    private final OverflowPolicy overflowPolicy;
+
+    /* Counters for how well this client keeps up */
+    private final AtomicInteger peakQueueDepth = new AtomicInteger();
+    private final AtomicLong droppedFrames = new AtomicLong();
+    private volatile long stalledNanos;
+
+    /** When the socket last stopped taking bytes, or 0 if it isn't stalled. Set by the loop. */
+    private volatile long stalledSince;
+
+    /* Traffic of this client, only added to by the loop */
+    private volatile long bytesReceived;
+    private volatile long bytesSent;
+    private volatile long framesReceived;
+    private volatile long framesSent;
+
+    /** Whether this connection is already waiting in the loop's write queue */
+    private final AtomicBoolean writeRequested = new AtomicBoolean();
 
-    private boolean alive;
-    private boolean idle;
+    private volatile boolean alive;
+    private volatile boolean closing;
+    private volatile boolean idle;
     private boolean confirmed;
     private int id;
 
@@ -32,89 +106,187 @@ public class ClientConnection {
     private boolean debug;
 
     /**
-     * Initializes the in and out streams from the given socket. Starts a thread to listen to
-     * communication from the client.
-     * 
+     * Registers the channel with the server's SelectorLoop, which will start reading from it.
+     *
      * @param server The server associated with this ClientConnection.
-     * @param socket The socket this ClientConnection reads from and writes to.
+     * @param channel The non-blocking channel this ClientConnection reads from and writes to.
      */
-    public ClientConnection(final Server server, final Socket socket, final int id) {
+    public ClientConnection(final Server server, final SocketChannel channel, final int id) {
         this.id = id;
         this.server = server;
-        this.socket = socket;
-        try {
-            out = new ObjectOutputStream(socket.getOutputStream());
-            out.flush();
-            in = new ObjectInputStream(socket.getInputStream());
-        } catch (IOException e) {
-            e.printStackTrace();
-            alive = false;
-            return;
-        }
+        this.metrics = server.getMetrics();
+        this.loop = server.getSelectorLoop();
+        this.channel = channel;
+        maxQueueDepth = server.getOutboundQueueLimit();
+        overflowPolicy = server.getOverflowPolicy();
+        readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        lastActivity = System.currentTimeMillis();
         alive = true;
         isDm = false;
-        startConnectionListener();
+        loop.register(this);
     }
 
     /**
      * See other constructor.
-     * 
+     *
      * @param debug If we should print information to the console about sent events.
      * @author Jeran
      */
-    public ClientConnection(final Server server, final Socket socket, final int id,
+    public ClientConnection(final Server server, final SocketChannel channel, final int id,
             final boolean debug) {
-        this(server, socket, id);
+        this(server, channel, id);
         this.debug = debug;
     }
 
     /**
-     * Creates and runs the thread used to listen to the socket and add events to the server's event
-     * queue. When kill() is called, this thread will quit it's loop and close the socket. Assumes
-     * sendEvent() and kill() will only be called from a single thread, and sendEvent() will not be
-     * called after kill().
-     * 
-     * @author Jeran
+     * Registers the channel with the loop's selector. Called on the loop thread.
      */
-    public void startConnectionListener() {
-        new Thread() {
-            @Override
-            public void run() {
-                while (alive) {
-                    try {
-                        NetworkEvent event = (NetworkEvent) in.readObject();
-                        server.enqueueEvent(event);
-                        idle = false;
-                        if (debug) System.out.println("server enqueued event: " + event);
-                    } catch (ClassNotFoundException e) {
-                        // TODO
-                        e.printStackTrace();
-                    } catch (final SocketTimeoutException e) {
-                        handleIdleTimeOut();
-                    } catch (final IOException e) {
-                        kill();
-                    }
+    void register(final Selector selector) throws ClosedChannelException {
+        int ops = SelectionKey.OP_READ;
+        if (!outbound.isEmpty()) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        key = channel.register(selector, ops, this);
+    }
+
+    /**
+     * Reads whatever is available and enqueues every complete frame on the server's event queue.
+     * Called on the loop thread.
+     */
+    void onReadable() {
+        try {
+            final int read = channel.read(readBuffer);
+            if (read < 0) {
+                kill();
+                close();
+                return;
+            }
+            bytesReceived += read;
+            metrics.bytesReceived.add(read);
+            lastActivity = System.currentTimeMillis();
+            idle = false;
+            readFrames();
+        } catch (final IOException e) {
+            kill();
+            close();
+        }
+    }
+
+    /**
+     * Decodes each complete frame in the read buffer, leaving a partial frame at the front of the
+     * buffer for the next read. Grows the buffer if the partial frame won't fit.
+     *
+     * @throws StreamCorruptedException if a frame is malformed or of a type clients don't send
+     */
+    private void readFrames() throws IOException {
+        readBuffer.flip();
+        int needed = 0;
+        while (readBuffer.remaining() >= NetworkEventCodec.LENGTH_PREFIX) {
+            int start = readBuffer.position();
+            int end = start + NetworkEventCodec.LENGTH_PREFIX
+                    + NetworkEventCodec.checkFrameLength(readBuffer.getInt(start));
+            if (end > readBuffer.limit()) {
+                needed = end - start;
+                break;
+            }
+            final Type type =
+                    NetworkEventCodec.peekType(readBuffer, start + NetworkEventCodec.LENGTH_PREFIX);
+            if (!ACCEPTED[type.ordinal()]) {
+                throw new StreamCorruptedException("Clients don't send " + type);
+            }
+            int limit = readBuffer.limit();
+            readBuffer.position(start + NetworkEventCodec.LENGTH_PREFIX);
+            readBuffer.limit(end);
+            NetworkEvent event = NetworkEventCodec.decode(readBuffer);
+            readBuffer.limit(limit);
+            readBuffer.position(end);
+
+            framesReceived++;
+            metrics.framesReceived.increment();
+            server.enqueueEvent(event);
+            if (debug) System.out.println("server enqueued event: " + event);
+        }
+        readBuffer.compact();
+
+        if (needed > readBuffer.capacity()) {
+            ByteBuffer bigger = ByteBuffer.allocate(needed);
+            readBuffer.flip();
+            bigger.put(readBuffer);
+            readBuffer = bigger;
+        }
+    }
+
+    /**
+     * Writes queued frames until the queue is empty or the socket can't take any more, in which
+     * case the loop is asked to call again once it can. Called on the loop thread.
+     */
+    void onWritable() {
+        writeRequested.set(false);
+        if (key == null || !key.isValid()) {
+            // Not registered yet, register() will pick up the queued frames
+            return;
+        }
+        try {
+            Frame frame;
+            while ((frame = outbound.peek()) != null) {
+                if (!frame.claim()) {
+                    // Dropped after we looked at it, sendEvent() is taking it out of the queue
+                    outbound.remove(frame);
+                    continue;
                 }
-                try {
-                    in.close();
-                    out.close();
-                } catch (final IOException e) {
-                    e.printStackTrace();
+                final int written = channel.write(frame.buffer);
+                bytesSent += written;
+                metrics.bytesSent.add(written);
+                if (frame.buffer.hasRemaining()) {
+                    if (stalledSince == 0) {
+                        stalledSince = System.nanoTime();
+                    }
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
                 }
-                try {
-                    socket.dispose();
-                } catch (final GdxRuntimeException e) {
-                    e.printStackTrace();
+                outbound.poll();
+                queueDepth.decrementAndGet();
+                framesSent++;
+                metrics.framesSent.increment();
+                if (frame.trace != null) {
+                    frame.trace.stamp(Hop.BROADCAST_WRITTEN);
                 }
             }
-        }.start();
+            if (stalledSince != 0) {
+                stalledNanos += System.nanoTime() - stalledSince;
+                stalledSince = 0;
+            }
+            key.interestOps(SelectionKey.OP_READ);
+            if (closing) {
+                close();
+            }
+        } catch (final IOException e) {
+            kill();
+            close();
+        }
     }
 
     /**
-     * Responds to an SOTimeout from the socket by informing the server. If it's the first time the
+     * Called by the loop about once a second. Mimics the old socket timeout: after TIMEOUT
+     * milliseconds of silence the client is pinged, after another TIMEOUT it is dropped.
+     */
+    void checkIdle(final long now) {
+        if (now - lastActivity >= Server.TIMEOUT) {
+            lastActivity = now;
+            if (closing) {
+                // The client never read its DISCONNECT, stop waiting for it
+                close();
+            } else {
+                handleIdleTimeOut();
+            }
+        }
+    }
+
+    /**
+     * Responds to a timeout from the socket by informing the server. If it's the first time the
      * server will ping the client. If it's the second time, the server will forget about the
      * client.
-     * 
+     *
      * @author Jeran
      */
     public void handleIdleTimeOut() {
@@ -127,26 +299,86 @@ public class ClientConnection {
     }
 
     /**
-     * Sends an event to the client.
-     * 
+     * Sends an event to the client. The event is encoded right away and written by the loop.
+     *
      * @param event The event to send.
      * @author Jeran
      */
     public void sendEvent(final NetworkEvent event) {
+        if (debug) System.out.println("server sending event: " + event);
+        queueEvent(event);
+    }
+
+    /**
+     * Sends an already encoded frame to the client, e.g. a join snapshot shared by every client
+     * joining at the same version.
+     *
+     * @param type The type of the encoded event
+     * @param frame A frame from NetworkEventCodec.encodeShared(). Only a duplicate of it is kept, so
+     *        the same buffer can be passed to every recipient.
+     */
+    public void sendFrame(final Type type, final ByteBuffer frame) {
+        if (debug) System.out.println("server sending shared " + type + " frame");
+        queueFrame(new Frame(type, frame.duplicate(), null));
+    }
+
+    private void queueEvent(final NetworkEvent event) {
         try {
-            if (debug) System.out.println("server sending event: " + event);
-            // Reset or else new versions of the same object get read from cache and are out of date
-            out.reset();
-            out.writeObject(event);
-            out.flush();
+            queueFrame(new Frame(event.getType(), ByteBuffer.wrap(NetworkEventCodec.encode(event)),
+                    event.getTrace()));
         } catch (final IOException e) {
-            kill();
+            // Only happens for events that have no wire form
+            e.printStackTrace();
+        }
+    }
+
+    private void queueFrame(final Frame frame) {
+        if (queueDepth.get() >= maxQueueDepth && frame.type != Type.DISCONNECT) {
+            if (overflowPolicy == OverflowPolicy.DISCONNECT || !dropSuperseded(frame)) {
+                System.out.println("Outbound queue full, disconnecting client " + id);
+                droppedFrames.incrementAndGet();
+                kill();
+                return;
+            }
+        }
+
+        outbound.add(frame);
+        int depth = queueDepth.incrementAndGet();
+        if (depth > peakQueueDepth.get()) {
+            peakQueueDepth.set(depth);
+        }
+        if (writeRequested.compareAndSet(false, true)) {
+            loop.requestWrite(this);
+        }
+    }
+
+    /**
+     * Drop the queued frames a new frame makes obsolete.
+     *
+     * @return whether anything was dropped
+     */
+    private boolean dropSuperseded(final Frame frame) {
+        if (!frame.isSupersedable()) {
+            return false;
         }
+        boolean dropped = false;
+        Iterator<Frame> it = outbound.iterator();
+        while (it.hasNext()) {
+            Frame queued = it.next();
+            if (queued.type == frame.type && queued.drop()) {
+                it.remove();
+                queueDepth.decrementAndGet();
+                droppedFrames.incrementAndGet();
+                dropped = true;
+            }
+        }
+        return dropped;
     }
 
     /**
-     * Ends the loop in the connection listener thread, letting it close all connections afterwards.
-     * 
+     * Tells the client it's disconnected and has the loop close the socket once that has been
+     * written.
+     *
      * @author Jeran
      */
     public void kill() {
@@ -154,14 +386,23 @@ public class ClientConnection {
             alive = false;
             idle = true;
             server.enqueueEvent(new NetworkEvent(Type.DISCONNECT, new Object[] {confirmed, id}));
-            try {
-                if (debug) System.out.println("server sending kill event");
-                out.reset();
-                out.writeObject(new NetworkEvent(Type.DISCONNECT, null));
-                out.flush();
-            } catch (final IOException e) {
-                // Normally we'd call kill(), so here we obviously don't care
-            }
+            if (debug) System.out.println("server sending kill event");
+            closing = true;
+            queueEvent(new NetworkEvent(Type.DISCONNECT, null));
+        }
+    }
+
+    /**
+     * Closes the socket right away. Called on the loop thread.
+     */
+    void close() {
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (final IOException e) {
+            e.printStackTrace();
         }
     }
 
@@ -175,7 +416,7 @@ public class ClientConnection {
     /**
      * On creation, the ClientConnection is given a temporary id. On completion of the handshake,
      * the ClientConnection stores its client's accountId.
-     * 
+     *
      * @param accId The accoundId of the client
      */
     public void setId(final int accId) {
@@ -186,6 +427,65 @@ public class ClientConnection {
         return id;
     }
 
+    /**
+     * @return the number of frames waiting to be written
+     */
+    public int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    /**
+     * @return the most frames that have been waiting to be written at once
+     */
+    public int getPeakQueueDepth() {
+        return peakQueueDepth.get();
+    }
+
+    /**
+     * @return the number of frames dropped because the outbound queue was full
+     */
+    public long getDroppedFrames() {
+        return droppedFrames.get();
+    }
+
+    /**
+     * @return the total time the socket couldn't take more bytes while frames were waiting,
+     *         including the current stall
+     */
+    public long getStalledNanos() {
+        long since = stalledSince;
+        return stalledNanos + (since == 0 ? 0 : System.nanoTime() - since);
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    /**
+     * @return the number of events received from the client
+     */
+    public long getFramesReceived() {
+        return framesReceived;
+    }
+
+    /**
+     * @return the number of frames written to the client in full
+     */
+    public long getFramesSent() {
+        return framesSent;
+    }
+
+    /**
+     * @return whether the client has been silent long enough to be pinged, and hasn't answered
+     */
+    public boolean isIdle() {
+        return idle;
+    }
+
     public void setDm(final boolean isDm) {
         this.isDm = isDm;
     }
@@ -196,4 +496,48 @@ public class ClientConnection {
     public boolean isDm() {
         return isDm;
     }
+
+    /**
+     * An encoded frame waiting in the outbound queue. The loop claims a frame before writing it,
+     * after which it can no longer be dropped.
+     */
+    private static class Frame {
+        private static final int QUEUED = 0;
+        private static final int CLAIMED = 1;
+        private static final int DROPPED = 2;
+
+        final Type type;
+        final ByteBuffer buffer;
+        /** Stamped once the frame has been written, or null if the event isn't traced */
+        final TraceContext trace;
+        private final AtomicInteger state = new AtomicInteger(QUEUED);
+
+        Frame(final Type type, final ByteBuffer buffer, final TraceContext trace) {
+            this.type = type;
+            this.buffer = buffer;
+            this.trace = trace;
+        }
+
+        /**
+         * @return whether a newer frame of the same type holds everything this one does
+         */
+        boolean isSupersedable() {
+            return type == Type.UPDATE_VISIBILITY || type == Type.REQUEST_MOVE
+                    || type == Type.PING;
+        }
+
+        /**
+         * @return false if the frame has been dropped. Claiming twice is fine.
+         */
+        boolean claim() {
+            return state.compareAndSet(QUEUED, CLAIMED) || state.get() == CLAIMED;
+        }
+
+        /**
+         * @return false if the frame is being written
+         */
+        boolean drop() {
+            return state.compareAndSet(QUEUED, DROPPED);
+        }
+    }
 }
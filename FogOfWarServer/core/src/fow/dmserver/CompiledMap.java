@@ -0,0 +1,203 @@
+package fow.dmserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+
+import fow.common.SceneNode;
+import fow.common.SpatialIndex;
+import fow.common.WallSegment;
+
+/**
+ * A level compiled by {@link MapCompiler}, memory-mapped read-only so opening even a large one
+ * doesn't parse anything. The file is all big-endian ints:
+ *
+ * <pre>
+ * header    MAGIC, VERSION, width, height, walls,
+ *           cell size, first column, first row, columns, rows
+ * walls     every wall's ID, then every x1, y1, x2 and y2, sorted by spatial index bucket
+ * buckets   where each bucket's walls start, row by row, then the number of walls
+ * </pre>
+ *
+ * The buckets are those of a {@link SpatialIndex}, so the index is rebuilt by slicing the walls
+ * rather than sorting them again.
+ *
+ * Maps opened with {@link #open(File)} are shared by every game in the process, along with the
+ * walls read from them. Those walls must not be changed.
+ */
+public final class CompiledMap {
+
+    /** "FOWM" */
+    public static final int MAGIC = 0x464F574D;
+    public static final int VERSION = 1;
+
+    /** Number of ints before the walls */
+    static final int HEADER_INTS = 10;
+
+    /* Maps opened so far, by canonical path */
+    private static final HashMap<String, CompiledMap> shared = new HashMap<String, CompiledMap>();
+
+    private final File file;
+    private final long lastModified;
+    private final long length;
+    private final IntBuffer data;
+
+    private final int width;
+    private final int height;
+    private final int numWalls;
+    private final int cellSize;
+    private final int minColumn;
+    private final int minRow;
+    private final int columns;
+    private final int rows;
+
+    /* Built from the file the first time they are asked for */
+    private WallSegment[] walls;
+    private int[] bucketStarts;
+
+    /**
+     * Map a compiled map file. Usually {@link #open(File)} should be used instead, to share it.
+     *
+     * @param file the compiled map
+     * @throws IOException if the file couldn't be mapped or isn't a compiled map
+     */
+    public CompiledMap(File file) throws IOException {
+        this.file = file;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        MappedByteBuffer buffer;
+        try {
+            this.lastModified = file.lastModified();
+            this.length = raf.length();
+            if (length % 4 != 0 || length < HEADER_INTS * 4) {
+                throw new IOException(file + " is not a compiled map");
+            }
+            // The mapping stays valid after the channel is closed
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+        } finally {
+            raf.close();
+        }
+        data = buffer.asIntBuffer();
+
+        if (data.get(0) != MAGIC) {
+            throw new IOException(file + " is not a compiled map");
+        }
+        if (data.get(1) != VERSION) {
+            throw new IOException(file + " is version " + data.get(1) + ", expected " + VERSION);
+        }
+        width = data.get(2);
+        height = data.get(3);
+        numWalls = data.get(4);
+        cellSize = data.get(5);
+        minColumn = data.get(6);
+        minRow = data.get(7);
+        columns = data.get(8);
+        rows = data.get(9);
+        long expected = HEADER_INTS + 5L * numWalls + (long) columns * rows + 1;
+        if (width <= 0 || height <= 0 || numWalls < 0 || cellSize <= 0 || columns < 0
+                || rows < 0 || expected * 4 != length) {
+            throw new IOException(file + " has a bad header or is truncated");
+        }
+    }
+
+    /**
+     * Open a compiled map, or get the one already open if the file hasn't changed since.
+     *
+     * @param file the compiled map
+     * @return the map, shared with every other caller
+     * @throws IOException if the file couldn't be mapped or isn't a compiled map
+     */
+    public static CompiledMap open(File file) throws IOException {
+        String path = file.getCanonicalPath();
+        synchronized (shared) {
+            CompiledMap map = shared.get(path);
+            if (map == null || map.lastModified != file.lastModified()
+                    || map.length != file.length()) {
+                map = new CompiledMap(file);
+                shared.put(path, map);
+            }
+            return map;
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getNumWalls() {
+        return numWalls;
+    }
+
+    /**
+     * @return a new array of the map's walls, in bucket order. The walls themselves are shared.
+     * @throws IOException if the buckets in the file are inconsistent
+     */
+    public WallSegment[] getWalls() throws IOException {
+        return load().clone();
+    }
+
+    /**
+     * @return a new spatial index over the map's walls, built from the file's buckets
+     * @throws IOException if the buckets in the file are inconsistent
+     */
+    public SpatialIndex newSpatialIndex() throws IOException {
+        WallSegment[] ws = load();
+        try {
+            return SpatialIndex.ofBuckets(cellSize, minColumn, minRow, columns, rows,
+                    bucketStarts, ws);
+        } catch (IllegalArgumentException e) {
+            throw new IOException(file + " has bad buckets: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return a new scene graph holding the map's walls under an empty root, with the spatial
+     *         index already built. Each game should have its own, since walls can be added.
+     * @throws IOException if the buckets in the file are inconsistent
+     */
+    public SceneNode newSceneGraph() throws IOException {
+        SpatialIndex index = newSpatialIndex();
+        SceneNode root = new SceneNode(null);
+        root.addChildren(load());
+        root.setSpatialIndex(index);
+        return root;
+    }
+
+    /**
+     * Read the walls and bucket starts out of the mapping, once. Each column of the walls is read
+     * with a single bulk get.
+     */
+    private synchronized WallSegment[] load() throws IOException {
+        if (walls == null) {
+            IntBuffer view = data.duplicate();
+            view.position(HEADER_INTS);
+            int[] ids = new int[numWalls];
+            int[] x1 = new int[numWalls];
+            int[] y1 = new int[numWalls];
+            int[] x2 = new int[numWalls];
+            int[] y2 = new int[numWalls];
+            view.get(ids).get(x1).get(y1).get(x2).get(y2);
+            int[] starts = new int[columns * rows + 1];
+            view.get(starts);
+
+            WallSegment[] ws = new WallSegment[numWalls];
+            for (int i = 0; i < numWalls; i++) {
+                ws[i] = new WallSegment(ids[i], x1[i], y1[i], x2[i], y2[i]);
+            }
+            bucketStarts = starts;
+            walls = ws;
+        }
+        return walls;
+    }
+}
@@ -0,0 +1,228 @@
+package fow.dmserver;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import fow.common.IntMap;
+
+/**
+ * Every ClientConnection of a server: the unconfirmed ones by temporary ID and the confirmed ones by
+ * account ID.
+ *
+ * Temporary IDs come from a table of slots. An ID is the slot's index and a generation, which goes
+ * up each time the slot is freed, so a late event carrying an old ID can't reach the connection
+ * that now has the slot. Free slots are kept on a stack, making allocating and freeing an ID O(1)
+ * however many connections there are.
+ *
+ * Changes are made under the registry's lock. Lookups don't lock and can be made from any thread:
+ * the slots are an AtomicReferenceArray, and the confirmed connections are an IntMap that is
+ * copied on every change and published whole. Confirming and disconnecting are rare next to
+ * lookups, so the copy is cheap overall even with thousands of connections.
+ */
+public class ConnectionRegistry {
+
+    /** Bits of a temporary ID that hold the slot, the rest hold the generation */
+    static final int SLOT_BITS = 20;
+
+    /** Most unconfirmed connections there can be at once */
+    public static final int MAX_UNCONFIRMED = 1 << SLOT_BITS;
+
+    private static final int SLOT_MASK = MAX_UNCONFIRMED - 1;
+
+    /* Generations wrap before the ID would turn negative */
+    private static final int GENERATION_MASK = (1 << (31 - SLOT_BITS)) - 1;
+
+    private static final int INITIAL_SLOTS = 64;
+
+    /* Unconfirmed connections by slot. Grown by copying under the lock. */
+    private volatile AtomicReferenceArray<Slot> slots =
+            new AtomicReferenceArray<Slot>(INITIAL_SLOTS);
+
+    /*
+     * Only touched under the lock: each slot's current generation and whether its ID is allocated,
+     * and the slots that are free
+     */
+    private int[] generations = new int[INITIAL_SLOTS];
+    private boolean[] allocated = new boolean[INITIAL_SLOTS];
+    private int[] free = new int[INITIAL_SLOTS];
+    private int numFree;
+    /* Slots below this have been handed out at least once */
+    private int used;
+    private int numUnconfirmed;
+
+    /* Confirmed connections by account ID. Replaced, never changed, once published. */
+    private volatile IntMap<ClientConnection> confirmed = new IntMap<ClientConnection>();
+
+    /**
+     * Allocate a temporary ID for a new connection. The ID is reserved until it is freed by
+     * removeUnconfirmed(), even if no connection is put there.
+     *
+     * @return the ID, or -1 if there are already MAX_UNCONFIRMED
+     */
+    public synchronized int allocateId() {
+        int slot;
+        if (numFree > 0) {
+            slot = free[--numFree];
+        } else if (used < MAX_UNCONFIRMED) {
+            slot = used++;
+            if (slot == generations.length) {
+                grow(slot * 2);
+            }
+        } else {
+            return -1;
+        }
+        allocated[slot] = true;
+        numUnconfirmed++;
+        return generations[slot] << SLOT_BITS | slot;
+    }
+
+    private void grow(int capacity) {
+        capacity = Math.min(capacity, MAX_UNCONFIRMED);
+        generations = Arrays.copyOf(generations, capacity);
+        allocated = Arrays.copyOf(allocated, capacity);
+        free = Arrays.copyOf(free, capacity);
+        AtomicReferenceArray<Slot> bigger = new AtomicReferenceArray<Slot>(capacity);
+        AtomicReferenceArray<Slot> old = slots;
+        for (int i = 0; i < old.length(); i++) {
+            bigger.set(i, old.get(i));
+        }
+        slots = bigger;
+    }
+
+    /**
+     * @param id a temporary ID from allocateId() that hasn't been freed
+     * @param connection the connection that has it
+     */
+    public synchronized void putUnconfirmed(int id, ClientConnection connection) {
+        if (!isCurrent(id)) {
+            throw new IllegalArgumentException("Temporary ID " + id + " isn't allocated");
+        }
+        slots.set(id & SLOT_MASK, new Slot(id, connection));
+    }
+
+    /*
+     * Called under the lock
+     */
+    private boolean isCurrent(int id) {
+        int slot = id & SLOT_MASK;
+        return id >= 0 && slot < used && allocated[slot] && generations[slot] == id >>> SLOT_BITS;
+    }
+
+    /**
+     * @param id a temporary ID
+     * @return the unconfirmed connection with that ID, or null if there isn't one
+     */
+    public ClientConnection getUnconfirmed(int id) {
+        int slot = id & SLOT_MASK;
+        AtomicReferenceArray<Slot> current = slots;
+        if (id < 0 || slot >= current.length()) {
+            return null;
+        }
+        Slot s = current.get(slot);
+        return s != null && s.id == id ? s.connection : null;
+    }
+
+    /**
+     * Free a temporary ID, taking away the connection that had it.
+     *
+     * @param id a temporary ID
+     * @return the connection that had it, or null if there was none or the ID was already freed
+     */
+    public synchronized ClientConnection removeUnconfirmed(int id) {
+        if (!isCurrent(id)) {
+            return null;
+        }
+        int slot = id & SLOT_MASK;
+        Slot s = slots.get(slot);
+        slots.set(slot, null);
+        allocated[slot] = false;
+        generations[slot] = (generations[slot] + 1) & GENERATION_MASK;
+        free[numFree++] = slot;
+        numUnconfirmed--;
+        return s == null ? null : s.connection;
+    }
+
+    /**
+     * Add a connection to the confirmed ones, replacing any with the same account ID. The
+     * connection's temporary ID should already be freed.
+     *
+     * @param accountId the account the connection is for
+     * @param connection the connection
+     */
+    public synchronized void putConfirmed(int accountId, ClientConnection connection) {
+        IntMap<ClientConnection> copy = new IntMap<ClientConnection>(confirmed);
+        copy.put(accountId, connection);
+        confirmed = copy;
+    }
+
+    /**
+     * @return the confirmed connection for an account, or null if there isn't one
+     */
+    public ClientConnection getConfirmed(int accountId) {
+        return confirmed.get(accountId);
+    }
+
+    public boolean isConfirmed(int accountId) {
+        return confirmed.containsKey(accountId);
+    }
+
+    /**
+     * @return the confirmed connection that was removed, or null if there wasn't one
+     */
+    public synchronized ClientConnection removeConfirmed(int accountId) {
+        if (!confirmed.containsKey(accountId)) {
+            return null;
+        }
+        IntMap<ClientConnection> copy = new IntMap<ClientConnection>(confirmed);
+        ClientConnection removed = copy.remove(accountId);
+        confirmed = copy;
+        return removed;
+    }
+
+    /**
+     * @return the confirmed connections at the time of the call. Later changes don't affect the
+     *         collection, so it can be iterated while connections come and go.
+     */
+    public Collection<ClientConnection> getConfirmedConnections() {
+        return confirmed.values();
+    }
+
+    public int getNumConfirmed() {
+        return confirmed.size();
+    }
+
+    public synchronized int getNumUnconfirmed() {
+        return numUnconfirmed;
+    }
+
+    /**
+     * @return every connection, confirmed or not, at the time of the call
+     */
+    public List<ClientConnection> getAll() {
+        List<ClientConnection> all = new ArrayList<ClientConnection>(getConfirmedConnections());
+        AtomicReferenceArray<Slot> current = slots;
+        for (int i = 0; i < current.length(); i++) {
+            Slot s = current.get(i);
+            if (s != null) {
+                all.add(s.connection);
+            }
+        }
+        return all;
+    }
+
+    /**
+     * A connection and the temporary ID it was put in its slot with
+     */
+    private static final class Slot {
+        final int id;
+        final ClientConnection connection;
+
+        Slot(int id, ClientConnection connection) {
+            this.id = id;
+            this.connection = connection;
+        }
+    }
+}
@@ -4,5 +4,29 @@ public class Constants {
 
     public static final int DEFAULT_LEVEL_WIDTH = 2400;
     public static final int DEFAULT_LEVEL_HEIGHT = 2000;
+
+    /** How far players can see along x and y, 0 for the whole level */
+    public static final int DEFAULT_VIEW_RADIUS = 0;
+
+    /** Where old parts of players' paths are archived, in a directory per game */
+    public static final String PATH_ARCHIVE_DIRECTORY = "path-archive";
+
+    /** System property naming a compiled map to load instead of the default empty level */
+    public static final String MAP_FILE_PROPERTY = "fow.map";
+
+    /**
+     * System property naming a directory to journal the game to. If it holds a game already, that
+     * game is restored.
+     */
+    public static final String JOURNAL_DIRECTORY_PROPERTY = "fow.journal";
+
+    /** System property overriding how many clients the server lets in, the DM included */
+    public static final String MAX_PLAYERS_PROPERTY = "fow.maxPlayers";
+
+    /** System property giving the local port the server's metrics are served on as plain text */
+    public static final String METRICS_PORT_PROPERTY = "fow.metricsPort";
+
+    /** System property overriding how far players can see along x and y */
+    public static final String VIEW_RADIUS_PROPERTY = "fow.viewRadius";
     
 }
@@ -0,0 +1,99 @@
+package fow.dmserver;
+
+import java.util.EnumMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import fow.common.NetworkEvent;
+import fow.common.NetworkEvent.Type;
+
+/**
+ * Hands each event to the handler registered for its type, looked up by the type's ordinal. Every
+ * type has LatencyStats of how long handling its events took and how many threw.
+ *
+ * Events are dispatched from one thread, the server's. The stats can be read from any thread, but
+ * one read while an event is handled may be a little behind.
+ */
+public class EventDispatcher {
+
+    /**
+     * Handles the events of one type
+     */
+    public interface Handler {
+        void handle(NetworkEvent e);
+    }
+
+    /* Handlers and their stats by type ordinal, null for types nothing handles */
+    private final Handler[] handlers = new Handler[Type.values().length];
+    private final LatencyStats[] stats = new LatencyStats[Type.values().length];
+
+    private final AtomicLong unhandled = new AtomicLong();
+
+    /**
+     * @param type the type of events
+     * @param handler what handles them
+     * @throws IllegalArgumentException if the type already has a handler
+     */
+    public void register(final Type type, final Handler handler) {
+        if (handlers[type.ordinal()] != null) {
+            throw new IllegalArgumentException(type + " already has a handler");
+        }
+        stats[type.ordinal()] = new LatencyStats();
+        handlers[type.ordinal()] = handler;
+    }
+
+    /**
+     * Handle an event. A handler that throws is counted and the exception printed, so one bad
+     * event can't stop the server.
+     *
+     * @param e the event
+     * @return false if nothing handles events of its type
+     */
+    public boolean dispatch(final NetworkEvent e) {
+        final int type = e.getType().ordinal();
+        final Handler handler = handlers[type];
+        if (handler == null) {
+            unhandled.lazySet(unhandled.get() + 1);
+            System.err.println("No handler for event " + e);
+            return false;
+        }
+        final long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            handler.handle(e);
+            failed = false;
+        } catch (final RuntimeException ex) {
+            ex.printStackTrace();
+        } finally {
+            stats[type].record(System.nanoTime() - start, failed);
+        }
+        return true;
+    }
+
+    /**
+     * @return the stats of the type, or null if it has no handler
+     */
+    public LatencyStats getStats(final Type type) {
+        return stats[type.ordinal()];
+    }
+
+    /**
+     * @return the stats of every type that has a handler
+     */
+    public EnumMap<Type, LatencyStats> getAllStats() {
+        final EnumMap<Type, LatencyStats> all =
+                new EnumMap<Type, LatencyStats>(Type.class);
+        for (final Type type : Type.values()) {
+            if (stats[type.ordinal()] != null) {
+                all.put(type, stats[type.ordinal()]);
+            }
+        }
+        return all;
+    }
+
+    /**
+     * @return the number of events that had no handler
+     */
+    public long getUnhandled() {
+        return unhandled.get();
+    }
+}
@@ -0,0 +1,754 @@
+package fow.dmserver;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import fow.common.IntMap;
+import fow.common.PlayerState;
+import fow.common.PositionTuple;
+
+/**
+ * Records the changes to a game that can't be worked out again, so it can be restored after a
+ * crash: players joining, approved moves, move requests coming and going, and who the DM is.
+ *
+ * Changes are appended to an in-memory batch by the thread handling events and written by a
+ * journal thread, which syncs each batch to disk with one fsync however many records it holds.
+ * Appending never waits for the disk, so a crash loses at most the batch being written. Nor does it
+ * take a lock: only the thread handling events adds to the batches, publishing each record with
+ * one ordered write, and the journal thread checksums the records as it writes them.
+ *
+ * Every so often a snapshot of the whole game is taken and the journal moves on to a new file.
+ * Once the snapshot is on disk, the files before it are deleted. A directory holds, by
+ * generation:
+ *
+ * <pre>
+ * snapshot-N.bin   the game as it was when journal-N.log was started
+ * journal-N.log    records, each its length, its type and ints, then a CRC32 of them
+ * </pre>
+ *
+ * Restoring loads the newest good snapshot and replays the journals from its generation on,
+ * stopping at the first record that was only partly written.
+ */
+public class GameJournal {
+
+    /** Default number of records between snapshots */
+    public static final int DEFAULT_SNAPSHOT_INTERVAL = 10000;
+
+    /* "FOWS" */
+    private static final int SNAPSHOT_MAGIC = 0x464F5753;
+    private static final int SNAPSHOT_VERSION = 1;
+
+    /* Record types */
+    private static final byte JOINED = 1;
+    private static final byte MOVED = 2;
+    private static final byte REQUEST_ADDED = 3;
+    private static final byte REQUEST_REMOVED = 4;
+    private static final byte DM_CHANGED = 5;
+
+    /*
+     * How often, in milliseconds, the journal thread looks for records to write. Appending
+     * doesn't wake it, so the thread handling events never pays for waking another thread.
+     */
+    private static final long COMMIT_INTERVAL = 5;
+
+    /* Longest record, type and three ints */
+    private static final int MAX_RECORD = 13;
+
+    /* Bytes in each batch, room for a few hundred records */
+    private static final int BATCH_SIZE = 8192;
+
+    private static final Pattern FILE_NAME =
+            Pattern.compile("(journal|snapshot)-(\\d+)\\.(log|bin)");
+
+    private final File directory;
+    private final int snapshotInterval;
+
+    /*
+     * How many records are on disk, waited for and notified with lock, and whether the journal is
+     * closing or failed
+     */
+    private final Object lock = new Object();
+    private long durable;
+    private volatile boolean closing;
+    private volatile IOException failure;
+
+    /* How many records have been appended, set only by the thread handling events */
+    private final AtomicLong appended = new AtomicLong();
+
+    /*
+     * Batches of records and snapshots waiting for the journal thread, in order. The thread
+     * handling events links new ones after tail, the journal thread writes from head on.
+     */
+    private Node tail = new Batch();
+    private Node head = tail;
+
+    /* Only used by the thread handling events */
+    private int generation;
+    private int sinceSnapshot;
+
+    /*
+     * Only used by the journal thread once it has started: how much of head is written, bytes of a
+     * batch or 1 for a snapshot
+     */
+    private int consumed;
+    private final CRC32 crc = new CRC32();
+    private FileChannel channel;
+    private Thread writer;
+
+    /**
+     * @param directory where to keep the journal and snapshots. Created when opened.
+     * @param snapshotInterval how many records to write between snapshots
+     */
+    public GameJournal(File directory, int snapshotInterval) {
+        if (snapshotInterval < 1) {
+            throw new IllegalArgumentException();
+        }
+        this.directory = directory;
+        this.snapshotInterval = snapshotInterval;
+    }
+
+    /**
+     * @param directory where to keep the journal and snapshots. Created when opened.
+     */
+    public GameJournal(File directory) {
+        this(directory, DEFAULT_SNAPSHOT_INTERVAL);
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Restore a game from what is in the directory, then start journaling its changes. The game
+     * should be newly created, with its level loaded and path retention set, and not yet
+     * journaled.
+     *
+     * @param state the game to restore and then journal
+     * @return the number of journal records replayed
+     * @throws IOException if the directory couldn't be read or the journal couldn't be started
+     */
+    public int open(GameState state) throws IOException {
+        if (writer != null) {
+            throw new IllegalStateException("Already open");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can't create " + directory);
+        }
+        int replayed = restore(state);
+
+        channel = new FileOutputStream(file("journal", generation)).getChannel();
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                write();
+            }
+        }, "journal");
+        writer.setDaemon(true);
+        writer.start();
+        state.setJournal(this);
+        return replayed;
+    }
+
+    void playerJoined(int id, int x, int y) {
+        append(JOINED, id, x, y, 3);
+    }
+
+    void playerMoved(int id, int x, int y) {
+        append(MOVED, id, x, y, 3);
+    }
+
+    void requestAdded(int id, int x, int y) {
+        append(REQUEST_ADDED, id, x, y, 3);
+    }
+
+    void requestRemoved(int id) {
+        append(REQUEST_REMOVED, id, 0, 0, 1);
+    }
+
+    void dmChanged(int id) {
+        append(DM_CHANGED, id, 0, 0, 1);
+    }
+
+    private void append(byte type, int a, int b, int c, int ints) {
+        if (failure != null || closing) {
+            return;
+        }
+        int length = 1 + ints * 4;
+        Batch batch = openBatch(length + 8);
+        batch.putInt(length);
+        batch.put(type);
+        batch.putInt(a);
+        if (ints == 3) {
+            batch.putInt(b);
+            batch.putInt(c);
+        }
+        // The journal thread fills in the CRC
+        batch.putInt(0);
+        batch.published.lazySet(batch.length);
+        appended.lazySet(appended.get() + 1);
+        sinceSnapshot++;
+    }
+
+    /* The batch at the tail, or a new one if it doesn't have room for a record of that size */
+    private Batch openBatch(int size) {
+        if (tail instanceof Batch && ((Batch) tail).length + size <= BATCH_SIZE) {
+            return (Batch) tail;
+        }
+        Batch batch = new Batch();
+        link(batch);
+        return batch;
+    }
+
+    /* Add a batch or snapshot for the journal thread, after which the tail isn't added to */
+    private void link(Node node) {
+        tail.next = node;
+        tail = node;
+    }
+
+    /**
+     * @return whether enough records have been written since the last snapshot to take another
+     */
+    public boolean isSnapshotDue() {
+        return sinceSnapshot >= snapshotInterval;
+    }
+
+    /**
+     * Take a snapshot of the game and start a new journal file after it. The game is copied
+     * straight away and written by the journal thread.
+     *
+     * @param state the journaled game
+     */
+    public void snapshot(GameState state) {
+        if (failure != null || closing) {
+            return;
+        }
+        link(new Snapshot(generation + 1, state));
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+        generation++;
+        sinceSnapshot = 0;
+    }
+
+    /**
+     * Wait until every record appended so far is on disk.
+     *
+     * @throws IOException if the journal thread failed to write them
+     */
+    public void flush() throws IOException {
+        long target = appended.get();
+        synchronized (lock) {
+            lock.notifyAll();
+            boolean interrupted = false;
+            while (durable < target && failure == null && writer.isAlive()) {
+                try {
+                    lock.wait(100);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    /**
+     * Write what's left and stop the journal thread. Later changes aren't recorded.
+     */
+    public void close() {
+        synchronized (lock) {
+            closing = true;
+            lock.notifyAll();
+        }
+        if (writer == null) {
+            return;
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return the number of records appended since the journal was opened
+     */
+    public long getAppended() {
+        return appended.get();
+    }
+
+    /**
+     * The journal thread: writes everything appended, syncs once, repeat. Records appended while
+     * it syncs are written next time.
+     */
+    private void write() {
+        while (true) {
+            boolean stopping = closing;
+            int records;
+            try {
+                records = drain();
+            } catch (IOException e) {
+                e.printStackTrace();
+                synchronized (lock) {
+                    failure = e;
+                    lock.notifyAll();
+                }
+                break;
+            }
+
+            synchronized (lock) {
+                if (records >= 0) {
+                    durable += records;
+                    lock.notifyAll();
+                } else if (stopping) {
+                    break;
+                } else {
+                    try {
+                        lock.wait(COMMIT_INTERVAL);
+                    } catch (InterruptedException e) {
+                        // Only stops when closed
+                    }
+                }
+            }
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Write the records and snapshots appended since last time and sync them.
+     *
+     * @return the number of records written, or -1 if there was nothing to write
+     */
+    private int drain() throws IOException {
+        int records = 0;
+        boolean wrote = false;
+        while (true) {
+            // Read before what head holds, so a head that has been moved on from is seen whole
+            Node next = head.next;
+            if (head instanceof Batch) {
+                Batch batch = (Batch) head;
+                int end = batch.published.get();
+                if (end > consumed) {
+                    records += batch.seal(consumed, end, crc);
+                    ByteBuffer buffer = ByteBuffer.wrap(batch.bytes, consumed, end - consumed);
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                    consumed = end;
+                    wrote = true;
+                }
+            } else if (consumed == 0) {
+                rotate((Snapshot) head);
+                consumed = 1;
+                wrote = true;
+            }
+            if (next == null) {
+                break;
+            }
+            head = next;
+            consumed = 0;
+        }
+        if (!wrote) {
+            return -1;
+        }
+        channel.force(false);
+        return records;
+    }
+
+    /**
+     * Start the snapshot's journal file, then write the snapshot and delete everything before it.
+     * A crash part way leaves the previous snapshot and its journals, which still restore the
+     * game.
+     */
+    private void rotate(Snapshot snapshot) throws IOException {
+        channel.force(false);
+        channel.close();
+        channel = new FileOutputStream(file("journal", snapshot.generation)).getChannel();
+
+        File temporary = new File(directory, "snapshot-" + snapshot.generation + ".tmp");
+        FileOutputStream file = new FileOutputStream(temporary);
+        try {
+            CheckedOutputStream checked = new CheckedOutputStream(file, new CRC32());
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(checked));
+            snapshot.writeTo(out);
+            out.flush();
+            out.writeInt((int) checked.getChecksum().getValue());
+            out.flush();
+            file.getFD().sync();
+        } finally {
+            file.close();
+        }
+        if (!temporary.renameTo(file("snapshot", snapshot.generation))) {
+            throw new IOException("Can't rename " + temporary);
+        }
+
+        for (File old : directory.listFiles()) {
+            Matcher m = FILE_NAME.matcher(old.getName());
+            if (m.matches() && Integer.parseInt(m.group(2)) < snapshot.generation) {
+                old.delete();
+            }
+        }
+    }
+
+    /**
+     * Load the newest snapshot that reads back whole, then replay the journals after it. Leaves
+     * generation one past the newest file found.
+     */
+    private int restore(GameState state) throws IOException {
+        TreeSet<Integer> journals = new TreeSet<Integer>();
+        TreeSet<Integer> snapshots = new TreeSet<Integer>();
+        File[] files = directory.listFiles();
+        if (files == null) {
+            throw new IOException("Can't list " + directory);
+        }
+        for (File f : files) {
+            Matcher m = FILE_NAME.matcher(f.getName());
+            if (m.matches()) {
+                int g = Integer.parseInt(m.group(2));
+                (m.group(1).equals("journal") ? journals : snapshots).add(g);
+            }
+        }
+
+        int from = journals.isEmpty() ? 0 : journals.first();
+        for (Integer g : snapshots.descendingSet()) {
+            try {
+                Snapshot snapshot = Snapshot.read(file("snapshot", g));
+                snapshot.applyTo(state);
+                from = g;
+                break;
+            } catch (IOException e) {
+                // Try an older one
+                e.printStackTrace();
+            }
+        }
+
+        int replayed = 0;
+        for (Integer g : journals.tailSet(from)) {
+            int n = replay(file("journal", g), state);
+            if (n < 0) {
+                // A bad record before the end of the journal, the later ones can't be trusted
+                replayed += -n - 1;
+                break;
+            }
+            replayed += n;
+        }
+
+        int newest = Math.max(journals.isEmpty() ? -1 : journals.last(),
+                snapshots.isEmpty() ? -1 : snapshots.last());
+        generation = newest + 1;
+        return replayed;
+    }
+
+    /**
+     * Apply a journal file's records to the game. A record cut short at the end of the file, by
+     * a crash while it was written, is cut off so later restores carry on past it.
+     *
+     * @return the number of records replayed, or -1 minus that if a bad record was found before
+     *         the end of the file
+     */
+    private static int replay(File file, GameState state) throws IOException {
+        byte[] bytes = readFully(file);
+        ByteBuffer in = ByteBuffer.wrap(bytes);
+        CRC32 crc = new CRC32();
+        int n = 0;
+        while (in.remaining() >= 4) {
+            int start = in.position();
+            int length = in.getInt();
+            if (length < 1 || length > MAX_RECORD || in.remaining() < length + 4) {
+                return cut(file, start, bytes.length, n);
+            }
+            crc.reset();
+            crc.update(bytes, in.position(), length);
+            byte type = in.get();
+            int[] ints = new int[(length - 1) / 4];
+            for (int i = 0; i < ints.length; i++) {
+                ints[i] = in.getInt();
+            }
+            if (in.getInt() != (int) crc.getValue() || !apply(type, ints, state)) {
+                return cut(file, start, bytes.length, n);
+            }
+            n++;
+        }
+        return in.hasRemaining() ? cut(file, in.position(), bytes.length, n) : n;
+    }
+
+    /*
+     * Drop a bad tail if it could be a write the crash cut short, the last record or less
+     */
+    private static int cut(File file, int position, int length, int n) throws IOException {
+        if (length - position > MAX_RECORD + 8) {
+            return -1 - n;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(position);
+        } finally {
+            raf.close();
+        }
+        return n;
+    }
+
+    private static boolean apply(byte type, int[] ints, GameState state) {
+        int id = ints.length > 0 ? ints[0] : 0;
+        switch (type) {
+            case JOINED:
+                if (ints.length != 3) {
+                    return false;
+                }
+                if (!state.containsPlayer(id)) {
+                    state.restorePlayer(new PlayerState(id, ints[1], ints[2]));
+                }
+                return true;
+            case MOVED:
+                if (ints.length != 3) {
+                    return false;
+                }
+                if (state.containsPlayer(id)) {
+                    state.movePlayer(id, new PositionTuple(ints[1], ints[2]));
+                }
+                return true;
+            case REQUEST_ADDED:
+                if (ints.length != 3) {
+                    return false;
+                }
+                state.addPendingRequest(id, new PositionTuple(ints[1], ints[2]));
+                return true;
+            case REQUEST_REMOVED:
+                state.removePendingRequest(id);
+                return ints.length == 1;
+            case DM_CHANGED:
+                state.setDmId(id);
+                return ints.length == 1;
+            default:
+                return false;
+        }
+    }
+
+    private static byte[] readFully(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] bytes = new byte[(int) raf.length()];
+            raf.readFully(bytes);
+            return bytes;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private File file(String kind, int generation) {
+        return new File(directory, kind + "-" + generation + (kind.equals("journal") ? ".log"
+                : ".bin"));
+    }
+
+    /**
+     * Something waiting for the journal thread, linked to whatever was appended after it
+     */
+    private abstract static class Node {
+        volatile Node next;
+    }
+
+    /**
+     * Records appended together, written with as few write calls as the journal thread can manage.
+     * The thread handling events writes them and the journal thread reads up to published.
+     */
+    private static final class Batch extends Node {
+        final byte[] bytes = new byte[BATCH_SIZE];
+        int length;
+        final AtomicInteger published = new AtomicInteger();
+
+        void put(byte b) {
+            bytes[length++] = b;
+        }
+
+        void putInt(int v) {
+            bytes[length++] = (byte) (v >>> 24);
+            bytes[length++] = (byte) (v >>> 16);
+            bytes[length++] = (byte) (v >>> 8);
+            bytes[length++] = (byte) v;
+        }
+
+        /**
+         * Fill in the CRCs of the records between two offsets. Only the journal thread calls
+         * this, on published records the thread handling events won't touch again.
+         *
+         * @return the number of records
+         */
+        int seal(int from, int to, CRC32 crc) {
+            int n = 0;
+            for (int at = from; at < to; n++) {
+                int length = (bytes[at] & 0xFF) << 24 | (bytes[at + 1] & 0xFF) << 16
+                        | (bytes[at + 2] & 0xFF) << 8 | bytes[at + 3] & 0xFF;
+                crc.reset();
+                crc.update(bytes, at + 4, length);
+                int end = at + 4 + length;
+                int value = (int) crc.getValue();
+                bytes[end] = (byte) (value >>> 24);
+                bytes[end + 1] = (byte) (value >>> 16);
+                bytes[end + 2] = (byte) (value >>> 8);
+                bytes[end + 3] = (byte) value;
+                at = end + 4;
+            }
+            return n;
+        }
+    }
+
+    /**
+     * A copy of everything journaled about a game, and of how much of each path was simplified
+     * and archived, since that isn't journaled.
+     */
+    private static final class Snapshot extends Node {
+        final int generation;
+        int dmId;
+        PlayerState[] players;
+        int[] simplified;
+        long[] archived;
+        int[] requests;
+
+        private Snapshot(int generation) {
+            this.generation = generation;
+        }
+
+        Snapshot(int generation, GameState state) {
+            this.generation = generation;
+            this.dmId = state.getDmId();
+            PathRetention retention = state.getPathRetention();
+            players = new PlayerState[state.getPlayers().size()];
+            simplified = new int[players.length];
+            archived = new long[players.length];
+            int i = 0;
+            for (PlayerState player : state.getPlayers()) {
+                players[i] = new PlayerState(player);
+                if (retention != null) {
+                    simplified[i] = retention.getSimplifiedLength(player.id);
+                    archived[i] = retention.getArchivedLength(player.id);
+                }
+                i++;
+            }
+            requests = new int[state.pendingRequests.size() * 3];
+            i = 0;
+            IntMap<PositionTuple> pending = state.pendingRequests;
+            for (int slot = pending.nextSlot(-1); slot >= 0; slot = pending.nextSlot(slot)) {
+                requests[i++] = pending.keyAt(slot);
+                requests[i++] = pending.valueAt(slot).x;
+                requests[i++] = pending.valueAt(slot).y;
+            }
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeInt(generation);
+            out.writeInt(dmId);
+            out.writeInt(players.length);
+            for (int i = 0; i < players.length; i++) {
+                PlayerState player = players[i];
+                int length = player.getPathLength();
+                out.writeInt(player.id);
+                out.writeInt(simplified[i]);
+                out.writeLong(archived[i]);
+                out.writeInt(length);
+                int[] path = player.copyPath(0, length, length);
+                for (int j = 0; j < length * 2; j++) {
+                    out.writeInt(path[j]);
+                }
+            }
+            out.writeInt(requests.length / 3);
+            for (int r : requests) {
+                out.writeInt(r);
+            }
+        }
+
+        static Snapshot read(File file) throws IOException {
+            byte[] bytes = readFully(file);
+            if (bytes.length < 4) {
+                throw new IOException(file + " is truncated");
+            }
+            CRC32 crc = new CRC32();
+            crc.update(bytes, 0, bytes.length - 4);
+            ByteBuffer in = ByteBuffer.wrap(bytes);
+            if (in.getInt(bytes.length - 4) != (int) crc.getValue()) {
+                throw new IOException(file + " is corrupt");
+            }
+            in.limit(bytes.length - 4);
+            try {
+                if (in.getInt() != SNAPSHOT_MAGIC || in.getInt() != SNAPSHOT_VERSION) {
+                    throw new IOException(file + " is not a snapshot");
+                }
+                Snapshot s = new Snapshot(in.getInt());
+                s.dmId = in.getInt();
+                int n = readCount(in, file);
+                s.players = new PlayerState[n];
+                s.simplified = new int[n];
+                s.archived = new long[n];
+                for (int i = 0; i < n; i++) {
+                    int id = in.getInt();
+                    s.simplified[i] = in.getInt();
+                    s.archived[i] = in.getLong();
+                    int length = readCount(in, file);
+                    if (length < 1 || s.simplified[i] < 0 || s.archived[i] < 0) {
+                        throw new IOException(file + " has a bad path");
+                    }
+                    int[] path = new int[length * 2];
+                    in.asIntBuffer().get(path);
+                    in.position(in.position() + path.length * 4);
+                    s.players[i] = new PlayerState(id, path, length);
+                }
+                s.requests = new int[readCount(in, file) * 3];
+                for (int i = 0; i < s.requests.length; i++) {
+                    s.requests[i] = in.getInt();
+                }
+                if (in.hasRemaining()) {
+                    throw new IOException(file + " has trailing bytes");
+                }
+                return s;
+            } catch (BufferUnderflowException e) {
+                throw new IOException(file + " is truncated");
+            }
+        }
+
+        private static int readCount(ByteBuffer in, File file) throws IOException {
+            int n = in.getInt();
+            if (n < 0 || n > 1 << 24) {
+                throw new IOException(file + " has a bad count");
+            }
+            return n;
+        }
+
+        void applyTo(GameState state) {
+            state.setDmId(dmId);
+            PathRetention retention = state.getPathRetention();
+            for (int i = 0; i < players.length; i++) {
+                state.restorePlayer(players[i]);
+                if (retention != null) {
+                    retention.restore(players[i].id, simplified[i], archived[i]);
+                }
+            }
+            for (int i = 0; i < requests.length; i += 3) {
+                state.addPendingRequest(requests[i], new PositionTuple(requests[i + 1],
+                        requests[i + 2]));
+            }
+        }
+    }
+}
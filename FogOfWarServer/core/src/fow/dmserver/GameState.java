@@ -1,14 +1,31 @@
 package fow.dmserver;
 
-import java.util.HashMap;
-
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import fow.common.IntMap;
 import fow.common.PlayerState;
 import fow.common.PositionTuple;
+import fow.common.SceneCursor;
 import fow.common.SceneNode;
 import fow.common.VisibilityLayer;
+import fow.common.WallSegment;
 
 public class GameState {
 
+    /* Fewer stale polygons than this aren't worth handing to other threads */
+    private static final int MIN_PARALLEL_POLYGONS = 2;
+
     enum Status {
         UNINITIALIZED, RUNNING, PAUSED, ENDED
     }
@@ -30,12 +47,37 @@ public class GameState {
     /*
      * The list of all players currently in the game
      */
-    private HashMap<Integer, PlayerState> players;
+    private IntMap<PlayerState> players;
 
     /*
      * The list of visibility layers for each player
      */
-    private HashMap<Integer, VisibilityLayer> visibilityLayers;
+    private IntMap<VisibilityLayer> visibilityLayers;
+
+    /*
+     * Computes line of sight against the walls in the scene graph, through the scene graph's
+     * spatial index. Rebuilt when the level's size or the view radius changes.
+     */
+    private VisibilityEngine visibilityEngine;
+
+    /*
+     * How far players can see along x and y. 0 lets them see the whole level.
+     */
+    private int viewRadius =
+            Integer.getInteger(Constants.VIEW_RADIUS_PROPERTY, Constants.DEFAULT_VIEW_RADIUS);
+
+    /*
+     * What each player could see when its layer was last recomputed, by player ID. Walls don't
+     * move, so a polygon stays right until its player moves or the walls change; other players
+     * moving only changes who is inside it.
+     */
+    private final IntMap<VisibilityPolygon> polygons = new IntMap<VisibilityPolygon>();
+
+    /*
+     * The walls each player has seen so far, by player ID. Explored walls stay in a player's layer
+     * after they go out of sight, like on a map being drawn.
+     */
+    private final IntMap<IntMap<WallSegment>> exploredWalls = new IntMap<IntMap<WallSegment>>();
 
     /*
      * Reference to the account ID of the DM. Temporarily just the first player who connects to the
@@ -43,12 +85,62 @@ public class GameState {
      */
     private int dmId;
 
+    /*
+     * Increases every time a player joins or the visibilities are recomputed. Clients are sent
+     * deltas between versions.
+     */
+    private int version;
+
+    /*
+     * Layers whose visibilities are out of date, by player ID, and the number of changes made to
+     * them since they were last recomputed. Recomputing is deferred so several changes cost one
+     * recompute.
+     */
+    private final IntMap<VisibilityLayer> dirtyLayers = new IntMap<VisibilityLayer>();
+    private int pendingChanges;
+
+    /*
+     * Dirty layers whose polygon is out of date too, because their player moved or the walls
+     * changed. The other dirty layers only need to check who is in their polygon.
+     */
+    private final IntMap<VisibilityLayer> stalePolygons = new IntMap<VisibilityLayer>();
+
+    /*
+     * Totals since the game started, to measure how much work each move costs: moves made,
+     * layers recomputed and, of those, polygons recomputed. Volatile so they can be read from
+     * other threads, e.g. for metrics.
+     */
+    private volatile long moves;
+    private volatile long layerRecomputes;
+    private volatile long polygonRecomputes;
+
+    /* How long each recompute of the dirty layers took */
+    private final LatencyStats recomputeStats = new LatencyStats();
+
+    /*
+     * Simplifies and archives old parts of players' paths, or null to keep every position
+     */
+    private PathRetention pathRetention;
+
+    /*
+     * Threads that compute layers in parallel, created when first needed. Layers are computed from
+     * a snapshot and the results applied on the calling thread once all of them are done.
+     */
+    private int recomputeThreads = Runtime.getRuntime().availableProcessors();
+    private ExecutorService recomputePool;
 
     /*
      * The list of all pending requests. Only holds one per player at a time, so new requests
-     * overwrite old ones
+     * overwrite old ones. Changed through addPendingRequest and removePendingRequest so they are
+     * journaled.
+     */
+    protected final IntMap<PositionTuple> pendingRequests;
+
+    /*
+     * Where joins, moves and requests are recorded so the game can be restored after a crash, or
+     * null to not record them
      */
-    protected final HashMap<Integer, PositionTuple> pendingRequests;
+    private GameJournal journal;
 
     /**
      * Base constructor with all necessary information to maintain a game.
@@ -59,8 +151,7 @@ public class GameState {
      * @param players the players in the game
      */
     public GameState(int levelWidth, int levelHeight, SceneNode sceneGraph,
-            HashMap<Integer, PlayerState> players,
-            HashMap<Integer, VisibilityLayer> visibilityLayers) {
+            IntMap<PlayerState> players, IntMap<VisibilityLayer> visibilityLayers) {
         this.levelWidth = levelWidth;
         this.levelHeight = levelHeight;
         this.sceneGraph = sceneGraph;
@@ -71,7 +162,7 @@ public class GameState {
         this.startTime = -1;
         this.dmId = -1;
         
-        this.pendingRequests = new HashMap<Integer, PositionTuple>();
+        this.pendingRequests = new IntMap<PositionTuple>();
     }
 
     /**
@@ -81,13 +172,13 @@ public class GameState {
      * @param height height of the level
      */
     public GameState(int width, int height) {
-        this(width, height, new SceneNode(null), new HashMap<Integer, PlayerState>(),
-                new HashMap<Integer, VisibilityLayer>());
+        this(width, height, new SceneNode(null), new IntMap<PlayerState>(),
+                new IntMap<VisibilityLayer>());
     }
 
     public GameState() {
-        this(0, 0, new SceneNode(null), new HashMap<Integer, PlayerState>(),
-                new HashMap<Integer, VisibilityLayer>());
+        this(0, 0, new SceneNode(null), new IntMap<PlayerState>(),
+                new IntMap<VisibilityLayer>());
     }
 
     public Status getCurrentStatus() {
@@ -118,6 +209,7 @@ public class GameState {
             throw new IllegalArgumentException();
         }
         this.levelWidth = levelWidth;
+        visibilityEngine = null;
     }
 
     public int getLevelHeight() {
@@ -129,13 +221,107 @@ public class GameState {
             throw new IllegalArgumentException();
         }
         this.levelHeight = levelHeight;
+        visibilityEngine = null;
+    }
+
+    /**
+     * Add a wall to the level. Every layer is marked dirty, since the wall may block anyone's view.
+     * 
+     * @param wall the wall to add, its ID must be unique in the level
+     */
+    public void addWall(WallSegment wall) {
+        sceneGraph.addChild(wall);
+        markAllDirty();
+    }
+
+    /**
+     * Check whether a player could walk in a straight line to a position without going through a
+     * wall.
+     * 
+     * @param id the ID of the player
+     * @param position where the player would go
+     * @return whether nothing in the scene graph is in the way
+     */
+    public boolean canMove(int id, PositionTuple position) {
+        PositionTuple from = players.get(id).getCurrentPosition();
+        return sceneGraph.getSpatialIndex().castRay(from.x, from.y, position.x, position.y) == null;
+    }
+
+    public int getViewRadius() {
+        return viewRadius;
+    }
+
+    /**
+     * Change how far players can see. Every layer is marked dirty.
+     * 
+     * @param viewRadius how far along x and y players can see, 0 to let them see the whole level
+     */
+    public void setViewRadius(int viewRadius) {
+        if (viewRadius < 0) {
+            throw new IllegalArgumentException("View radius can't be negative");
+        }
+        this.viewRadius = viewRadius;
+        visibilityEngine = null;
+        markAllDirty();
+    }
+
+    public PathRetention getPathRetention() {
+        return pathRetention;
+    }
+
+    /**
+     * @param pathRetention how to bound players' paths from now on, or null to keep every position
+     */
+    public void setPathRetention(PathRetention pathRetention) {
+        this.pathRetention = pathRetention;
+    }
+
+    /**
+     * Get a player's whole path, including the positions that were simplified or dropped.
+     * 
+     * @param id the player's ID
+     * @return a copy of the player with every position it has been
+     * @throws IOException if the archived positions couldn't be read
+     */
+    public PlayerState getPathHistory(int id) throws IOException {
+        PlayerState player = players.get(id);
+        return pathRetention == null ? new PlayerState(player) : pathRetention.history(player);
+    }
+
+    public SceneNode getSceneGraph() {
+        return sceneGraph;
+    }
+
+    /**
+     * Replace the level with a compiled map's size and walls. What players have explored of the
+     * old level is forgotten and every layer is recomputed.
+     * 
+     * @param map the compiled map
+     * @throws IOException if the map's walls couldn't be read
+     */
+    public void loadMap(CompiledMap map) throws IOException {
+        sceneGraph = map.newSceneGraph();
+        levelWidth = map.getWidth();
+        levelHeight = map.getHeight();
+        visibilityEngine = null;
+        exploredWalls.clear();
+        for (VisibilityLayer vl : visibilityLayers.values()) {
+            vl.setSceneGraph(new SceneNode(null));
+            vl.setLevelWidth(levelWidth);
+            vl.setLevelHeight(levelHeight);
+        }
+        markAllDirty();
     }
 
     /**
-     * Populates the scene graph from a file.
+     * Populates the level from a file compiled by {@link MapCompiler}. The file is mapped once
+     * and shared with every other game in the process that loads it.
+     * 
+     * @param file the compiled map
+     * @throws IOException if the file couldn't be mapped or isn't a compiled map
      */
-    protected void loadMapFromFile() {
-        // TODO implement
+    public void loadMapFromFile(File file) throws IOException {
+        loadMap(CompiledMap.open(file));
     }
 
     /**
@@ -145,7 +331,7 @@ public class GameState {
      * @return the player's state
      */
     public PlayerState getPlayer(int id) {
-        return players.get(Integer.valueOf(id));
+        return players.get(id);
     }
 
     /**
@@ -159,21 +345,160 @@ public class GameState {
     }
 
     /**
-     * Add a new player to the game at the default spawn location
+     * Add a new player to the game at the default spawn location. Its layer is marked dirty along
+     * with those of the players who can see where it spawns.
      * 
      * @param id the ID of the player to add
      */
     public void addNewPlayer(int id) {
         // TODO figure out where to spawn new players, right now spawns based on ID to differentiate
-        players.put(id, new PlayerState(id, id * 150, levelHeight / 2));
-        PlayerState[] ps = players.values().toArray(new PlayerState[players.size()]);
-
-        for (VisibilityLayer vl : visibilityLayers.values()) {
-            vl.setPlayers(ps);
+        PlayerState player = new PlayerState(id, id * 150, levelHeight / 2);
+        if (journal != null) {
+            journal.playerJoined(id, player.getCurrentX(), player.getCurrentY());
         }
+        addPlayer(player);
+    }
 
-        VisibilityLayer newVl = new VisibilityLayer(levelWidth, levelHeight, sceneGraph, ps);
+    /**
+     * Put back a player from a snapshot, path and all. Nothing is journaled.
+     * 
+     * @param player the player, which the game keeps
+     */
+    public void restorePlayer(PlayerState player) {
+        addPlayer(player);
+    }
+
+    private void addPlayer(PlayerState player) {
+        int id = player.id;
+        players.put(id, player);
+
+        // Filled in by the next recompute
+        VisibilityLayer newVl = new VisibilityLayer(levelWidth, levelHeight, new SceneNode(null),
+                new PlayerState[] {player});
         visibilityLayers.put(id, newVl);
+
+        markPolygonStale(id);
+        markLayersAffectedBy(player);
+        pendingChanges++;
+    }
+
+    /**
+     * @return every player in the game. Not to be changed.
+     */
+    public Collection<PlayerState> getPlayers() {
+        return Collections.unmodifiableCollection(players.values());
+    }
+
+    /**
+     * Record a player's request to move, replacing any it already has, until the DM handles it.
+     * 
+     * @param id the ID of the player
+     * @param position where it wants to go
+     */
+    public void addPendingRequest(int id, PositionTuple position) {
+        if (journal != null) {
+            journal.requestAdded(id, position.x, position.y);
+        }
+        pendingRequests.put(id, position);
+    }
+
+    /**
+     * @param id the ID of a player whose request was handled
+     */
+    public void removePendingRequest(int id) {
+        if (pendingRequests.remove(id) != null && journal != null) {
+            journal.requestRemoved(id);
+        }
+    }
+
+    /**
+     * @return every pending request, keyed by player ID. Not to be changed.
+     */
+    public IntMap<PositionTuple> getPendingRequests() {
+        return pendingRequests;
+    }
+
+    public GameJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * @param journal where to record changes from now on, or null to stop recording them
+     */
+    public void setJournal(GameJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Move a player and mark dirty its own layer and the layers of the players it went out of or
+     * came into sight of. Their visibilities aren't recomputed until recomputeDirtyVisibilities()
+     * is called.
+     * 
+     * @param id the ID of the player to move
+     * @param position where to move it
+     */
+    public void movePlayer(int id, PositionTuple position) {
+        if (journal != null) {
+            journal.playerMoved(id, position.x, position.y);
+        }
+        PlayerState player = players.get(id);
+        player.changePosition(position);
+        if (pathRetention != null) {
+            pathRetention.apply(player);
+        }
+        markPolygonStale(id);
+        markLayersAffectedBy(player);
+        moves++;
+        pendingChanges++;
+    }
+
+    /**
+     * Mark dirty the layers of everyone who could see a player or can see where it is now. Layers
+     * that are dirty already are skipped: they check every player when recomputed.
+     */
+    private void markLayersAffectedBy(PlayerState player) {
+        int x = player.getCurrentX();
+        int y = player.getCurrentY();
+        for (int i = visibilityLayers.nextSlot(-1); i >= 0; i = visibilityLayers.nextSlot(i)) {
+            int other = visibilityLayers.keyAt(i);
+            if (dirtyLayers.containsKey(other)) {
+                continue;
+            }
+            VisibilityPolygon polygon = polygons.get(other);
+            VisibilityLayer vl = visibilityLayers.valueAt(i);
+            if (polygon == null || polygon.contains(x, y) || sees(vl, player.id)) {
+                dirtyLayers.put(other, vl);
+            }
+        }
+    }
+
+    private static boolean sees(VisibilityLayer layer, int id) {
+        PlayerState[] visible = layer.getPlayers();
+        for (int i = 0; i < layer.getNumPlayers(); i++) {
+            if (visible[i].id == id) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void markPolygonStale(int id) {
+        VisibilityLayer vl = visibilityLayers.get(id);
+        dirtyLayers.put(id, vl);
+        stalePolygons.put(id, vl);
+    }
+
+    private void markAllDirty() {
+        dirtyLayers.putAll(visibilityLayers);
+        stalePolygons.putAll(visibilityLayers);
+        pendingChanges++;
+    }
+
+    /**
+     * @return whether any layer needs to be recomputed
+     */
+    public boolean hasDirtyVisibilities() {
+        return !dirtyLayers.isEmpty();
     }
 
     /**
@@ -187,7 +512,10 @@ public class GameState {
         return visibilityLayers.get(id);
     }
 
-    public HashMap<Integer, VisibilityLayer> getPlayerVisibilities() {
+    /**
+     * @return every player's layer, keyed by player ID. Not to be changed.
+     */
+    public IntMap<VisibilityLayer> getPlayerVisibilities() {
         return visibilityLayers;
     }
     
@@ -195,10 +523,288 @@ public class GameState {
      * Update each player's visibilities with any relevant new information
      */
     public void recomputeAllVisibilities() {
+        markAllDirty();
+        recomputeDirtyVisibilities();
+    }
+
+    /**
+     * Update the visibilities of the dirty layers, taking every change since the last recompute
+     * into account at once.
+     * 
+     * @return the number of changes that were applied, 0 if nothing was dirty
+     */
+    public int recomputeDirtyVisibilities() {
+        if (dirtyLayers.isEmpty()) {
+            return 0;
+        }
+        long start = System.nanoTime();
+        if (visibilityEngine == null) {
+            visibilityEngine =
+                    new VisibilityEngine(levelWidth, levelHeight, sceneGraph.getSpatialIndex(),
+                            viewRadius);
+        }
+
+        // Everything the layers are computed from is copied first, so they can be computed on
+        // other threads without touching the game
         PlayerState[] ps = players.values().toArray(new PlayerState[players.size()]);
+        int[] xs = new int[ps.length];
+        int[] ys = new int[ps.length];
+        for (int i = 0; i < ps.length; i++) {
+            xs[i] = ps[i].getCurrentX();
+            ys[i] = ps[i].getCurrentY();
+        }
+        List<LayerUpdate> updates = new ArrayList<LayerUpdate>(dirtyLayers.size());
+        for (int i = dirtyLayers.nextSlot(-1); i >= 0; i = dirtyLayers.nextSlot(i)) {
+            int id = dirtyLayers.keyAt(i);
+            VisibilityPolygon polygon = stalePolygons.containsKey(id) ? null : polygons.get(id);
+            PositionTuple position = players.get(id).getCurrentPosition();
+            updates.add(new LayerUpdate(id, position.x, position.y, polygon, visibilityEngine, ps,
+                    xs, ys));
+        }
+
+        if (recomputeThreads > 1 && stalePolygons.size() >= MIN_PARALLEL_POLYGONS) {
+            computeInParallel(updates);
+        } else {
+            for (LayerUpdate update : updates) {
+                update.call();
+            }
+        }
+
+        for (LayerUpdate update : updates) {
+            applyUpdate(update);
+        }
+
+        int changes = pendingChanges;
+        dirtyLayers.clear();
+        stalePolygons.clear();
+        pendingChanges = 0;
+        setVersion(version + 1);
+        recomputeStats.record(System.nanoTime() - start, false);
+        return changes;
+    }
+
+    /**
+     * Compute layer updates on the recompute pool and wait for all of them. Interrupts don't stop
+     * the wait, since the game can't be left half updated; they are passed on afterwards.
+     */
+    private void computeInParallel(List<LayerUpdate> updates) {
+        if (recomputePool == null) {
+            recomputePool = Executors.newFixedThreadPool(recomputeThreads, new ThreadFactory() {
+                private int count;
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "visibility-" + count++);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        List<Future<LayerUpdate>> futures = new ArrayList<Future<LayerUpdate>>(updates.size());
+        for (LayerUpdate update : updates) {
+            futures.add(recomputePool.submit(update));
+        }
+        boolean interrupted = false;
+        try {
+            for (Future<LayerUpdate> future : futures) {
+                while (true) {
+                    try {
+                        future.get();
+                        break;
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            }
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Publish a computed layer update: the player's polygon, the walls it explored and the players
+     * it can see.
+     */
+    private void applyUpdate(LayerUpdate update) {
+        VisibilityLayer vl = visibilityLayers.get(update.id);
+        layerRecomputes++;
+        if (update.isPolygonComputed()) {
+            polygons.put(update.id, update.getPolygon());
+            polygonRecomputes++;
+            exploreWalls(update.id, vl, update.getPolygon());
+        }
+        vl.setPlayers(update.getVisible());
+    }
 
+    /**
+     * Stop the threads used to recompute visibilities. Later recomputes start them again.
+     */
+    public void shutdown() {
+        if (recomputePool != null) {
+            recomputePool.shutdown();
+            recomputePool = null;
+        }
+    }
+
+    public int getRecomputeThreads() {
+        return recomputeThreads;
+    }
+
+    /**
+     * Set how many threads recompute visibilities when several players' polygons are stale.
+     * 
+     * @param recomputeThreads the number of threads, 1 to recompute on the calling thread only
+     */
+    public void setRecomputeThreads(int recomputeThreads) {
+        if (recomputeThreads < 1) {
+            throw new IllegalArgumentException("Need at least one recompute thread");
+        }
+        shutdown();
+        this.recomputeThreads = recomputeThreads;
+    }
+
+    /**
+     * Add the walls in a player's polygon to the ones it has explored, and put them in its layer if
+     * any are new.
+     */
+    private void exploreWalls(int id, VisibilityLayer vl, VisibilityPolygon polygon) {
+        IntMap<WallSegment> explored = exploredWalls.get(id);
+        if (explored == null) {
+            explored = new IntMap<WallSegment>();
+            exploredWalls.put(id, explored);
+        }
+        ArrayList<WallSegment> discovered = null;
+        for (WallSegment wall : polygon.getVisibleWalls()) {
+            if (!explored.containsKey(wall.id)) {
+                explored.put(wall.id, wall);
+                if (discovered == null) {
+                    discovered = new ArrayList<WallSegment>();
+                }
+                discovered.add(wall);
+            }
+        }
+        if (discovered != null) {
+            // The layer has the walls explored before, in the order they were found
+            SceneNode exploredGraph = new SceneNode(null);
+            SceneCursor cursor = vl.getSceneGraph().cursor();
+            while (cursor.next()) {
+                if (cursor.getData() != null) {
+                    exploredGraph.addChild(cursor.getData());
+                }
+            }
+            for (WallSegment wall : discovered) {
+                exploredGraph.addChild(wall);
+            }
+            vl.setSceneGraph(exploredGraph);
+        }
+    }
+
+    /**
+     * Computes what one player can see from a snapshot of the game, without changing the game, so
+     * it can run on any thread. The player's polygon is only computed if it was stale. Results are
+     * read after waiting on the update's Future, or on the thread that ran it.
+     */
+    private static final class LayerUpdate implements Callable<LayerUpdate> {
+        private final int id;
+        private final int x;
+        private final int y;
+        private final VisibilityEngine engine;
+
+        /* Every player, and where each one was when the snapshot was taken */
+        private final PlayerState[] ps;
+        private final int[] xs;
+        private final int[] ys;
+
+        private VisibilityPolygon polygon;
+        private boolean polygonComputed;
+        private PlayerState[] visible;
+
+        LayerUpdate(int id, int x, int y, VisibilityPolygon polygon, VisibilityEngine engine,
+                PlayerState[] ps, int[] xs, int[] ys) {
+            this.id = id;
+            this.x = x;
+            this.y = y;
+            this.polygon = polygon;
+            this.engine = engine;
+            this.ps = ps;
+            this.xs = xs;
+            this.ys = ys;
+        }
+
+        @Override
+        public LayerUpdate call() {
+            if (polygon == null) {
+                polygon = engine.compute(x, y);
+                polygonComputed = true;
+            }
+            ArrayList<PlayerState> list = new ArrayList<PlayerState>(ps.length);
+            for (int i = 0; i < ps.length; i++) {
+                if (ps[i].id == id || polygon.contains(xs[i], ys[i])) {
+                    list.add(ps[i]);
+                }
+            }
+            visible = list.toArray(new PlayerState[list.size()]);
+            return this;
+        }
+
+        boolean isPolygonComputed() {
+            return polygonComputed;
+        }
+
+        VisibilityPolygon getPolygon() {
+            return polygon;
+        }
+
+        PlayerState[] getVisible() {
+            return visible;
+        }
+    }
+
+    /**
+     * @return the number of moves made since the game started
+     */
+    public long getMoves() {
+        return moves;
+    }
+
+    /**
+     * @return the number of layers recomputed since the game started. Divided by getMoves(), this
+     *         is the number of layers each move costs.
+     */
+    public long getLayerRecomputes() {
+        return layerRecomputes;
+    }
+
+    /**
+     * @return the number of visibility polygons computed since the game started, the expensive
+     *         part of recomputing a layer
+     */
+    public long getPolygonRecomputes() {
+        return polygonRecomputes;
+    }
+
+    /**
+     * @return how long recomputing the dirty layers has taken, each time there were any
+     */
+    public LatencyStats getRecomputeStats() {
+        return recomputeStats;
+    }
+
+    /**
+     * @return the current version of the game's visibilities
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    private void setVersion(int version) {
+        this.version = version;
         for (VisibilityLayer vl : visibilityLayers.values()) {
-            vl.setPlayers(ps);
+            vl.setVersion(version);
         }
     }
 
@@ -214,6 +820,9 @@ public class GameState {
      * @param dmId
      */
     public void setDmId(int dmId) {
+        if (journal != null && dmId != this.dmId) {
+            journal.dmChanged(dmId);
+        }
         this.dmId = dmId;
     }
 }
@@ -0,0 +1,110 @@
+package fow.dmserver;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Count, errors and latency of something the server does over and over, such as handling one type
+ * of event. Latencies go in a histogram of powers of two: bucket i holds those of at least 2^i and
+ * under 2^(i+1) nanoseconds, the last bucket everything longer.
+ *
+ * Only one thread may record. Each field is read and lazily set rather than incremented
+ * atomically, so recording takes no lock and no CAS. Any thread can read.
+ */
+public final class LatencyStats {
+
+    public static final int BUCKETS = 40;
+
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+    private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+    /**
+     * @param nanos how long it took
+     * @param failed whether it failed
+     */
+    public void record(final long nanos, final boolean failed) {
+        final int bucket = Math.min(BUCKETS - 1, 63 - Long.numberOfLeadingZeros(nanos | 1));
+        histogram.lazySet(bucket, histogram.get(bucket) + 1);
+        totalNanos.lazySet(totalNanos.get() + nanos);
+        if (nanos > maxNanos.get()) {
+            maxNanos.lazySet(nanos);
+        }
+        if (failed) {
+            errors.lazySet(errors.get() + 1);
+        }
+        count.lazySet(count.get() + 1);
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return the number of times it failed
+     */
+    public long getErrors() {
+        return errors.get();
+    }
+
+    public long getTotalNanos() {
+        return totalNanos.get();
+    }
+
+    public long getMaxNanos() {
+        return maxNanos.get();
+    }
+
+    public long getMeanNanos() {
+        final long n = count.get();
+        return n == 0 ? 0 : totalNanos.get() / n;
+    }
+
+    /**
+     * @param fraction between 0 and 1, 0.99 for the 99th percentile
+     * @return the upper bound of the bucket holding that percentile, or the longest latency if
+     *         that is lower. 0 if nothing has been recorded.
+     */
+    public long getPercentileNanos(final double fraction) {
+        if (fraction < 0 || fraction > 1) {
+            throw new IllegalArgumentException("Not a fraction: " + fraction);
+        }
+        final long[] counts = getHistogram();
+        long n = 0;
+        for (final long c : counts) {
+            n += c;
+        }
+        if (n == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(fraction * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS - 1; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min((1L << (i + 1)) - 1, getMaxNanos());
+            }
+        }
+        return getMaxNanos();
+    }
+
+    /**
+     * @return a copy of the histogram, BUCKETS long
+     */
+    public long[] getHistogram() {
+        final long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = histogram.get(i);
+        }
+        return counts;
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + getCount() + " errors=" + getErrors() + " mean=" + getMeanNanos() / 1000
+                + "us p99=" + getPercentileNanos(0.99) / 1000 + "us max=" + getMaxNanos() / 1000
+                + "us";
+    }
+}
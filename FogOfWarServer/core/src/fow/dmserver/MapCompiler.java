@@ -0,0 +1,195 @@
+package fow.dmserver;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import fow.common.SpatialIndex;
+import fow.common.WallSegment;
+
+/**
+ * Compiles a source map into the file {@link CompiledMap} loads. Source maps are text, one
+ * statement per line, with # starting a comment:
+ *
+ * <pre>
+ * size 2400 2000
+ * wall 100 100 400 100
+ * </pre>
+ *
+ * Size is required and comes once. Walls get IDs from 0 in the order they appear.
+ *
+ * Usage: MapCompiler &lt;source map&gt; &lt;compiled map&gt;
+ */
+public class MapCompiler {
+
+    private MapCompiler() {}
+
+    public static void main(String[] args) {
+        if (args.length != 2) {
+            System.err.println("Usage: MapCompiler <source map> <compiled map>");
+            System.exit(2);
+        }
+        try {
+            long start = System.nanoTime();
+            int walls = compile(new File(args[0]), new File(args[1]));
+            System.out.println("Compiled " + walls + " walls to " + args[1] + " in "
+                    + (System.nanoTime() - start) / 1000000 + " ms");
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    /**
+     * @param source the source map
+     * @param output where to write the compiled map, replacing any file there
+     * @return the number of walls compiled
+     * @throws IOException if the source couldn't be read or is malformed, or the output couldn't
+     *         be written
+     */
+    public static int compile(File source, File output) throws IOException {
+        int width = -1;
+        int height = -1;
+        List<WallSegment> walls = new ArrayList<WallSegment>();
+        BufferedReader in =
+                new BufferedReader(new InputStreamReader(new FileInputStream(source), "UTF-8"));
+        try {
+            int lineNumber = 0;
+            String line;
+            while ((line = in.readLine()) != null) {
+                lineNumber++;
+                int comment = line.indexOf('#');
+                String[] words = (comment >= 0 ? line.substring(0, comment) : line).trim()
+                        .split("\\s+");
+                if (words[0].length() == 0) {
+                    continue;
+                }
+                try {
+                    if (words[0].equals("size") && words.length == 3 && width < 0) {
+                        width = Integer.parseInt(words[1]);
+                        height = Integer.parseInt(words[2]);
+                        if (width <= 0 || height <= 0) {
+                            throw new NumberFormatException("size must be positive");
+                        }
+                    } else if (words[0].equals("wall") && words.length == 5) {
+                        walls.add(new WallSegment(walls.size(), Integer.parseInt(words[1]),
+                                Integer.parseInt(words[2]), Integer.parseInt(words[3]),
+                                Integer.parseInt(words[4])));
+                    } else {
+                        throw new IOException(source + ":" + lineNumber + ": can't understand '"
+                                + line.trim() + "'");
+                    }
+                } catch (NumberFormatException e) {
+                    throw new IOException(source + ":" + lineNumber + ": " + e.getMessage());
+                }
+            }
+        } finally {
+            in.close();
+        }
+        if (width < 0) {
+            throw new IOException(source + " has no size");
+        }
+        write(width, height, walls, output);
+        return walls.size();
+    }
+
+    /**
+     * Write a compiled map. The file is written next to the output and then renamed over it, so
+     * a game that has the old one mapped keeps reading a whole file.
+     *
+     * @param width width of the level
+     * @param height height of the level
+     * @param walls the level's walls
+     * @param output where to write the compiled map, replacing any file there
+     * @throws IOException if the file couldn't be written
+     */
+    public static void write(int width, int height, List<WallSegment> walls, File output)
+            throws IOException {
+        int cellSize = SpatialIndex.DEFAULT_CELL_SIZE;
+        int n = walls.size();
+
+        // Sort the walls into the buckets their bounding boxes start in, keeping their order
+        int minColumn = 0;
+        int minRow = 0;
+        int columns = 0;
+        int rows = 0;
+        int[] columnOf = new int[n];
+        int[] rowOf = new int[n];
+        if (n > 0) {
+            int maxColumn = Integer.MIN_VALUE;
+            int maxRow = Integer.MIN_VALUE;
+            minColumn = Integer.MAX_VALUE;
+            minRow = Integer.MAX_VALUE;
+            for (int i = 0; i < n; i++) {
+                WallSegment wall = walls.get(i);
+                columnOf[i] = (int) Math.floor(wall.x / (double) cellSize);
+                rowOf[i] = (int) Math.floor(wall.y / (double) cellSize);
+                minColumn = Math.min(minColumn, columnOf[i]);
+                minRow = Math.min(minRow, rowOf[i]);
+                maxColumn = Math.max(maxColumn, columnOf[i]);
+                maxRow = Math.max(maxRow, rowOf[i]);
+            }
+            columns = maxColumn - minColumn + 1;
+            rows = maxRow - minRow + 1;
+        }
+        int[] starts = new int[columns * rows + 1];
+        for (int i = 0; i < n; i++) {
+            starts[(rowOf[i] - minRow) * columns + columnOf[i] - minColumn + 1]++;
+        }
+        for (int b = 0; b < columns * rows; b++) {
+            starts[b + 1] += starts[b];
+        }
+        int[] next = starts.clone();
+        WallSegment[] sorted = new WallSegment[n];
+        for (int i = 0; i < n; i++) {
+            sorted[next[(rowOf[i] - minRow) * columns + columnOf[i] - minColumn]++] = walls.get(i);
+        }
+
+        File temporary = new File(output.getPath() + ".tmp");
+        DataOutputStream out =
+                new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)));
+        try {
+            out.writeInt(CompiledMap.MAGIC);
+            out.writeInt(CompiledMap.VERSION);
+            out.writeInt(width);
+            out.writeInt(height);
+            out.writeInt(n);
+            out.writeInt(cellSize);
+            out.writeInt(minColumn);
+            out.writeInt(minRow);
+            out.writeInt(columns);
+            out.writeInt(rows);
+            for (WallSegment wall : sorted) {
+                out.writeInt(wall.id);
+            }
+            for (WallSegment wall : sorted) {
+                out.writeInt(wall.x1);
+            }
+            for (WallSegment wall : sorted) {
+                out.writeInt(wall.y1);
+            }
+            for (WallSegment wall : sorted) {
+                out.writeInt(wall.x2);
+            }
+            for (WallSegment wall : sorted) {
+                out.writeInt(wall.y2);
+            }
+            for (int start : starts) {
+                out.writeInt(start);
+            }
+        } finally {
+            out.close();
+        }
+        if (!temporary.renameTo(output)) {
+            temporary.delete();
+            throw new IOException("Can't replace " + output);
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package fow.dmserver;
+
+import java.util.EnumMap;
+
+import fow.common.IntMap;
+import fow.common.TraceContext;
+import fow.common.TraceContext.Hop;
+import fow.common.TraceContext.Stage;
+import fow.common.TraceSummary;
+
+/**
+ * Follows each player's traced move through the server: from its request, through the DM's
+ * approval and the update that carries it out, to the player acknowledging that update with when
+ * it was applied. The trace is then complete, and the time it spent in each stage is recorded.
+ *
+ * A player has at most one move in each step. A newer request replaces an older one the DM hasn't
+ * decided on, and a move whose update was dropped or never acknowledged is replaced by the
+ * player's next one.
+ *
+ * Moves are followed on the server's thread only. The loop stamps BROADCAST_WRITTEN from its own
+ * thread, before it reads the acknowledgment that hands the trace back. The stats can be read from
+ * any thread.
+ */
+public class MoveTraces {
+
+    private static final Stage[] STAGES = Stage.values();
+
+    /* Moves by player ID: waiting for the DM, waiting for their update, and sent */
+    private final IntMap<TraceContext> requested = new IntMap<TraceContext>();
+    private final IntMap<TraceContext> approved = new IntMap<TraceContext>();
+    private final IntMap<TraceContext> sent = new IntMap<TraceContext>();
+
+    /* By stage ordinal */
+    private final LatencyStats[] stats = new LatencyStats[STAGES.length];
+
+    public MoveTraces() {
+        for (int i = 0; i < stats.length; i++) {
+            stats[i] = new LatencyStats();
+        }
+    }
+
+    /**
+     * A player asked to move.
+     *
+     * @param player the player
+     * @param trace the request's trace
+     */
+    public void requested(final int player, final TraceContext trace) {
+        requested.put(player, trace);
+    }
+
+    /**
+     * The DM moved a player where it asked to go. Its move now waits for its update.
+     *
+     * @param player the player
+     */
+    public void approved(final int player) {
+        final TraceContext trace = requested.remove(player);
+        if (trace != null) {
+            trace.stamp(Hop.DM_APPROVED);
+            approved.put(player, trace);
+        }
+    }
+
+    /**
+     * The DM moved a player somewhere other than it asked, or didn't let it move. Its move isn't
+     * followed any further.
+     *
+     * @param player the player
+     */
+    public void denied(final int player) {
+        requested.remove(player);
+    }
+
+    /**
+     * Take a player's approved move to send with its next update, which must already carry it
+     * out.
+     *
+     * @param player the player
+     * @return the move's trace, or null if the player has no approved move
+     */
+    public TraceContext send(final int player) {
+        final TraceContext trace = approved.remove(player);
+        if (trace != null) {
+            sent.put(player, trace);
+        }
+        return trace;
+    }
+
+    /**
+     * A player acknowledged an update that carried a traced move. If it's the move the player was
+     * last sent, the trace is complete and its stages are recorded.
+     *
+     * @param player the player
+     * @param echo the trace as the player sent it back, with when the update was applied
+     */
+    public void applied(final int player, final TraceContext echo) {
+        final TraceContext trace = sent.get(player);
+        if (trace == null || trace.getId() != echo.getId()) {
+            return;
+        }
+        sent.remove(player);
+        trace.merge(echo);
+        for (final Stage stage : STAGES) {
+            final long nanos = trace.getNanos(stage);
+            if (nanos >= 0) {
+                stats[stage.ordinal()].record(nanos, false);
+            }
+        }
+    }
+
+    /**
+     * Stop following a player's moves, e.g. because it disconnected.
+     *
+     * @param player the player
+     */
+    public void forget(final int player) {
+        requested.remove(player);
+        approved.remove(player);
+        sent.remove(player);
+    }
+
+    public LatencyStats getStats(final Stage stage) {
+        return stats[stage.ordinal()];
+    }
+
+    /**
+     * @return the stats of every stage
+     */
+    public EnumMap<Stage, LatencyStats> getAllStats() {
+        final EnumMap<Stage, LatencyStats> all = new EnumMap<Stage, LatencyStats>(Stage.class);
+        for (final Stage stage : STAGES) {
+            all.put(stage, stats[stage.ordinal()]);
+        }
+        return all;
+    }
+
+    /**
+     * @return the stats of every stage as they are sent to the DM
+     */
+    public TraceSummary getSummary() {
+        final long[] counts = new long[STAGES.length];
+        final long[] p50 = new long[STAGES.length];
+        final long[] p99 = new long[STAGES.length];
+        final long[] max = new long[STAGES.length];
+        for (int i = 0; i < STAGES.length; i++) {
+            counts[i] = stats[i].getCount();
+            p50[i] = stats[i].getPercentileNanos(0.5);
+            p99[i] = stats[i].getPercentileNanos(0.99);
+            max[i] = stats[i].getMaxNanos();
+        }
+        return new TraceSummary(counts, p50, p99, max);
+    }
+}
@@ -1,11 +1,20 @@
 package fow.dmserver;
 
-import com.badlogic.gdx.net.Socket;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 
+import fow.common.IntMap;
 import fow.common.MoveRequest;
 import fow.common.NetworkEvent;
 import fow.common.NetworkEvent.Type;
+import fow.common.NetworkEventCodec;
+import fow.common.PositionTuple;
+import fow.common.VisibilityDelta;
 import fow.common.VisibilityLayer;
+import fow.dmserver.VisibilitySession.JoinSnapshot;
+import fow.dmserver.VisibilitySession.SharedDeltas;
 
 /**
  * Helper class to keep event processing code separate from the server code. This class and Server
@@ -20,14 +29,133 @@ public class NetworkEventHandler {
 
     private final GameState state;
 
+    /*
+     * What each confirmed client knows about its visibilities, keyed by account ID
+     */
+    private final IntMap<VisibilitySession> sessions = new IntMap<VisibilitySession>();
+
+    /*
+     * Deltas computed for the current version of the game, shared between clients, along with the
+     * states of the layers they were computed from. Those are kept until their layer changes.
+     */
+    private SharedDeltas sharedDeltas = new SharedDeltas(VisibilityDelta.NO_VERSION);
+
+    /*
+     * Whole layers for clients that have nothing yet, encoded once per version of the game
+     */
+    private JoinSnapshot joinSnapshot = new JoinSnapshot(VisibilityDelta.NO_VERSION);
+
+    /*
+     * The DM's pending requests, encoded once per change to them. Null until they're next sent.
+     */
+    private ByteBuffer requestsFrame;
+
     private boolean debug;
 
+    /*
+     * Where the game's changes are recorded, or null if they aren't
+     */
+    private GameJournal journal;
+
+    /*
+     * The handler for each type of event the server receives
+     */
+    private final EventDispatcher dispatcher = new EventDispatcher();
+
+    /*
+     * The players' traced moves, and how long they spent in each stage
+     */
+    private final MoveTraces traces = new MoveTraces();
+
     public NetworkEventHandler(final Server server, final boolean debug) {
         this.server = server;
         this.debug = debug;
 
         // TODO how to initialize
         state = new GameState(Constants.DEFAULT_LEVEL_WIDTH, Constants.DEFAULT_LEVEL_HEIGHT);
+        String journalDirectory = System.getProperty(Constants.JOURNAL_DIRECTORY_PROPERTY);
+        // A journaled game keeps its archive with the journal, so it is there when restored
+        File archiveDirectory = journalDirectory != null
+                ? new File(journalDirectory, "paths")
+                : new File(Constants.PATH_ARCHIVE_DIRECTORY,
+                        Long.toString(System.currentTimeMillis()));
+        state.setPathRetention(new PathRetention(new PathArchive(archiveDirectory)));
+
+        String map = System.getProperty(Constants.MAP_FILE_PROPERTY);
+        if (map != null) {
+            try {
+                state.loadMapFromFile(new File(map));
+            } catch (IOException e) {
+                // Carry on with the empty level
+                e.printStackTrace();
+            }
+        }
+
+        if (journalDirectory != null) {
+            journal = new GameJournal(new File(journalDirectory));
+            try {
+                int replayed = journal.open(state);
+                System.out.println("Restored " + state.getPlayers().size() + " players from "
+                        + journalDirectory + ", replayed " + replayed + " changes");
+            } catch (IOException e) {
+                // Carry on without a journal
+                e.printStackTrace();
+                journal = null;
+            }
+        }
+
+        registerHandlers();
+    }
+
+    private void registerHandlers() {
+        dispatcher.register(Type.NEW_CONNECTION, new EventDispatcher.Handler() {
+            @Override
+            public void handle(final NetworkEvent e) {
+                handleNewConnection(e);
+            }
+        });
+        dispatcher.register(Type.IDENTIFY, new EventDispatcher.Handler() {
+            @Override
+            public void handle(final NetworkEvent e) {
+                handleIdentify(e);
+            }
+        });
+        dispatcher.register(Type.IDLE, new EventDispatcher.Handler() {
+            @Override
+            public void handle(final NetworkEvent e) {
+                handleIdle(e);
+            }
+        });
+        dispatcher.register(Type.DISCONNECT, new EventDispatcher.Handler() {
+            @Override
+            public void handle(final NetworkEvent e) {
+                handleDisconnect(e);
+            }
+        });
+        dispatcher.register(Type.REQUEST_MOVE, new EventDispatcher.Handler() {
+            @Override
+            public void handle(final NetworkEvent e) {
+                handleRequestMove(e);
+            }
+        });
+        dispatcher.register(Type.ACK_VISIBILITY, new EventDispatcher.Handler() {
+            @Override
+            public void handle(final NetworkEvent e) {
+                handleAckVisibility(e);
+            }
+        });
+        dispatcher.register(Type.PATH_HISTORY, new EventDispatcher.Handler() {
+            @Override
+            public void handle(final NetworkEvent e) {
+                handlePathHistory(e);
+            }
+        });
+        dispatcher.register(Type.TRACE_STATS, new EventDispatcher.Handler() {
+            @Override
+            public void handle(final NetworkEvent e) {
+                handleTraceStats(e);
+            }
+        });
     }
 
     public NetworkEventHandler(final Server server) {
@@ -35,24 +163,34 @@ public class NetworkEventHandler {
     }
 
     /**
-     * Parses each event and handles it appropriately.
+     * Hands each event to the handler for its type. Events nobody handles are reported and
+     * dropped.
      * 
      * @param e The event to be handled
      */
     protected void handleEvent(final NetworkEvent e) {
-        if (e.getType().equals(Type.NEW_CONNECTION)) {
-            handleNewConnection(e);
-        } else if (e.getType().equals(Type.IDENTIFY)) {
-            handleIdentify(e);
-        } else if (e.getType().equals(Type.IDLE)) {
-            handleIdle(e);
-        } else if (e.getType().equals(Type.DISCONNECT)) {
-            handleDisconnect(e);
-        } else if (e.getType().equals(Type.REQUEST_MOVE)) {
-            handleRequestMove(e);
-        } else {
-            // TODO print error? crash?
-        }
+        dispatcher.dispatch(e);
+    }
+
+    /**
+     * @return what handles the events, with the count and timing of each type
+     */
+    public EventDispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+    /**
+     * @return the players' traced moves, with how long they spent in each stage
+     */
+    public MoveTraces getTraces() {
+        return traces;
+    }
+
+    /**
+     * @return the state of the game being played
+     */
+    GameState getState() {
+        return state;
     }
 
     /**
@@ -63,28 +201,21 @@ public class NetworkEventHandler {
      *        connect
      */
     private void handleNewConnection(final NetworkEvent newConnectionEvent) {
-        final Socket clientSocket = (Socket) newConnectionEvent.getData();
-        final int tempClientId = getTemporaryClientId();
+        final SocketChannel clientChannel = (SocketChannel) newConnectionEvent.getData();
+        final int tempClientId = server.connections.allocateId();
         if (tempClientId >= 0) {
             final ClientConnection clientConnection =
-                    new ClientConnection(server, clientSocket, tempClientId, debug);
-            server.unconfirmedClientConnections.put(tempClientId, clientConnection);
+                    new ClientConnection(server, clientChannel, tempClientId, debug);
+            server.connections.putUnconfirmed(tempClientId, clientConnection);
             clientConnection.sendEvent(new NetworkEvent(Type.IDENTIFY, tempClientId));
-        } // this should never happen, have to more than Integer.MAX_VAL clients
-    }
-
-    /**
-     * Gets a temporary id used for identifying unconfirmed connections.
-     * 
-     * @return The temporary id or -1 if there are too many clients trying to connect
-     */
-    private int getTemporaryClientId() {
-        for (int i = 0; i < Integer.MAX_VALUE; i++) {
-            if (!server.confirmedClientConnections.containsKey(i)) {
-                return i;
+        } else {
+            // Only happens with ConnectionRegistry.MAX_UNCONFIRMED clients mid-handshake
+            try {
+                clientChannel.close();
+            } catch (final IOException e) {
+                e.printStackTrace();
             }
         }
-        return -1;
     }
 
     /**
@@ -99,46 +230,49 @@ public class NetworkEventHandler {
         final Integer accountId = ((Integer) ids[1]);
 
         if (!server.isFull()) {
-            if (server.confirmedClientConnections.containsKey(accountId)) {
+            if (server.connections.isConfirmed(accountId)) {
                 final ClientConnection clientConnection =
-                        server.unconfirmedClientConnections.get(tempClientId);
+                        server.connections.getUnconfirmed(tempClientId);
                 if (clientConnection != null) {
                     clientConnection.sendEvent(new NetworkEvent(Type.DUPLICATE_ACCOUNT, null));
                     clientConnection.kill();
                 }
             } else {
                 final ClientConnection clientConnection =
-                        server.unconfirmedClientConnections.remove(tempClientId);
+                        server.connections.removeUnconfirmed(tempClientId);
                 if (clientConnection != null) {
                     // TODO this is a bit of a hack, first player who joins is the DM
                     if (state.getDmId() < 0 || state.getDmId() == accountId.intValue()) {
                         System.out.println("DM joined with account id " + accountId);
                         state.setDmId(accountId);
                         server.confirmClient(clientConnection, accountId, true);
+                        sessions.put(accountId, new VisibilitySession());
 
                         // Send the DM the current visibilities
-                        sendEventToDm(new NetworkEvent(Type.UPDATE_VISIBILITY,
-                                state.getPlayerVisibilities()));
+                        sendVisibilityUpdate(clientConnection);
 
                         // Send the DM any pending move requests
-                        sendEventToDm(new NetworkEvent(Type.REQUEST_MOVE, state.pendingRequests));
+                        sendPendingRequests();
                     } else {
                         System.out.println("PC joined with account id " + accountId);
                         server.confirmClient(clientConnection, accountId, false);
+                        sessions.put(accountId, new VisibilitySession());
 
-                        // If this is a new player, add it to the game state
+                        // If this is a new player, add it to the game state. Everyone's
+                        // visibilities are updated on the next tick.
                         if (!state.containsPlayer(accountId)) {
                             state.addNewPlayer(accountId);
+                        } else {
+                            // A returning player just needs to catch up
+                            sendVisibilityUpdate(clientConnection);
                         }
-                        // Since a new player joined, we want to update everyone's visibilities
-                        sendAllVisibilityUpdates();
                     }
                 } // else some client is doing something weird
             }
         } else {
             // Max number of clients reached for this server
             final ClientConnection clientConnection =
-                    server.unconfirmedClientConnections.get(tempClientId);
+                    server.connections.getUnconfirmed(tempClientId);
             if (clientConnection != null) {
                 clientConnection.sendEvent(new NetworkEvent(Type.SERVER_FULL, null));
                 clientConnection.kill();
@@ -158,7 +292,7 @@ public class NetworkEventHandler {
         final Integer id = (Integer) identity[1];
 
         if (confirmed) {
-            final ClientConnection clientConnection = server.confirmedClientConnections.get(id);
+            final ClientConnection clientConnection = server.connections.getConfirmed(id);
             if (clientConnection != null) {
                 clientConnection.sendEvent(new NetworkEvent(Type.PING, null));
             }
@@ -178,43 +312,67 @@ public class NetworkEventHandler {
         final Integer id = (Integer) identity[1];
         final ClientConnection clientConnection =
                 confirmed
-                        ? server.confirmedClientConnections.remove(id)
-                        : server.unconfirmedClientConnections.remove(id);
+                        ? server.connections.removeConfirmed(id)
+                        : server.connections.removeUnconfirmed(id);
         if (clientConnection != null) {
             clientConnection.kill();
+            if (confirmed) {
+                sessions.remove(id);
+                traces.forget(id);
+            }
         }
 
     }
 
     /**
      * Handles a PC app's request to move. The move request may be to move any character to any
-     * position.
+     * position. A PC asking to move through a wall is told it stays where it is, and any request
+     * it had waiting for the DM is dropped, since its app has given up on it.
      * 
      * @param e The event holding a request to move one character to a given location
      */
     private void handleRequestMove(final NetworkEvent e) {
         MoveRequest move = (MoveRequest) e.getData();
         if (e.getAccountId() == state.getDmId()) {
-            // DM can move anybody
-            state.getPlayer(move.getId()).changePosition(move.getMoveLocation());
-            
-            // Recompute all visibilities since a player has been moved
-            state.recomputeAllVisibilities();
+            if (!state.containsPlayer(move.getId())) {
+                return;
+            }
+            // DM can move anybody. Visibilities are recomputed and sent on the next tick, together
+            // with any other moves made before then.
+            final PositionTuple asked = state.getPendingRequests().get(move.getId());
+            state.movePlayer(move.getId(), move.getMoveLocation());
+
+            // A move the player asked for is followed on to the player, anything else ends it
+            final PositionTuple to = move.getMoveLocation();
+            if (asked != null && asked.x == to.x && asked.y == to.y) {
+                traces.approved(move.getId());
+            } else {
+                traces.denied(move.getId());
+            }
             
             // Remove this or any other pending requests for this player
-            state.pendingRequests.remove(move.getId());
+            state.removePendingRequest(move.getId());
+            requestsFrame = null;
 
             // Let DM know the request has been handled
-            sendEventToDm(new NetworkEvent(Type.REQUEST_MOVE, state.pendingRequests));
-            
-            // Let everyone know of the new visibilities
-            sendAllVisibilityUpdates();
+            sendPendingRequests();
         } else if (e.getAccountId() == move.getId()){
-            // player is requesting to move itself
-            state.pendingRequests.put(e.getAccountId(), move.getMoveLocation());
+            // player is requesting to move itself, which it can't do through a wall
+            if (!state.containsPlayer(move.getId())) {
+                return;
+            }
+            if (!state.canMove(move.getId(), move.getMoveLocation())) {
+                denyMove(move.getId());
+                return;
+            }
+            state.addPendingRequest(e.getAccountId(), move.getMoveLocation());
+            requestsFrame = null;
+            if (e.getTrace() != null) {
+                traces.requested(move.getId(), e.getTrace());
+            }
 
             // If DM is connected, let them know of the new request
-            sendEventToDm(new NetworkEvent(Type.REQUEST_MOVE, state.pendingRequests));
+            sendPendingRequests();
         } else {
             // player requesting to move someone else, currently not allowed
             // in the future this could allow for moving familiars, etc
@@ -222,51 +380,230 @@ public class NetworkEventHandler {
     }
 
     /**
-     * For every client that is currently connected, send them their most up-to-date visibility. If
-     * the DM is connected, send him all of the updates
+     * Tell a PC its move was denied and where it still is, so its app can put it back there.
+     * 
+     * @param id The ID of the player whose move was denied
+     */
+    private void denyMove(final int id) {
+        traces.denied(id);
+        if (state.getPendingRequests().get(id) != null) {
+            state.removePendingRequest(id);
+            requestsFrame = null;
+            sendPendingRequests();
+        }
+        final ClientConnection client = server.connections.getConfirmed(id);
+        if (client != null) {
+            client.sendEvent(new NetworkEvent(Type.REQUEST_MOVE, new MoveRequest(id, state
+                    .getPlayer(id).getCurrentPosition())));
+        }
+    }
+
+    /**
+     * Handles a client acknowledging the visibility updates it has applied. Later deltas are built
+     * on the acknowledged version. If the client couldn't apply an update, it is sent its whole
+     * visibility again.
+     * 
+     * @param e The event holding the version the client now has
+     */
+    private void handleAckVisibility(final NetworkEvent e) {
+        if (e.getTrace() != null) {
+            traces.applied(e.getAccountId(), e.getTrace());
+        }
+        final VisibilitySession session = sessions.get(e.getAccountId());
+        if (session != null && session.acknowledge((Integer) e.getData())) {
+            final ClientConnection client = server.connections.getConfirmed(e.getAccountId());
+            if (client != null) {
+                sendVisibilityUpdate(client);
+            }
+        }
+    }
+
+    /**
+     * Handles a request for a player's whole path. The DM can ask for anybody's, a PC only for its
+     * own.
+     * 
+     * @param e The event holding the ID of the player whose path to send
+     */
+    private void handlePathHistory(final NetworkEvent e) {
+        final int id = (Integer) e.getData();
+        if ((e.getAccountId() != state.getDmId() && e.getAccountId() != id)
+                || !state.containsPlayer(id)) {
+            return;
+        }
+        final ClientConnection client = server.connections.getConfirmed(e.getAccountId());
+        if (client == null) {
+            return;
+        }
+        try {
+            client.sendEvent(new NetworkEvent(Type.PATH_HISTORY, state.getPathHistory(id)));
+        } catch (final IOException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * Handles the DM asking how long moves spend in each stage.
+     * 
+     * @param e The event asking for the stats
+     */
+    private void handleTraceStats(final NetworkEvent e) {
+        if (e.getAccountId() != state.getDmId()) {
+            return;
+        }
+        final ClientConnection client = server.connections.getConfirmed(e.getAccountId());
+        if (client != null) {
+            client.sendEvent(new NetworkEvent(Type.TRACE_STATS, traces.getSummary()));
+        }
+    }
+
+    /**
+     * @return whether there are changes to the game that clients haven't been sent yet
+     */
+    protected boolean hasPendingUpdates() {
+        return state.hasDirtyVisibilities();
+    }
+
+    /**
+     * Recomputes the visibilities changed since the last tick and sends every client its update.
+     * Called by the server once per tick.
+     * 
+     * @return the number of changes that were coalesced into this update
+     */
+    protected int flushVisibilityUpdates() {
+        int changes = state.recomputeDirtyVisibilities();
+        if (changes > 0) {
+            sendAllVisibilityUpdates();
+        }
+        if (journal != null && journal.isSnapshotDue()) {
+            journal.snapshot(state);
+        }
+        return changes;
+    }
+
+    /**
+     * Release what the game holds on to once the server stops handling events.
+     */
+    protected void shutdown() {
+        if (debug) {
+            System.out.println("handled events: " + dispatcher.getAllStats());
+        }
+        state.shutdown();
+        if (journal != null) {
+            journal.close();
+        }
+    }
+
+    /**
+     * For every client that is currently connected, send them what changed in their visibility. If
+     * the DM is connected, send him all of the changes
      */
     private void sendAllVisibilityUpdates() {
-        // Send updates to every active client (skipping the DM)
-        for (ClientConnection client : server.confirmedClientConnections.values()) {
-            if (!client.isDm()) {
-                VisibilityLayer vl = state.getPlayerVisibility(client.getId());
-                client.sendEvent(new NetworkEvent(Type.UPDATE_VISIBILITY, vl));
+        for (ClientConnection client : server.connections.getConfirmedConnections()) {
+            sendVisibilityUpdate(client);
+        }
+    }
+
+    /**
+     * Send a client the changes to its visibility since the last version it acknowledged, if there
+     * are any it hasn't been sent yet. The DM gets the changes to every player's visibility. A
+     * client that has nothing yet is sent the join snapshot.
+     * 
+     * @param client The confirmed client to update
+     */
+    private void sendVisibilityUpdate(final ClientConnection client) {
+        final VisibilitySession session = sessions.get(client.getId());
+        if (session == null) {
+            return;
+        }
+        if (session.isEmpty()) {
+            sendJoinSnapshot(client, session);
+            return;
+        }
+        SharedDeltas shared = getSharedDeltas();
+        if (client.isDm()) {
+            IntMap<VisibilityDelta> deltas = session.update(state.getPlayerVisibilities(), shared);
+            if (!deltas.isEmpty()) {
+                client.sendEvent(new NetworkEvent(Type.UPDATE_VISIBILITY, deltas));
+            }
+        } else if (state.containsPlayer(client.getId())) {
+            VisibilityDelta delta =
+                    session.update(client.getId(), state.getPlayerVisibility(client.getId()),
+                            shared);
+            if (delta != null) {
+                final NetworkEvent update = new NetworkEvent(Type.UPDATE_VISIBILITY, delta);
+                // An approved move is only in the update once it has been recomputed
+                if (!state.hasDirtyVisibilities()) {
+                    update.setTrace(traces.send(client.getId()));
+                }
+                client.sendEvent(update);
             }
         }
+    }
 
-        // If the DM is connected, send an update with all visibilities
-        sendEventToDm(new NetworkEvent(Type.UPDATE_VISIBILITY, state.getPlayerVisibilities()));
+    /**
+     * @return the deltas shared between clients at the current version of the game. Clients updated
+     *         while visibilities are dirty, e.g. on joining, don't share them, since the layers can
+     *         change in between.
+     */
+    private SharedDeltas getSharedDeltas() {
+        if (sharedDeltas.getVersion() != state.getVersion() || state.hasDirtyVisibilities()) {
+            sharedDeltas = new SharedDeltas(state.getVersion(), sharedDeltas);
+        }
+        return sharedDeltas;
     }
 
     /**
-     * Tries to send an event to the DM app
-     * @param event
-     * @return false if DM is not currently connected
+     * Send a client that has nothing whole layers from the join snapshot, which is rebuilt only
+     * once the game has changed since it was made. Every client joining in between is sent the
+     * same encoded frame.
+     * 
+     * @param client The confirmed client to update
+     * @param session The client's empty session
      */
-    private boolean sendEventToDm(NetworkEvent event) {
-        if (server.confirmedClientConnections.containsKey(state.getDmId())) {
-            ClientConnection dmClient = server.confirmedClientConnections.get(state.getDmId());
-            dmClient.sendEvent(event);
-            return true;
-        } else {
-            return false;
+    private void sendJoinSnapshot(final ClientConnection client, final VisibilitySession session) {
+        if (joinSnapshot.getVersion() != state.getVersion()) {
+            joinSnapshot = new JoinSnapshot(getSharedDeltas());
+        }
+        try {
+            if (client.isDm()) {
+                IntMap<VisibilityLayer> layers = state.getPlayerVisibilities();
+                if (!layers.isEmpty()) {
+                    client.sendFrame(Type.UPDATE_VISIBILITY, joinSnapshot.getDmFrame(layers));
+                    session.joined(layers, joinSnapshot);
+                }
+            } else if (state.containsPlayer(client.getId())) {
+                int id = client.getId();
+                IntMap<VisibilityLayer> own = new IntMap<VisibilityLayer>(1);
+                own.put(id, state.getPlayerVisibility(id));
+                client.sendFrame(Type.UPDATE_VISIBILITY,
+                        joinSnapshot.getPlayerFrame(id, own.get(id)));
+                session.joined(own, joinSnapshot);
+            }
+        } catch (final IOException e) {
+            // Only happens for layers that have no wire form
+            e.printStackTrace();
         }
     }
-    
+
     /**
-     * Tries to send an event to all of the PC apps
-     * @param event
-     * @return false if no PC apps are currently connected
+     * Send the DM the pending move requests, encoding them only if they changed since they were
+     * last sent.
      */
-    private boolean sendEventToPlayers(NetworkEvent event) {
-        boolean foundPlayer = false;
-        for (ClientConnection client : server.confirmedClientConnections.values()) {
-            if (!client.isDm()) {
-                foundPlayer = true;
-                client.sendEvent(event);
+    private void sendPendingRequests() {
+        ClientConnection dmClient = server.connections.getConfirmed(state.getDmId());
+        if (dmClient == null) {
+            return;
+        }
+        if (requestsFrame == null) {
+            try {
+                requestsFrame = NetworkEventCodec.encodeShared(new NetworkEvent(Type.REQUEST_MOVE,
+                        state.pendingRequests));
+            } catch (final IOException e) {
+                e.printStackTrace();
+                return;
             }
         }
-        return foundPlayer;
+        dmClient.sendFrame(Type.REQUEST_MOVE, requestsFrame);
     }
 
 }
@@ -0,0 +1,97 @@
+package fow.dmserver;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Keeps the positions that players' paths no longer hold in full, one file per player. Each file
+ * is the player's old positions, oldest first, as pairs of big-endian ints, appended to as more of
+ * the path is simplified.
+ */
+public class PathArchive {
+
+    private final File directory;
+
+    /**
+     * @param directory where to keep the files. Created when first written to. It should be used
+     *        by one game only, since player IDs are reused between games.
+     */
+    public PathArchive(File directory) {
+        this.directory = directory;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Write positions into a player's archived path, replacing whatever was archived from that
+     * point on. Writing the same positions at the same offset again, as replaying a journal does,
+     * leaves the archive as it was.
+     *
+     * @param id the player's ID
+     * @param offset how many of the player's archived positions come before these. If fewer are
+     *        archived, because the archive lost some, the positions go at the end.
+     * @param path positions as x, y pairs, oldest first
+     * @param from index of the first position to archive
+     * @param to index after the last position to archive
+     * @return how many positions the player has archived now
+     * @throws IOException if the positions couldn't all be written
+     */
+    public long write(int id, long offset, int[] path, int from, int to) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can't create " + directory);
+        }
+        RandomAccessFile file = new RandomAccessFile(file(id), "rw");
+        try {
+            long start = Math.min(offset, file.length() / 8);
+            file.setLength(start * 8);
+            file.seek(start * 8);
+            ByteBuffer bytes = ByteBuffer.allocate((to - from) * 8);
+            bytes.asIntBuffer().put(path, from * 2, (to - from) * 2);
+            file.write(bytes.array());
+            return start + to - from;
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * @param id the player's ID
+     * @return the player's archived positions as x, y pairs, oldest first. Empty if none were
+     *         archived.
+     * @throws IOException if the archive couldn't be read
+     */
+    public int[] read(int id) throws IOException {
+        File file = file(id);
+        if (!file.exists()) {
+            return new int[0];
+        }
+        int[] path = new int[(int) (file.length() / 8) * 2];
+        DataInputStream in =
+                new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        int n = 0;
+        try {
+            while (n < path.length) {
+                path[n++] = in.readInt();
+            }
+        } catch (EOFException e) {
+            // Cut short by a write that failed part way, keep the whole positions before it
+            n -= 1 + (n - 1) % 2;
+        } finally {
+            in.close();
+        }
+        return n == path.length ? path : Arrays.copyOf(path, n);
+    }
+
+    private File file(int id) {
+        return new File(directory, id + ".path");
+    }
+}
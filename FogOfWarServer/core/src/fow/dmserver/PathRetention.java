@@ -0,0 +1,215 @@
+package fow.dmserver;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import fow.common.PlayerState;
+
+/**
+ * Bounds how much of each player's path is kept in memory and sent to clients. The newest
+ * positions are kept as they are. Older ones are archived to disk and then simplified with the
+ * Douglas-Peucker algorithm, which keeps only the positions that stray more than a tolerance from
+ * the line through the ones around them. Once even the simplified part grows too long, its oldest
+ * positions are dropped; they are still in the archive.
+ *
+ * Simplifying rewrites positions clients already have, so each time a player's path is simplified
+ * its clients are sent the whole path again. The newest positions are simplified in batches to
+ * keep that rare.
+ */
+public class PathRetention {
+
+    /** Default number of newest positions kept as they are */
+    public static final int DEFAULT_FULL_POSITIONS = 256;
+
+    /** Default distance a position can be from the simplified path before it has to be kept */
+    public static final double DEFAULT_TOLERANCE = 8;
+
+    /** Default number of simplified positions kept before the oldest are dropped */
+    public static final int DEFAULT_MAX_SIMPLIFIED_POSITIONS = 512;
+
+    private final PathArchive archive;
+    private final int fullPositions;
+    private final double tolerance;
+    private final int maxSimplifiedPositions;
+
+    /* How many of each player's oldest positions are already simplified, by player ID */
+    private final HashMap<Integer, Integer> simplified = new HashMap<Integer, Integer>();
+
+    /* How many positions each player has archived, by player ID */
+    private final HashMap<Integer, Long> archived = new HashMap<Integer, Long>();
+
+    /**
+     * @param archive where positions are kept before they are simplified
+     * @param fullPositions how many of the newest positions to keep as they are
+     * @param tolerance how far, in level units, the simplified path may be from the original
+     * @param maxSimplifiedPositions how many simplified positions to keep
+     */
+    public PathRetention(PathArchive archive, int fullPositions, double tolerance,
+            int maxSimplifiedPositions) {
+        if (fullPositions < 1 || tolerance < 0 || maxSimplifiedPositions < 0) {
+            throw new IllegalArgumentException();
+        }
+        this.archive = archive;
+        this.fullPositions = fullPositions;
+        this.tolerance = tolerance;
+        this.maxSimplifiedPositions = maxSimplifiedPositions;
+    }
+
+    /**
+     * @param archive where positions are kept before they are simplified
+     */
+    public PathRetention(PathArchive archive) {
+        this(archive, DEFAULT_FULL_POSITIONS, DEFAULT_TOLERANCE, DEFAULT_MAX_SIMPLIFIED_POSITIONS);
+    }
+
+    /**
+     * Simplify a player's path if it has gathered a batch of positions beyond the ones kept as
+     * they are. Nothing is simplified unless it was archived first.
+     *
+     * @param player the player whose path to check, just after it moved
+     * @return whether the path was changed
+     */
+    public boolean apply(PlayerState player) {
+        int length = player.getPathLength();
+        int start = getSimplifiedLength(player.id);
+        if (length - start <= fullPositions + fullPositions / 4) {
+            return false;
+        }
+        int end = length - fullPositions;
+        int[] path = player.copyPath(0, length, length);
+        try {
+            archived.put(player.id,
+                    archive.write(player.id, getArchivedLength(player.id), path, start, end));
+        } catch (IOException e) {
+            // Keep the whole path rather than lose positions, and try again on the next move
+            e.printStackTrace();
+            return false;
+        }
+
+        // The last simplified position and the first one kept as it is anchor the new part
+        int first = start > 0 ? start - 1 : start;
+        boolean[] keep = new boolean[end - first + 1];
+        keep[0] = true;
+        keep[keep.length - 1] = true;
+        simplify(path, first, end, keep);
+        int[] replacement = new int[(end - start) * 2];
+        int count = 0;
+        for (int i = start; i < end; i++) {
+            if (keep[i - first]) {
+                replacement[count * 2] = path[i * 2];
+                replacement[count * 2 + 1] = path[i * 2 + 1];
+                count++;
+            }
+        }
+        player.replacePath(start, end, replacement, count);
+
+        int simplifiedLength = start + count;
+        if (simplifiedLength > maxSimplifiedPositions) {
+            player.replacePath(0, simplifiedLength - maxSimplifiedPositions, replacement, 0);
+            simplifiedLength = maxSimplifiedPositions;
+        }
+        simplified.put(player.id, simplifiedLength);
+        return true;
+    }
+
+    /**
+     * @param id a player's ID
+     * @return how many of the player's oldest positions are simplified
+     */
+    public int getSimplifiedLength(int id) {
+        Integer length = simplified.get(id);
+        return length == null ? 0 : length;
+    }
+
+    /**
+     * @param id a player's ID
+     * @return how many positions the player has archived
+     */
+    public long getArchivedLength(int id) {
+        Long length = archived.get(id);
+        return length == null ? 0 : length;
+    }
+
+    /**
+     * Pick up where a player's path was left, such as after restoring it from a snapshot.
+     *
+     * @param id the player's ID
+     * @param simplifiedLength how many of the player's oldest positions are simplified
+     * @param archivedLength how many positions the player has archived
+     */
+    public void restore(int id, int simplifiedLength, long archivedLength) {
+        if (simplifiedLength < 0 || archivedLength < 0) {
+            throw new IllegalArgumentException();
+        }
+        simplified.put(id, simplifiedLength);
+        archived.put(id, archivedLength);
+    }
+
+    /**
+     * Put a player's path back together from the archive and the positions it still has as they
+     * are.
+     *
+     * @param player the player
+     * @return a copy of the player with every position it has been
+     * @throws IOException if the archive couldn't be read
+     */
+    public PlayerState history(PlayerState player) throws IOException {
+        int[] archived = archive.read(player.id);
+        int start = getSimplifiedLength(player.id);
+        int length = player.getPathLength();
+        int archivedLength = archived.length / 2;
+        int[] path = new int[Math.max(2, (archivedLength + length - start) * 2)];
+        System.arraycopy(archived, 0, path, 0, archived.length);
+        System.arraycopy(player.copyPath(start, length, length - start), 0, path, archived.length,
+                (length - start) * 2);
+        return new PlayerState(player.id, path, archivedLength + length - start);
+    }
+
+    /**
+     * Mark which positions between two kept ones are needed to stay within the tolerance: the one
+     * furthest from the line between them, if it is too far, and then the same on either side of
+     * it. Uses an explicit stack so long paths can't overflow the call stack.
+     */
+    private void simplify(int[] path, int first, int last, boolean[] keep) {
+        int[] stack = new int[64];
+        int top = 0;
+        stack[top++] = first;
+        stack[top++] = last;
+        while (top > 0) {
+            int b = stack[--top];
+            int a = stack[--top];
+            if (b - a < 2) {
+                continue;
+            }
+            double ax = path[a * 2];
+            double ay = path[a * 2 + 1];
+            double dx = path[b * 2] - ax;
+            double dy = path[b * 2 + 1] - ay;
+            double length = Math.sqrt(dx * dx + dy * dy);
+            int furthest = -1;
+            double furthestDistance = tolerance;
+            for (int i = a + 1; i < b; i++) {
+                double px = path[i * 2] - ax;
+                double py = path[i * 2 + 1] - ay;
+                // Distance to the line, or to a if a and b are the same point
+                double distance = length == 0 ? Math.sqrt(px * px + py * py)
+                        : Math.abs(px * dy - py * dx) / length;
+                if (distance > furthestDistance) {
+                    furthest = i;
+                    furthestDistance = distance;
+                }
+            }
+            if (furthest >= 0) {
+                keep[furthest - first] = true;
+                if (top + 4 > stack.length) {
+                    stack = Arrays.copyOf(stack, stack.length * 2);
+                }
+                stack[top++] = a;
+                stack[top++] = furthest;
+                stack[top++] = furthest;
+                stack[top++] = b;
+            }
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package fow.dmserver;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import fow.common.NetworkEvent;
+import fow.common.NetworkEvent.Type;
+
+/**
+ * The single I/O thread of the server. Owns the server socket and every client socket, accepting
+ * new connections, reading and decoding incoming frames and writing queued outgoing frames, so the
+ * number of server threads stays the same however many clients connect.
+ *
+ * Decoded events are handed to the Server's event queue, exactly like the old per-connection
+ * reader threads did. Other threads talk to the loop only through register() and requestWrite(),
+ * which queue the work and wake the selector up.
+ */
+public class SelectorLoop extends Thread {
+
+    /** How long select() may block, which bounds how late idle checks run */
+    private static final long SELECT_TIMEOUT = 1000;
+
+    private final Server server;
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+
+    /** Connections created by the event thread that still need to be registered */
+    private final ConcurrentLinkedQueue<ClientConnection> registrations =
+            new ConcurrentLinkedQueue<ClientConnection>();
+
+    /** Connections that have queued frames since the loop last looked at them */
+    private final ConcurrentLinkedQueue<ClientConnection> writes =
+            new ConcurrentLinkedQueue<ClientConnection>();
+
+    private volatile boolean alive;
+
+    private long lastIdleCheck;
+
+    /**
+     * @param server the server to hand decoded events to
+     * @param serverChannel a bound server socket channel to accept connections from
+     * @throws IOException if the selector can't be opened
+     */
+    public SelectorLoop(final Server server, final ServerSocketChannel serverChannel)
+            throws IOException {
+        super("SelectorLoop");
+        this.server = server;
+        this.serverChannel = serverChannel;
+        selector = Selector.open();
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    @Override
+    public void run() {
+        alive = true;
+        lastIdleCheck = System.currentTimeMillis();
+        while (alive) {
+            try {
+                selector.select(SELECT_TIMEOUT);
+            } catch (final IOException e) {
+                e.printStackTrace();
+                break;
+            }
+            processRegistrations();
+            processWrites();
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (!key.isValid()) {
+                    continue;
+                }
+                if (key.isAcceptable()) {
+                    accept();
+                    continue;
+                }
+                ClientConnection connection = (ClientConnection) key.attachment();
+                try {
+                    if (key.isReadable()) {
+                        connection.onReadable();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        connection.onWritable();
+                    }
+                } catch (final RuntimeException e) {
+                    drop(connection, e);
+                }
+            }
+
+            long now = System.currentTimeMillis();
+            if (now - lastIdleCheck >= SELECT_TIMEOUT) {
+                lastIdleCheck = now;
+                for (SelectionKey key : selector.keys()) {
+                    if (key.isValid() && key.attachment() != null) {
+                        ClientConnection connection = (ClientConnection) key.attachment();
+                        try {
+                            connection.checkIdle(now);
+                        } catch (final RuntimeException e) {
+                            drop(connection, e);
+                        }
+                    }
+                }
+            }
+        }
+        closeAll();
+    }
+
+    /**
+     * Accept every pending connection and tell the server about it, so it can start the handshake.
+     */
+    private void accept() {
+        try {
+            SocketChannel channel;
+            while ((channel = serverChannel.accept()) != null) {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                server.enqueueEvent(new NetworkEvent(Type.NEW_CONNECTION, channel));
+            }
+        } catch (final IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void processRegistrations() {
+        ClientConnection connection;
+        while ((connection = registrations.poll()) != null) {
+            try {
+                connection.register(selector);
+            } catch (final ClosedChannelException e) {
+                connection.kill();
+            }
+        }
+    }
+
+    private void processWrites() {
+        ClientConnection connection;
+        while ((connection = writes.poll()) != null) {
+            try {
+                connection.onWritable();
+            } catch (final RuntimeException e) {
+                drop(connection, e);
+            }
+        }
+    }
+
+    /**
+     * Disconnect a client whose connection threw, rather than let one client stop the loop for
+     * every other.
+     */
+    private void drop(final ClientConnection connection, final RuntimeException e) {
+        e.printStackTrace();
+        connection.kill();
+        connection.close();
+    }
+
+    /**
+     * Try to send whatever is left in each connection's queue, then close every channel.
+     */
+    private void closeAll() {
+        processWrites();
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() != null) {
+                ((ClientConnection) key.attachment()).close();
+            }
+        }
+        try {
+            serverChannel.close();
+            selector.close();
+        } catch (final IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Ask the loop to start reading from a new connection. Safe to call from any thread.
+     *
+     * @param connection The connection to register
+     */
+    void register(final ClientConnection connection) {
+        registrations.add(connection);
+        selector.wakeup();
+    }
+
+    /**
+     * Ask the loop to write a connection's queued frames. Safe to call from any thread.
+     *
+     * @param connection The connection with frames to write
+     */
+    void requestWrite(final ClientConnection connection) {
+        writes.add(connection);
+        selector.wakeup();
+    }
+
+    /**
+     * Stop the loop. Connections get one last chance to flush before their channels are closed.
+     */
+    public void shutdown() {
+        alive = false;
+        selector.wakeup();
+    }
+}
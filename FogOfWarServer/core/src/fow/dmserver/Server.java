@@ -1,62 +1,105 @@
 package fow.dmserver;
 
-import java.util.HashMap;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.util.EnumMap;
 import java.util.concurrent.LinkedBlockingQueue;
-
-import com.badlogic.gdx.Gdx;
-import com.badlogic.gdx.Net.Protocol;
-import com.badlogic.gdx.net.ServerSocket;
-import com.badlogic.gdx.net.Socket;
-import com.badlogic.gdx.net.SocketHints;
-import com.badlogic.gdx.utils.GdxRuntimeException;
+import java.util.concurrent.TimeUnit;
 
 import fow.common.NetworkEvent;
 import fow.common.NetworkEvent.Type;
+import fow.common.TraceContext;
+import fow.common.TraceContext.Hop;
+import fow.common.TraceContext.Stage;
+import fow.dmserver.ClientConnection.OverflowPolicy;
 
 /**
  * A generic Server class for event based server communication. Handles addition of new clients
  * connections and timeout of client connections. To use, extend and override handleEvent().
  * Original architecture by Jeran and Ben.
  * 
+ * All socket I/O happens on one SelectorLoop thread and all events are handled on this thread,
+ * regardless of the number of connected clients.
+ * 
  */
 public class Server extends Thread {
 
     /** The length of time a client has to respond before the server cuts connection */
-    private final static int TIMEOUT = 20000;
+    final static int TIMEOUT = 20000;
     
-    private final static int MAX_PLAYERS = 50;
+    /** Default number of confirmed clients, the DM included, the server lets in */
+    private final static int DEFAULT_MAX_PLAYERS = 50;
 
-    private ServerSocket serverSocket;
-    protected final HashMap<Integer, ClientConnection> unconfirmedClientConnections =
-            new HashMap<Integer, ClientConnection>();
-    protected final HashMap<Integer, ClientConnection> confirmedClientConnections =
-            new HashMap<Integer, ClientConnection>();
+    /** Default time between visibility updates, in milliseconds */
+    private final static long DEFAULT_TICK = 30;
+
+    /** Default number of frames a client can have waiting before its queue overflows */
+    private final static int DEFAULT_OUTBOUND_QUEUE_LIMIT = 256;
+
+    /*
+     * Queued by kill() so an event thread waiting for events sees it's no longer alive. Not
+     * handled. Interrupting the thread instead could close a file it was writing.
+     */
+    private final static NetworkEvent WAKE_UP = new NetworkEvent(Type.PING, null);
+
+    private SelectorLoop selectorLoop;
+    protected final ConnectionRegistry connections = new ConnectionRegistry();
 
     private LinkedBlockingQueue<NetworkEvent> eventQueue = new LinkedBlockingQueue<NetworkEvent>();
 
     private NetworkEventHandler eventHandler;
+
+    private final int port;
+    private final ServerMetrics metrics = new ServerMetrics(this);
     
-    private boolean alive;
+    private volatile boolean alive = true;
 
     private boolean debug;
 
+    /*
+     * How many frames each client can have waiting to be written, and what happens beyond that.
+     * Connections read these when they are created.
+     */
+    private volatile int outboundQueueLimit = DEFAULT_OUTBOUND_QUEUE_LIMIT;
+    private volatile OverflowPolicy overflowPolicy = OverflowPolicy.DROP_SUPERSEDED;
+
+    private volatile int maxPlayers =
+            Integer.getInteger(Constants.MAX_PLAYERS_PROPERTY, DEFAULT_MAX_PLAYERS);
+
+    /*
+     * Visibility updates are sent at most once per tick. The first change after an update
+     * schedules the next one, every change until then is coalesced into it.
+     */
+    private volatile long tickNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_TICK);
+    private boolean updateScheduled;
+    private long updateDeadline;
+
+    /* How many updates have been sent and how many changes they coalesced */
+    private volatile long ticks;
+    private volatile long coalescedChanges;
+
     /**
-     * Starts a ServerSocket at the given port for incoming client connections.
+     * Binds a server socket at the given port for incoming client connections.
      * 
      * @param connectionListenerPort The port for the ServerSocket that listens for incoming
      *        connections from clients
      */
     public Server(final int connectionListenerPort) {
+        port = connectionListenerPort;
         try {
-            serverSocket = Gdx.net.newServerSocket(Protocol.TCP, connectionListenerPort, null);
-        } catch (final GdxRuntimeException e) {
+            ServerSocketChannel serverChannel = ServerSocketChannel.open();
+            serverChannel.socket().setReuseAddress(true);
+            serverChannel.socket().bind(new InetSocketAddress(connectionListenerPort));
+            selectorLoop = new SelectorLoop(this, serverChannel);
+        } catch (final IOException e) {
             e.printStackTrace();
         }
         eventHandler = new NetworkEventHandler(this);
     }
 
     /**
-     * Starts a ServerSocket at the given port for incoming client connections.
+     * Binds a server socket at the given port for incoming client connections.
      * 
      * @param connectionListenerPort The port for the ServerSocket that listens for incoming
      *        connections from clients
@@ -68,45 +111,65 @@ public class Server extends Thread {
     }
 
     /**
-     * Creates and runs the thread used to listen for incoming connections and creating
-     * corresponding ClientConnections.
-     */
-    private void startConnectionListener() {
-        new Thread() {
-            @Override
-            public void run() {
-                while (alive) {
-                    try {
-                        SocketHints hints = new SocketHints();
-                        hints.socketTimeout = TIMEOUT;
-                        final Socket clientSocket = serverSocket.accept(hints);
-                        enqueueEvent(new NetworkEvent(Type.NEW_CONNECTION, clientSocket));
-                    } catch (final GdxRuntimeException e) {
-                        e.printStackTrace();
-                    }
-                }
-            }
-        }.start();
-    }
-
-    /**
-     * Starts a thread for listening for incoming client connections and starts a consumer loop for
-     * handling events.
+     * Starts the SelectorLoop for all socket I/O and starts a consumer loop for handling events.
+     * Between events the loop sends out visibility updates once per tick.
      */
     @Override
     public void run() {
         System.out.println(Util.findIp());
-        alive = true;
-        startConnectionListener();
+        metrics.start(port);
+        selectorLoop.start();
         while (alive) {
             try {
-                final NetworkEvent event = eventQueue.take();
-                if (debug) System.out.println("server consumed event: " + event);
-                eventHandler.handleEvent(event);
+                final NetworkEvent event = nextEvent();
+                if (event != null && event != WAKE_UP) {
+                    if (debug) System.out.println("server consumed event: " + event);
+                    final TraceContext trace = event.getTrace();
+                    if (trace != null) {
+                        trace.stamp(Hop.SERVER_DEQUEUE);
+                    }
+                    eventHandler.handleEvent(event);
+                    if (trace != null) {
+                        trace.stamp(Hop.HANDLER_DONE);
+                    }
+                }
+                tick();
             } catch (final InterruptedException e) {
                 e.printStackTrace();
             }
         }
+        eventHandler.shutdown();
+        metrics.stop();
+    }
+
+    /**
+     * Waits for the next event, but no longer than the next scheduled update.
+     * 
+     * @return the event, or null if it's time for the update
+     */
+    private NetworkEvent nextEvent() throws InterruptedException {
+        if (!updateScheduled) {
+            return eventQueue.take();
+        }
+        final long wait = updateDeadline - System.nanoTime();
+        return wait > 0 ? eventQueue.poll(wait, TimeUnit.NANOSECONDS) : eventQueue.poll();
+    }
+
+    /**
+     * Schedules an update if there are new changes and sends it if it's due.
+     */
+    private void tick() {
+        if (!updateScheduled && eventHandler.hasPendingUpdates()) {
+            updateScheduled = true;
+            updateDeadline = System.nanoTime() + tickNanos;
+        }
+        if (updateScheduled && System.nanoTime() - updateDeadline >= 0) {
+            updateScheduled = false;
+            final int changes = eventHandler.flushVisibilityUpdates();
+            ticks++;
+            coalescedChanges += changes;
+            if (debug) System.out.println("server sent update for " + changes + " changes");
+        }
     }
 
     /**
@@ -119,10 +182,132 @@ public class Server extends Thread {
     	clientConnection.setConfirmed(true);
         clientConnection.setId(accId);
         clientConnection.setDm(isDm);
-        confirmedClientConnections.put(accId, clientConnection);
+        connections.putConfirmed(accId, clientConnection);
         clientConnection.sendEvent(new NetworkEvent(Type.CONFIRMED, isDm));
     }
 
+    public long getTickMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(tickNanos);
+    }
+
+    /**
+     * Set how often visibility updates are sent. Changes made within one tick are sent together.
+     * 
+     * @param tick The time between updates in milliseconds, 0 to send after every change
+     */
+    public void setTickMillis(final long tick) {
+        if (tick < 0) {
+            throw new IllegalArgumentException();
+        }
+        tickNanos = TimeUnit.MILLISECONDS.toNanos(tick);
+    }
+
+    /**
+     * @return the number of visibility updates sent so far
+     */
+    public long getTicks() {
+        return ticks;
+    }
+
+    /**
+     * @return the number of changes to the game sent in those updates. Divided by getTicks(), it
+     *         tells how many changes were coalesced per update.
+     */
+    public long getCoalescedChanges() {
+        return coalescedChanges;
+    }
+
+    /**
+     * @return how long the players' traced moves spent in each stage so far
+     */
+    public EnumMap<Stage, LatencyStats> getTraceStats() {
+        return eventHandler.getTraces().getAllStats();
+    }
+
+    /**
+     * @return the count, errors and latency of each type of event handled so far
+     */
+    public EnumMap<Type, LatencyStats> getEventStats() {
+        return eventHandler.getDispatcher().getAllStats();
+    }
+
+    /**
+     * @return the metrics of this server, also exposed through JMX and, if the metrics port is
+     *         set, HTTP while it runs
+     */
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return the number of events waiting to be handled
+     */
+    public int getEventQueueDepth() {
+        return eventQueue.size();
+    }
+
+    NetworkEventHandler getEventHandler() {
+        return eventHandler;
+    }
+
+    public int getOutboundQueueLimit() {
+        return outboundQueueLimit;
+    }
+
+    /**
+     * Set how many frames a client can have waiting to be written. Only applies to clients that
+     * connect afterwards.
+     * 
+     * @param outboundQueueLimit The number of frames, at least 1
+     */
+    public void setOutboundQueueLimit(final int outboundQueueLimit) {
+        if (outboundQueueLimit <= 0) {
+            throw new IllegalArgumentException();
+        }
+        this.outboundQueueLimit = outboundQueueLimit;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * Set what happens when a client's outbound queue is full. Only applies to clients that connect
+     * afterwards.
+     * 
+     * @param overflowPolicy The policy to use
+     */
+    public void setOverflowPolicy(final OverflowPolicy overflowPolicy) {
+        if (overflowPolicy == null) {
+            throw new IllegalArgumentException();
+        }
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    public int getMaxPlayers() {
+        return maxPlayers;
+    }
+
+    /**
+     * Set how many confirmed clients, the DM included, the server lets in. Clients already in stay
+     * if there are more of them.
+     * 
+     * @param maxPlayers The number of clients, at least 1
+     */
+    public void setMaxPlayers(final int maxPlayers) {
+        if (maxPlayers <= 0) {
+            throw new IllegalArgumentException();
+        }
+        this.maxPlayers = maxPlayers;
+    }
+
+    /**
+     * @return the loop that does I/O for every ClientConnection of this server
+     */
+    SelectorLoop getSelectorLoop() {
+        return selectorLoop;
+    }
+
     /**
      * Adds an event to the event queue.
      * 
@@ -130,28 +315,28 @@ public class Server extends Thread {
      */
     public void enqueueEvent(final NetworkEvent event) {
         eventQueue.add(event);
+        metrics.eventsQueued.increment();
     }
 
     /**
      * @return whether or not this server is at maximum capacity for players
      */
     public boolean isFull() {
-    	return confirmedClientConnections.size() >= MAX_PLAYERS;
+    	return connections.getNumConfirmed() >= maxPlayers;
     }
     
     /**
-     * Kill the main event handling thread and connection listener thread.
+     * Kill the main event handling thread and the SelectorLoop. The event thread finishes the
+     * event it's handling, if any, then shuts down the game, its journal and its metrics. Clients
+     * are told they are disconnected before the loop closes their sockets. Safe to call from any
+     * thread, even while the event thread is adding and removing connections.
      */
     public void kill() {
-    	// TODO see if order should be switched, killing serverSocket might trigger exceptions
-    	// in client sockets
         alive = false;
-        serverSocket.dispose();
-        for (ClientConnection client : confirmedClientConnections.values()) {
-            client.kill();
-        }
-        for (ClientConnection client : unconfirmedClientConnections.values()) {
+        eventQueue.add(WAKE_UP);
+        for (ClientConnection client : connections.getAll()) {
             client.kill();
         }
+        selectorLoop.shutdown();
     }
 }
@@ -0,0 +1,252 @@
+package fow.dmserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ObjectName;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import fow.common.NetworkEvent.Type;
+import fow.common.TraceContext.Stage;
+
+/**
+ * Everything there is to know about how a server is doing, by name: its event queue, how long
+ * each type of event, each recompute and each stage of a traced move takes, its clients and their
+ * traffic. The values are read from the server when they're asked for, so keeping them costs the
+ * server nothing beyond the counters it keeps anyway.
+ *
+ * While the server runs the metrics are registered as the MBean
+ * fow.dmserver:type=ServerMetrics,port=&lt;server port&gt;, one attribute per metric. If the
+ * fow.metricsPort system property is set they are also served as plain text, one
+ * "name value" line each, at http://127.0.0.1:&lt;metrics port&gt;/metrics.
+ *
+ * The traffic totals are added to by every connection, so they are striped counters that the
+ * connections don't contend on.
+ */
+public class ServerMetrics implements DynamicMBean {
+
+    /** Totals over every connection */
+    final StripedCounter bytesReceived = new StripedCounter();
+    final StripedCounter bytesSent = new StripedCounter();
+    final StripedCounter framesReceived = new StripedCounter();
+    final StripedCounter framesSent = new StripedCounter();
+    final StripedCounter eventsQueued = new StripedCounter();
+
+    private final Server server;
+
+    private ObjectName name;
+    private HttpServer http;
+
+    ServerMetrics(final Server server) {
+        this.server = server;
+    }
+
+    /**
+     * @return every metric by name, in the same order each time apart from the clients
+     */
+    public Map<String, Long> snapshot() {
+        final Map<String, Long> metrics = new LinkedHashMap<String, Long>();
+        metrics.put("event_queue_depth", (long) server.getEventQueueDepth());
+        metrics.put("events_queued_total", eventsQueued.sum());
+
+        final List<ClientConnection> all = server.connections.getAll();
+        long idle = 0;
+        for (final ClientConnection client : all) {
+            if (client.isIdle()) {
+                idle++;
+            }
+        }
+        metrics.put("clients_connected", (long) server.connections.getNumConfirmed());
+        metrics.put("clients_unconfirmed", (long) server.connections.getNumUnconfirmed());
+        metrics.put("clients_idle", idle);
+
+        metrics.put("bytes_received_total", bytesReceived.sum());
+        metrics.put("bytes_sent_total", bytesSent.sum());
+        metrics.put("frames_received_total", framesReceived.sum());
+        metrics.put("frames_sent_total", framesSent.sum());
+
+        metrics.put("ticks_total", server.getTicks());
+        metrics.put("coalesced_changes_total", server.getCoalescedChanges());
+
+        final GameState state = server.getEventHandler().getState();
+        metrics.put("moves_total", state.getMoves());
+        metrics.put("layer_recomputes_total", state.getLayerRecomputes());
+        metrics.put("polygon_recomputes_total", state.getPolygonRecomputes());
+        putLatency(metrics, "recompute", state.getRecomputeStats());
+
+        for (final Map.Entry<Stage, LatencyStats> e : server.getTraceStats().entrySet()) {
+            putLatency(metrics, "trace_" + e.getKey(), e.getValue());
+        }
+
+        final EventDispatcher dispatcher = server.getEventHandler().getDispatcher();
+        metrics.put("events_unhandled_total", dispatcher.getUnhandled());
+        for (final Map.Entry<Type, LatencyStats> e : dispatcher.getAllStats().entrySet()) {
+            putLatency(metrics, "event_" + e.getKey(), e.getValue());
+        }
+
+        for (final ClientConnection client : server.connections.getConfirmedConnections()) {
+            final String prefix = "client_" + client.getId();
+            metrics.put(prefix + "_bytes_received", client.getBytesReceived());
+            metrics.put(prefix + "_bytes_sent", client.getBytesSent());
+            metrics.put(prefix + "_frames_received", client.getFramesReceived());
+            metrics.put(prefix + "_frames_sent", client.getFramesSent());
+            metrics.put(prefix + "_queue_depth", (long) client.getQueueDepth());
+            metrics.put(prefix + "_dropped_frames", client.getDroppedFrames());
+            metrics.put(prefix + "_stalled_nanos", client.getStalledNanos());
+        }
+        return metrics;
+    }
+
+    private static void putLatency(final Map<String, Long> metrics, final String prefix,
+            final LatencyStats stats) {
+        metrics.put(prefix + "_count", stats.getCount());
+        metrics.put(prefix + "_errors", stats.getErrors());
+        metrics.put(prefix + "_mean_nanos", stats.getMeanNanos());
+        metrics.put(prefix + "_p50_nanos", stats.getPercentileNanos(0.5));
+        metrics.put(prefix + "_p99_nanos", stats.getPercentileNanos(0.99));
+        metrics.put(prefix + "_max_nanos", stats.getMaxNanos());
+    }
+
+    /**
+     * @return the snapshot as text, one "name value" line per metric
+     */
+    public String format() {
+        final StringBuilder text = new StringBuilder();
+        for (final Map.Entry<String, Long> e : snapshot().entrySet()) {
+            text.append(e.getKey()).append(' ').append(e.getValue()).append('\n');
+        }
+        return text.toString();
+    }
+
+    /**
+     * Register the MBean and, if a metrics port is set, start serving the metrics. Failing to do
+     * either is printed and otherwise ignored, the server runs without them.
+     *
+     * @param serverPort the port the server listens on, to tell servers in one JVM apart
+     */
+    void start(final int serverPort) {
+        try {
+            name = new ObjectName("fow.dmserver:type=ServerMetrics,port=" + serverPort);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+        } catch (final JMException e) {
+            e.printStackTrace();
+            name = null;
+        }
+
+        final Integer port = Integer.getInteger(Constants.METRICS_PORT_PROPERTY);
+        if (port != null) {
+            try {
+                http = HttpServer.create(new InetSocketAddress(InetAddress.getByName(null), port),
+                        0);
+                http.createContext("/metrics", new HttpHandler() {
+                    @Override
+                    public void handle(final HttpExchange exchange) throws IOException {
+                        final byte[] body = format().getBytes("UTF-8");
+                        exchange.getResponseHeaders().set("Content-Type",
+                                "text/plain; charset=UTF-8");
+                        exchange.sendResponseHeaders(200, body.length);
+                        final OutputStream out = exchange.getResponseBody();
+                        try {
+                            out.write(body);
+                        } finally {
+                            out.close();
+                        }
+                    }
+                });
+                http.start();
+            } catch (final IOException e) {
+                e.printStackTrace();
+                http = null;
+            }
+        }
+    }
+
+    /**
+     * Unregister the MBean and stop serving the metrics.
+     */
+    void stop() {
+        if (name != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            } catch (final JMException e) {
+                e.printStackTrace();
+            }
+            name = null;
+        }
+        if (http != null) {
+            http.stop(0);
+            http = null;
+        }
+    }
+
+    /*
+     * The MBean's attributes are the metrics there are when it's asked for them, so clients that
+     * come and go appear and disappear
+     */
+
+    @Override
+    public Object getAttribute(final String attribute) throws AttributeNotFoundException {
+        final Long value = snapshot().get(attribute);
+        if (value == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return value;
+    }
+
+    @Override
+    public AttributeList getAttributes(final String[] attributes) {
+        final Map<String, Long> metrics = snapshot();
+        final AttributeList list = new AttributeList();
+        for (final String attribute : attributes) {
+            final Long value = metrics.get(attribute);
+            if (value != null) {
+                list.add(new Attribute(attribute, value));
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(final Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+    }
+
+    @Override
+    public AttributeList setAttributes(final AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(final String actionName, final Object[] params, final String[] signature) {
+        throw new UnsupportedOperationException(actionName);
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        final List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+        for (final String metric : snapshot().keySet()) {
+            attributes.add(new MBeanAttributeInfo(metric, "long", metric, true, false, false));
+        }
+        return new MBeanInfo(getClass().getName(), "Metrics of a fog of war server",
+                attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null,
+                new MBeanOperationInfo[0], null);
+    }
+}
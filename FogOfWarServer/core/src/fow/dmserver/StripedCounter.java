@@ -0,0 +1,60 @@
+package fow.dmserver;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A sum that many threads can add to at once without contending, in the manner of Java 8's
+ * LongAdder. Each thread adds to one of several cells, picked by its ID, and the sum is only
+ * worked out when it's read. The cells are spread a cache line apart so threads adding to
+ * neighbouring cells don't slow each other down.
+ *
+ * Adding is a single CAS that almost never fails. Reading adds up every cell, so a sum read while
+ * others add may be missing their latest additions.
+ */
+public final class StripedCounter {
+
+    /* Longs per cell: one cache line of 64 bytes */
+    private static final int STRIDE = 8;
+
+    private static final int CELLS = cellsFor(Runtime.getRuntime().availableProcessors());
+
+    private final AtomicLongArray cells = new AtomicLongArray(CELLS * STRIDE);
+
+    /*
+     * Enough cells for twice the processors, rounded up to a power of two and at most 64
+     */
+    private static int cellsFor(final int processors) {
+        int cells = 1;
+        while (cells < processors * 2 && cells < 64) {
+            cells *= 2;
+        }
+        return cells;
+    }
+
+    public void add(final long delta) {
+        final long id = Thread.currentThread().getId();
+        // Spread consecutive thread IDs over the cells
+        final int cell = (int) (id * 0x9E3779B97F4A7C15L >>> 58) & (CELLS - 1);
+        cells.getAndAdd(cell * STRIDE, delta);
+    }
+
+    public void increment() {
+        add(1);
+    }
+
+    /**
+     * @return the sum of everything added so far
+     */
+    public long sum() {
+        long sum = 0;
+        for (int i = 0; i < CELLS; i++) {
+            sum += cells.get(i * STRIDE);
+        }
+        return sum;
+    }
+
+    @Override
+    public String toString() {
+        return Long.toString(sum());
+    }
+}
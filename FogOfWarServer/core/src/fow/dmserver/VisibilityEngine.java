@@ -0,0 +1,359 @@
+package fow.dmserver;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeSet;
+
+import fow.common.GeometryEntity;
+import fow.common.SpatialIndex;
+import fow.common.WallSegment;
+
+/**
+ * Computes what can be seen from a point in a level, given the level's walls. The result is the
+ * visibility polygon around the point, the walls that make up its edge and a test for whether
+ * another point is in sight.
+ *
+ * The polygon is found with an angular sweep: every wall is turned into an edge between the angles
+ * of its end points as seen from the viewer, the edges are sorted by those angles, and a ray is
+ * swept once around the viewer while a balanced tree keeps the edges it crosses ordered by
+ * distance. The nearest edge in the tree is what the viewer sees in that direction, so the polygon
+ * changes only where the nearest edge does. That is O(n log n) for n walls in view.
+ *
+ * Only the walls near the viewer are swept, found through the level's SpatialIndex. Walls may touch
+ * at their end points but are assumed not to cross each other. The edges of the view act as walls
+ * too, so every direction ends somewhere.
+ */
+public class VisibilityEngine {
+
+    /** Edges closer than this to being in line with the viewer are seen edge-on and ignored */
+    private static final double EPSILON = 1e-9;
+
+    private final int levelWidth;
+    private final int levelHeight;
+    private final SpatialIndex index;
+
+    /* How far a player can see along x and y, 0 for no limit */
+    private final int viewRadius;
+
+    /**
+     * @param levelWidth width of the level, used as a wall around it
+     * @param levelHeight height of the level, used as a wall around it
+     * @param index the level's geometry, walls are found in it
+     * @param viewRadius how far a viewer can see along x and along y, so its view is a square
+     *        around it. 0 to see the whole level.
+     */
+    public VisibilityEngine(int levelWidth, int levelHeight, SpatialIndex index, int viewRadius) {
+        if (viewRadius < 0) {
+            throw new IllegalArgumentException("View radius can't be negative");
+        }
+        this.levelWidth = levelWidth;
+        this.levelHeight = levelHeight;
+        this.index = index;
+        this.viewRadius = viewRadius;
+    }
+
+    /**
+     * @param levelWidth width of the level, used as a wall around it
+     * @param levelHeight height of the level, used as a wall around it
+     * @param walls the level's walls
+     * @param viewRadius how far a viewer can see along x and along y, 0 for no limit
+     */
+    public VisibilityEngine(int levelWidth, int levelHeight, Collection<WallSegment> walls,
+            int viewRadius) {
+        this(levelWidth, levelHeight, SpatialIndex.of(walls), viewRadius);
+    }
+
+    public int getViewRadius() {
+        return viewRadius;
+    }
+
+    /**
+     * Compute what can be seen from a point. Points outside the level are moved to its nearest
+     * edge. Only walls within the view radius are looked at; the ones crossing its edge are cut
+     * off there.
+     *
+     * @param x x-coordinate of the viewer
+     * @param y y-coordinate of the viewer
+     * @return the viewer's visibility polygon
+     */
+    public VisibilityPolygon compute(int x, int y) {
+        x = Math.max(0, Math.min(levelWidth, x));
+        y = Math.max(0, Math.min(levelHeight, y));
+        int minX = 0;
+        int minY = 0;
+        int maxX = levelWidth;
+        int maxY = levelHeight;
+        if (viewRadius > 0) {
+            minX = Math.max(minX, x - viewRadius);
+            minY = Math.max(minY, y - viewRadius);
+            maxX = Math.min(maxX, x + viewRadius);
+            maxY = Math.min(maxY, y + viewRadius);
+        }
+
+        ArrayList<GeometryEntity> nearby = new ArrayList<GeometryEntity>();
+        index.query(minX, minY, maxX - minX, maxY - minY, nearby);
+        WallSegment[] walls = new WallSegment[nearby.size()];
+        int numWalls = 0;
+        List<Edge> edges = new ArrayList<Edge>(nearby.size() + 8);
+        double[] clipped = new double[4];
+        for (GeometryEntity entity : nearby) {
+            if (entity instanceof WallSegment) {
+                WallSegment wall = (WallSegment) entity;
+                if (clip(wall, minX - x, minY - y, maxX - x, maxY - y, x, y, clipped)) {
+                    walls[numWalls] = wall;
+                    addEdges(edges, numWalls++, clipped[0], clipped[1], clipped[2], clipped[3]);
+                }
+            }
+        }
+        // The bounds sit just outside the view so a viewer on its edge isn't in line with them
+        double left = minX - 1 - x;
+        double bottom = minY - 1 - y;
+        double right = maxX + 1 - x;
+        double top = maxY + 1 - y;
+        addEdges(edges, -1, left, bottom, right, bottom);
+        addEdges(edges, -1, right, bottom, right, top);
+        addEdges(edges, -1, right, top, left, top);
+        addEdges(edges, -1, left, top, left, bottom);
+
+        return sweep(new VisibilityPolygon(x, y, minX, minY, maxX, maxY, numWalls), walls, numWalls,
+                edges);
+    }
+
+    /**
+     * Cut a wall down to the part inside a rectangle, relative to the viewer, so it can't cross
+     * the bounds.
+     *
+     * @param result set to the clipped end points, relative to the viewer
+     * @return whether any of the wall is inside
+     */
+    private static boolean clip(WallSegment wall, double minX, double minY, double maxX,
+            double maxY, int ox, int oy, double[] result) {
+        double ax = wall.x1 - ox;
+        double ay = wall.y1 - oy;
+        double dx = wall.x2 - wall.x1;
+        double dy = wall.y2 - wall.y1;
+        double enter = 0;
+        double leave = 1;
+        double[] p = {-dx, dx, -dy, dy};
+        double[] q = {ax - minX, maxX - ax, ay - minY, maxY - ay};
+        for (int i = 0; i < 4; i++) {
+            if (p[i] == 0) {
+                if (q[i] < 0) {
+                    return false;
+                }
+            } else {
+                double t = q[i] / p[i];
+                if (p[i] < 0) {
+                    enter = Math.max(enter, t);
+                } else {
+                    leave = Math.min(leave, t);
+                }
+            }
+        }
+        if (enter > leave) {
+            return false;
+        }
+        result[0] = ax + enter * dx;
+        result[1] = ay + enter * dy;
+        result[2] = ax + leave * dx;
+        result[3] = ay + leave * dy;
+        return true;
+    }
+
+    /**
+     * Add a wall as one edge, or as two if it crosses the direction the sweep starts and ends at.
+     * Coordinates are relative to the viewer.
+     */
+    private static void addEdges(List<Edge> edges, int wall, double ax, double ay, double bx,
+            double by) {
+        double cross = ax * by - ay * bx;
+        if (Math.abs(cross) < EPSILON) {
+            return;
+        }
+        if (cross < 0) {
+            // Make b counter-clockwise from a, so the sweep meets a first
+            double t = ax;
+            ax = bx;
+            bx = t;
+            t = ay;
+            ay = by;
+            by = t;
+        }
+        double startAngle = Math.atan2(ay, ax);
+        double endAngle = Math.atan2(by, bx);
+        if (startAngle < endAngle) {
+            edges.add(new Edge(wall, edges.size(), ax, ay, bx, by, startAngle, endAngle));
+        } else {
+            // Crosses the negative x axis, where atan2 jumps from pi to -pi. Both halves lie on
+            // the same line, which is all distance() needs.
+            if (startAngle < Math.PI) {
+                edges.add(new Edge(wall, edges.size(), ax, ay, bx, by, startAngle, Math.PI));
+            }
+            if (endAngle > -Math.PI) {
+                edges.add(new Edge(wall, edges.size(), ax, ay, bx, by, -Math.PI, endAngle));
+            }
+        }
+    }
+
+    private static VisibilityPolygon sweep(VisibilityPolygon polygon, WallSegment[] walls,
+            int numWalls, List<Edge> edgeList) {
+        Edge[] starts = edgeList.toArray(new Edge[edgeList.size()]);
+        Edge[] ends = starts.clone();
+        Arrays.sort(starts, new Comparator<Edge>() {
+            @Override
+            public int compare(Edge e, Edge f) {
+                return Double.compare(e.startAngle, f.startAngle);
+            }
+        });
+        Arrays.sort(ends, new Comparator<Edge>() {
+            @Override
+            public int compare(Edge e, Edge f) {
+                return Double.compare(e.endAngle, f.endAngle);
+            }
+        });
+
+        TreeSet<Edge> active = new TreeSet<Edge>(NEARER);
+        boolean[] seen = new boolean[numWalls];
+        List<WallSegment> visibleWalls = new ArrayList<WallSegment>();
+
+        Edge current = null;
+        double lastAngle = -Math.PI;
+        int s = 0;
+        int e = 0;
+        while (s < starts.length || e < ends.length) {
+            double angle = ends[e].endAngle;
+            if (s < starts.length) {
+                angle = Math.min(angle, starts[s].startAngle);
+            }
+
+            // Whatever was nearest since the last event was seen, if only for a sliver
+            if (current != null && current.wall >= 0 && angle > lastAngle && !seen[current.wall]) {
+                seen[current.wall] = true;
+                visibleWalls.add(walls[current.wall]);
+            }
+
+            // Edges that end here are gone before the ones that start here arrive, so two edges
+            // that only share an end point are never compared
+            while (e < ends.length && ends[e].endAngle <= angle) {
+                remove(active, ends[e++]);
+            }
+            while (s < starts.length && starts[s].startAngle <= angle) {
+                active.add(starts[s++]);
+            }
+
+            Edge nearest = active.isEmpty() ? null : active.first();
+            if (nearest != current) {
+                if (current != null) {
+                    polygon.addVertex(current, angle);
+                }
+                if (nearest != null) {
+                    polygon.addVertex(nearest, angle);
+                    polygon.addSpan(angle, nearest);
+                }
+                current = nearest;
+            }
+            lastAngle = angle;
+        }
+
+        polygon.setVisibleWalls(visibleWalls);
+        return polygon;
+    }
+
+    /**
+     * Remove an edge from the tree. If crossing walls left the tree out of order the edge can't be
+     * found by comparison, so fall back to looking at every edge.
+     */
+    private static void remove(TreeSet<Edge> active, Edge edge) {
+        if (!active.remove(edge)) {
+            Iterator<Edge> it = active.iterator();
+            while (it.hasNext()) {
+                if (it.next() == edge) {
+                    it.remove();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Orders edges by distance from the viewer. Two edges in the tree at the same time overlap in
+     * angle, and since walls don't cross, the nearer one is nearer over their whole overlap. They
+     * are compared in the middle of it, which avoids ties where edges share an end point.
+     */
+    private static final Comparator<Edge> NEARER = new Comparator<Edge>() {
+        @Override
+        public int compare(Edge e, Edge f) {
+            if (e == f) {
+                return 0;
+            }
+            // Halfway between the directions the overlap starts and ends at. The sum of the two
+            // isn't a unit vector, but both edges are measured with it so the order still holds.
+            Edge first = e.startAngle > f.startAngle ? e : f;
+            Edge last = e.endAngle < f.endAngle ? e : f;
+            double dx = first.startX + last.endX;
+            double dy = first.startY + last.endY;
+            int c = Double.compare(e.distance(dx, dy), f.distance(dx, dy));
+            return c != 0 ? c : e.index - f.index;
+        }
+    };
+
+    /**
+     * A wall as seen from the viewer, between two angles.
+     */
+    static final class Edge {
+        /* Index of the wall in the engine, or -1 for the level's bounds */
+        final int wall;
+        /* Unique among the edges of one sweep, to break ties */
+        final int index;
+        /* End points of the wall relative to the viewer, a is clockwise from b */
+        final double ax, ay, bx, by;
+        final double startAngle, endAngle;
+        /* Unit vectors in the directions of startAngle and endAngle, so sorting needs no trig */
+        final double startX, startY, endX, endY;
+
+        Edge(int wall, int index, double ax, double ay, double bx, double by, double startAngle,
+                double endAngle) {
+            this.wall = wall;
+            this.index = index;
+            this.ax = ax;
+            this.ay = ay;
+            this.bx = bx;
+            this.by = by;
+            this.startAngle = startAngle;
+            this.endAngle = endAngle;
+            // Halves of a split edge start or end on the negative x axis instead of at a or b
+            double a = Math.sqrt(ax * ax + ay * ay);
+            double b = Math.sqrt(bx * bx + by * by);
+            startX = startAngle == -Math.PI ? -1 : ax / a;
+            startY = startAngle == -Math.PI ? 0 : ay / a;
+            endX = endAngle == Math.PI ? -1 : bx / b;
+            endY = endAngle == Math.PI ? 0 : by / b;
+        }
+
+        /**
+         * @return how far the viewer can see in the given direction before reaching this edge's
+         *         wall
+         */
+        double distance(double angle) {
+            return distance(Math.cos(angle), Math.sin(angle));
+        }
+
+        /**
+         * @return the distance along a direction vector to this edge's wall, in multiples of the
+         *         vector's length
+         */
+        double distance(double dx, double dy) {
+            double ex = bx - ax;
+            double ey = by - ay;
+            double denominator = dx * ey - dy * ex;
+            if (Math.abs(denominator) < EPSILON) {
+                return Math.sqrt(Math.min(ax * ax + ay * ay, bx * bx + by * by) / (dx * dx + dy * dy));
+            }
+            return (ax * ey - ay * ex) / denominator;
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package fow.dmserver;
+
+import java.util.Arrays;
+import java.util.List;
+
+import fow.common.WallSegment;
+import fow.dmserver.VisibilityEngine.Edge;
+
+/**
+ * The area that can be seen from one point, as computed by VisibilityEngine. Its edge is made of
+ * the nearest wall in every direction, so it is star-shaped around the viewer: a point is in sight
+ * when it is no farther away than the edge in its direction.
+ */
+public class VisibilityPolygon {
+
+    private final double originX;
+    private final double originY;
+
+    /* The polygon's vertices counter-clockwise from the negative x axis, as x, y pairs */
+    private float[] vertices;
+    private int numVertices;
+
+    /*
+     * The directions at which the nearest edge changes, and which edge is nearest from each one on.
+     * Used to find the edge in a given direction by binary search.
+     */
+    private double[] spanAngles;
+    private Edge[] spanEdges;
+    private int numSpans;
+
+    private List<WallSegment> visibleWalls;
+
+    /* The rectangle the viewer can see into, the level or the square within its view radius */
+    private final int minX, minY, maxX, maxY;
+
+    VisibilityPolygon(double originX, double originY, int minX, int minY, int maxX, int maxY,
+            int expectedWalls) {
+        this.originX = originX;
+        this.originY = originY;
+        this.minX = minX;
+        this.minY = minY;
+        this.maxX = maxX;
+        this.maxY = maxY;
+        int capacity = Math.max(8, expectedWalls);
+        vertices = new float[capacity * 2];
+        spanAngles = new double[capacity];
+        spanEdges = new Edge[capacity];
+    }
+
+    void addVertex(Edge edge, double angle) {
+        double distance = edge.distance(angle);
+        float x = (float) (originX + Math.cos(angle) * distance);
+        float y = (float) (originY + Math.sin(angle) * distance);
+        if (numVertices > 0 && vertices[numVertices * 2 - 2] == x
+                && vertices[numVertices * 2 - 1] == y) {
+            return;
+        }
+        if (numVertices * 2 == vertices.length) {
+            vertices = Arrays.copyOf(vertices, vertices.length * 2);
+        }
+        vertices[numVertices * 2] = x;
+        vertices[numVertices * 2 + 1] = y;
+        numVertices++;
+    }
+
+    void addSpan(double angle, Edge edge) {
+        if (numSpans == spanAngles.length) {
+            spanAngles = Arrays.copyOf(spanAngles, numSpans * 2);
+            spanEdges = Arrays.copyOf(spanEdges, numSpans * 2);
+        }
+        spanAngles[numSpans] = angle;
+        spanEdges[numSpans] = edge;
+        numSpans++;
+    }
+
+    void setVisibleWalls(List<WallSegment> visibleWalls) {
+        this.visibleWalls = visibleWalls;
+    }
+
+    /**
+     * @param x x-coordinate of the point
+     * @param y y-coordinate of the point
+     * @return whether the point can be seen from the polygon's origin
+     */
+    public boolean contains(int x, int y) {
+        double dx = x - originX;
+        double dy = y - originY;
+        if (dx == 0 && dy == 0) {
+            return true;
+        }
+        if (x < minX || x > maxX || y < minY || y > maxY) {
+            return false;
+        }
+        double angle = Math.atan2(dy, dx);
+        int span = Arrays.binarySearch(spanAngles, 0, numSpans, angle);
+        if (span < 0) {
+            // Not a span start, use the span it falls in
+            span = -span - 2;
+        }
+        if (span < 0) {
+            return true;
+        }
+        return Math.sqrt(dx * dx + dy * dy) <= spanEdges[span].distance(angle);
+    }
+
+    /**
+     * @return every wall that can be seen at least in part, in the order the sweep met them
+     */
+    public List<WallSegment> getVisibleWalls() {
+        return visibleWalls;
+    }
+
+    /**
+     * @return the vertices as x, y pairs, counter-clockwise. Only the first getNumVertices() pairs
+     *         are used.
+     */
+    public float[] getVertices() {
+        return vertices;
+    }
+
+    public int getNumVertices() {
+        return numVertices;
+    }
+
+    public double getOriginX() {
+        return originX;
+    }
+
+    public double getOriginY() {
+        return originY;
+    }
+}
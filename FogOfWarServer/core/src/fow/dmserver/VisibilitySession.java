@@ -0,0 +1,643 @@
+package fow.dmserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import fow.common.GeometryEntity;
+import fow.common.IntMap;
+import fow.common.NetworkEvent;
+import fow.common.NetworkEvent.Type;
+import fow.common.NetworkEventCodec;
+import fow.common.PlayerState;
+import fow.common.SceneCursor;
+import fow.common.SceneNode;
+import fow.common.VisibilityDelta;
+import fow.common.VisibilityDelta.PlayerPatch;
+import fow.common.VisibilityLayer;
+
+/**
+ * Keeps track of what one client knows about the visibility layers it is sent, so that it only has
+ * to be sent VisibilityDeltas. A PC app is sent its own layer, the DM is sent every player's.
+ *
+ * Deltas are always computed against the last version the client acknowledged, and every update
+ * holds each layer that differs from it or from any later version the client was sent. The state
+ * the client will have after each update is remembered, so that when an acknowledgment comes in
+ * it becomes the new base, and until then a delta also removes whatever those versions had that
+ * the layer no longer does. An update can therefore be applied to whichever of them the client
+ * has, and supersedes all earlier ones that haven't been acknowledged, so those can be dropped if
+ * they haven't been written yet.
+ *
+ * Clients that acknowledged the same version of a layer and were sent the same versions since need
+ * the same delta for it, e.g. the DM and the player the layer belongs to. Sessions updated in the
+ * same round share those deltas through a SharedDeltas, so each is computed and encoded once. The
+ * states of the layers are shared too, and only built again once a layer changes.
+ *
+ * A client that has nothing yet, because it just joined or lost track of its layers, needs whole
+ * layers. Those are the same for every such client until the game changes, so they are kept in a
+ * JoinSnapshot already encoded.
+ */
+public class VisibilitySession {
+
+    /**
+     * Most updates that can be waiting for acknowledgment. Beyond that the oldest are forgotten,
+     * and a client acknowledging one of them is sent whole layers again.
+     */
+    private static final int MAX_UNACKED = 64;
+
+    /** What the client had at the last version it acknowledged, by layer ID */
+    private IntMap<Baseline> acked = new IntMap<Baseline>();
+
+    private int ackedVersion = VisibilityDelta.NO_VERSION;
+
+    /** What the client will have once it applies everything it's been sent */
+    private IntMap<Baseline> latest = new IntMap<Baseline>();
+
+    /** What the client will have at each unacknowledged version, oldest first */
+    private final ArrayDeque<Sent> unacked = new ArrayDeque<Sent>();
+
+    /**
+     * Compute the update for a client that is sent a single layer.
+     *
+     * @param id the ID of the layer, i.e. the player it belongs to
+     * @param layer the layer's current state
+     * @param shared deltas already computed for other clients at the current version
+     * @return the delta to send, or null if the client already has, or has been sent, this state
+     */
+    public VisibilityDelta update(int id, VisibilityLayer layer, SharedDeltas shared) {
+        IntMap<VisibilityLayer> layers = new IntMap<VisibilityLayer>(1);
+        layers.put(id, layer);
+        return update(layers, shared).get(id);
+    }
+
+    /**
+     * Compute the update for a client that is sent several layers.
+     *
+     * @param layers the current state of every layer the client should have, keyed by ID
+     * @param shared deltas already computed for other clients at the current version
+     * @return a delta for each layer that differs from the acknowledged version or a version sent
+     *         since, keyed by ID. Empty if nothing changed since the last update.
+     */
+    public IntMap<VisibilityDelta> update(IntMap<VisibilityLayer> layers, SharedDeltas shared) {
+        int version = shared.version;
+        IntMap<Baseline> current = new IntMap<Baseline>(layers.size());
+        boolean changed = false;
+        for (int i = layers.nextSlot(-1); i >= 0; i = layers.nextSlot(i)) {
+            Baseline baseline = shared.baseline(layers.keyAt(i), layers.valueAt(i));
+            Baseline sent = latest.get(layers.keyAt(i));
+            if (baseline.sameState(sent)) {
+                // Keep the version that first had this state, it's what the client's layer has.
+                // Only differs from the shared one if the shared one was built again.
+                baseline = sent;
+            } else {
+                changed = true;
+            }
+            current.put(layers.keyAt(i), baseline);
+        }
+        if (!changed) {
+            return new IntMap<VisibilityDelta>();
+        }
+
+        IntMap<VisibilityDelta> deltas = new IntMap<VisibilityDelta>();
+        for (int i = layers.nextSlot(-1); i >= 0; i = layers.nextSlot(i)) {
+            int id = layers.keyAt(i);
+            Baseline base = acked.get(id);
+            ArrayList<Baseline> sent = sentSince(id, current.get(id));
+            if (!current.get(id).sameState(base) || !sent.isEmpty()) {
+                VisibilityDelta delta = shared.get(id, base, sent);
+                if (delta == null) {
+                    delta = diff(base, sent, current.get(id), layers.valueAt(i), version);
+                    shared.put(id, base, sent, delta);
+                }
+                deltas.put(id, delta);
+            }
+        }
+
+        remember(version, current);
+        return deltas;
+    }
+
+    /**
+     * Record what the client will have once it applies the update for a version.
+     */
+    private void remember(int version, IntMap<Baseline> current) {
+        latest = current;
+        unacked.addLast(new Sent(version, current));
+        if (unacked.size() > MAX_UNACKED) {
+            unacked.removeFirst();
+        }
+    }
+
+    /**
+     * @param id the ID of a layer
+     * @param current the layer's state at the current version
+     * @return the states of the layer the client was sent since the acknowledged version that
+     *         differ from the current one, each once
+     */
+    private ArrayList<Baseline> sentSince(int id, Baseline current) {
+        ArrayList<Baseline> sent = new ArrayList<Baseline>();
+        for (Sent update : unacked) {
+            Baseline baseline = update.layers.get(id);
+            if (baseline != null && !baseline.sameState(current) && !sent.contains(baseline)) {
+                sent.add(baseline);
+            }
+        }
+        return sent;
+    }
+
+    /**
+     * @return whether the client has nothing, so its next update should come from a JoinSnapshot
+     */
+    public boolean isEmpty() {
+        return ackedVersion == VisibilityDelta.NO_VERSION && latest.isEmpty()
+                && unacked.isEmpty();
+    }
+
+    /**
+     * Record that the client was sent whole layers from a snapshot, as if by update().
+     *
+     * @param layers the layers it was sent, keyed by ID
+     * @param snapshot the snapshot they came from, which already has them
+     */
+    public void joined(IntMap<VisibilityLayer> layers, JoinSnapshot snapshot) {
+        IntMap<Baseline> current = new IntMap<Baseline>(layers.size());
+        for (int i = layers.nextSlot(-1); i >= 0; i = layers.nextSlot(i)) {
+            current.put(layers.keyAt(i), snapshot.baselines.get(layers.keyAt(i)));
+        }
+        remember(snapshot.version, current);
+    }
+
+    /**
+     * Record that the client has applied every update up to the given version.
+     *
+     * @param version the acknowledged version, or NO_VERSION if the client couldn't apply an update
+     * @return true if the client's state is no longer known and it should be sent whole layers
+     */
+    public boolean acknowledge(int version) {
+        Sent state = null;
+        for (Sent update : unacked) {
+            if (update.version == version) {
+                state = update;
+                break;
+            }
+        }
+        if (state == null) {
+            if (version != VisibilityDelta.NO_VERSION && version <= ackedVersion) {
+                // Late duplicate, nothing to do
+                return false;
+            }
+            reset();
+            return true;
+        }
+
+        acked = state.layers;
+        ackedVersion = version;
+        while (!unacked.isEmpty() && unacked.getFirst().version <= version) {
+            unacked.removeFirst();
+        }
+        return false;
+    }
+
+    /**
+     * Forget everything the client has, so the next update holds whole layers.
+     */
+    public void reset() {
+        acked = new IntMap<Baseline>();
+        ackedVersion = VisibilityDelta.NO_VERSION;
+        latest = new IntMap<Baseline>();
+        unacked.clear();
+    }
+
+    /**
+     * @return the last version the client acknowledged
+     */
+    public int getAckedVersion() {
+        return ackedVersion;
+    }
+
+    /**
+     * Compute the delta that takes a client from a known state to a layer's current state.
+     *
+     * @param base what the client had, or null if it has nothing
+     * @param sent the states the client was sent since, any of which it may have instead
+     * @param current the layer's current state
+     * @param layer the layer the current state is of
+     * @param version the version the client will have after applying the delta
+     */
+    private static VisibilityDelta diff(Baseline base, List<Baseline> sent, Baseline current,
+            VisibilityLayer layer, int version) {
+        ArrayList<Baseline> known = new ArrayList<Baseline>(sent.size() + 1);
+        if (base != null) {
+            known.add(base);
+            known.addAll(sent);
+        }
+
+        PlayerState[] players = layer.getPlayers();
+        PlayerPatch[] patches = new PlayerPatch[players.length];
+        int numPatches = 0;
+        for (PlayerState player : players) {
+            // Keep only as much of the path as every state the client may have agrees on
+            int length = player.getPathLength();
+            int keep = base == null ? 0 : length;
+            for (Baseline state : known) {
+                int at = state.indexOf(player.id);
+                if (at < 0 || state.pathLengths[at] > length
+                        || state.pathRevisions[at] != player.getPathRevision()) {
+                    keep = 0;
+                    break;
+                }
+                keep = Math.min(keep, state.pathLengths[at]);
+            }
+            if (keep == 0) {
+                patches[numPatches++] = new PlayerPatch(player.id, 0, player.getPackedPath());
+            } else if (keep < length) {
+                patches[numPatches++] =
+                        new PlayerPatch(player.id, keep, player.copyPath(keep, length, length
+                                - keep));
+            }
+        }
+
+        GeometryEntity[] added = new GeometryEntity[current.geometry.length];
+        int numAdded = 0;
+        SceneCursor cursor = layer.getSceneGraph().cursor();
+        while (cursor.next() && numAdded < added.length) {
+            GeometryEntity entity = cursor.getData();
+            if (entity == null) {
+                continue;
+            }
+            boolean everywhere = base != null;
+            for (Baseline state : known) {
+                everywhere &= state.hasGeometry(entity.id);
+            }
+            if (!everywhere) {
+                added[numAdded++] = entity;
+            }
+        }
+
+        // Whatever any of those states had that the layer no longer does
+        int[][] hadPlayers = new int[known.size()][];
+        int[][] hadGeometry = new int[known.size()][];
+        for (int i = 0; i < known.size(); i++) {
+            hadPlayers[i] = known.get(i).playerIds;
+            hadGeometry[i] = known.get(i).geometry;
+        }
+        int[] removedPlayers = missing(hadPlayers, current.playerIds);
+        int[] removedGeometry = missing(hadGeometry, current.geometry);
+
+        return new VisibilityDelta(base == null ? VisibilityDelta.NO_VERSION : base.version,
+                version, layer.getLevelWidth(), layer.getLevelHeight(), Arrays.copyOf(patches,
+                        numPatches), removedPlayers, Arrays.copyOf(added, numAdded),
+                removedGeometry);
+    }
+
+    /**
+     * @param before ID arrays in ascending order
+     * @param after IDs in ascending order
+     * @return the IDs in any of the before arrays that aren't in after, each once
+     */
+    private static int[] missing(int[][] before, int[] after) {
+        int[] ids = new int[0];
+        int n = 0;
+        for (int[] had : before) {
+            for (int id : had) {
+                if (Arrays.binarySearch(after, id) < 0) {
+                    if (n == ids.length) {
+                        ids = Arrays.copyOf(ids, n * 2 + 1);
+                    }
+                    ids[n++] = id;
+                }
+            }
+        }
+        return sortedSet(ids, n);
+    }
+
+    /**
+     * @return the first n ids in ascending order, without duplicates
+     */
+    private static int[] sortedSet(int[] ids, int n) {
+        Arrays.sort(ids, 0, n);
+        int unique = 0;
+        for (int i = 0; i < n; i++) {
+            if (unique == 0 || ids[i] != ids[unique - 1]) {
+                ids[unique++] = ids[i];
+            }
+        }
+        return Arrays.copyOf(ids, unique);
+    }
+
+    /**
+     * The deltas handed out while updating clients to one version of the game, keyed by layer, base
+     * state and the states sent since. The state of a layer at a given version is the same for
+     * every client, and so is the delta from it. Only valid for the version it was created for, and
+     * while no layer is waiting to be recomputed: until then paths can grow without the version
+     * changing, so a new one is needed for every update.
+     */
+    public static class SharedDeltas {
+        private final int version;
+        /* The deltas computed for each layer, by layer ID */
+        private final IntMap<SharedDelta> deltas = new IntMap<SharedDelta>();
+        /* The last state built of each layer, by layer ID, kept from version to version */
+        private final IntMap<Baseline> baselines;
+        /* The layers whose state was checked against them at this version, by layer ID */
+        private final IntMap<Baseline> checked = new IntMap<Baseline>();
+
+        /**
+         * @param version the game's current version
+         */
+        public SharedDeltas(int version) {
+            this.version = version;
+            baselines = new IntMap<Baseline>();
+        }
+
+        /**
+         * @param version the game's current version
+         * @param previous the deltas for the version before, whose layer states are reused for
+         *        the layers that haven't changed since
+         */
+        public SharedDeltas(int version, SharedDeltas previous) {
+            this.version = version;
+            baselines = new IntMap<Baseline>(previous.baselines);
+        }
+
+        public int getVersion() {
+            return version;
+        }
+
+        /**
+         * @return the state of a layer, built only if the layer changed since it was last built
+         *         and checked only the first time it is asked for at this version
+         */
+        Baseline baseline(int id, VisibilityLayer layer) {
+            Baseline baseline = checked.get(id);
+            if (baseline != null) {
+                return baseline;
+            }
+            baseline = baselines.get(id);
+            if (baseline == null || !baseline.isOf(layer)) {
+                if (baseline != null) {
+                    baseline.forgetLayer();
+                }
+                baseline = new Baseline(layer, version);
+                baselines.put(id, baseline);
+            }
+            checked.put(id, baseline);
+            return baseline;
+        }
+
+        /**
+         * @return the delta for a layer from a base and the states sent since, or null if it
+         *         hasn't been computed
+         */
+        VisibilityDelta get(int id, Baseline base, List<Baseline> sent) {
+            for (SharedDelta delta = deltas.get(id); delta != null; delta = delta.next) {
+                if (delta.isFrom(base, sent)) {
+                    return delta.delta;
+                }
+            }
+            return null;
+        }
+
+        void put(int id, Baseline base, List<Baseline> sent, VisibilityDelta delta) {
+            deltas.put(id, new SharedDelta(base, sent, delta, deltas.get(id)));
+        }
+    }
+
+    /**
+     * A delta for one layer, and the next one computed for the same layer from other states.
+     * States are shared between sessions, so they are told apart by identity.
+     */
+    private static class SharedDelta {
+        final Baseline base;
+        final Baseline[] sent;
+        final VisibilityDelta delta;
+        final SharedDelta next;
+
+        SharedDelta(Baseline base, List<Baseline> sent, VisibilityDelta delta, SharedDelta next) {
+            this.base = base;
+            this.sent = base == null ? new Baseline[0] : sent.toArray(new Baseline[sent.size()]);
+            this.delta = delta;
+            this.next = next;
+        }
+
+        boolean isFrom(Baseline base, List<Baseline> sent) {
+            if (this.base != base) {
+                return false;
+            }
+            if (base == null) {
+                return true;
+            }
+            if (this.sent.length != sent.size()) {
+                return false;
+            }
+            for (int i = 0; i < this.sent.length; i++) {
+                if (this.sent[i] != sent.get(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Whole layers at one version of the game, each encoded once for the PC it belongs to and all
+     * of them once for the DM. Layers are added the first time a client needs them. Only valid for
+     * the version it was created for; a new one is made once the game changes.
+     */
+    public static class JoinSnapshot {
+        private final int version;
+        private final SharedDeltas shared;
+        private final IntMap<VisibilityDelta> deltas = new IntMap<VisibilityDelta>();
+        private final IntMap<Baseline> baselines = new IntMap<Baseline>();
+        private final IntMap<ByteBuffer> playerFrames = new IntMap<ByteBuffer>();
+        private ByteBuffer dmFrame;
+
+        /**
+         * @param version the game's current version
+         */
+        public JoinSnapshot(int version) {
+            this(new SharedDeltas(version));
+        }
+
+        /**
+         * @param shared the deltas for the game's current version, whose layer states the whole
+         *        layers are taken from
+         */
+        public JoinSnapshot(SharedDeltas shared) {
+            this.version = shared.version;
+            this.shared = shared;
+        }
+
+        public int getVersion() {
+            return version;
+        }
+
+        /**
+         * @param id the ID of the layer, i.e. the player it belongs to
+         * @param layer the layer's current state
+         * @return an encoded UPDATE_VISIBILITY with the whole layer, for its PC. Shared, so not to
+         *         be written to.
+         * @throws IOException if the layer can't be encoded
+         */
+        public ByteBuffer getPlayerFrame(int id, VisibilityLayer layer) throws IOException {
+            ByteBuffer frame = playerFrames.get(id);
+            if (frame == null) {
+                frame = NetworkEventCodec.encodeShared(new NetworkEvent(Type.UPDATE_VISIBILITY,
+                        getDelta(id, layer)));
+                playerFrames.put(id, frame);
+            }
+            return frame;
+        }
+
+        /**
+         * @param layers the current state of every layer, keyed by ID
+         * @return an encoded UPDATE_VISIBILITY with every whole layer, for the DM. Shared, so not
+         *         to be written to.
+         * @throws IOException if the layers can't be encoded
+         */
+        public ByteBuffer getDmFrame(IntMap<VisibilityLayer> layers) throws IOException {
+            if (dmFrame == null) {
+                IntMap<VisibilityDelta> all = new IntMap<VisibilityDelta>(layers.size());
+                for (int i = layers.nextSlot(-1); i >= 0; i = layers.nextSlot(i)) {
+                    all.put(layers.keyAt(i), getDelta(layers.keyAt(i), layers.valueAt(i)));
+                }
+                dmFrame = NetworkEventCodec.encodeShared(new NetworkEvent(Type.UPDATE_VISIBILITY,
+                        all));
+            }
+            return dmFrame;
+        }
+
+        private VisibilityDelta getDelta(int id, VisibilityLayer layer) {
+            VisibilityDelta delta = deltas.get(id);
+            if (delta == null) {
+                Baseline baseline = shared.baseline(id, layer);
+                delta = diff(null, Collections.<Baseline> emptyList(), baseline, layer, version);
+                deltas.put(id, delta);
+                baselines.put(id, baseline);
+            }
+            return delta;
+        }
+    }
+
+    /**
+     * What the client will have once it applies the update for one version.
+     */
+    private static class Sent {
+        final int version;
+        final IntMap<Baseline> layers;
+
+        Sent(int version, IntMap<Baseline> layers) {
+            this.version = version;
+            this.layers = layers;
+        }
+    }
+
+    /**
+     * The parts of a layer a client has that deltas are computed against: how much of each
+     * player's path it has and which geometry. IDs are kept sorted, so they can be looked up
+     * without boxing them.
+     */
+    private static class Baseline {
+        /* The version of the first update that gave a client this state */
+        final int version;
+        final int width;
+        final int height;
+        final int[] playerIds;
+        final int[] pathLengths;
+        /* Paths whose revision changed were rewritten, not just added to, so are sent whole */
+        final int[] pathRevisions;
+        final int[] geometry;
+
+        /*
+         * What the state was built from, to tell whether the layer changed since. Forgotten once a
+         * newer state of the layer is built, so clients that haven't acknowledged it yet don't keep
+         * the old scene graph around.
+         */
+        private SceneNode sceneGraph;
+        private PlayerState[] players;
+
+        Baseline(VisibilityLayer layer, int version) {
+            this.version = version;
+            width = layer.getLevelWidth();
+            height = layer.getLevelHeight();
+            sceneGraph = layer.getSceneGraph();
+            players = layer.getPlayers();
+            playerIds = new int[players.length];
+            pathLengths = new int[players.length];
+            pathRevisions = new int[players.length];
+            for (int i = 0; i < players.length; i++) {
+                // Insertion sort, a layer only has the players in sight
+                int at = i;
+                for (; at > 0 && playerIds[at - 1] > players[i].id; at--) {
+                    playerIds[at] = playerIds[at - 1];
+                    pathLengths[at] = pathLengths[at - 1];
+                    pathRevisions[at] = pathRevisions[at - 1];
+                }
+                playerIds[at] = players[i].id;
+                pathLengths[at] = players[i].getPathLength();
+                pathRevisions[at] = players[i].getPathRevision();
+            }
+
+            int[] ids = new int[16];
+            int n = 0;
+            SceneCursor cursor = layer.getSceneGraph().cursor();
+            while (cursor.next()) {
+                GeometryEntity entity = cursor.getData();
+                if (entity != null) {
+                    if (n == ids.length) {
+                        ids = Arrays.copyOf(ids, n * 2);
+                    }
+                    ids[n++] = entity.id;
+                }
+            }
+            geometry = sortedSet(ids, n);
+        }
+
+        /**
+         * @return whether the layer still has this state. Walls are only added to a layer by
+         *         giving it a new scene graph, and who is in it by giving it new players, so only
+         *         the paths of the players need to be compared.
+         */
+        boolean isOf(VisibilityLayer layer) {
+            if (sceneGraph != layer.getSceneGraph() || players != layer.getPlayers()
+                    || width != layer.getLevelWidth() || height != layer.getLevelHeight()) {
+                return false;
+            }
+            for (PlayerState player : players) {
+                int at = indexOf(player.id);
+                if (pathLengths[at] != player.getPathLength()
+                        || pathRevisions[at] != player.getPathRevision()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void forgetLayer() {
+            sceneGraph = null;
+            players = null;
+        }
+
+        /**
+         * @return where the player is in playerIds, or a negative number if it isn't
+         */
+        int indexOf(int playerId) {
+            return Arrays.binarySearch(playerIds, playerId);
+        }
+
+        boolean hasGeometry(int id) {
+            return Arrays.binarySearch(geometry, id) >= 0;
+        }
+
+        boolean sameState(Baseline other) {
+            return other == this || other != null && width == other.width
+                    && height == other.height && Arrays.equals(playerIds, other.playerIds)
+                    && Arrays.equals(pathLengths, other.pathLengths)
+                    && Arrays.equals(pathRevisions, other.pathRevisions)
+                    && Arrays.equals(geometry, other.geometry);
+        }
+    }
+}
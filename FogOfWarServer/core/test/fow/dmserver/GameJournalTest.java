@@ -0,0 +1,185 @@
+package fow.dmserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import fow.common.IntMap;
+import fow.common.PlayerState;
+import fow.common.PositionTuple;
+
+public class GameJournalTest {
+
+    private static final int PLAYERS = 5;
+
+    private File directory;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = File.createTempFile("journal", "");
+        directory.delete();
+    }
+
+    @After
+    public void deleteDirectory() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    /* Players join and each moves a few times, leaving the odd ones with a request */
+    private static void play(GameState state, int moves) {
+        state.setDmId(PLAYERS);
+        for (int id = 0; id < PLAYERS; id++) {
+            state.addNewPlayer(id);
+        }
+        move(state, moves);
+    }
+
+    private static void move(GameState state, int moves) {
+        for (int n = 0; n < moves; n++) {
+            int id = n % PLAYERS;
+            PositionTuple to = new PositionTuple(n * 7 % 1000, id * 10);
+            state.addPendingRequest(id, to);
+            state.movePlayer(id, to);
+            if (id % 2 == 0) {
+                state.removePendingRequest(id);
+            }
+        }
+    }
+
+    private GameState restore() throws IOException {
+        GameState restored = new GameState(1000, 1000);
+        GameJournal journal = new GameJournal(directory);
+        journal.open(restored);
+        journal.close();
+        return restored;
+    }
+
+    private static void assertSameGame(GameState expected, GameState actual) {
+        assertEquals(expected.getDmId(), actual.getDmId());
+        assertEquals(expected.getPlayers().size(), actual.getPlayers().size());
+        for (PlayerState player : expected.getPlayers()) {
+            PlayerState restored = actual.getPlayer(player.id);
+            assertEquals(player.getPathLength(), restored.getPathLength());
+            assertEquals(player.getCurrentPosition().x, restored.getCurrentPosition().x);
+            assertEquals(player.getCurrentPosition().y, restored.getCurrentPosition().y);
+        }
+        IntMap<PositionTuple> requests = expected.getPendingRequests();
+        assertEquals(requests.size(), actual.getPendingRequests().size());
+        for (int i = requests.nextSlot(-1); i >= 0; i = requests.nextSlot(i)) {
+            PositionTuple restored = actual.getPendingRequests().get(requests.keyAt(i));
+            assertEquals(requests.valueAt(i).x, restored.x);
+            assertEquals(requests.valueAt(i).y, restored.y);
+        }
+    }
+
+    @Test
+    public void flushedRecordsSurviveACrash() throws IOException {
+        GameState state = new GameState(1000, 1000);
+        GameJournal journal = new GameJournal(directory);
+        journal.open(state);
+        play(state, 100);
+        journal.flush();
+        // No close(), as if the server died here
+
+        assertSameGame(state, restore());
+    }
+
+    @Test
+    public void tornOrCorruptTailIsCutOff() throws IOException {
+        GameState state = new GameState(1000, 1000);
+        GameJournal journal = new GameJournal(directory);
+        journal.open(state);
+        play(state, 20);
+        journal.close();
+        File log = new File(directory, "journal-0.log");
+        long good = log.length();
+
+        // A record the crash cut short: its length, type and half an int
+        RandomAccessFile raf = new RandomAccessFile(log, "rw");
+        try {
+            raf.seek(good);
+            raf.write(new byte[] {0, 0, 0, 13, 2, 0, 0});
+        } finally {
+            raf.close();
+        }
+        assertSameGame(state, restore());
+        assertEquals(good, log.length());
+
+        // A whole last record whose CRC doesn't match, removing player 1's request
+        assertTrue(state.getPendingRequests().containsKey(1));
+        raf = new RandomAccessFile(log, "rw");
+        try {
+            raf.seek(good);
+            raf.write(new byte[] {0, 0, 0, 5, 4, 0, 0, 0, 1, 1, 2, 3, 4});
+        } finally {
+            raf.close();
+        }
+        assertSameGame(state, restore());
+        assertEquals(good, log.length());
+    }
+
+    @Test
+    public void restoresAcrossSnapshots() throws IOException {
+        GameState state = new GameState(1000, 1000);
+        GameJournal journal = new GameJournal(directory, 50);
+        journal.open(state);
+        int snapshots = 0;
+        play(state, 0);
+        for (int round = 0; round < 10; round++) {
+            move(state, 30);
+            if (journal.isSnapshotDue()) {
+                journal.snapshot(state);
+                snapshots++;
+            }
+        }
+        journal.close();
+        assertTrue(snapshots > 1);
+
+        // Only the newest snapshot and the journals from it on are kept
+        int kept = 0;
+        for (String name : directory.list()) {
+            if (name.startsWith("snapshot-")) {
+                assertEquals("snapshot-" + snapshots + ".bin", name);
+                kept++;
+            }
+        }
+        assertEquals(1, kept);
+        assertSameGame(state, restore());
+    }
+
+    @Test
+    public void replayingDoesntJournalAgain() throws IOException {
+        GameState state = new GameState(1000, 1000);
+        GameJournal journal = new GameJournal(directory);
+        journal.open(state);
+        play(state, 50);
+        journal.close();
+
+        GameState restored = new GameState(1000, 1000);
+        GameJournal reopened = new GameJournal(directory);
+        int replayed = reopened.open(restored);
+        reopened.close();
+        assertEquals(journal.getAppended(), replayed);
+        assertEquals(0, reopened.getAppended());
+
+        // Restoring again replays the same records, not them twice over
+        GameState again = new GameState(1000, 1000);
+        GameJournal third = new GameJournal(directory);
+        assertEquals(replayed, third.open(again));
+        third.close();
+        assertSameGame(state, again);
+    }
+}
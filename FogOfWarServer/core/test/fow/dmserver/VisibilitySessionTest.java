@@ -0,0 +1,123 @@
+package fow.dmserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+import fow.common.PlayerState;
+import fow.common.SceneNode;
+import fow.common.VisibilityDelta;
+import fow.common.VisibilityLayer;
+import fow.dmserver.VisibilitySession.SharedDeltas;
+
+public class VisibilitySessionTest {
+
+    private static final int ID = 1;
+
+    private static VisibilityLayer layer(PlayerState... players) {
+        return new VisibilityLayer(100, 100, new SceneNode(null), players);
+    }
+
+    private static VisibilityLayer apply(VisibilityDelta delta, VisibilityLayer layer) {
+        assertNotNull("no delta to apply", delta);
+        VisibilityLayer applied = delta.applyTo(layer);
+        assertNotNull(delta + " doesn't apply to " + layer, applied);
+        return applied;
+    }
+
+    private static String ids(VisibilityLayer layer) {
+        StringBuilder ids = new StringBuilder();
+        for (PlayerState player : layer.getPlayers()) {
+            ids.append(player.id).append(' ');
+        }
+        return ids.toString().trim();
+    }
+
+    @Test
+    public void playerThatEntersAndLeavesBeforeAnAckIsRemoved() {
+        VisibilitySession session = new VisibilitySession();
+        VisibilityLayer v0 = apply(session.update(ID, layer(new PlayerState(1, 10, 10)),
+                new SharedDeltas(0)), null);
+        session.acknowledge(0);
+
+        VisibilityLayer v1 = apply(session.update(ID, layer(new PlayerState(1, 10, 10),
+                new PlayerState(2, 20, 20)), new SharedDeltas(1)), v0);
+        assertEquals("1 2", ids(v1));
+
+        // Left again before the client acknowledged seeing it
+        VisibilityDelta left = session.update(ID, layer(new PlayerState(1, 10, 10)),
+                new SharedDeltas(2));
+        assertEquals("1", ids(apply(left, v1)));
+        assertEquals("1", ids(apply(left, v0)));
+
+        assertNull(session.update(ID, layer(new PlayerState(1, 10, 10)), new SharedDeltas(3)));
+        session.acknowledge(2);
+        assertNull(session.update(ID, layer(new PlayerState(1, 10, 10)), new SharedDeltas(4)));
+    }
+
+    @Test
+    public void playerThatLeavesAndComesBackBeforeAnAckIsSentAgain() {
+        VisibilitySession session = new VisibilitySession();
+        VisibilityLayer v0 = apply(session.update(ID, layer(new PlayerState(1, 10, 10),
+                new PlayerState(2, 20, 20)), new SharedDeltas(0)), null);
+        session.acknowledge(0);
+
+        VisibilityLayer v1 = apply(session.update(ID, layer(new PlayerState(1, 10, 10)),
+                new SharedDeltas(1)), v0);
+        assertEquals("1", ids(v1));
+
+        VisibilityDelta back = session.update(ID, layer(new PlayerState(1, 10, 10),
+                new PlayerState(2, 20, 20)), new SharedDeltas(2));
+        assertEquals("1 2", ids(apply(back, v1)));
+        assertEquals("1 2", ids(apply(back, v0)));
+    }
+
+    @Test
+    public void clientsSentDifferentVersionsDontShareDeltas() {
+        VisibilitySession behind = new VisibilitySession();
+        VisibilitySession ahead = new VisibilitySession();
+        SharedDeltas shared = new SharedDeltas(0);
+        VisibilityLayer v0 = apply(behind.update(ID, layer(new PlayerState(1, 10, 10)), shared),
+                null);
+        ahead.update(ID, layer(new PlayerState(1, 10, 10)), shared);
+        behind.acknowledge(0);
+        ahead.acknowledge(0);
+
+        ahead.update(ID, layer(new PlayerState(1, 10, 10), new PlayerState(2, 20, 20)),
+                new SharedDeltas(1));
+
+        shared = new SharedDeltas(2);
+        VisibilityLayer moved = layer(new PlayerState(1, 10, 10), new PlayerState(3, 30, 30));
+        VisibilityDelta forAhead = ahead.update(ID, moved, shared);
+        VisibilityDelta forBehind = behind.update(ID, moved, shared);
+        assertEquals(1, forAhead.getRemovedPlayers().length);
+        assertEquals(0, forBehind.getRemovedPlayers().length);
+        assertEquals("1 3", ids(apply(forBehind, v0)));
+    }
+
+    @Test
+    public void clientsAtTheSameStateShareOneDelta() {
+        VisibilitySession dm = new VisibilitySession();
+        VisibilitySession pc = new VisibilitySession();
+        VisibilityLayer layer = layer(new PlayerState(1, 10, 10));
+        SharedDeltas shared = new SharedDeltas(0);
+        dm.update(ID, layer, shared);
+        pc.update(ID, layer, shared);
+        dm.acknowledge(0);
+        pc.acknowledge(0);
+
+        layer.setPlayers(new PlayerState[] {new PlayerState(1, 10, 10),
+                new PlayerState(2, 20, 20)});
+        shared = new SharedDeltas(1, shared);
+        VisibilityDelta delta = dm.update(ID, layer, shared);
+        assertSame(delta, pc.update(ID, layer, shared));
+
+        // The layer didn't change, so neither has anything new to be sent
+        shared = new SharedDeltas(2, shared);
+        assertNull(dm.update(ID, layer, shared));
+        assertNull(pc.update(ID, layer, shared));
+    }
+}